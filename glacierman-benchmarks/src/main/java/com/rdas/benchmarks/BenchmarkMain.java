@@ -0,0 +1,21 @@
+package com.rdas.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH benchmarks like JMH's own main, but writes the results as JSON (to <code>jmh-result.json</code> unless
+ * <code>-rff</code> says otherwise) when no result format is given, so that every run can be compared with earlier ones
+ */
+public class BenchmarkMain {
+
+    public static void main(final String[] args) throws Exception {
+        final List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf")) {
+            arguments.add("-rf");
+            arguments.add("json");
+        }
+        org.openjdk.jmh.Main.main(arguments.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,80 @@
+package com.rdas.benchmarks;
+
+import com.rdas.common.ContentChunker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Content-defined chunking with {@link ContentChunker}: the gear hash loop alone on one thread, and a whole file
+ * chunked and hashed on all cores
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChunkerBenchmark {
+
+    @Param({"256"})
+    public int fileSizeMb;
+
+    private final ContentChunker chunker = ContentChunker.defaults();
+    private File file;
+    private ByteBuffer data;
+    private ExecutorService workers;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        file = File.createTempFile("chunker", ".bin");
+        file.deleteOnExit();
+        final byte[] block = new byte[1024 * 1024];
+        final Random random = new Random(42);
+        data = ByteBuffer.allocateDirect(64 * 1024 * 1024);
+        try (final RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (int i = 0; i < fileSizeMb; i++) {
+                random.nextBytes(block);
+                out.write(block);
+                if (data.hasRemaining()) {
+                    data.put(block);
+                }
+            }
+        }
+        data.flip();
+        workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        workers.shutdownNow();
+        file.delete();
+    }
+
+    @Benchmark
+    public int sequentialBoundaries() {
+        int chunks = 0;
+        int position = 0;
+        while (position < data.limit()) {
+            position = chunker.nextBoundary(data, position, data.limit());
+            chunks++;
+        }
+        return chunks;
+    }
+
+    @Benchmark
+    public ContentChunker.Chunks parallelChunkAndHash() throws IOException, InterruptedException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return chunker.chunk(channel, workers);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.rdas.benchmarks;
+
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.rdas.common.TransferOptions;
+import com.rdas.common.Utilities;
+import com.rdas.glacier.MultipartUploader;
+import com.rdas.glacier.RangedDownloader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole uploads and downloads through {@link MultipartUploader} and {@link RangedDownloader} against a
+ * {@link FakeGlacier}: reading, hashing, scheduling and verifying parts, without the network. The latency parameter
+ * shows how well parts in flight hide round trips.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    private static final String VAULT = "benchmark-vault";
+
+    @Param({"256"})
+    public int archiveSizeMb;
+
+    @Param({"8"})
+    public int partSizeMb;
+
+    @Param({"1", "4", "16"})
+    public int concurrency;
+
+    @Param({"0", "20"})
+    public int latencyMillis;
+
+    private File source;
+    private File target;
+    private long archiveSize;
+    private TransferOptions options;
+    private AmazonGlacier glacier;
+    private PrintStream console;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(final int b) {
+                // progress output is not part of the measurement
+            }
+        }));
+        final byte[] data = new byte[archiveSizeMb * (int) TransferOptions.MB];
+        new Random(42).nextBytes(data);
+        archiveSize = data.length;
+        source = File.createTempFile("endtoend", ".bin");
+        source.deleteOnExit();
+        Files.write(source.toPath(), data);
+        target = File.createTempFile("endtoend", ".out");
+        target.deleteOnExit();
+        // a fixed number of parts in flight, so that the governor does not blur the parameter
+        options = TransferOptions.defaults().withPartSizeMb(partSizeMb).withConcurrency(concurrency).withMaxConcurrency(concurrency);
+        glacier = FakeGlacier.create(data, latencyMillis);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(console);
+        source.delete();
+        target.delete();
+        new File(VAULT + "_pending.jsonl").delete();
+    }
+
+    @Benchmark
+    public String upload() throws IOException, InterruptedException {
+        return new MultipartUploader(glacier, options).upload(VAULT, "benchmark", source, new Utilities.ProgressLogger(archiveSize));
+    }
+
+    @Benchmark
+    public void download() throws IOException, InterruptedException {
+        new RangedDownloader(glacier, options).download(VAULT, "job", "archive", archiveSize, null, target, new Utilities.ProgressLogger(archiveSize));
+    }
+
+    @Benchmark
+    public void streamDownload() throws IOException, InterruptedException {
+        new RangedDownloader(glacier, options).download(VAULT, "job", archiveSize, null, new NullChannel(), new Utilities.ProgressLogger(archiveSize));
+    }
+
+    private static class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(final ByteBuffer src) {
+            final int count = src.remaining();
+            src.position(src.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.rdas.benchmarks;
+
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.glacier.model.*;
+import com.amazonaws.util.BinaryUtils;
+import com.rdas.common.TreeHash;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-in for the Glacier client, so that transfers can be measured without a vault. Uploaded parts are
+ * read and dropped, and every retrieval job outputs the same bytes. Each request first waits a fixed latency, like a
+ * round trip to a region would.
+ */
+class FakeGlacier implements InvocationHandler {
+
+    private final byte[] jobOutput;
+    private final String jobTreeHash;
+    private final long latencyMillis;
+    private final Map<String, String> rangeChecksums = new ConcurrentHashMap<>();
+    private final AtomicLong uploads = new AtomicLong();
+    private final ThreadLocal<byte[]> drainBuffer = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    private FakeGlacier(final byte[] jobOutput, final long latencyMillis) {
+        this.jobOutput = jobOutput;
+        this.jobTreeHash = treeHashOf(0, jobOutput.length);
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param jobOutput     what retrieval jobs output
+     * @param latencyMillis time every request takes before any data moves
+     * @return the client
+     */
+    static AmazonGlacier create(final byte[] jobOutput, final long latencyMillis) {
+        return (AmazonGlacier) Proxy.newProxyInstance(FakeGlacier.class.getClassLoader(), new Class<?>[]{AmazonGlacier.class},
+                new FakeGlacier(jobOutput, latencyMillis));
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return method.invoke(this, args);
+        }
+        if (latencyMillis > 0) {
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+        }
+        switch (method.getName()) {
+            case "initiateMultipartUpload":
+                return new InitiateMultipartUploadResult().withUploadId("upload-" + uploads.incrementAndGet());
+            case "uploadMultipartPart":
+                final UploadMultipartPartRequest part = (UploadMultipartPartRequest) args[0];
+                drain(part.getBody());
+                return new UploadMultipartPartResult().withChecksum(part.getChecksum());
+            case "completeMultipartUpload":
+                final CompleteMultipartUploadRequest complete = (CompleteMultipartUploadRequest) args[0];
+                return new CompleteMultipartUploadResult().withArchiveId("archive-" + complete.getUploadId()).withChecksum(complete.getChecksum());
+            case "abortMultipartUpload":
+                return new AbortMultipartUploadResult();
+            case "describeJob":
+                return new DescribeJobResult().withCompleted(true).withStatusCode("Succeeded").withSHA256TreeHash(jobTreeHash);
+            case "getJobOutput":
+                return jobOutput(((GetJobOutputRequest) args[0]).getRange());
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    private GetJobOutputResult jobOutput(final String range) {
+        final String[] bounds = range.substring("bytes=".length()).split("-");
+        final int start = Integer.parseInt(bounds[0]);
+        final int length = Integer.parseInt(bounds[1]) - start + 1;
+        // the checksum is Glacier's work, not the client's, so it is only computed once per range
+        final String checksum = rangeChecksums.computeIfAbsent(range, r -> treeHashOf(start, length));
+        return new GetJobOutputResult().withBody(new ByteArrayInputStream(jobOutput, start, length)).withChecksum(checksum);
+    }
+
+    private void drain(final InputStream body) throws IOException {
+        final byte[] buffer = drainBuffer.get();
+        // the bytes only need to be read, as the network would
+        int read = 0;
+        while (read >= 0) {
+            read = body.read(buffer);
+        }
+    }
+
+    private String treeHashOf(final int start, final int length) {
+        final TreeHash treeHash = new TreeHash();
+        treeHash.update(jobOutput, start, length);
+        return BinaryUtils.toHex(treeHash.digest());
+    }
+}
@@ -0,0 +1,86 @@
+package com.rdas.benchmarks;
+
+import com.google.gson.stream.JsonWriter;
+import com.rdas.glacier.InventoryArchive;
+import com.rdas.glacier.InventoryReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a vault inventory of a million archives or more with {@link InventoryReader}, as the inventory command
+ * does before cataloging it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InventoryBenchmark {
+
+    private static final String ID_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+    @Param({"1000000"})
+    public int archives;
+
+    private File inventory;
+
+    @Setup(Level.Trial)
+    public void createInventory() throws IOException {
+        inventory = File.createTempFile("inventory", ".json");
+        inventory.deleteOnExit();
+        final Random random = new Random(42);
+        final long start = Instant.parse("2015-01-01T00:00:00Z").getEpochSecond();
+        try (final JsonWriter out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(inventory), StandardCharsets.UTF_8), 1 << 16))) {
+            out.beginObject();
+            out.name("VaultARN").value("arn:aws:glacier:eu-west-1:123456789012:vaults/benchmark");
+            out.name("InventoryDate").value("2021-01-01T00:00:00Z");
+            out.name("ArchiveList").beginArray();
+            for (int i = 0; i < archives; i++) {
+                out.beginObject();
+                out.name("ArchiveId").value(randomString(random, ID_CHARACTERS, 138));
+                out.name("ArchiveDescription").value("Glacier backup of /data/photos/" + (i / 1000) + "/IMG_" + i + ".jpg");
+                out.name("CreationDate").value(Instant.ofEpochSecond(start + i * 97L).toString());
+                out.name("Size").value(random.nextInt(Integer.MAX_VALUE));
+                out.name("SHA256TreeHash").value(randomString(random, "0123456789abcdef", 64));
+                out.endObject();
+            }
+            out.endArray();
+            out.endObject();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteInventory() {
+        inventory.delete();
+    }
+
+    @Benchmark
+    public long readInventory() throws IOException {
+        long totalSize = 0;
+        try (final InventoryReader reader = InventoryReader.open(inventory)) {
+            InventoryArchive archive;
+            while ((archive = reader.next()) != null) {
+                totalSize += archive.getSize();
+            }
+        }
+        return totalSize;
+    }
+
+    private static String randomString(final Random random, final String characters, final int length) {
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = characters.charAt(random.nextInt(characters.length()));
+        }
+        return new String(chars);
+    }
+}
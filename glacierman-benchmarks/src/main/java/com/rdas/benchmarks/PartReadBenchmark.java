@@ -0,0 +1,104 @@
+package com.rdas.benchmarks;
+
+import com.rdas.common.FileArchiveSource;
+import com.rdas.common.TransferOptions;
+import com.rdas.common.TreeHash;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a file part by part and tree hashing each part, as uploads do, through a reused heap buffer, a reused
+ * direct buffer, and memory mapped parts as {@link FileArchiveSource} reads them. After the first iteration the file
+ * is in the page cache, so this measures copying and hashing rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PartReadBenchmark {
+
+    @Param({"512"})
+    public int fileSizeMb;
+
+    @Param({"8", "64"})
+    public int partSizeMb;
+
+    private File file;
+    private ByteBuffer heapBuffer;
+    private ByteBuffer directBuffer;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        file = File.createTempFile("partread", ".bin");
+        file.deleteOnExit();
+        final byte[] block = new byte[(int) TransferOptions.MB];
+        final Random random = new Random(42);
+        try (final RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (int i = 0; i < fileSizeMb; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        }
+        heapBuffer = ByteBuffer.allocate(partSizeMb * (int) TransferOptions.MB);
+        directBuffer = ByteBuffer.allocateDirect(partSizeMb * (int) TransferOptions.MB);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Benchmark
+    public byte[] heapBuffer() throws IOException {
+        return readParts(heapBuffer);
+    }
+
+    @Benchmark
+    public byte[] directBuffer() throws IOException {
+        return readParts(directBuffer);
+    }
+
+    @Benchmark
+    public byte[] mappedParts() throws IOException {
+        final long partSize = partSizeMb * TransferOptions.MB;
+        byte[] last = null;
+        try (final FileArchiveSource source = new FileArchiveSource(file)) {
+            for (long offset = 0; offset < source.size(); offset += partSize) {
+                last = source.part(offset, Math.min(partSize, source.size() - offset)).getTreeHash();
+            }
+        }
+        return last;
+    }
+
+    private byte[] readParts(final ByteBuffer buffer) throws IOException {
+        byte[] last = null;
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            for (long offset = 0; offset < size; offset += buffer.capacity()) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), size - offset));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offset + buffer.position()) < 0) {
+                        throw new EOFException("File ended early: " + file);
+                    }
+                }
+                buffer.flip();
+                final TreeHash treeHash = new TreeHash();
+                treeHash.update(buffer);
+                last = treeHash.digest();
+            }
+        }
+        return last;
+    }
+}
@@ -0,0 +1,59 @@
+package com.rdas.benchmarks;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.rdas.common.Utilities;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of reporting a transferred chunk to {@link Utilities.ProgressLogger}, which the SDK does every few KB of every
+ * part in flight, alone and with many parts reporting at once
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProgressLoggerBenchmark {
+
+    @Param({"known", "unknown"})
+    public String size;
+
+    private final ProgressEvent event = new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, 8 * 1024);
+    private Utilities.ProgressLogger logger;
+    private PrintStream console;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(final int b) {
+                // progress output is not part of the measurement
+            }
+        }));
+        logger = new Utilities.ProgressLogger("known".equals(size) ? Long.MAX_VALUE / 2 : -1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void oneTransfer() {
+        logger.logProgress(event);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void sixteenTransfers() {
+        logger.logProgress(event);
+    }
+}
@@ -0,0 +1,78 @@
+package com.rdas.benchmarks;
+
+import com.amazonaws.services.glacier.TreeHashGenerator;
+import com.amazonaws.util.BinaryUtils;
+import com.rdas.common.TreeHash;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tree hashing a file with {@link TreeHash} against the SDK's {@link TreeHashGenerator}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TreeHashBenchmark {
+
+    @Param({"64", "512"})
+    public int fileSizeMb;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        file = File.createTempFile("treehash", ".bin");
+        file.deleteOnExit();
+        final byte[] block = new byte[TreeHash.CHUNK_SIZE];
+        new Random(42).nextBytes(block);
+        try (final RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (int i = 0; i < fileSizeMb; i++) {
+                out.write(block);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String sdkTreeHashGenerator() throws IOException {
+        try (final InputStream in = new FileInputStream(file)) {
+            return TreeHashGenerator.calculateTreeHash(in);
+        }
+    }
+
+    @Benchmark
+    public String mappedTreeHash() throws IOException {
+        return TreeHash.of(file);
+    }
+
+    @Benchmark
+    public String channelTreeHash() throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(TreeHash.CHUNK_SIZE);
+            final TreeHash treeHash = new TreeHash();
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                treeHash.update(buffer);
+                buffer.clear();
+            }
+            return BinaryUtils.toHex(treeHash.digest());
+        }
+    }
+}
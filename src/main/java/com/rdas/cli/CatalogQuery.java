@@ -0,0 +1,177 @@
+package com.rdas.cli;
+
+import com.rdas.common.Utilities;
+import com.rdas.glacier.ArchiveCatalog;
+import com.rdas.glacier.InventoryArchive;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A lookup in the local archive catalog, as given on the command line:
+ * <ul>
+ *     <li><code>id &lt;archive ID&gt;</code></li>
+ *     <li><code>description &lt;prefix&gt;</code></li>
+ *     <li><code>name &lt;file name prefix&gt;</code></li>
+ *     <li><code>size &lt;bytes&gt;</code> or <code>size &lt;min&gt;..&lt;max&gt;</code></li>
+ *     <li><code>date &lt;day or instant&gt;</code> or <code>date &lt;from&gt;..&lt;to&gt;</code></li>
+ *     <li><code>age &lt;days&gt;</code> for archives at least that old, or <code>age &lt;min days&gt;..&lt;max days&gt;</code></li>
+ * </ul>
+ * Range bounds are inclusive and either of them may be left out. Several conditions can be given, all of which must
+ * match; the first one picks the index the catalog is searched with.
+ */
+public class CatalogQuery {
+
+    private final String field;
+    private final String value;
+    private final long[] range;
+
+    public CatalogQuery(final String field, final String value) {
+        switch (field) {
+            case "id":
+            case "description":
+            case "name":
+            case "size":
+            case "date":
+            case "age":
+                break;
+            default:
+                throw new IllegalArgumentException("Query field must be 'id', 'description', 'name', 'size', 'date' or 'age'");
+        }
+        this.field = field;
+        this.value = value;
+        // fail on malformed ranges before the catalog is opened
+        this.range = field.equals("size") || field.equals("date") || field.equals("age") ? range() : null;
+    }
+
+    /**
+     * Parse <code>&lt;field&gt; &lt;value&gt;</code> pairs
+     *
+     * @param args   command line arguments
+     * @param offset index of the first field
+     * @return the conditions
+     */
+    public static List<CatalogQuery> parse(final String[] args, final int offset) {
+        if (args.length <= offset || (args.length - offset) % 2 != 0) {
+            throw new IllegalArgumentException("Query must be one or more '<field> <value>' pairs");
+        }
+        final List<CatalogQuery> queries = new ArrayList<>();
+        for (int i = offset; i < args.length; i += 2) {
+            queries.add(new CatalogQuery(args[i], args[i + 1]));
+        }
+        return queries;
+    }
+
+    /**
+     * Run a query of several conditions, looking up the first one and filtering with the others
+     *
+     * @param queries  the conditions
+     * @param catalog  the catalog
+     * @param consumer receives the archives matching all conditions
+     * @return number of matches
+     */
+    public static long run(final List<CatalogQuery> queries, final ArchiveCatalog catalog, final Consumer<InventoryArchive> consumer) {
+        final List<CatalogQuery> filters = queries.subList(1, queries.size());
+        final long[] matches = {0};
+        queries.get(0).run(catalog, archive -> {
+            for (final CatalogQuery filter : filters) {
+                if (!filter.matches(archive)) {
+                    return;
+                }
+            }
+            matches[0]++;
+            consumer.accept(archive);
+        });
+        return matches[0];
+    }
+
+    /**
+     * Run the query
+     *
+     * @param catalog  the catalog
+     * @param consumer receives the matching archives
+     * @return number of matches
+     */
+    public long run(final ArchiveCatalog catalog, final Consumer<InventoryArchive> consumer) {
+        switch (field) {
+            case "id":
+                final InventoryArchive archive = catalog.get(value);
+                if (archive == null) {
+                    return 0;
+                }
+                consumer.accept(archive);
+                return 1;
+            case "description":
+                return catalog.prefix(ArchiveCatalog.Index.DESCRIPTION, value, consumer);
+            case "name":
+                return catalog.prefix(ArchiveCatalog.Index.NAME, value, consumer);
+            default:
+                return catalog.range(field.equals("size") ? ArchiveCatalog.Index.SIZE : ArchiveCatalog.Index.DATE, range[0], range[1], consumer);
+        }
+    }
+
+    /**
+     * @param archive an archive
+     * @return whether the archive matches this condition
+     */
+    public boolean matches(final InventoryArchive archive) {
+        switch (field) {
+            case "id":
+                return archive.getArchiveId().equals(value);
+            case "description":
+                return archive.getDescription().startsWith(value);
+            case "name":
+                return Utilities.fileNameFromDescription(archive.getDescription()).startsWith(value);
+            default:
+                final long archiveValue = field.equals("size") ? archive.getSize() : archive.getCreationTime();
+                return archiveValue >= range[0] && archiveValue < range[1];
+        }
+    }
+
+    /**
+     * @return the lowest and highest value of a size or date query, as an inclusive and an exclusive bound
+     */
+    private long[] range() {
+        final int separator = value.indexOf("..");
+        final String from = separator < 0 ? value : value.substring(0, separator);
+        final String to = separator < 0 ? value : value.substring(separator + 2);
+        if (field.equals("age")) {
+            // a minimum age is a latest creation time, and a single age has no maximum
+            final long now = System.currentTimeMillis();
+            return new long[]{
+                    to.isEmpty() || separator < 0 ? Long.MIN_VALUE : now - TimeUnit.DAYS.toMillis(Long.parseLong(to)),
+                    from.isEmpty() ? Long.MAX_VALUE : now - TimeUnit.DAYS.toMillis(Long.parseLong(from)) + 1};
+        }
+        return new long[]{
+                from.isEmpty() ? Long.MIN_VALUE : lowest(from),
+                to.isEmpty() ? Long.MAX_VALUE : highest(to)};
+    }
+
+    private long lowest(final String bound) {
+        if (field.equals("size")) {
+            return Long.parseLong(bound);
+        }
+        if (bound.contains("T")) {
+            return Instant.parse(bound).toEpochMilli();
+        }
+        return LocalDate.parse(bound).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+    /**
+     * @return the exclusive bound just above the value, so a day includes all of it
+     */
+    private long highest(final String bound) {
+        if (field.equals("size")) {
+            return Long.parseLong(bound) + 1;
+        }
+        if (bound.contains("T")) {
+            return Instant.parse(bound).toEpochMilli() + 1;
+        }
+        return LocalDate.parse(bound).plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+}
@@ -8,6 +8,10 @@ public class DownloadArchiveRequest {
 
     private String fileSize;
 
+    private String offset;
+
+    private String length;
+
     public DownloadArchiveRequest() {
         // nullary for serialization
     }
@@ -41,4 +45,26 @@ public class DownloadArchiveRequest {
     public void setFileSize(final String fileSize) {
         this.fileSize = fileSize;
     }
+
+    /**
+     * @return first byte to download, or null to download the whole archive
+     */
+    public String getOffset() {
+        return offset;
+    }
+
+    public void setOffset(final String offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * @return number of bytes to download from the offset, or null to download the whole archive
+     */
+    public String getLength() {
+        return length;
+    }
+
+    public void setLength(final String length) {
+        this.length = length;
+    }
 }
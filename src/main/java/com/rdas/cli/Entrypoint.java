@@ -1,18 +1,53 @@
 package com.rdas.cli;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.rdas.common.ArchiveInfo;
+import com.rdas.common.ByteRange;
 import com.rdas.common.Credentials;
+import com.rdas.common.Metrics;
+import com.rdas.common.TransferOptions;
+import com.rdas.common.Utilities;
+import com.rdas.glacier.ArchiveCatalog;
+import com.rdas.glacier.ArchiveVerifier;
+import com.rdas.glacier.ChunkedBackup;
+import com.rdas.glacier.FakeGlacierServer;
+import com.rdas.glacier.GlacierBatchDownload;
+import com.rdas.glacier.GlacierBatchUpload;
+import com.rdas.glacier.GlacierBulkDelete;
+import com.rdas.glacier.GlacierClients;
+import com.rdas.glacier.GlacierDaemon;
 import com.rdas.glacier.GlacierDelete;
 import com.rdas.glacier.GlacierDownload;
 import com.rdas.glacier.GlacierInventory;
 import com.rdas.glacier.GlacierUpload;
+import com.rdas.glacier.InventoryArchive;
+import com.rdas.glacier.RetrievalPlanner;
+import com.rdas.glacier.TransferGovernor;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class Entrypoint {
 
@@ -22,33 +57,131 @@ public class Entrypoint {
 
     private File uploadArchive;
 
+    private boolean uploadStdin;
+
+    private List<File> uploadFiles;
+
+    private String uploadSource;
+
     private File downloadRequestsFile;
 
+    private boolean downloadStdout;
+
     private Credentials credentials;
 
+    private TransferOptions transferOptions;
+
     private DownloadArchiveRequest downloadRequest;
 
+    private List<DownloadArchiveRequest> downloadRequests;
+
+    private File inventoryFile;
+
+    private List<CatalogQuery> catalogQueries;
+
+    private File backupManifest;
+
+    private File restoreTarget;
+
+    private int servePort;
+
+    private File queueFile;
+
     public static void main(final String[] args) throws IOException, InterruptedException {
         new Entrypoint().execute(args);
     }
 
     public void execute(final String[] args) throws IOException, InterruptedException {
+        if (args.length > 1 && args[0].equals("fake-glacier")) {
+            // a local Glacier for offline tests, needs neither a vault nor credentials
+            FakeGlacierServer.serve(Integer.parseInt(args[1]), new File(args.length > 2 ? args[2] : "fake-glacier"));
+            return;
+        }
         parseArgs(args);
-        loadCredentials();
+        if (downloadStdout) {
+            // stdout only carries the archive, everything else goes to stderr
+            System.setOut(System.err);
+        }
+        if (!action.equals("query") && !action.equals("verify") && inventoryFile == null) {
+            loadCredentials();
+        }
+        transferOptions = TransferOptions.fromSystemProperties();
+        // all transfers of this run share one set of clients and one governor, configured with these options
+        GlacierClients.shared(transferOptions);
+        TransferGovernor.shared(transferOptions);
+        Metrics.shared(transferOptions).startReporting();
+        try {
+            run();
+        } finally {
+            Metrics.shared().stopReporting();
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
         switch (action) {
             case "upload":
-                doUpload();
+                if (uploadStdin) {
+                    doStreamUpload();
+                } else if (uploadArchive != null) {
+                    doUpload();
+                } else {
+                    doBatchUpload();
+                }
                 break;
             case "download":
-                loadDownloadRequest();
-                doDownload();
+                loadDownloadRequests();
+                if (downloadStdout) {
+                    if (downloadRequests.size() != 1) {
+                        throw new IllegalArgumentException("Only a single archive can be downloaded to stdout");
+                    }
+                    downloadRequest = downloadRequests.get(0);
+                    doStreamDownload();
+                } else if (downloadRequests.size() == 1) {
+                    downloadRequest = downloadRequests.get(0);
+                    doDownload();
+                } else {
+                    doBatchDownload();
+                }
                 break;
             case "delete":
-                loadDownloadRequest();
-                doDelete();
+                if (catalogQueries != null) {
+                    doBulkDelete(catalogArchives());
+                    break;
+                }
+                loadDownloadRequests();
+                if (downloadRequests.size() == 1 && !transferOptions.isDryRun()) {
+                    downloadRequest = downloadRequests.get(0);
+                    doDelete();
+                } else {
+                    final List<ArchiveInfo> archives = new ArrayList<>(downloadRequests.size());
+                    for (final DownloadArchiveRequest request : downloadRequests) {
+                        archives.add(ArchiveInfo.ofRemote(vaultName, request.getArchiveId(), null, request.getFileSize()));
+                    }
+                    doBulkDelete(archives);
+                }
                 break;
             case "inventory":
-                doInventory();
+                if (inventoryFile != null) {
+                    GlacierInventory.catalog(vaultName, inventoryFile);
+                } else {
+                    doInventory();
+                }
+                break;
+            case "query":
+                doQuery();
+                break;
+            case "verify":
+                loadDownloadRequests();
+                doVerify();
+                break;
+            case "backup":
+                doBackup();
+                break;
+            case "restore":
+                doRestore();
+                break;
+            case "serve":
+                GlacierDaemon.serve(servePort, queueFile, credentials, transferOptions);
                 break;
             default:
         }
@@ -62,15 +195,77 @@ public class Entrypoint {
         System.out.println("Archive has been deleted from vault");
     }
 
-    private void doUpload() {
+    private void doBulkDelete(final List<ArchiveInfo> archives) throws IOException, InterruptedException {
+        if (!transferOptions.isDryRun()) {
+            System.out.println("ATTENTION! " + archives.size() + " archives will be deleted from the vault " + vaultName);
+        }
+        new GlacierBulkDelete(vaultName, archives, credentials, transferOptions).deleteAll();
+    }
+
+    /**
+     * @return the archives in the catalog matching the query
+     */
+    private List<ArchiveInfo> catalogArchives() throws IOException {
+        final List<ArchiveInfo> archives = new ArrayList<>();
+        try (final ArchiveCatalog catalog = ArchiveCatalog.open(ArchiveCatalog.directoryFor(vaultName))) {
+            CatalogQuery.run(catalogQueries, catalog, archive ->
+                    archives.add(ArchiveInfo.ofRemote(vaultName, archive.getArchiveId(), null, String.valueOf(archive.getSize()))));
+            System.out.println(archives.size() + " of " + catalog.getInfo().getArchiveCount() + " archives matched. Catalog is of the inventory of "
+                    + catalog.getInfo().getInventoryDate());
+        }
+        return archives;
+    }
+
+    /**
+     * Check downloaded files against the tree hashes of their archives in the catalog or the pending changes
+     */
+    private void doVerify() throws IOException {
+        final ArchiveVerifier verifier = new ArchiveVerifier(transferOptions);
+        final List<String> failures = new ArrayList<>();
+        int verified = 0;
+        for (final DownloadArchiveRequest request : downloadRequests) {
+            final File file = new File(request.getLocalFileName());
+            if (request.getOffset() != null || request.getLength() != null) {
+                System.out.println("Skipping " + file + ", only part of the archive was downloaded");
+                continue;
+            }
+            final InventoryArchive archive = ArchiveVerifier.find(vaultName, request.getArchiveId());
+            if (archive == null) {
+                failures.add("Archive " + request.getArchiveId() + " of " + file + " is neither in the catalog nor among the pending changes of the vault");
+                continue;
+            }
+            if (!file.isFile()) {
+                failures.add(file + " does not exist");
+                continue;
+            }
+            if (archive.getDescription() != null && Utilities.encodingFromDescription(archive.getDescription()) != null) {
+                // the tree hash is that of the encoded archive, not of the decoded file
+                System.out.println("Skipping " + file + ", it is decoded after download and checked by the download itself");
+                continue;
+            }
+            try {
+                verifier.verify(file, archive.getTreeHash());
+                verified++;
+            } catch (final IOException e) {
+                System.out.println(e.getMessage());
+                failures.add(e.getMessage());
+            }
+        }
+        System.out.println(verified + " of " + downloadRequests.size() + " files match their archives");
+        if (!failures.isEmpty()) {
+            throw new IOException(failures.size() + " files failed verification:\n" + String.join("\n", failures));
+        }
+    }
+
+    private void doUpload() throws IOException, InterruptedException {
         System.out.println("Starting upload...");
         final ArchiveInfo archiveInfo = ArchiveInfo.ofLocal(vaultName, uploadArchive);
 
         System.out.println("Will upload \"" + uploadArchive.getName() + "\" to vault \"" + vaultName + "\" in " + credentials.getRegion());
 
         final double sizeMb = uploadArchive.length() / (1024.0 * 1024);
-        final GlacierUpload glUpload = new GlacierUpload(archiveInfo, credentials);
-        System.out.println("Initialized. Archive size is: " + sizeMb + " MB");
+        final GlacierUpload glUpload = new GlacierUpload(archiveInfo, credentials, transferOptions);
+        System.out.println("Initialized. Archive size is: " + sizeMb + " MB. Uploading " + transferOptions.getPartSizeMb() + " MB parts, starting at " + transferOptions.getConcurrency() + " at a time");
 
         final long start = System.currentTimeMillis();
         final String archiveId = glUpload.upload();
@@ -78,13 +273,37 @@ public class Entrypoint {
         reportSpeed(sizeMb, start);
     }
 
+    private void doStreamUpload() throws IOException, InterruptedException {
+        System.out.println("Will upload standard input as \"" + uploadArchive.getName() + "\" to vault \"" + vaultName + "\" in " + credentials.getRegion()
+                + ". Buffering up to " + Math.max(2, transferOptions.getConcurrency()) + " parts of " + transferOptions.getPartSizeMb() + " MB");
+        final GlacierUpload glUpload = new GlacierUpload(ArchiveInfo.ofLocal(vaultName, uploadArchive), credentials, transferOptions);
+        // the channel of the stdin file descriptor reads straight into the direct part buffers
+        try (final FileChannel in = new FileInputStream(FileDescriptor.in).getChannel()) {
+            System.out.println("Archive ID is " + glUpload.upload(in));
+        }
+    }
+
+    private void doBatchUpload() throws IOException, InterruptedException {
+        long totalBytes = 0;
+        for (final File file : uploadFiles) {
+            totalBytes += file.length();
+        }
+        final double sizeMb = totalBytes / (1024.0 * 1024);
+        System.out.println("Will upload " + uploadFiles.size() + " files (" + sizeMb + " MB) to vault \"" + vaultName + "\" in " + credentials.getRegion()
+                + ", " + transferOptions.getFileConcurrency() + " files at a time");
+        final long start = System.currentTimeMillis();
+        new GlacierBatchUpload(vaultName, uploadSource, uploadFiles, credentials, transferOptions).uploadAll(GlacierBatchUpload.resultsFileFor(vaultName));
+        reportSpeed(sizeMb, start);
+    }
+
     private void doDownload() throws InterruptedException, IOException {
         System.out.println("Starting download...");
-        final ArchiveInfo archiveInfo = ArchiveInfo.ofRemote(vaultName, downloadRequest.getArchiveId(), new File(downloadRequest.getLocalFileName()), downloadRequest.getFileSize());
+        final ArchiveInfo archiveInfo = toArchiveInfo(downloadRequest);
 
         System.out.println("Will download archive with id \"" + archiveInfo.getRemoteArchiveId() + "\" from vault \"" + vaultName + "\" to local file \"" + archiveInfo.getLocalArchiveFile() + "\"");
 
-        final GlacierDownload glacierDownload = new GlacierDownload(archiveInfo, credentials);
+        final GlacierDownload glacierDownload = new GlacierDownload(archiveInfo, credentials, transferOptions);
+        new RetrievalPlanner(transferOptions).apply(Collections.singletonList(glacierDownload));
         final String jobId = glacierDownload.prepareArchive();
         final long start = System.currentTimeMillis();
         glacierDownload.download(jobId);
@@ -94,27 +313,120 @@ public class Entrypoint {
         reportSpeed(sizeMb, start);
     }
 
+    private void doStreamDownload() throws InterruptedException, IOException {
+        final ArchiveInfo archiveInfo = toArchiveInfo(downloadRequest);
+        System.out.println("Will stream archive with id \"" + archiveInfo.getRemoteArchiveId() + "\" from vault \"" + vaultName + "\" to stdout");
+        final GlacierDownload glacierDownload = new GlacierDownload(archiveInfo, credentials, transferOptions);
+        new RetrievalPlanner(transferOptions).apply(Collections.singletonList(glacierDownload));
+        final String jobId = glacierDownload.prepareArchive();
+        final long start = System.currentTimeMillis();
+        try (final FileChannel out = new FileOutputStream(FileDescriptor.out).getChannel()) {
+            glacierDownload.download(jobId, out);
+        }
+        reportSpeed(archiveInfo.getDownloadSizeBytes() / (1024.0 * 1024), start);
+    }
+
+    private void doBatchDownload() throws InterruptedException, IOException {
+        System.out.println("Starting batch download of " + downloadRequests.size() + " archives from vault \"" + vaultName + "\"...");
+        final List<ArchiveInfo> archives = new ArrayList<>(downloadRequests.size());
+        long totalBytes = 0;
+        for (final DownloadArchiveRequest request : downloadRequests) {
+            final ArchiveInfo archiveInfo = toArchiveInfo(request);
+            archives.add(archiveInfo);
+            totalBytes += archiveInfo.getDownloadSizeBytes();
+        }
+        final long start = System.currentTimeMillis();
+        new GlacierBatchDownload(vaultName, archives, credentials, transferOptions).downloadAll();
+        reportSpeed(totalBytes / (1024.0 * 1024), start);
+    }
+
+    private ArchiveInfo toArchiveInfo(final DownloadArchiveRequest request) {
+        final ArchiveInfo archiveInfo = ArchiveInfo.ofRemote(vaultName, request.getArchiveId(), new File(request.getLocalFileName()), request.getFileSize());
+        if (request.getOffset() == null && request.getLength() == null) {
+            return archiveInfo;
+        }
+        if (request.getOffset() == null || request.getLength() == null) {
+            throw new IllegalArgumentException("Both offset and length are needed to download part of " + request.getLocalFileName());
+        }
+        return archiveInfo.withByteRange(new ByteRange(Long.parseLong(request.getOffset()), Long.parseLong(request.getLength())));
+    }
+
+    private void doBackup() throws IOException, InterruptedException {
+        System.out.println("Will back up \"" + uploadArchive + "\" to vault \"" + vaultName + "\" in " + credentials.getRegion());
+        final long start = System.currentTimeMillis();
+        final File manifest = new ChunkedBackup(vaultName, credentials, transferOptions).backup(uploadArchive);
+        System.out.println("Backup manifest is " + manifest);
+        reportSpeed(uploadArchive.length() / (1024.0 * 1024), start);
+    }
+
+    private void doRestore() throws IOException, InterruptedException {
+        System.out.println("Will restore the backup \"" + backupManifest + "\" from vault \"" + vaultName + "\" to \"" + restoreTarget + "\"");
+        new ChunkedBackup(vaultName, credentials, transferOptions).restore(backupManifest, restoreTarget);
+    }
+
     private void doInventory() throws IOException, InterruptedException {
         System.out.println("Starting inventory of " + vaultName + " ...");
-        final GlacierInventory inventory = new GlacierInventory(credentials);
+        final GlacierInventory inventory = new GlacierInventory(credentials, transferOptions);
         inventory.inventory(vaultName);
     }
 
-    private void parseArgs(final String[] args) {
+    /**
+     * Print the matching archives as download requests, so that the output can be passed to the download command
+     */
+    private void doQuery() throws IOException {
+        final long start = System.currentTimeMillis();
+        final JsonWriter out = new JsonWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        out.setIndent("  ");
+        out.beginArray();
+        final long matches;
+        try (final ArchiveCatalog catalog = ArchiveCatalog.open(ArchiveCatalog.directoryFor(vaultName))) {
+            matches = CatalogQuery.run(catalogQueries, catalog, archive -> {
+                try {
+                    out.beginObject()
+                            .name("archiveId").value(archive.getArchiveId())
+                            .name("localFileName").value(Utilities.fileNameFromDescription(archive.getDescription()))
+                            .name("fileSize").value(String.valueOf(archive.getSize()))
+                            .name("description").value(archive.getDescription())
+                            .name("creationDate").value(archive.getCreationDate())
+                            .endObject();
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            out.endArray();
+            out.flush();
+            System.out.println();
+            System.err.println(matches + " of " + catalog.getInfo().getArchiveCount() + " archives matched in " + (System.currentTimeMillis() - start)
+                    + " ms. Catalog is of the inventory of " + catalog.getInfo().getInventoryDate());
+        }
+    }
+
+    private void parseArgs(final String[] args) throws IOException {
         if (args.length < 2) {
             throw new IllegalArgumentException("Need at least 2 arguments");
         }
 
         final String action = args[0];
+        if (action.equals("serve")) {
+            // a daemon serves all vaults, so the second argument is its port
+            this.action = action;
+            this.servePort = Integer.parseInt(args[1]);
+            this.queueFile = new File(args.length > 2 ? args[2] : "glacierman_queue.jsonl");
+            return;
+        }
         switch (action) {
             case "upload":
             case "download":
             case "delete":
             case "inventory":
+            case "query":
+            case "backup":
+            case "restore":
+            case "verify":
                 this.action = action;
                 break;
             default:
-                throw new IllegalArgumentException("action must be 'upload' or 'download' or 'inventory'");
+                throw new IllegalArgumentException("action must be 'upload' or 'download' or 'delete' or 'inventory' or 'query' or 'backup' or 'restore' or 'verify' or 'serve'");
         }
 
         final String vaultName = args[1];
@@ -124,11 +436,54 @@ public class Entrypoint {
             this.vaultName = vaultName;
         }
 
-        if (this.action.equals("upload") || this.action.equals("download") || this.action.equals("delete")) {
+        if (this.action.equals("inventory") && args.length > 2) {
+            this.inventoryFile = new File(args[2]);
+            if (!inventoryFile.isFile()) {
+                throw new IllegalArgumentException("Inventory file must exist & be a file");
+            }
+        }
+
+        if (this.action.equals("query")) {
+            if (args.length < 4) {
+                throw new IllegalArgumentException("Need 4 arguments");
+            }
+            this.catalogQueries = CatalogQuery.parse(args, 2);
+        }
+
+        if (this.action.equals("backup") || this.action.equals("restore")) {
             if (args.length < 3) {
                 throw new IllegalArgumentException("Need 3 arguments");
             }
             final File argFile = new File(args[2]);
+            if (!argFile.isFile()) {
+                throw new IllegalArgumentException("Argument file must exist & be a file");
+            }
+            if (this.action.equals("backup")) {
+                this.uploadArchive = argFile;
+            } else {
+                this.backupManifest = argFile;
+                this.restoreTarget = new File(args.length > 3 ? args[3] : "restored_" + argFile.getName().replaceFirst("\\.json$", ""));
+            }
+            return;
+        }
+
+        if (this.action.equals("upload") || this.action.equals("download") || this.action.equals("delete") || this.action.equals("verify")) {
+            if (args.length < 3) {
+                throw new IllegalArgumentException("Need 3 arguments");
+            }
+            if (this.action.equals("upload") && args[2].equals("-")) {
+                this.uploadStdin = true;
+                this.uploadArchive = new File(args.length > 3 ? args[3] : "stdin");
+                return;
+            }
+            if (this.action.equals("upload") && parseUploadSource(args[2])) {
+                return;
+            }
+            if (this.action.equals("delete") && args.length > 3) {
+                this.catalogQueries = CatalogQuery.parse(args, 2);
+                return;
+            }
+            final File argFile = new File(args[2]);
             if (!(argFile.exists() && argFile.isFile())) {
                 throw new IllegalArgumentException("Argument file must exist & be a file");
             }
@@ -137,20 +492,72 @@ public class Entrypoint {
                 this.uploadArchive = argFile;
             } else {
                 this.downloadRequestsFile = argFile;
+                this.downloadStdout = this.action.equals("download") && args.length > 3 && args[3].equals("-");
             }
         }
     }
 
+    /**
+     * An upload source can also be a directory (all regular files below it) or <code>@manifest</code>, a file listing
+     * one path per line
+     *
+     * @return true if the source is a batch of files
+     */
+    private boolean parseUploadSource(final String source) throws IOException {
+        final List<Path> paths;
+        if (source.startsWith("@")) {
+            paths = new ArrayList<>();
+            for (final String line : Files.readAllLines(Paths.get(source.substring(1)))) {
+                if (!line.trim().isEmpty()) {
+                    paths.add(Paths.get(line.trim()));
+                }
+            }
+        } else if (new File(source).isDirectory()) {
+            try (final Stream<Path> walk = Files.walk(Paths.get(source))) {
+                paths = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+        } else {
+            return false;
+        }
+        this.uploadSource = source;
+        this.uploadFiles = new ArrayList<>(paths.size());
+        for (final Path path : paths) {
+            final File file = path.toFile();
+            if (!file.isFile()) {
+                throw new IllegalArgumentException("Not a file: " + file);
+            }
+            if (file.length() == 0) {
+                System.out.println("Skipping empty file " + file);
+                continue;
+            }
+            uploadFiles.add(file);
+        }
+        if (uploadFiles.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to upload in " + source);
+        }
+        return true;
+    }
+
     private void loadCredentials() throws FileNotFoundException {
         final Gson gson = new Gson();
         final JsonReader reader = new JsonReader(new FileReader("credentials.json"));
         this.credentials = gson.fromJson(reader, Credentials.class);
     }
 
-    private void loadDownloadRequest() throws FileNotFoundException {
+    /**
+     * The requests file holds either a single request or an array of them
+     */
+    private void loadDownloadRequests() throws FileNotFoundException {
         final Gson gson = new Gson();
-        final JsonReader reader = new JsonReader(new FileReader(downloadRequestsFile));
-        this.downloadRequest = gson.fromJson(reader, DownloadArchiveRequest.class);
+        final JsonElement json = JsonParser.parseReader(new JsonReader(new FileReader(downloadRequestsFile)));
+        if (json.isJsonArray()) {
+            this.downloadRequests = Arrays.asList(gson.fromJson(json, DownloadArchiveRequest[].class));
+        } else {
+            this.downloadRequests = Collections.singletonList(gson.fromJson(json, DownloadArchiveRequest.class));
+        }
+        if (downloadRequests.isEmpty()) {
+            throw new IllegalArgumentException("No archives in " + downloadRequestsFile);
+        }
     }
 
     private void reportSpeed(final double sizeMb, final long start) {
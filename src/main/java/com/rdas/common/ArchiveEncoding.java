@@ -0,0 +1,363 @@
+package com.rdas.common;
+
+import com.amazonaws.util.BinaryUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression and encryption of archive content, applied while uploading and undone while downloading.
+ * <p>
+ * Encoded content starts with a header (magic, flags, key id and a random nonce prefix), followed by frames of
+ * independently encoded blocks of up to {@link #BLOCK_SIZE} bytes, so that blocks can be compressed and encrypted in
+ * parallel. A frame is the block's plain length, the payload length, the method (stored or deflated) and the payload.
+ * With encryption the payload is AES-256-GCM encrypted under a nonce made of the prefix and the block number, and
+ * the header, block number, plain length and method are authenticated with it, so altered, reordered or dropped
+ * frames are detected. An empty frame marks the end, so a truncated archive is detected too.
+ */
+public class ArchiveEncoding {
+
+    public static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    static final byte[] MAGIC = {'G', 'L', 'M', 'N', 'E', 'N', 'C', 1};
+    private static final int KEY_ID_SIZE = 8;
+    private static final int NONCE_PREFIX_SIZE = 8;
+    static final int HEADER_SIZE = MAGIC.length + 4 + KEY_ID_SIZE + NONCE_PREFIX_SIZE;
+    static final int FRAME_HEADER_SIZE = 4 + 4 + 1;
+    private static final int TAG_SIZE = 16;
+    static final int MAX_PAYLOAD_SIZE = BLOCK_SIZE + TAG_SIZE;
+
+    private static final int FLAG_DEFLATE = 1;
+    private static final int FLAG_AES_GCM = 2;
+    private static final String ENCRYPTION_NAME = "aes-256-gcm";
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+    private static final int KEY_SIZE = 32;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final boolean compress;
+    private final SecretKeySpec key;
+    private final byte[] keyId;
+
+    public ArchiveEncoding(final boolean compress, final byte[] key) {
+        if (key != null && key.length != KEY_SIZE) {
+            throw new IllegalArgumentException("Encryption keys must be " + KEY_SIZE + " bytes, was " + key.length);
+        }
+        this.compress = compress;
+        this.key = key == null ? null : new SecretKeySpec(key, "AES");
+        this.keyId = key == null ? new byte[KEY_ID_SIZE] : keyIdOf(key);
+    }
+
+    /**
+     * The encoding configured in the transfer options
+     *
+     * @param options transfer options
+     * @return the encoding
+     * @throws IOException the key file could not be read
+     */
+    public static ArchiveEncoding fromOptions(final TransferOptions options) throws IOException {
+        final String keyFile = options.getEncryptionKeyFile();
+        return new ArchiveEncoding(options.isCompress(), keyFile == null ? null : readKey(new File(keyFile)));
+    }
+
+    /**
+     * Read a 256 bit key from a file, either as 32 raw bytes or base64 encoded
+     *
+     * @param file the key file
+     * @return the key
+     * @throws IOException the file could not be read
+     */
+    public static byte[] readKey(final File file) throws IOException {
+        final byte[] content = Files.readAllBytes(file.toPath());
+        if (content.length == KEY_SIZE) {
+            return content;
+        }
+        try {
+            return Base64.getDecoder().decode(new String(content, StandardCharsets.US_ASCII).trim());
+        } catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException("Key file " + file + " must hold " + KEY_SIZE + " raw or base64 encoded bytes");
+        }
+    }
+
+    /**
+     * Whether a file starts like encoded content
+     *
+     * @param file the file
+     * @return true if the file is encoded
+     * @throws IOException the file could not be read
+     */
+    public static boolean isEncoded(final File file) throws IOException {
+        final byte[] start = new byte[MAGIC.length];
+        try (final InputStream in = Files.newInputStream(file.toPath())) {
+            int read = 0;
+            while (read < start.length) {
+                final int count = in.read(start, read, start.length - read);
+                if (count < 0) {
+                    return false;
+                }
+                read += count;
+            }
+        }
+        return Arrays.equals(start, MAGIC);
+    }
+
+    /**
+     * @return true if content is compressed or encrypted at all
+     */
+    public boolean isEnabled() {
+        return compress || key != null;
+    }
+
+    /**
+     * @return what is applied, as recorded in archive descriptions, e.g. <code>deflate,aes-256-gcm:1a2b3c4d5e6f7a8b</code>
+     */
+    public String getName() {
+        final StringBuilder name = new StringBuilder();
+        if (compress) {
+            name.append("deflate");
+        }
+        if (key != null) {
+            name.append(name.length() > 0 ? "," : "").append(ENCRYPTION_NAME).append(":").append(BinaryUtils.toHex(keyId));
+        }
+        return name.toString();
+    }
+
+    /**
+     * Encode a channel. Blocks are read in order and encoded on one thread per processor.
+     *
+     * @param in the plain content
+     * @return channel reading the encoded content
+     */
+    public EncodingChannel encode(final ReadableByteChannel in) {
+        return new EncodingChannel(this, in, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Decode into a channel. Content that is not encoded passes through unchanged, so any archive can be written
+     * through a decoder.
+     *
+     * @param out where to write the plain content
+     * @return channel taking the encoded content
+     */
+    public DecodingChannel decode(final WritableByteChannel out) {
+        return decode(out, true);
+    }
+
+    /**
+     * Decode into a channel
+     *
+     * @param out         where to write the plain content
+     * @param passThrough whether content that is not encoded passes through unchanged, rather than failing. Only
+     *                    for archives whose description is not known.
+     * @return channel taking the encoded content
+     */
+    public DecodingChannel decode(final WritableByteChannel out, final boolean passThrough) {
+        return decode(out, passThrough, null);
+    }
+
+    /**
+     * Decode into a channel. The header's flags are not authenticated, so encrypted content is required whenever it
+     * is expected: if the description names encryption, or if the description is not known and a key is configured.
+     * Otherwise content could pass as unencrypted, and unchecked, by having its encryption flag cleared.
+     *
+     * @param out               where to write the plain content
+     * @param passThrough       whether content that is not encoded passes through unchanged, rather than failing. Only
+     *                          for archives whose description is not known.
+     * @param describedEncoding the encoding named in the archive's description, or null if the description is not
+     *                          known
+     * @return channel taking the encoded content
+     */
+    public DecodingChannel decode(final WritableByteChannel out, final boolean passThrough, final String describedEncoding) {
+        final boolean requireEncryption = describedEncoding != null ? describedEncoding.contains(ENCRYPTION_NAME) : key != null;
+        return new DecodingChannel(this, out, Runtime.getRuntime().availableProcessors(), passThrough, requireEncryption);
+    }
+
+    /**
+     * @return a header for a new encoded archive, with a fresh nonce prefix
+     */
+    byte[] newHeader() {
+        final byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+        RANDOM.nextBytes(noncePrefix);
+        return ByteBuffer.allocate(HEADER_SIZE)
+                .put(MAGIC)
+                .putInt((compress ? FLAG_DEFLATE : 0) | (key != null ? FLAG_AES_GCM : 0))
+                .put(keyId)
+                .put(noncePrefix)
+                .array();
+    }
+
+    /**
+     * Check that the content of a header can be decoded with this encoding's key
+     *
+     * @param header            the header
+     * @param requireEncryption whether content that is not encrypted is refused
+     * @throws IOException the content cannot be decoded
+     */
+    void checkHeader(final byte[] header, final boolean requireEncryption) throws IOException {
+        if (!isEncrypted(header)) {
+            if (requireEncryption) {
+                throw new IOException("The archive should be encrypted, but its content is not. It may have been tampered with");
+            }
+            return;
+        }
+        final String archiveKeyId = BinaryUtils.toHex(Arrays.copyOfRange(header, MAGIC.length + 4, MAGIC.length + 4 + KEY_ID_SIZE));
+        if (key == null) {
+            throw new IOException("The archive is encrypted with key " + archiveKeyId + ". Set glacierman.encryptionKeyFile to decrypt it");
+        }
+        if (!archiveKeyId.equals(BinaryUtils.toHex(keyId))) {
+            throw new IOException("The archive is encrypted with key " + archiveKeyId + ", not with the configured key " + BinaryUtils.toHex(keyId));
+        }
+    }
+
+    /**
+     * Encode one block into a frame
+     *
+     * @param header the archive's header
+     * @param index  number of the block within the archive
+     * @param block  the plain bytes
+     * @param length number of bytes in the block, 0 for the end frame
+     * @return the frame
+     * @throws IOException the block could not be encrypted
+     */
+    byte[] encodeBlock(final byte[] header, final long index, final byte[] block, final int length) throws IOException {
+        byte[] payload = compress ? deflate(block, length) : null;
+        final byte method = payload == null ? STORED : DEFLATED;
+        if (payload == null) {
+            payload = Arrays.copyOf(block, length);
+        }
+        if (key != null) {
+            payload = crypt(Cipher.ENCRYPT_MODE, header, index, length, method, payload);
+        }
+        return ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length)
+                .putInt(length)
+                .putInt(payload.length)
+                .put(method)
+                .put(payload)
+                .array();
+    }
+
+    /**
+     * Decode the payload of a frame
+     *
+     * @param header      the archive's header
+     * @param index       number of the block within the archive
+     * @param plainLength the block's length from the frame
+     * @param method      the method from the frame
+     * @param payload     the payload
+     * @return the plain bytes
+     * @throws IOException the frame is corrupt or was tampered with
+     */
+    byte[] decodeBlock(final byte[] header, final long index, final int plainLength, final byte method, final byte[] payload) throws IOException {
+        final byte[] data = isEncrypted(header) ? crypt(Cipher.DECRYPT_MODE, header, index, plainLength, method, payload) : payload;
+        if (method == STORED) {
+            if (data.length != plainLength) {
+                throw new IOException("Corrupt block " + index + " in encoded archive");
+            }
+            return data;
+        }
+        return inflate(index, data, plainLength);
+    }
+
+    /**
+     * Check a frame header's values before its payload is read
+     *
+     * @throws IOException the values are impossible
+     */
+    static void checkFrame(final long index, final int plainLength, final int payloadLength, final byte method) throws IOException {
+        if (plainLength < 0 || plainLength > BLOCK_SIZE || payloadLength < 0 || payloadLength > MAX_PAYLOAD_SIZE
+                || (method != STORED && method != DEFLATED)) {
+            throw new IOException("Corrupt frame " + index + " in encoded archive");
+        }
+    }
+
+    private static boolean isEncrypted(final byte[] header) {
+        return (ByteBuffer.wrap(header, MAGIC.length, 4).getInt() & FLAG_AES_GCM) != 0;
+    }
+
+    /**
+     * Deflate at the fastest level, which keeps up with the network on one core per part in flight
+     *
+     * @return the compressed bytes, or null if they are not smaller
+     */
+    private static byte[] deflate(final byte[] block, final int length) {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(block, 0, length);
+            deflater.finish();
+            final byte[] out = new byte[length];
+            int size = 0;
+            while (!deflater.finished() && size < out.length) {
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            return deflater.finished() && size < length ? Arrays.copyOf(out, size) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(final long index, final byte[] data, final int plainLength) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            final byte[] out = new byte[plainLength];
+            int size = 0;
+            while (!inflater.finished() && size < out.length) {
+                final int count = inflater.inflate(out, size, out.length - size);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += count;
+            }
+            if (!inflater.finished() || size != plainLength) {
+                throw new IOException("Corrupt block " + index + " in encoded archive");
+            }
+            return out;
+        } catch (final DataFormatException e) {
+            throw new IOException("Corrupt block " + index + " in encoded archive", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private byte[] crypt(final int mode, final byte[] header, final long index, final int plainLength, final byte method, final byte[] data) throws IOException {
+        final byte[] nonce = ByteBuffer.allocate(12)
+                .put(header, MAGIC.length + 4 + KEY_ID_SIZE, NONCE_PREFIX_SIZE)
+                .putInt((int) index)
+                .array();
+        try {
+            final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+            cipher.updateAAD(header);
+            cipher.updateAAD(ByteBuffer.allocate(8 + 4 + 1).putLong(index).putInt(plainLength).put(method).array());
+            return cipher.doFinal(data);
+        } catch (final GeneralSecurityException e) {
+            throw new IOException(mode == Cipher.DECRYPT_MODE ? "Block " + index + " of the encoded archive failed authentication" : "Could not encrypt block " + index, e);
+        }
+    }
+
+    private static byte[] keyIdOf(final byte[] key) {
+        try {
+            return Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(key), KEY_ID_SIZE);
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -8,12 +8,25 @@ public class ArchiveInfo {
     private final String remoteArchiveId;
     private final File localArchiveFile;
     private final long fileSizeBytes;
+    private final ByteRange byteRange;
+    private final String description;
 
     public ArchiveInfo(final String vaultName, final String remoteArchiveId, final File localArchiveFileName, final long fileSizeBytes) {
+        this(vaultName, remoteArchiveId, localArchiveFileName, fileSizeBytes, null);
+    }
+
+    public ArchiveInfo(final String vaultName, final String remoteArchiveId, final File localArchiveFileName, final long fileSizeBytes, final ByteRange byteRange) {
+        this(vaultName, remoteArchiveId, localArchiveFileName, fileSizeBytes, byteRange, null);
+    }
+
+    private ArchiveInfo(final String vaultName, final String remoteArchiveId, final File localArchiveFileName, final long fileSizeBytes, final ByteRange byteRange,
+                        final String description) {
         this.vaultName = vaultName;
         this.remoteArchiveId = remoteArchiveId;
         this.localArchiveFile = localArchiveFileName;
         this.fileSizeBytes = fileSizeBytes;
+        this.byteRange = byteRange;
+        this.description = description;
     }
 
     /**
@@ -38,6 +51,26 @@ public class ArchiveInfo {
         return new ArchiveInfo(vaultName, archiveId, archivePath, Long.parseLong(fileSizeBytes));
     }
 
+    /**
+     * Restrict a download to part of the archive
+     *
+     * @param byteRange the bytes to download
+     * @return the info object for the partial download
+     */
+    public ArchiveInfo withByteRange(final ByteRange byteRange) {
+        return new ArchiveInfo(vaultName, remoteArchiveId, localArchiveFile, fileSizeBytes, byteRange, description);
+    }
+
+    /**
+     * Record the description of a remote archive, which tells whether its content is encoded
+     *
+     * @param description the archive description
+     * @return the info object with the description
+     */
+    public ArchiveInfo withDescription(final String description) {
+        return new ArchiveInfo(vaultName, remoteArchiveId, localArchiveFile, fileSizeBytes, byteRange, description);
+    }
+
     public String getVaultName() {
         return vaultName;
     }
@@ -53,4 +86,25 @@ public class ArchiveInfo {
     public long getFileSizeBytes() {
         return fileSizeBytes;
     }
+
+    /**
+     * @return the part of the archive to download, or null for all of it
+     */
+    public ByteRange getByteRange() {
+        return byteRange;
+    }
+
+    /**
+     * @return the description of the remote archive, or null if it is not known
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return number of bytes a download of this archive produces
+     */
+    public long getDownloadSizeBytes() {
+        return byteRange == null ? fileSizeBytes : byteRange.getLength();
+    }
 }
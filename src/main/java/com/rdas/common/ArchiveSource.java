@@ -0,0 +1,123 @@
+package com.rdas.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The bytes of an archive being uploaded, read one part at a time
+ */
+public interface ArchiveSource extends Closeable {
+
+    /**
+     * @return total size of the archive in bytes
+     */
+    long size();
+
+    /**
+     * @return when the archive's content last changed, in milliseconds since the epoch, or 0 if that is not known
+     */
+    default long lastModified() {
+        return 0;
+    }
+
+    /**
+     * Read a range of the archive
+     *
+     * @param offset first byte
+     * @param length number of bytes
+     * @return buffer holding exactly the range
+     * @throws IOException the data could not be read
+     */
+    ByteBuffer read(long offset, int length) throws IOException;
+
+    /**
+     * Read a part of the archive, tree hashing it on the way. The data is read once; the body streams from the same
+     * buffer the hash was computed over.
+     *
+     * @param offset first byte of the part
+     * @param length number of bytes in the part
+     * @return the part
+     * @throws IOException the data could not be read
+     */
+    default Part part(final long offset, final long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Parts over 2 GB are only supported when uploading a single file");
+        }
+        final ByteBuffer data = read(offset, (int) length);
+        final TreeHash treeHash = new TreeHash();
+        treeHash.update(data.duplicate());
+        return new Part(treeHash.digest(), new ByteBufferInputStream(data));
+    }
+
+    /**
+     * Read a part of the archive whose tree hash is already known
+     *
+     * @param offset first byte of the part
+     * @param length number of bytes in the part
+     * @return the part's bytes; supports mark/reset so that requests can be retried
+     * @throws IOException the data could not be read
+     */
+    default InputStream body(final long offset, final long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Parts over 2 GB are only supported when uploading a single file");
+        }
+        return new ByteBufferInputStream(read(offset, (int) length));
+    }
+
+    /**
+     * Read the whole archive in order, e.g. to encode it
+     *
+     * @return channel reading the archive from its first byte
+     */
+    default ReadableByteChannel channel() {
+        return new ReadableByteChannel() {
+            private long position;
+            private boolean open = true;
+
+            @Override
+            public int read(final ByteBuffer dst) throws IOException {
+                if (position >= size()) {
+                    return -1;
+                }
+                final int length = (int) Math.min(dst.remaining(), size() - position);
+                dst.put(ArchiveSource.this.read(position, length));
+                position += length;
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    class Part {
+        private final byte[] treeHash;
+        private final InputStream body;
+
+        public Part(final byte[] treeHash, final InputStream body) {
+            this.treeHash = treeHash;
+            this.body = body;
+        }
+
+        public byte[] getTreeHash() {
+            return treeHash;
+        }
+
+        /**
+         * @return the part's bytes; supports mark/reset so that requests can be retried
+         */
+        public InputStream getBody() {
+            return body;
+        }
+    }
+}
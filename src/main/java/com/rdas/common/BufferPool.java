@@ -0,0 +1,61 @@
+package com.rdas.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed number of reusable direct buffers of one size. Buffers are allocated on first use; once all of them are
+ * handed out, taking another waits until one is given back, which bounds the memory a pipeline can hold.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int capacity;
+    private final BlockingQueue<ByteBuffer> free;
+    private int allocated;
+
+    /**
+     * @param bufferSize size of each buffer in bytes
+     * @param capacity   number of buffers
+     */
+    public BufferPool(final int bufferSize, final int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Take a cleared buffer, waiting if all of them are in use
+     *
+     * @return the buffer
+     * @throws InterruptedException interrupted while waiting
+     */
+    public ByteBuffer take() throws InterruptedException {
+        final ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        synchronized (this) {
+            if (allocated < capacity) {
+                allocated++;
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+        }
+        return free.take();
+    }
+
+    /**
+     * Give back a buffer taken from this pool
+     *
+     * @param buffer the buffer
+     */
+    public void give(final ByteBuffer buffer) {
+        buffer.clear();
+        free.add(buffer);
+    }
+}
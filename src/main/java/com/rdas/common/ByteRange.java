@@ -0,0 +1,58 @@
+package com.rdas.common;
+
+/**
+ * A range of bytes within an archive
+ */
+public class ByteRange {
+
+    private final long start;
+    private final long length;
+
+    public ByteRange(final long start, final long length) {
+        if (start < 0 || length < 1) {
+            throw new IllegalArgumentException("Invalid byte range: start " + start + ", length " + length);
+        }
+        this.start = start;
+        this.length = length;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return last byte of the range, inclusive
+     */
+    public long getEnd() {
+        return start + length - 1;
+    }
+
+    /**
+     * Widen the range so that it starts on an alignment boundary and ends on one or at the end of the archive, as
+     * Glacier requires for retrieval ranges
+     *
+     * @param alignment   the boundary, e.g. 1 MB
+     * @param archiveSize size of the whole archive
+     * @return the aligned range
+     */
+    public ByteRange alignTo(final long alignment, final long archiveSize) {
+        if (getEnd() >= archiveSize) {
+            throw new IllegalArgumentException("Byte range " + this + " is beyond the end of the archive (" + archiveSize + " bytes)");
+        }
+        final long alignedStart = start / alignment * alignment;
+        final long alignedEnd = Math.min((getEnd() / alignment + 1) * alignment, archiveSize);
+        return new ByteRange(alignedStart, alignedEnd - alignedStart);
+    }
+
+    /**
+     * @return the range in the form Glacier's RetrievalByteRange expects, e.g. "0-1048575"
+     */
+    @Override
+    public String toString() {
+        return start + "-" + getEnd();
+    }
+}
@@ -0,0 +1,106 @@
+package com.rdas.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Several files, back to back, as one archive. Parts are assembled straight from the files, so no combined copy is
+ * ever written to disk.
+ */
+public class ConcatenatedArchiveSource implements ArchiveSource {
+
+    private final List<File> files;
+    private final long[] offsets;
+    private final long size;
+    private final long lastModified;
+
+    /**
+     * @param files the files, in archive order. They must not change while the archive is uploaded.
+     */
+    public ConcatenatedArchiveSource(final List<File> files) {
+        this.files = files;
+        this.offsets = new long[files.size() + 1];
+        long latest = 0;
+        for (int i = 0; i < files.size(); i++) {
+            offsets[i + 1] = offsets[i] + files.get(i).length();
+            latest = Math.max(latest, files.get(i).lastModified());
+        }
+        this.size = offsets[files.size()];
+        this.lastModified = latest;
+    }
+
+    /**
+     * @param index position of the file in the archive
+     * @return offset of the file's first byte in the archive
+     */
+    public long offsetOf(final int index) {
+        return offsets[index];
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the last modification time of any of the files
+     */
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public ByteBuffer read(final long offset, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        int index = firstFileAt(offset);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            final long fileOffset = position - offsets[index];
+            final long fileLength = offsets[index + 1] - offsets[index];
+            if (fileOffset < fileLength) {
+                try (final FileChannel channel = FileChannel.open(files.get(index).toPath(), StandardOpenOption.READ)) {
+                    final int toRead = (int) Math.min(buffer.remaining(), fileLength - fileOffset);
+                    final int limit = buffer.limit();
+                    buffer.limit(buffer.position() + toRead);
+                    long filePosition = fileOffset;
+                    while (buffer.hasRemaining()) {
+                        final int read = channel.read(buffer, filePosition);
+                        if (read < 0) {
+                            throw new IOException(files.get(index) + " is shorter than when it was packed");
+                        }
+                        filePosition += read;
+                    }
+                    buffer.limit(limit);
+                    position += toRead;
+                }
+            }
+            index++;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private int firstFileAt(final long offset) {
+        int low = 0;
+        int high = files.size() - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void close() {
+        // files are opened per read
+    }
+}
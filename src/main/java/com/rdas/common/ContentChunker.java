@@ -0,0 +1,309 @@
+package com.rdas.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits data into content-defined chunks with a gear rolling hash (FastCDC with normalized chunking), so that an
+ * insert or delete only changes the chunks around it and the rest of a new version deduplicates against the old one.
+ * <p>
+ * Files are chunked in parallel: every segment of the file is chunked from its own start, then the segment chains are
+ * joined at the first boundary they share with the chain before them. Chunk boundaries are therefore exactly those of
+ * a sequential pass. Chunks are then SHA-256 hashed in parallel. Neither loop allocates per chunk.
+ */
+public class ContentChunker {
+
+    public static final int HASH_SIZE = 32;
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final long[] GEAR = gearTable();
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long smallMask;
+    private final long largeMask;
+
+    /**
+     * @param minSize smallest chunk, apart from the last one
+     * @param avgSize typical chunk size, a power of two
+     * @param maxSize largest chunk
+     */
+    public ContentChunker(final int minSize, final int avgSize, final int maxSize) {
+        if (Integer.bitCount(avgSize) != 1 || minSize >= avgSize || avgSize >= maxSize || maxSize > SEGMENT_SIZE / 4) {
+            throw new IllegalArgumentException("Chunk sizes must grow from min to max, with a power of two average: " + minSize + "/" + avgSize + "/" + maxSize);
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        final int bits = Integer.numberOfTrailingZeros(avgSize);
+        // masks over the top bits, which depend on the last 64 bytes rather than only the last few
+        this.smallMask = -1L << (64 - bits - 1);
+        this.largeMask = -1L << (64 - bits + 1);
+    }
+
+    /**
+     * @return chunks of 256 KB to 4 MB, 1 MB on average
+     */
+    public static ContentChunker defaults() {
+        return new ContentChunker(256 * 1024, 1024 * 1024, 4 * 1024 * 1024);
+    }
+
+    public int getAvgSize() {
+        return avgSize;
+    }
+
+    /**
+     * Find the end of the chunk that starts at a position
+     *
+     * @param data  the data, read with absolute gets only
+     * @param start first byte of the chunk
+     * @param end   end of the available data. Unless it is the end of the input, at least the maximum chunk size must
+     *              be available after the start.
+     * @return position just after the chunk's last byte
+     */
+    public int nextBoundary(final ByteBuffer data, final int start, final int end) {
+        final int available = end - start;
+        if (available <= minSize) {
+            return end;
+        }
+        final int limit = start + Math.min(available, maxSize);
+        final int normal = start + Math.min(available, avgSize);
+        long hash = 0;
+        int i = start + minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data.get(i) & 0xFF];
+            if ((hash & smallMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data.get(i) & 0xFF];
+            if ((hash & largeMask) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Chunk and hash a whole file
+     *
+     * @param channel the file
+     * @param workers threads to chunk and hash segments on
+     * @return the chunks
+     * @throws IOException          the file could not be read
+     * @throws InterruptedException interrupted while waiting for the workers
+     */
+    public Chunks chunk(final FileChannel channel, final ExecutorService workers) throws IOException, InterruptedException {
+        final long size = channel.size();
+        final int segments = (int) Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        final List<Future<long[]>> chains = new ArrayList<>(segments);
+        for (int k = 0; k < segments; k++) {
+            final long segmentStart = (long) k * SEGMENT_SIZE;
+            chains.add(workers.submit(() -> chain(channel, segmentStart, Math.min(segmentStart + SEGMENT_SIZE, size), size)));
+        }
+
+        // join the chains, chunking sequentially from the previous chain's last boundary until they meet
+        final LongList ends = new LongList(Math.max(16, (int) (size / avgSize) + 16));
+        long position = 0;
+        for (int k = 0; k < segments && position < size; k++) {
+            final long segmentStart = (long) k * SEGMENT_SIZE;
+            final long[] chain = get(chains.get(k));
+            while (position < size && position < chain[chain.length - 1]) {
+                final int found = position == segmentStart ? -1 : Arrays.binarySearch(chain, position);
+                if (position == segmentStart || found >= 0) {
+                    for (int i = found + 1; i < chain.length; i++) {
+                        ends.add(chain[i]);
+                    }
+                    position = chain[chain.length - 1];
+                } else {
+                    position = boundaryAt(channel, position, size);
+                    ends.add(position);
+                }
+            }
+        }
+
+        final Chunks chunks = new Chunks(ends.toArray());
+        final List<Future<?>> hashing = new ArrayList<>(segments);
+        for (int k = 0; k < segments; k++) {
+            final long segmentStart = (long) k * SEGMENT_SIZE;
+            hashing.add(workers.submit(() -> {
+                hash(channel, chunks, segmentStart, Math.min(segmentStart + SEGMENT_SIZE, size), size);
+                return null;
+            }));
+        }
+        for (final Future<?> future : hashing) {
+            get(future);
+        }
+        return chunks;
+    }
+
+    /**
+     * Chunk boundaries from the start of a segment until the first one at or past the segment's end
+     */
+    private long[] chain(final FileChannel channel, final long segmentStart, final long segmentEnd, final long size) throws IOException {
+        if (segmentStart == segmentEnd) {
+            return new long[]{segmentEnd};
+        }
+        final ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, Math.min(segmentEnd + maxSize, size) - segmentStart);
+        final int segmentLength = (int) (segmentEnd - segmentStart);
+        final LongList ends = new LongList(segmentLength / avgSize + 16);
+        int position = 0;
+        while (position < segmentLength) {
+            position = nextBoundary(data, position, data.limit());
+            ends.add(segmentStart + position);
+        }
+        return ends.toArray();
+    }
+
+    private long boundaryAt(final FileChannel channel, final long start, final long size) throws IOException {
+        final ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(start + maxSize, size) - start);
+        return start + nextBoundary(data, 0, data.limit());
+    }
+
+    /**
+     * Hash the chunks that start within a segment
+     */
+    private static void hash(final FileChannel channel, final Chunks chunks, final long segmentStart, final long segmentEnd, final long size) throws IOException {
+        int i = chunks.firstAtOrAfter(segmentStart);
+        if (i >= chunks.count() || chunks.start(i) >= segmentEnd) {
+            return;
+        }
+        final long mapEnd = Math.min(chunks.end(chunks.firstAtOrAfter(segmentEnd) - 1), size);
+        final ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, mapEnd - segmentStart);
+        final MessageDigest sha256 = sha256();
+        for (; i < chunks.count() && chunks.start(i) < segmentEnd; i++) {
+            data.limit((int) (chunks.end(i) - segmentStart));
+            data.position((int) (chunks.start(i) - segmentStart));
+            sha256.update(data);
+            try {
+                sha256.digest(chunks.hashes, i * HASH_SIZE, HASH_SIZE);
+            } catch (final DigestException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static <T> T get(final Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * The gear table is generated with SplitMix64 from a fixed seed, so boundaries never change between runs or JVMs
+     */
+    private static long[] gearTable() {
+        final long[] table = new long[256];
+        long state = 0x676c616369657221L;
+        for (int i = 0; i < table.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+
+    /**
+     * Chunks of a file: where each one ends, and its SHA-256 hash
+     */
+    public static class Chunks {
+        private final long[] ends;
+        private final byte[] hashes;
+
+        private Chunks(final long[] ends) {
+            this.ends = ends;
+            this.hashes = new byte[ends.length * HASH_SIZE];
+        }
+
+        public int count() {
+            return ends.length;
+        }
+
+        public long start(final int chunk) {
+            return chunk == 0 ? 0 : ends[chunk - 1];
+        }
+
+        public long end(final int chunk) {
+            return ends[chunk];
+        }
+
+        public int length(final int chunk) {
+            return (int) (end(chunk) - start(chunk));
+        }
+
+        /**
+         * @return the array holding all hashes, the chunk's at {@link #hashOffset(int)}
+         */
+        public byte[] hashes() {
+            return hashes;
+        }
+
+        public int hashOffset(final int chunk) {
+            return chunk * HASH_SIZE;
+        }
+
+        /**
+         * @return the first chunk that starts at or after a position
+         */
+        private int firstAtOrAfter(final long position) {
+            if (position == 0) {
+                return 0;
+            }
+            final int found = Arrays.binarySearch(ends, position);
+            return found >= 0 ? found + 1 : -found;
+        }
+    }
+
+    /**
+     * Growable array of longs
+     */
+    private static class LongList {
+        private long[] values;
+        private int size;
+
+        private LongList(final int capacity) {
+            this.values = new long[capacity];
+        }
+
+        private void add(final long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.rdas.common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Takes {@link ArchiveEncoding encoded} content and writes the plain content to another channel. Frames are decoded
+ * in parallel and written in order. Content that does not start with the encoding's magic is passed through as it is,
+ * unless it is known to be encoded.
+ * <p>
+ * Closing the channel checks that the end of the encoded content was seen, so a truncated archive fails instead of
+ * silently yielding a short file.
+ */
+public class DecodingChannel implements WritableByteChannel {
+
+    private enum Stage { MAGIC, HEADER, FRAME, PAYLOAD, END, PASS_THROUGH }
+
+    private final ArchiveEncoding encoding;
+    private final WritableByteChannel out;
+    private final ExecutorService workers;
+    private final int lookahead;
+    private final boolean passThrough;
+    private final boolean requireEncryption;
+    private final Deque<Future<byte[]>> blocks = new ArrayDeque<>();
+    private Stage stage = Stage.MAGIC;
+    private ByteBuffer pending = ByteBuffer.allocate(ArchiveEncoding.MAGIC.length);
+    private byte[] header;
+    private long index;
+    private int plainLength;
+    private byte method;
+    private boolean open = true;
+
+    /**
+     * @param encoding holds the key to decrypt with
+     * @param out      where to write the plain content
+     * @param threads  number of frames decoded at once
+     */
+    public DecodingChannel(final ArchiveEncoding encoding, final WritableByteChannel out, final int threads) {
+        this(encoding, out, threads, true);
+    }
+
+    /**
+     * @param encoding    holds the key to decrypt with
+     * @param out         where to write the plain content
+     * @param threads     number of frames decoded at once
+     * @param passThrough whether content that is not encoded is written as it is, rather than failing
+     */
+    public DecodingChannel(final ArchiveEncoding encoding, final WritableByteChannel out, final int threads, final boolean passThrough) {
+        this(encoding, out, threads, passThrough, false);
+    }
+
+    /**
+     * @param encoding          holds the key to decrypt with
+     * @param out               where to write the plain content
+     * @param threads           number of frames decoded at once
+     * @param passThrough       whether content that is not encoded is written as it is, rather than failing
+     * @param requireEncryption whether encoded content that is not encrypted is refused
+     */
+    public DecodingChannel(final ArchiveEncoding encoding, final WritableByteChannel out, final int threads, final boolean passThrough,
+                           final boolean requireEncryption) {
+        this.encoding = encoding;
+        this.out = out;
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.lookahead = 2 * threads;
+        this.passThrough = passThrough;
+        this.requireEncryption = requireEncryption;
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        final int written = src.remaining();
+        while (src.hasRemaining()) {
+            if (stage == Stage.PASS_THROUGH) {
+                writeFully(src);
+            } else if (stage == Stage.END) {
+                throw new IOException("Data after the end of the encoded archive");
+            } else {
+                final int count = Math.min(src.remaining(), pending.remaining());
+                final ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + count);
+                pending.put(slice);
+                src.position(src.position() + count);
+                while (!pending.hasRemaining() && stage != Stage.END && stage != Stage.PASS_THROUGH) {
+                    advance();
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Act on a completely read piece of the stream and start reading the next one
+     */
+    private void advance() throws IOException {
+        final byte[] bytes = pending.array();
+        switch (stage) {
+            case MAGIC:
+                if (!Arrays.equals(bytes, ArchiveEncoding.MAGIC)) {
+                    if (!passThrough) {
+                        throw new IOException("The archive is described as encoded, but its content is not");
+                    }
+                    stage = Stage.PASS_THROUGH;
+                    pending.flip();
+                    writeFully(pending);
+                    return;
+                }
+                pending = ByteBuffer.allocate(ArchiveEncoding.HEADER_SIZE).put(bytes);
+                stage = Stage.HEADER;
+                break;
+            case HEADER:
+                header = bytes;
+                encoding.checkHeader(header, requireEncryption);
+                pending = ByteBuffer.allocate(ArchiveEncoding.FRAME_HEADER_SIZE);
+                stage = Stage.FRAME;
+                break;
+            case FRAME:
+                final ByteBuffer frame = ByteBuffer.wrap(bytes);
+                plainLength = frame.getInt();
+                final int payloadLength = frame.getInt();
+                method = frame.get();
+                ArchiveEncoding.checkFrame(index, plainLength, payloadLength, method);
+                pending = ByteBuffer.allocate(payloadLength);
+                stage = Stage.PAYLOAD;
+                break;
+            case PAYLOAD:
+                final long blockIndex = index++;
+                final int blockLength = plainLength;
+                final byte blockMethod = method;
+                blocks.add(workers.submit(() -> encoding.decodeBlock(header, blockIndex, blockLength, blockMethod, bytes)));
+                drain(lookahead);
+                if (blockLength == 0) {
+                    stage = Stage.END;
+                } else {
+                    pending = ByteBuffer.allocate(ArchiveEncoding.FRAME_HEADER_SIZE);
+                    stage = Stage.FRAME;
+                }
+                break;
+            default:
+                throw new IllegalStateException(stage.name());
+        }
+    }
+
+    /**
+     * Write decoded blocks in order until at most the given number are left
+     */
+    private void drain(final int keep) throws IOException {
+        while (blocks.size() > keep) {
+            writeFully(ByteBuffer.wrap(await(blocks.poll())));
+        }
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static byte[] await(final Future<byte[]> block) throws IOException {
+        try {
+            return block.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding");
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Decoding failed", e.getCause());
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Write the remaining blocks and close the output
+     *
+     * @throws IOException the content ended before its end frame
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            if (stage == Stage.MAGIC) {
+                // shorter than the magic, so not encoded
+                if (!passThrough) {
+                    throw new IOException("The archive is described as encoded, but its content is not");
+                }
+                pending.flip();
+                writeFully(pending);
+            } else if (stage != Stage.PASS_THROUGH) {
+                drain(0);
+                if (stage != Stage.END) {
+                    throw new IOException("The encoded archive is truncated");
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.rdas.common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the {@link ArchiveEncoding encoded} form of a channel. Plain blocks are read in order and encoded in parallel
+ * a few blocks ahead of the reader, so compression and encryption use all cores while parts are being uploaded.
+ */
+public class EncodingChannel implements ReadableByteChannel {
+
+    private final ArchiveEncoding encoding;
+    private final ReadableByteChannel source;
+    private final ExecutorService workers;
+    private final int lookahead;
+    private final byte[] header;
+    private final Deque<Future<byte[]>> frames = new ArrayDeque<>();
+    private ByteBuffer current;
+    private long blocks;
+    private boolean sourceEnded;
+    private long plainBytes;
+    private long encodedBytes;
+
+    /**
+     * @param encoding what to apply
+     * @param source   the plain content
+     * @param threads  number of blocks encoded at once
+     */
+    public EncodingChannel(final ArchiveEncoding encoding, final ReadableByteChannel source, final int threads) {
+        this.encoding = encoding;
+        this.source = source;
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.lookahead = 2 * threads;
+        this.header = encoding.newHeader();
+        this.current = ByteBuffer.wrap(header);
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        int read = 0;
+        while (dst.hasRemaining()) {
+            if (!current.hasRemaining()) {
+                readAhead();
+                if (frames.isEmpty()) {
+                    return read == 0 ? -1 : read;
+                }
+                current = ByteBuffer.wrap(await(frames.poll()));
+            }
+            final int count = Math.min(dst.remaining(), current.remaining());
+            final ByteBuffer slice = current.duplicate();
+            slice.limit(slice.position() + count);
+            dst.put(slice);
+            current.position(current.position() + count);
+            read += count;
+            encodedBytes += count;
+        }
+        return read;
+    }
+
+    /**
+     * Keep the workers busy with the next blocks. The end frame is queued once the source is exhausted.
+     */
+    private void readAhead() throws IOException {
+        while (!sourceEnded && frames.size() < lookahead) {
+            final byte[] block = new byte[ArchiveEncoding.BLOCK_SIZE];
+            final int length = fill(block);
+            final long index = blocks++;
+            sourceEnded = length == 0;
+            plainBytes += length;
+            frames.add(workers.submit(() -> encoding.encodeBlock(header, index, block, length)));
+        }
+    }
+
+    private int fill(final byte[] block) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(block);
+        int count = 0;
+        while (buffer.hasRemaining() && count >= 0) {
+            count = source.read(buffer);
+        }
+        return buffer.position();
+    }
+
+    private static byte[] await(final Future<byte[]> frame) throws IOException {
+        try {
+            return frame.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encoding");
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Encoding failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return plain bytes read from the source so far
+     */
+    public long getPlainBytes() {
+        return plainBytes;
+    }
+
+    /**
+     * @return encoded bytes read from this channel so far, the header included
+     */
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return source.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        workers.shutdownNow();
+        source.close();
+    }
+}
@@ -0,0 +1,61 @@
+package com.rdas.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A single file as an archive. Parts are memory mapped, so uploading one reads it from disk once.
+ */
+public class FileArchiveSource implements ArchiveSource {
+
+    private final FileChannel channel;
+    private final long size;
+    private final long lastModified;
+
+    public FileArchiveSource(final File file) throws IOException {
+        this.lastModified = file.lastModified();
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public ByteBuffer read(final long offset, final int length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    @Override
+    public Part part(final long offset, final long length) throws IOException {
+        if (length <= Integer.MAX_VALUE) {
+            return ArchiveSource.super.part(offset, length);
+        }
+        // too large to map in one go: hash through mapped windows, then stream from the channel
+        return new Part(TreeHash.of(channel, offset, length), new FileRangeInputStream(channel, offset, length));
+    }
+
+    @Override
+    public InputStream body(final long offset, final long length) throws IOException {
+        if (length <= Integer.MAX_VALUE) {
+            return ArchiveSource.super.body(offset, length);
+        }
+        return new FileRangeInputStream(channel, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,97 @@
+package com.rdas.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stream over a byte range of a file. Reads are positional, so many of these can share one channel across threads.
+ * Mark/reset is supported for the whole range, which lets the SDK replay the body when it retries a request.
+ * Closing the stream does not close the channel.
+ */
+public class FileRangeInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    private long position;
+    private long mark;
+
+    /**
+     * @param channel the file
+     * @param start   first byte of the range
+     * @param length  number of bytes in the range
+     */
+    public FileRangeInputStream(final FileChannel channel, final long start, final long length) {
+        this.channel = channel;
+        this.start = start;
+        this.end = start + length;
+        this.position = start;
+        this.mark = start;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        final int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        final int toRead = (int) Math.min(len, end - position);
+        if (toRead <= 0) {
+            return -1;
+        }
+        final int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+        if (read < 0) {
+            return -1;
+        }
+        position += read;
+        return read;
+    }
+
+    @Override
+    public long skip(final long n) {
+        final long skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(final int readLimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+
+    /**
+     * Rewind to the beginning of the range
+     */
+    public void rewind() {
+        position = start;
+        mark = start;
+    }
+
+    @Override
+    public void close() {
+        // the channel is owned by the caller
+    }
+}
@@ -0,0 +1,77 @@
+package com.rdas.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Ranges of one file, back to back, as one archive. Used to pack chunks of a file without copying them first.
+ */
+public class FileRangesArchiveSource implements ArchiveSource {
+
+    private final FileChannel channel;
+    private final long[] fileOffsets;
+    private final long[] offsets;
+
+    /**
+     * @param channel     the file. It stays open when the archive is closed.
+     * @param fileOffsets first byte of each range in the file
+     * @param lengths     length of each range
+     */
+    public FileRangesArchiveSource(final FileChannel channel, final long[] fileOffsets, final int[] lengths) {
+        this.channel = channel;
+        this.fileOffsets = fileOffsets;
+        this.offsets = new long[lengths.length + 1];
+        for (int i = 0; i < lengths.length; i++) {
+            offsets[i + 1] = offsets[i] + lengths[i];
+        }
+    }
+
+    /**
+     * @param index position of the range in the archive
+     * @return offset of the range's first byte in the archive
+     */
+    public long offsetOf(final int index) {
+        return offsets[index];
+    }
+
+    @Override
+    public long size() {
+        return offsets[offsets.length - 1];
+    }
+
+    @Override
+    public ByteBuffer read(final long offset, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        final int found = Arrays.binarySearch(offsets, offset);
+        int index = found >= 0 ? found : -found - 2;
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            final long rangeOffset = position - offsets[index];
+            final int toRead = (int) Math.min(buffer.remaining(), offsets[index + 1] - position);
+            if (toRead > 0) {
+                final int limit = buffer.limit();
+                buffer.limit(buffer.position() + toRead);
+                long filePosition = fileOffsets[index] + rangeOffset;
+                while (buffer.hasRemaining()) {
+                    final int read = channel.read(buffer, filePosition);
+                    if (read < 0) {
+                        throw new IOException("File is shorter than when it was chunked");
+                    }
+                    filePosition += read;
+                }
+                buffer.limit(limit);
+                position += toRead;
+            }
+            index++;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void close() {
+        // the channel belongs to the caller
+    }
+}
@@ -0,0 +1,365 @@
+package com.rdas.common;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the process: how long parts, ranges, requests and jobs take, where transfer time
+ * goes (disk, hashing or network), and how often Glacier retries and throttles.
+ * <p>
+ * Recording never locks: counters are {@link LongAdder}s and histograms are arrays of atomic buckets, so hot paths
+ * can record per part from many threads. Nothing is allocated either, except one {@link Span} per timed part. Callers
+ * look their timers and counters up once and keep them.
+ * With <code>glacierman.metricsFile</code> set, a snapshot is written to that file periodically and on exit, as
+ * Prometheus text when the file name ends in <code>.prom</code> and as JSON otherwise. Part and range transfers are
+ * also JFR events, see {@link TransferEvent}.
+ */
+public class Metrics {
+
+    private static final String PROMETHEUS_SUFFIX = ".prom";
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+    private static Metrics shared;
+
+    private final TransferOptions options;
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Instant started = Instant.now();
+    private ScheduledExecutorService reporter;
+
+    public Metrics(final TransferOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * The metrics of the process. The first call decides where they are reported.
+     *
+     * @param options transfer options
+     * @return the metrics
+     */
+    public static synchronized Metrics shared(final TransferOptions options) {
+        if (shared == null) {
+            shared = new Metrics(options);
+        }
+        return shared;
+    }
+
+    /**
+     * The metrics of the process, reported as the system properties say unless they already exist
+     *
+     * @return the metrics
+     */
+    public static synchronized Metrics shared() {
+        return shared(TransferOptions.fromSystemProperties());
+    }
+
+    /**
+     * @param name counter name, in snake case
+     * @return the counter, created at zero if it did not exist
+     */
+    public LongAdder counter(final String name) {
+        return counters.computeIfAbsent(name, ignored -> new LongAdder());
+    }
+
+    /**
+     * @param name timer name, in snake case
+     * @return the timer, created empty if it did not exist
+     */
+    public Timer timer(final String name) {
+        return timers.computeIfAbsent(name, Timer::new);
+    }
+
+    /**
+     * Write a snapshot every <code>glacierman.metricsIntervalSeconds</code>, if a metrics file is configured
+     */
+    public synchronized void startReporting() {
+        if (options.getMetricsFile() == null || reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long interval = options.getMetricsIntervalSeconds();
+        reporter.scheduleWithFixedDelay(this::reportQuietly, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the periodic snapshots and write a last one
+     */
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+        if (options.getMetricsFile() != null) {
+            reportQuietly();
+        }
+    }
+
+    private void reportQuietly() {
+        final File file = new File(options.getMetricsFile());
+        try {
+            write(file);
+        } catch (final IOException | RuntimeException e) {
+            System.err.println("WARNING: could not write metrics to " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Atomically replace the file with a snapshot, so that collectors never read half of one
+     *
+     * @param file where to write; Prometheus text if the name ends in <code>.prom</code>, JSON otherwise
+     * @throws IOException the file could not be written
+     */
+    public void write(final File file) throws IOException {
+        final String snapshot = file.getName().endsWith(PROMETHEUS_SUFFIX) ? toPrometheus() : toJson();
+        final File temp = new File(file.getPath() + ".tmp");
+        try (final FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(snapshot.getBytes(StandardCharsets.UTF_8));
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return counters and timer summaries as JSON, timings in milliseconds
+     */
+    public String toJson() {
+        final Map<String, Object> snapshot = new TreeMap<>();
+        snapshot.put("started", started.toString());
+        snapshot.put("time", Instant.now().toString());
+        final Map<String, Long> counterValues = new TreeMap<>();
+        counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+        snapshot.put("counters", counterValues);
+        final Map<String, Map<String, Object>> timerValues = new TreeMap<>();
+        for (final Timer timer : timers.values()) {
+            final Map<String, Object> values = new TreeMap<>();
+            values.put("count", timer.getCount());
+            values.put("meanMillis", timer.getCount() == 0 ? 0 : timer.getTotalNanos() / 1e6 / timer.getCount());
+            values.put("p50Millis", timer.percentileNanos(0.5) / 1e6);
+            values.put("p90Millis", timer.percentileNanos(0.9) / 1e6);
+            values.put("p99Millis", timer.percentileNanos(0.99) / 1e6);
+            values.put("maxMillis", timer.getMaxNanos() / 1e6);
+            values.put("bytes", timer.getBytes());
+            values.put("failures", timer.getFailures());
+            timerValues.put(timer.getName(), values);
+        }
+        snapshot.put("timers", timerValues);
+        return GSON.toJson(snapshot);
+    }
+
+    /**
+     * @return counters and timer summaries in the Prometheus text format, timings in seconds
+     */
+    public String toPrometheus() {
+        final StringBuilder text = new StringBuilder();
+        for (final Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            final String name = "glacierman_" + counter.getKey() + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        for (final Timer timer : new TreeMap<>(timers).values()) {
+            final String name = "glacierman_" + timer.getName() + "_seconds";
+            text.append("# TYPE ").append(name).append(" summary\n");
+            for (final double quantile : new double[]{0.5, 0.9, 0.99}) {
+                text.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(timer.percentileNanos(quantile) / 1e9).append('\n');
+            }
+            text.append(name).append("_sum ").append(timer.getTotalNanos() / 1e9).append('\n');
+            text.append(name).append("_count ").append(timer.getCount()).append('\n');
+            if (timer.getBytes() > 0) {
+                text.append("# TYPE glacierman_").append(timer.getName()).append("_bytes_total counter\n");
+                text.append("glacierman_").append(timer.getName()).append("_bytes_total ").append(timer.getBytes()).append('\n');
+            }
+            if (timer.getFailures() > 0) {
+                text.append("# TYPE glacierman_").append(timer.getName()).append("_failures_total counter\n");
+                text.append("glacierman_").append(timer.getName()).append("_failures_total ").append(timer.getFailures()).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (final ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Latencies of one operation, in a histogram of buckets that grow exponentially with eight per power of two, so
+     * percentiles are within 12.5% of the true value
+     */
+    public static class Timer {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(64 << SUB_BUCKET_BITS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        private Timer(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Start timing one operation, e.g. a part upload
+         *
+         * @return the running operation, to be ended with {@link Span#end}
+         */
+        public Span start() {
+            return new Span(this);
+        }
+
+        /**
+         * @param nanos duration of one operation
+         */
+        public void record(final long nanos) {
+            final long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            totalNanos.add(value);
+            maxNanos.accumulate(value);
+        }
+
+        /**
+         * Record the time since a {@link System#nanoTime()}
+         *
+         * @param startNanos when the operation started
+         */
+        public void recordSince(final long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        /**
+         * @return bytes moved by the operations that ended with a {@link Span}
+         */
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * @return operations that ended with a {@link Span} and failed
+         */
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return upper bound of the bucket holding the quantile, or 0 if nothing was recorded
+         */
+        public long percentileNanos(final double quantile) {
+            final long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), getMaxNanos());
+                }
+            }
+            return getMaxNanos();
+        }
+
+        /**
+         * Values below {@link #SUB_BUCKETS} get a bucket each; above, every power of two is split in
+         * {@link #SUB_BUCKETS} buckets by the bits after the highest one
+         */
+        static int bucketOf(final long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        }
+
+        static long upperBoundOf(final int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            final int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+            final long lower = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+            return lower + (1L << shift) - 1;
+        }
+    }
+
+    /**
+     * One timed operation. Ending it records its latency and bytes, and commits its JFR event if one is recorded.
+     */
+    public static class Span {
+        private final Timer timer;
+        private final long startNanos = System.nanoTime();
+        // typed loosely, so that this class loads on runtimes without JFR
+        private final Object event = JFR_AVAILABLE ? TransferEvent.beginIfEnabled() : null;
+
+        private Span(final Timer timer) {
+            this.timer = timer;
+        }
+
+        /**
+         * @param offset  where in the archive the operation started, or -1
+         * @param bytes   bytes moved
+         * @param success whether the operation succeeded
+         */
+        public void end(final long offset, final long bytes, final boolean success) {
+            timer.recordSince(startNanos);
+            timer.bytes.add(bytes);
+            if (!success) {
+                timer.failures.increment();
+            }
+            if (event != null) {
+                TransferEvent.commit(event, timer.name, offset, bytes, success);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.rdas.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * SHA-256 tree hash of a file computed on all cores, for checking large local files at the speed of the disk.
+ * <p>
+ * The tree over n leaves is the pair of the tree over the first 2<sup>k</sup> leaves, the largest power of two below
+ * n, and the tree over the rest. Fork/join tasks split on exactly that boundary, so the leaves are read and hashed in
+ * parallel and the subtrees reduced in parallel as well, giving the same hash as {@link TreeHash}. Blocks of a
+ * power-of-two number of leaves can be hashed on their own, and their hashes combined with
+ * {@link TreeHash#combine(List)}.
+ */
+public class ParallelTreeHash {
+
+    /**
+     * Leaves read and hashed by one task without splitting further
+     */
+    private static final int TASK_LEAVES = 4;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(ParallelTreeHash::sha256);
+    private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(TASK_LEAVES * TreeHash.CHUNK_SIZE));
+
+    private ParallelTreeHash() {
+    }
+
+    /**
+     * @param channel the file
+     * @param size    number of bytes to hash from the start of the file
+     * @return the tree hash
+     * @throws IOException the file could not be read, or is shorter than the size
+     */
+    public static byte[] of(final FileChannel channel, final long size) throws IOException {
+        return invoke(new Subtree(channel, size, 0, leafCount(size)));
+    }
+
+    /**
+     * Tree hashes of consecutive blocks of a file
+     *
+     * @param channel     the file
+     * @param size        number of bytes to hash from the start of the file
+     * @param blockLeaves leaves per block, a power of two
+     * @return the hash of every block, the last one possibly of fewer leaves
+     * @throws IOException the file could not be read, or is shorter than the size
+     */
+    public static List<byte[]> blocks(final FileChannel channel, final long size, final int blockLeaves) throws IOException {
+        final long blockCount = (leafCount(size) + blockLeaves - 1) / blockLeaves;
+        final List<Long> indexes = new ArrayList<>();
+        for (long index = 0; index < blockCount; index++) {
+            indexes.add(index);
+        }
+        return blocks(channel, size, blockLeaves, indexes);
+    }
+
+    /**
+     * Tree hashes of some blocks of a file
+     *
+     * @param channel     the file
+     * @param size        size of the file
+     * @param blockLeaves leaves per block, a power of two
+     * @param indexes     the blocks to hash
+     * @return the hashes, in the order of the indexes
+     * @throws IOException the file could not be read, or is shorter than the size
+     */
+    public static List<byte[]> blocks(final FileChannel channel, final long size, final int blockLeaves, final List<Long> indexes) throws IOException {
+        if (Integer.bitCount(blockLeaves) != 1) {
+            throw new IllegalArgumentException("Leaves per block must be a power of two, was " + blockLeaves);
+        }
+        final long leafCount = leafCount(size);
+        return invoke(new RecursiveTask<List<byte[]>>() {
+            @Override
+            protected List<byte[]> compute() {
+                final List<Subtree> tasks = new ArrayList<>(indexes.size());
+                for (final long index : indexes) {
+                    final long first = index * blockLeaves;
+                    tasks.add(new Subtree(channel, size, first, Math.min(blockLeaves, leafCount - first)));
+                }
+                invokeAll(tasks);
+                final List<byte[]> hashes = new ArrayList<>(tasks.size());
+                for (final Subtree task : tasks) {
+                    hashes.add(task.join());
+                }
+                return hashes;
+            }
+        });
+    }
+
+    private static long leafCount(final long size) {
+        return Math.max(1, (size + TreeHash.CHUNK_SIZE - 1) / TreeHash.CHUNK_SIZE);
+    }
+
+    private static <T> T invoke(final RecursiveTask<T> task) throws IOException {
+        try {
+            return POOL.invoke(task);
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * The tree hash of a run of leaves that starts on a boundary of its own size, rounded up to a power of two
+     */
+    private static class Subtree extends RecursiveTask<byte[]> {
+        private final FileChannel channel;
+        private final long size;
+        private final long firstLeaf;
+        private final long leaves;
+
+        private Subtree(final FileChannel channel, final long size, final long firstLeaf, final long leaves) {
+            this.channel = channel;
+            this.size = size;
+            this.firstLeaf = firstLeaf;
+            this.leaves = leaves;
+        }
+
+        @Override
+        protected byte[] compute() {
+            if (leaves <= TASK_LEAVES) {
+                return hashLeaves();
+            }
+            final long split = Long.highestOneBit(leaves - 1);
+            final Subtree left = new Subtree(channel, size, firstLeaf, split);
+            left.fork();
+            final byte[] right = new Subtree(channel, size, firstLeaf + split, leaves - split).compute();
+            final byte[] leftHash = left.join();
+            final MessageDigest digest = DIGESTS.get();
+            digest.update(leftHash);
+            digest.update(right);
+            return digest.digest();
+        }
+
+        private byte[] hashLeaves() {
+            final long start = firstLeaf * TreeHash.CHUNK_SIZE;
+            final int length = (int) Math.min(leaves * TreeHash.CHUNK_SIZE, size - start);
+            final ByteBuffer buffer = BUFFERS.get();
+            buffer.clear().limit(length);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, start + buffer.position()) < 0) {
+                        throw new EOFException("File ends at " + (start + buffer.position()) + " of " + size + " bytes");
+                    }
+                }
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.flip();
+            final MessageDigest digest = DIGESTS.get();
+            final List<byte[]> hashes = new ArrayList<>(TASK_LEAVES);
+            // an empty file is a single empty leaf
+            do {
+                final int limit = buffer.limit();
+                buffer.limit(Math.min(limit, buffer.position() + TreeHash.CHUNK_SIZE));
+                digest.update(buffer);
+                buffer.limit(limit);
+                hashes.add(digest.digest());
+            } while (buffer.hasRemaining());
+            return TreeHash.combine(hashes);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.rdas.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for one part upload or range download, so that a flight recording shows every transfer next to GC, I/O
+ * and thread activity. Record with <code>java -XX:StartFlightRecording=filename=glacierman.jfr -jar glacierman.jar ...</code>.
+ * <p>
+ * Only touched through {@link Metrics.Span}, and only if JFR is available, so that runtimes without it never load this class.
+ */
+@Name("com.rdas.glacierman.Transfer")
+@Label("Glacier Transfer")
+@Category("Glacierman")
+@Description("A part upload or range download")
+class TransferEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Offset")
+    @DataAmount
+    long offset;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Success")
+    boolean success;
+
+    /**
+     * @return a started event, or null if JFR is not recording these events
+     */
+    static Object beginIfEnabled() {
+        final TransferEvent event = new TransferEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void commit(final Object started, final String operation, final long offset, final long bytes, final boolean success) {
+        final TransferEvent event = (TransferEvent) started;
+        event.operation = operation;
+        event.offset = offset;
+        event.bytes = bytes;
+        event.success = success;
+        event.commit();
+    }
+}
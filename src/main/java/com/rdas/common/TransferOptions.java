@@ -0,0 +1,742 @@
+package com.rdas.common;
+
+/**
+ * Tunables for transfers. Values are read from system properties, e.g.
+ * <code>java -Dglacierman.partSizeMb=128 -Dglacierman.concurrency=8 -jar glacierman.jar upload ...</code>
+ */
+public class TransferOptions {
+
+    public static final long MB = 1024L * 1024;
+
+    private static final int MAX_PART_SIZE_MB = 4096;
+
+    private int partSizeMb = 64;
+
+    private int concurrency = 4;
+
+    private int fileConcurrency = 2;
+
+    private int jobsPerSecond = 2;
+
+    private int packSmallFilesMb = 0;
+
+    private int packSizeMb = 1024;
+
+    private boolean notifications = false;
+
+    private String snsTopic;
+
+    private boolean dedup = false;
+
+    private int maxConcurrency = 16;
+
+    private int maxMbPerSecond = 0;
+
+    private int maxRequestsPerSecond = 0;
+
+    private String limitHours;
+
+    private int limitFromHour = 0;
+
+    private int limitToHour = 24;
+
+    private int maxConnections = 50;
+
+    private int socketBufferKb = 0;
+
+    private boolean tcpKeepAlive = true;
+
+    private int connectionTtlSeconds = 300;
+
+    private boolean compress = false;
+
+    private String encryptionKeyFile;
+
+    private String endpoint;
+    private String sqsEndpoint;
+    private String snsEndpoint;
+
+    private double timeScale = 1;
+
+    private int deletesPerSecond = 20;
+
+    private boolean dryRun = false;
+
+    private String metricsFile;
+
+    private int metricsIntervalSeconds = 10;
+
+    private String tier = "Standard";
+
+    private double deadlineHours = 0;
+
+    private double budget = 0;
+
+    private int linkMbPerSecond = 25;
+
+    private boolean verifyDownloads = true;
+
+    private int verifySamplePercent = 0;
+
+    public static TransferOptions defaults() {
+        return new TransferOptions();
+    }
+
+    /**
+     * Build the options from <code>glacierman.*</code> system properties, falling back to the defaults
+     *
+     * @return the options
+     */
+    public static TransferOptions fromSystemProperties() {
+        final TransferOptions defaults = defaults();
+        final TransferOptions options = new TransferOptions()
+                .withPartSizeMb(Integer.getInteger("glacierman.partSizeMb", defaults.partSizeMb))
+                .withConcurrency(Integer.getInteger("glacierman.concurrency", defaults.concurrency))
+                .withFileConcurrency(Integer.getInteger("glacierman.fileConcurrency", defaults.fileConcurrency))
+                .withJobsPerSecond(Integer.getInteger("glacierman.jobsPerSecond", defaults.jobsPerSecond))
+                .withPackSmallFilesMb(Integer.getInteger("glacierman.packSmallFilesMb", defaults.packSmallFilesMb))
+                .withPackSizeMb(Integer.getInteger("glacierman.packSizeMb", defaults.packSizeMb))
+                .withNotifications(Boolean.parseBoolean(System.getProperty("glacierman.notifications", String.valueOf(defaults.notifications))))
+                .withSnsTopic(System.getProperty("glacierman.snsTopic", defaults.snsTopic))
+                .withDedup(Boolean.parseBoolean(System.getProperty("glacierman.dedup", String.valueOf(defaults.dedup))))
+                .withMaxConcurrency(Integer.getInteger("glacierman.maxConcurrency", defaults.maxConcurrency))
+                .withMaxMbPerSecond(Integer.getInteger("glacierman.maxMbPerSecond", defaults.maxMbPerSecond))
+                .withMaxRequestsPerSecond(Integer.getInteger("glacierman.maxRequestsPerSecond", defaults.maxRequestsPerSecond))
+                .withLimitHours(System.getProperty("glacierman.limitHours", defaults.limitHours))
+                .withMaxConnections(Integer.getInteger("glacierman.maxConnections", defaults.maxConnections))
+                .withSocketBufferKb(Integer.getInteger("glacierman.socketBufferKb", defaults.socketBufferKb))
+                .withTcpKeepAlive(Boolean.parseBoolean(System.getProperty("glacierman.tcpKeepAlive", String.valueOf(defaults.tcpKeepAlive))))
+                .withConnectionTtlSeconds(Integer.getInteger("glacierman.connectionTtlSeconds", defaults.connectionTtlSeconds))
+                .withCompress(Boolean.parseBoolean(System.getProperty("glacierman.compress", String.valueOf(defaults.compress))))
+                .withEncryptionKeyFile(System.getProperty("glacierman.encryptionKeyFile", defaults.encryptionKeyFile))
+                .withEndpoint(System.getProperty("glacierman.endpoint", defaults.endpoint))
+                .withSqsEndpoint(System.getProperty("glacierman.sqsEndpoint", defaults.sqsEndpoint))
+                .withSnsEndpoint(System.getProperty("glacierman.snsEndpoint", defaults.snsEndpoint))
+                .withTimeScale(Double.parseDouble(System.getProperty("glacierman.timeScale", String.valueOf(defaults.timeScale))))
+                .withDeletesPerSecond(Integer.getInteger("glacierman.deletesPerSecond", defaults.deletesPerSecond))
+                .withDryRun(Boolean.parseBoolean(System.getProperty("glacierman.dryRun", String.valueOf(defaults.dryRun))))
+                .withMetricsFile(System.getProperty("glacierman.metricsFile", defaults.metricsFile))
+                .withMetricsIntervalSeconds(Integer.getInteger("glacierman.metricsIntervalSeconds", defaults.metricsIntervalSeconds))
+                .withTier(System.getProperty("glacierman.tier", defaults.tier))
+                .withDeadlineHours(Double.parseDouble(System.getProperty("glacierman.deadlineHours", String.valueOf(defaults.deadlineHours))))
+                .withBudget(Double.parseDouble(System.getProperty("glacierman.budget", String.valueOf(defaults.budget))))
+                .withLinkMbPerSecond(Integer.getInteger("glacierman.linkMbPerSecond", defaults.linkMbPerSecond))
+                .withVerifyDownloads(Boolean.parseBoolean(System.getProperty("glacierman.verifyDownloads", String.valueOf(defaults.verifyDownloads))))
+                .withVerifySamplePercent(Integer.getInteger("glacierman.verifySamplePercent", defaults.verifySamplePercent));
+        if (options.isDedup() && options.isEncoding()) {
+            // encoded content differs every time, so it never matches an archive
+            throw new IllegalArgumentException("glacierman.dedup cannot be combined with glacierman.compress or glacierman.encryptionKeyFile");
+        }
+        return options;
+    }
+
+    public int getPartSizeMb() {
+        return partSizeMb;
+    }
+
+    public long getPartSizeBytes() {
+        return partSizeMb * MB;
+    }
+
+    /**
+     * Set the multipart upload part size. Glacier accepts any power of two between 1 MB and 4 GB.
+     *
+     * @param partSizeMb part size in MB
+     * @return this
+     */
+    public TransferOptions withPartSizeMb(final int partSizeMb) {
+        if (partSizeMb < 1 || partSizeMb > MAX_PART_SIZE_MB || Integer.bitCount(partSizeMb) != 1) {
+            throw new IllegalArgumentException("Part size must be a power of two between 1 and " + MAX_PART_SIZE_MB + " MB, was " + partSizeMb);
+        }
+        this.partSizeMb = partSizeMb;
+        return this;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Set the number of parts transferred at once to start with. The shared governor adapts it while transferring,
+     * up to {@link #getMaxConcurrency()}.
+     *
+     * @param concurrency number of parallel part transfers
+     * @return this
+     */
+    public TransferOptions withConcurrency(final int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1, was " + concurrency);
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    public int getFileConcurrency() {
+        return fileConcurrency;
+    }
+
+    /**
+     * Set the number of archives transferred at once in batch operations. Their parts share the parallel part
+     * transfers of the run.
+     *
+     * @param fileConcurrency number of parallel archive transfers
+     * @return this
+     */
+    public TransferOptions withFileConcurrency(final int fileConcurrency) {
+        if (fileConcurrency < 1) {
+            throw new IllegalArgumentException("File concurrency must be at least 1, was " + fileConcurrency);
+        }
+        this.fileConcurrency = fileConcurrency;
+        return this;
+    }
+
+    public int getJobsPerSecond() {
+        return jobsPerSecond;
+    }
+
+    /**
+     * Set the rate at which batch operations start retrieval jobs
+     *
+     * @param jobsPerSecond jobs initiated per second
+     * @return this
+     */
+    public TransferOptions withJobsPerSecond(final int jobsPerSecond) {
+        if (jobsPerSecond < 1) {
+            throw new IllegalArgumentException("Jobs per second must be at least 1, was " + jobsPerSecond);
+        }
+        this.jobsPerSecond = jobsPerSecond;
+        return this;
+    }
+
+    public int getPackSmallFilesMb() {
+        return packSmallFilesMb;
+    }
+
+    /**
+     * @return true if batch uploads pack small files together
+     */
+    public boolean isPackingEnabled() {
+        return packSmallFilesMb > 0;
+    }
+
+    /**
+     * Set the size below which batch uploads pack files together into larger archives instead of uploading each on
+     * its own. 0 turns packing off.
+     *
+     * @param packSmallFilesMb size threshold in MB
+     * @return this
+     */
+    public TransferOptions withPackSmallFilesMb(final int packSmallFilesMb) {
+        if (packSmallFilesMb < 0) {
+            throw new IllegalArgumentException("Pack threshold must not be negative, was " + packSmallFilesMb);
+        }
+        this.packSmallFilesMb = packSmallFilesMb;
+        return this;
+    }
+
+    public long getPackSizeBytes() {
+        return packSizeMb * MB;
+    }
+
+    /**
+     * Set the target size of the archives small files are packed into
+     *
+     * @param packSizeMb target size in MB
+     * @return this
+     */
+    public TransferOptions withPackSizeMb(final int packSizeMb) {
+        if (packSizeMb < 1) {
+            throw new IllegalArgumentException("Pack size must be at least 1 MB, was " + packSizeMb);
+        }
+        this.packSizeMb = packSizeMb;
+        return this;
+    }
+
+    public boolean isNotifications() {
+        return notifications;
+    }
+
+    /**
+     * Wait for jobs by listening for their SNS completion notifications on a temporary SQS queue, instead of polling.
+     * Needs either {@link #withSnsTopic(String)} or a vault with notifications configured.
+     *
+     * @param notifications true to listen for notifications
+     * @return this
+     */
+    public TransferOptions withNotifications(final boolean notifications) {
+        this.notifications = notifications;
+        return this;
+    }
+
+    public String getSnsTopic() {
+        return snsTopic;
+    }
+
+    /**
+     * Set the SNS topic new jobs report completion to. Without it, the vault's notification topic is used.
+     *
+     * @param snsTopic topic ARN, or null
+     * @return this
+     */
+    public TransferOptions withSnsTopic(final String snsTopic) {
+        this.snsTopic = snsTopic;
+        return this;
+    }
+
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    /**
+     * Skip uploading files whose content is already archived in the vault, as far as the local catalog and past
+     * uploads tell
+     *
+     * @param dedup true to skip duplicates
+     * @return this
+     */
+    public TransferOptions withDedup(final boolean dedup) {
+        this.dedup = dedup;
+        return this;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Set the most parts transferred at once across all transfers. Concurrency starts at {@link #getConcurrency()}
+     * and adapts to how Glacier responds, but never goes above this.
+     *
+     * @param maxConcurrency hard cap on parallel part transfers
+     * @return this
+     */
+    public TransferOptions withMaxConcurrency(final int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("Max concurrency must be at least 1, was " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        return this;
+    }
+
+    public int getMaxMbPerSecond() {
+        return maxMbPerSecond;
+    }
+
+    /**
+     * Set the bandwidth cap shared by all transfers. 0 means no cap.
+     *
+     * @param maxMbPerSecond MB transferred per second
+     * @return this
+     */
+    public TransferOptions withMaxMbPerSecond(final int maxMbPerSecond) {
+        if (maxMbPerSecond < 0) {
+            throw new IllegalArgumentException("Max MB per second must not be negative, was " + maxMbPerSecond);
+        }
+        this.maxMbPerSecond = maxMbPerSecond;
+        return this;
+    }
+
+    public int getMaxRequestsPerSecond() {
+        return maxRequestsPerSecond;
+    }
+
+    /**
+     * Set the cap on Glacier requests per second, shared by all transfers. 0 means no cap.
+     *
+     * @param maxRequestsPerSecond requests per second
+     * @return this
+     */
+    public TransferOptions withMaxRequestsPerSecond(final int maxRequestsPerSecond) {
+        if (maxRequestsPerSecond < 0) {
+            throw new IllegalArgumentException("Max requests per second must not be negative, was " + maxRequestsPerSecond);
+        }
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+        return this;
+    }
+
+    public String getLimitHours() {
+        return limitHours;
+    }
+
+    /**
+     * Only apply the bandwidth and request caps during some hours of the day, e.g. <code>8-18</code> for business
+     * hours. The range is in local time and may wrap around midnight, as in <code>22-6</code>.
+     *
+     * @param limitHours hour range, or null to always apply the caps
+     * @return this
+     */
+    public TransferOptions withLimitHours(final String limitHours) {
+        if (limitHours == null || limitHours.isEmpty()) {
+            this.limitHours = null;
+            this.limitFromHour = 0;
+            this.limitToHour = 24;
+            return this;
+        }
+        final String[] hours = limitHours.split("-");
+        try {
+            if (hours.length == 2) {
+                final int from = Integer.parseInt(hours[0].trim());
+                final int to = Integer.parseInt(hours[1].trim());
+                if (from >= 0 && from <= 24 && to >= 0 && to <= 24 && from != to) {
+                    this.limitHours = limitHours;
+                    this.limitFromHour = from;
+                    this.limitToHour = to;
+                    return this;
+                }
+            }
+        } catch (final NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Limit hours must look like 8-18, was " + limitHours);
+    }
+
+    /**
+     * @param hour hour of the day, 0 to 23
+     * @return true if the bandwidth and request caps apply during the hour
+     */
+    public boolean isLimitedAt(final int hour) {
+        if (limitFromHour < limitToHour) {
+            return hour >= limitFromHour && hour < limitToHour;
+        }
+        return hour >= limitFromHour || hour < limitToHour;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Set the size of the connection pool shared by all transfers. It should cover
+     * {@link #getMaxConcurrency()} parts in flight plus job polling.
+     *
+     * @param maxConnections pooled HTTP connections
+     * @return this
+     */
+    public TransferOptions withMaxConnections(final int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Max connections must be at least 1, was " + maxConnections);
+        }
+        this.maxConnections = maxConnections;
+        return this;
+    }
+
+    public int getSocketBufferKb() {
+        return socketBufferKb;
+    }
+
+    /**
+     * Set the socket send and receive buffer sizes. Larger buffers help on links with a high bandwidth-delay
+     * product. 0 leaves the sizing to the operating system.
+     *
+     * @param socketBufferKb buffer size in KB
+     * @return this
+     */
+    public TransferOptions withSocketBufferKb(final int socketBufferKb) {
+        if (socketBufferKb < 0) {
+            throw new IllegalArgumentException("Socket buffer size must not be negative, was " + socketBufferKb);
+        }
+        this.socketBufferKb = socketBufferKb;
+        return this;
+    }
+
+    public boolean isTcpKeepAlive() {
+        return tcpKeepAlive;
+    }
+
+    /**
+     * Send TCP keep-alives, so that connections idle during long parts or job waits are not dropped by firewalls
+     *
+     * @param tcpKeepAlive true to send keep-alives
+     * @return this
+     */
+    public TransferOptions withTcpKeepAlive(final boolean tcpKeepAlive) {
+        this.tcpKeepAlive = tcpKeepAlive;
+        return this;
+    }
+
+    public int getConnectionTtlSeconds() {
+        return connectionTtlSeconds;
+    }
+
+    /**
+     * Set how long a pooled connection is reused before it is replaced. 0 keeps connections for as long as they work.
+     *
+     * @param connectionTtlSeconds connection lifetime in seconds
+     * @return this
+     */
+    public TransferOptions withConnectionTtlSeconds(final int connectionTtlSeconds) {
+        if (connectionTtlSeconds < 0) {
+            throw new IllegalArgumentException("Connection TTL must not be negative, was " + connectionTtlSeconds);
+        }
+        this.connectionTtlSeconds = connectionTtlSeconds;
+        return this;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * Compress archive content while uploading it. Downloads decompress it whether or not this is set.
+     *
+     * @param compress true to compress
+     * @return this
+     */
+    public TransferOptions withCompress(final boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    /**
+     * @return true if uploads are compressed or encrypted
+     */
+    public boolean isEncoding() {
+        return compress || encryptionKeyFile != null;
+    }
+
+    public String getEncryptionKeyFile() {
+        return encryptionKeyFile;
+    }
+
+    /**
+     * Set the file holding the 256 bit key that uploads are encrypted with and downloads are decrypted with
+     *
+     * @param encryptionKeyFile path of the key file, or null to not encrypt
+     * @return this
+     */
+    public TransferOptions withEncryptionKeyFile(final String encryptionKeyFile) {
+        this.encryptionKeyFile = encryptionKeyFile == null || encryptionKeyFile.isEmpty() ? null : encryptionKeyFile;
+        return this;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Send Glacier requests to another endpoint than the region's, such as a {@link com.rdas.glacier.FakeGlacierServer}
+     *
+     * @param endpoint endpoint URL, or null for the region's endpoint
+     * @return this
+     */
+    public TransferOptions withEndpoint(final String endpoint) {
+        this.endpoint = endpoint == null || endpoint.isEmpty() ? null : endpoint;
+        return this;
+    }
+
+    public String getSqsEndpoint() {
+        return sqsEndpoint;
+    }
+
+    /**
+     * Send the SQS requests of job notifications to another endpoint than the region's, such as a local stand-in
+     *
+     * @param sqsEndpoint endpoint URL, or null for the region's endpoint
+     * @return this
+     */
+    public TransferOptions withSqsEndpoint(final String sqsEndpoint) {
+        this.sqsEndpoint = sqsEndpoint == null || sqsEndpoint.isEmpty() ? null : sqsEndpoint;
+        return this;
+    }
+
+    public String getSnsEndpoint() {
+        return snsEndpoint;
+    }
+
+    /**
+     * Send the SNS requests of job notifications to another endpoint than the region's, such as a local stand-in
+     *
+     * @param snsEndpoint endpoint URL, or null for the region's endpoint
+     * @return this
+     */
+    public TransferOptions withSnsEndpoint(final String snsEndpoint) {
+        this.snsEndpoint = snsEndpoint == null || snsEndpoint.isEmpty() ? null : snsEndpoint;
+        return this;
+    }
+
+    public double getTimeScale() {
+        return timeScale;
+    }
+
+    /**
+     * Scale how long retrieval jobs are expected to take, and so how long polls wait. Only useful against a fake
+     * endpoint whose jobs complete faster than Glacier's.
+     *
+     * @param timeScale fraction of Glacier's job latencies, at most 1
+     * @return this
+     */
+    public TransferOptions withTimeScale(final double timeScale) {
+        if (!(timeScale > 0 && timeScale <= 1)) {
+            throw new IllegalArgumentException("Time scale must be above 0 and at most 1, was " + timeScale);
+        }
+        this.timeScale = timeScale;
+        return this;
+    }
+
+    public int getDeletesPerSecond() {
+        return deletesPerSecond;
+    }
+
+    /**
+     * Set the rate at which bulk deletes are sent
+     *
+     * @param deletesPerSecond archives deleted per second
+     * @return this
+     */
+    public TransferOptions withDeletesPerSecond(final int deletesPerSecond) {
+        if (deletesPerSecond < 1) {
+            throw new IllegalArgumentException("Deletes per second must be at least 1, was " + deletesPerSecond);
+        }
+        this.deletesPerSecond = deletesPerSecond;
+        return this;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * Only report what a bulk delete would remove, without deleting anything
+     *
+     * @param dryRun whether to leave the vault untouched
+     * @return this
+     */
+    public TransferOptions withDryRun(final boolean dryRun) {
+        this.dryRun = dryRun;
+        return this;
+    }
+
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    /**
+     * Periodically write transfer metrics to a file, see {@link Metrics}
+     *
+     * @param metricsFile file name, ending in <code>.prom</code> for the Prometheus text format, or null for no metrics file
+     * @return this
+     */
+    public TransferOptions withMetricsFile(final String metricsFile) {
+        this.metricsFile = metricsFile == null || metricsFile.isEmpty() ? null : metricsFile;
+        return this;
+    }
+
+    public int getMetricsIntervalSeconds() {
+        return metricsIntervalSeconds;
+    }
+
+    /**
+     * @param metricsIntervalSeconds seconds between metrics snapshots
+     * @return this
+     */
+    public TransferOptions withMetricsIntervalSeconds(final int metricsIntervalSeconds) {
+        if (metricsIntervalSeconds < 1) {
+            throw new IllegalArgumentException("Metrics interval must be at least 1 second, was " + metricsIntervalSeconds);
+        }
+        this.metricsIntervalSeconds = metricsIntervalSeconds;
+        return this;
+    }
+
+    public String getTier() {
+        return tier;
+    }
+
+    /**
+     * Set the tier archives are retrieved with, unless a deadline or budget is set
+     *
+     * @param tier <code>Expedited</code>, <code>Standard</code> or <code>Bulk</code>
+     * @return this
+     */
+    public TransferOptions withTier(final String tier) {
+        if (!"Expedited".equalsIgnoreCase(tier) && !"Standard".equalsIgnoreCase(tier) && !"Bulk".equalsIgnoreCase(tier)) {
+            throw new IllegalArgumentException("Tier must be Expedited, Standard or Bulk, was " + tier);
+        }
+        this.tier = tier;
+        return this;
+    }
+
+    public double getDeadlineHours() {
+        return deadlineHours;
+    }
+
+    /**
+     * Plan retrieval tiers so that downloads are done within this many hours, as cheaply as possible
+     *
+     * @param deadlineHours hours from the start of the download, 0 for no deadline
+     * @return this
+     */
+    public TransferOptions withDeadlineHours(final double deadlineHours) {
+        if (!(deadlineHours >= 0)) {
+            throw new IllegalArgumentException("Deadline must not be negative, was " + deadlineHours);
+        }
+        this.deadlineHours = deadlineHours;
+        return this;
+    }
+
+    public double getBudget() {
+        return budget;
+    }
+
+    /**
+     * Plan retrieval tiers so that downloads are done as early as this budget allows
+     *
+     * @param budget retrieval cost in dollars, 0 for no budget
+     * @return this
+     */
+    public TransferOptions withBudget(final double budget) {
+        if (!(budget >= 0)) {
+            throw new IllegalArgumentException("Budget must not be negative, was " + budget);
+        }
+        this.budget = budget;
+        return this;
+    }
+
+    public int getLinkMbPerSecond() {
+        return linkMbPerSecond;
+    }
+
+    /**
+     * @param linkMbPerSecond download throughput the retrieval planner expects
+     * @return this
+     */
+    public TransferOptions withLinkMbPerSecond(final int linkMbPerSecond) {
+        if (linkMbPerSecond < 1) {
+            throw new IllegalArgumentException("Link speed must be at least 1 MB/s, was " + linkMbPerSecond);
+        }
+        this.linkMbPerSecond = linkMbPerSecond;
+        return this;
+    }
+
+    public boolean isVerifyDownloads() {
+        return verifyDownloads;
+    }
+
+    /**
+     * Re-read whole downloaded archives from disk and check their tree hash
+     *
+     * @param verifyDownloads whether to check downloads
+     * @return this
+     */
+    public TransferOptions withVerifyDownloads(final boolean verifyDownloads) {
+        this.verifyDownloads = verifyDownloads;
+        return this;
+    }
+
+    public int getVerifySamplePercent() {
+        return verifySamplePercent;
+    }
+
+    /**
+     * Only check this share of a file's blocks, if an earlier full check recorded their hashes
+     *
+     * @param verifySamplePercent percentage of blocks to check, 0 to check whole files
+     * @return this
+     */
+    public TransferOptions withVerifySamplePercent(final int verifySamplePercent) {
+        if (verifySamplePercent < 0 || verifySamplePercent > 100) {
+            throw new IllegalArgumentException("Verify sample must be between 0 and 100 percent, was " + verifySamplePercent);
+        }
+        this.verifySamplePercent = verifySamplePercent;
+        return this;
+    }
+}
@@ -0,0 +1,164 @@
+package com.rdas.common;
+
+import com.amazonaws.util.BinaryUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental SHA-256 tree hash, as used by Glacier for archive and part checksums.
+ * <p>
+ * Data is fed in as it is read and hashed in 1 MB leaves, so a checksum never needs a second pass over the data.
+ * Tree hashes of consecutive ranges that start on a power-of-two MB boundary can be combined into the hash of the
+ * whole range with {@link #combine(List)}, which is how the archive checksum is derived from the part checksums.
+ */
+public class TreeHash {
+
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Size of the file windows mapped by {@link #of(FileChannel, long, long)}
+     */
+    private static final long MAP_WINDOW = 64L * CHUNK_SIZE;
+
+    private final MessageDigest digest = sha256();
+    private final List<byte[]> leaves = new ArrayList<>();
+    private int chunkFill;
+
+    /**
+     * Feed data into the hash. The buffer's position is advanced to its limit.
+     *
+     * @param data the next bytes of the input
+     */
+    public void update(final ByteBuffer data) {
+        final int limit = data.limit();
+        while (data.position() < limit) {
+            final int n = Math.min(limit - data.position(), CHUNK_SIZE - chunkFill);
+            data.limit(data.position() + n);
+            digest.update(data);
+            data.limit(limit);
+            endOfData(n);
+        }
+    }
+
+    /**
+     * Feed data into the hash
+     *
+     * @param data   the next bytes of the input
+     * @param offset start of the bytes in the array
+     * @param length number of bytes
+     */
+    public void update(final byte[] data, final int offset, final int length) {
+        int position = offset;
+        final int end = offset + length;
+        while (position < end) {
+            final int n = Math.min(end - position, CHUNK_SIZE - chunkFill);
+            digest.update(data, position, n);
+            position += n;
+            endOfData(n);
+        }
+    }
+
+    private void endOfData(final int n) {
+        chunkFill += n;
+        if (chunkFill == CHUNK_SIZE) {
+            leaves.add(digest.digest());
+            chunkFill = 0;
+        }
+    }
+
+    /**
+     * Finish hashing. The instance must not be updated afterwards.
+     *
+     * @return the tree hash of everything fed in so far
+     */
+    public byte[] digest() {
+        if (chunkFill > 0 || leaves.isEmpty()) {
+            leaves.add(digest.digest());
+            chunkFill = 0;
+        }
+        return combine(leaves);
+    }
+
+    /**
+     * @return the hex tree hash, as sent to Glacier
+     */
+    public String digestHex() {
+        return BinaryUtils.toHex(digest());
+    }
+
+    /**
+     * Reduce the hashes of consecutive ranges to the tree hash of the whole
+     *
+     * @param hashes leaf or subtree hashes, in order
+     * @return the root hash
+     */
+    public static byte[] combine(final List<byte[]> hashes) {
+        if (hashes.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to combine");
+        }
+        final MessageDigest pairDigest = sha256();
+        List<byte[]> level = hashes;
+        while (level.size() > 1) {
+            final List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 < level.size()) {
+                    pairDigest.update(level.get(i));
+                    pairDigest.update(level.get(i + 1));
+                    next.add(pairDigest.digest());
+                } else {
+                    next.add(level.get(i));
+                }
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * Tree hash a range of a file in one pass, reading it through memory mapped windows
+     *
+     * @param channel the file
+     * @param start   first byte of the range
+     * @param length  number of bytes
+     * @return the tree hash
+     * @throws IOException file could not be read
+     */
+    public static byte[] of(final FileChannel channel, final long start, final long length) throws IOException {
+        final TreeHash treeHash = new TreeHash();
+        for (long offset = 0; offset < length; offset += MAP_WINDOW) {
+            final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(MAP_WINDOW, length - offset));
+            treeHash.update(window);
+        }
+        return treeHash.digest();
+    }
+
+    /**
+     * Tree hash a whole file in one pass
+     *
+     * @param file the file
+     * @return the hex tree hash
+     * @throws IOException file could not be read
+     */
+    public static String of(final File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return BinaryUtils.toHex(of(channel, 0, channel.size()));
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
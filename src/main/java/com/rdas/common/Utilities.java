@@ -4,11 +4,18 @@ import com.amazonaws.event.ProgressEvent;
 import com.amazonaws.event.ProgressEventType;
 
 import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Utilities {
 
     public static final String BACKUP_DESCRIPTION_PREFIX = "Glacier backup of ";
 
+    public static final String PACK_DESCRIPTION_PREFIX = "Glacier pack ";
+
+    public static final String CHUNK_PACK_DESCRIPTION_PREFIX = "Glacier chunks ";
+
+    public static final String ENCODING_SEPARATOR = " | encoded ";
+
     /**
      * Generate the archive description for glacier from the file path.
      * DO NOT CHANGE THE LOGIC HERE
@@ -20,35 +27,178 @@ public class Utilities {
         return BACKUP_DESCRIPTION_PREFIX + archivePath;
     }
 
+    /**
+     * Generate the archive description for a file whose content is compressed or encrypted. It is the plain
+     * description followed by the encoding, so lookups by description prefix find both kinds of archives.
+     *
+     * @param archivePath the archive path
+     * @param encoding    the name of the encoding
+     * @return The description
+     */
+    public static String generateArchiveDescription(final File archivePath, final String encoding) {
+        return withEncoding(generateArchiveDescription(archivePath), encoding);
+    }
+
+    /**
+     * The description of an archive whose content is compressed or encrypted, such as a pack or a manifest
+     *
+     * @param description the plain description
+     * @param encoding    the name of the encoding
+     * @return The description
+     */
+    public static String withEncoding(final String description, final String encoding) {
+        return description + ENCODING_SEPARATOR + encoding;
+    }
+
+    /**
+     * The encoding an archive was uploaded with, as far as its description tells
+     *
+     * @param description the archive description
+     * @return the name of the encoding, or null if the content is stored as it is
+     */
+    public static String encodingFromDescription(final String description) {
+        final int separator = description.lastIndexOf(ENCODING_SEPARATOR);
+        return separator < 0 ? null : description.substring(separator + ENCODING_SEPARATOR.length());
+    }
+
+    /**
+     * The name of the file an archive was uploaded from, as far as its description tells
+     *
+     * @param description the archive description
+     * @return the file name for backups, otherwise the whole description
+     */
+    public static String fileNameFromDescription(final String description) {
+        if (description.startsWith(BACKUP_DESCRIPTION_PREFIX)) {
+            final int separator = description.lastIndexOf(ENCODING_SEPARATOR);
+            final String path = separator < 0 ? description : description.substring(0, separator);
+            return new File(path.substring(BACKUP_DESCRIPTION_PREFIX.length())).getName();
+        }
+        return description;
+    }
+
+    /**
+     * Generate the archive description for a pack of small files. Packs are numbered in the order they are built
+     * from the upload source, so an interrupted batch gets the same descriptions when it is run again.
+     *
+     * @param source     the directory or manifest the files came from
+     * @param packNumber the pack's number within the source
+     * @return The description
+     */
+    public static String generatePackDescription(final String source, final int packNumber) {
+        return PACK_DESCRIPTION_PREFIX + packNumber + " of " + source;
+    }
+
+    /**
+     * Generate the archive description for a pack of chunks from a chunked backup. A pack is named after its first
+     * chunk, so an interrupted backup of the same file gets the same descriptions when it is run again.
+     *
+     * @param source     the file the chunks came from
+     * @param firstChunk hex hash of the pack's first chunk
+     * @return The description
+     */
+    public static String generateChunkPackDescription(final File source, final String firstChunk) {
+        return CHUNK_PACK_DESCRIPTION_PREFIX + firstChunk.substring(0, 16) + " of " + source;
+    }
+
+    /**
+     * Logs every 5% of progress along with the average speed so far, or every 256 MB for transfers of unknown size.
+     * Safe to share between parallel part transfers: the counts are atomic and only the thread that crosses a step
+     * prints it, so reporting takes no lock and allocates nothing between steps. A labelled logger prints each step on
+     * its own line, so that several transfers can log at the same time.
+     */
     public static class ProgressLogger {
+        private static final long UNKNOWN_SIZE_STEP = 256L * 1024 * 1024;
+
+        private final String label;
         private final long totalBytes;
-        private long transferredBytes;
-        private long lastLoggedCompletionPercent = -1;
+        private final AtomicLong transferredBytes = new AtomicLong();
+        private final AtomicLong lastLoggedStep = new AtomicLong(-1);
+        private final AtomicLong resumedBytes = new AtomicLong();
+        private volatile long startNanos;
 
+        /**
+         * @param totalBytes size of the transfer, or -1 if it is not known
+         */
         public ProgressLogger(final long totalBytes) {
+            this(null, totalBytes);
+        }
+
+        public ProgressLogger(final String label, final long totalBytes) {
+            this.label = label;
             this.totalBytes = totalBytes;
-            this.transferredBytes = 0;
+            this.startNanos = System.nanoTime();
         }
 
         public void logProgress(final ProgressEvent progressEvent) {
             if (progressEvent.getEventType() == ProgressEventType.TRANSFER_STARTED_EVENT) {
-                System.out.print("Started...");
+                startNanos = System.nanoTime();
+                print("Started...");
             }
-            if (progressEvent.getBytesTransferred() != 0) {
-                transferredBytes += progressEvent.getBytesTransferred();
-                final double completion = (double) transferredBytes / (double) totalBytes;
-                final long completionPercent = Math.round(completion * 100);
-                if (completionPercent % 5 == 0) {
-                    if (completionPercent == lastLoggedCompletionPercent) {
-                        return;
+            final long bytes = progressEvent.getBytesTransferred();
+            if (bytes != 0) {
+                final long transferred = transferredBytes.addAndGet(bytes);
+                if (totalBytes < 0) {
+                    final long steps = transferred / UNKNOWN_SIZE_STEP;
+                    if (steps > 0 && advanceTo(steps)) {
+                        printStep(steps, String.format("%d MB (%.1f MB/s)...", transferred / (1024 * 1024), speedMbps(transferred)));
+                    }
+                } else {
+                    final long completionPercent = Math.round((double) transferred / (double) totalBytes * 100);
+                    if (completionPercent % 5 == 0 && advanceTo(completionPercent)) {
+                        printStep(completionPercent, String.format("%d%% (%.1f MB/s)...", completionPercent, speedMbps(transferred)));
                     }
-                    System.out.print(String.format("%d%%...", completionPercent));
-                    lastLoggedCompletionPercent = completionPercent;
                 }
             }
             if (progressEvent.getEventType() == ProgressEventType.TRANSFER_COMPLETED_EVENT) {
-                System.out.println("Done!");
+                if (label == null) {
+                    System.out.println("Done!");
+                } else {
+                    print("Done!");
+                }
+            }
+        }
+
+        /**
+         * @return true if this thread moved the progress on to the step, and so should print it
+         */
+        private boolean advanceTo(final long step) {
+            long last;
+            while ((last = lastLoggedStep.get()) < step) {
+                if (lastLoggedStep.compareAndSet(last, step)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized void printStep(final long step, final String message) {
+            // another thread may have crossed a later step meanwhile, and printing this one now would go backwards
+            if (step == lastLoggedStep.get()) {
+                print(message);
             }
         }
+
+        private void print(final String message) {
+            if (label == null) {
+                System.out.print(message);
+            } else {
+                System.out.println(label + ": " + message);
+            }
+        }
+
+        /**
+         * Account for bytes transferred by an earlier, interrupted run. They count towards completion but not speed.
+         *
+         * @param bytes bytes already transferred
+         */
+        public void resumeFrom(final long bytes) {
+            resumedBytes.addAndGet(bytes);
+            transferredBytes.addAndGet(bytes);
+        }
+
+        private double speedMbps(final long transferred) {
+            final double seconds = (System.nanoTime() - startNanos) / 1e9;
+            return seconds <= 0 ? 0 : (transferred - resumedBytes.get()) / (1024.0 * 1024) / seconds;
+        }
     }
 }
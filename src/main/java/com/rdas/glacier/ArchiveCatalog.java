@@ -0,0 +1,713 @@
+package com.rdas.glacier;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.rdas.common.Utilities;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+import java.util.function.LongToIntFunction;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Local catalog of the archives in a vault, built from an inventory and queried without touching AWS.
+ * <p>
+ * The catalog is a directory holding the archive records and one index file per {@link Index}. Records are written
+ * back to back in memory-mapped segments of 1 GB, and an index is the sorted array of record offsets, so a lookup is
+ * a binary search over mapped memory and never loads the catalog.
+ * <p>
+ * Changes found by later inventories are kept in a small overlay next to the indexes: archives added since the
+ * indexes were built, and indexed archives that are gone. Queries merge the overlay into the indexed results, so
+ * updating the catalog costs as much as the change rather than a rebuild.
+ */
+public class ArchiveCatalog implements Closeable {
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final String INFO_FILE = "catalog.json";
+    private static final String RECORDS_FILE = "archives.dat";
+    private static final String OVERLAY_FILE = "overlay.json";
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private static final int ID_FIELD = 0;
+    private static final int DESCRIPTION_FIELD = 1;
+    private static final int NAME_FIELD = 2;
+    private static final int TREE_HASH_FIELD = 3;
+
+    /**
+     * The orders archives can be looked up in
+     */
+    public enum Index {
+        ID("by-id.idx", ID_FIELD),
+        DESCRIPTION("by-description.idx", DESCRIPTION_FIELD),
+        NAME("by-name.idx", NAME_FIELD),
+        TREE_HASH("by-tree-hash.idx", TREE_HASH_FIELD),
+        SIZE("by-size.idx", -1),
+        DATE("by-date.idx", -1);
+
+        private final String fileName;
+        private final int field;
+
+        Index(final String fileName, final int field) {
+            this.fileName = fileName;
+            this.field = field;
+        }
+
+        /**
+         * @return whether the index orders archives by text
+         */
+        public boolean isText() {
+            return field >= 0;
+        }
+
+        /**
+         * Compare archives in index order
+         */
+        private int compare(final InventoryArchive a, final InventoryArchive b) {
+            switch (this) {
+                case SIZE:
+                    return Long.compare(a.getSize(), b.getSize());
+                case DATE:
+                    return Long.compare(a.getCreationTime(), b.getCreationTime());
+                default:
+                    return compareBytes(key(a), key(b), Integer.MAX_VALUE);
+            }
+        }
+
+        private byte[] key(final InventoryArchive archive) {
+            switch (field) {
+                case ID_FIELD:
+                    return archive.getArchiveId().getBytes(StandardCharsets.UTF_8);
+                case DESCRIPTION_FIELD:
+                    return archive.getDescription().getBytes(StandardCharsets.UTF_8);
+                case TREE_HASH_FIELD:
+                    return archive.getTreeHash() == null ? new byte[0] : archive.getTreeHash().getBytes(StandardCharsets.UTF_8);
+                default:
+                    return Utilities.fileNameFromDescription(archive.getDescription()).getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        private long value(final InventoryArchive archive) {
+            return this == SIZE ? archive.getSize() : archive.getCreationTime();
+        }
+
+        private OffsetComparator comparator(final Records records) {
+            switch (this) {
+                case SIZE:
+                    return (a, b) -> Long.compare(records.size(a), records.size(b));
+                case DATE:
+                    return (a, b) -> Long.compare(records.creationTime(a), records.creationTime(b));
+                default:
+                    return (a, b) -> records.compare(a, b, field);
+            }
+        }
+    }
+
+    private final File directory;
+    private final CatalogInfo info;
+    private final Records records;
+    private final Overlay overlay;
+    private final Map<Index, LongBuffer> indexes = new EnumMap<>(Index.class);
+    private final Map<String, InventoryArchive> added = new HashMap<>();
+    private final Set<String> removed;
+
+    private ArchiveCatalog(final File directory, final CatalogInfo info, final Records records, final Overlay overlay) {
+        this.directory = directory;
+        this.info = info;
+        this.records = records;
+        this.overlay = overlay;
+        for (final InventoryArchive archive : overlay.getAdded()) {
+            added.put(archive.getArchiveId(), archive);
+        }
+        this.removed = new HashSet<>(overlay.getRemoved());
+    }
+
+    /**
+     * The catalog directory of a vault
+     *
+     * @param vaultName the vault
+     * @return the directory
+     */
+    public static File directoryFor(final String vaultName) {
+        return new File(vaultName + "_catalog");
+    }
+
+    /**
+     * Build a catalog from an inventory file, replacing the catalog in the directory once it is complete
+     *
+     * @param inventory the inventory file
+     * @param directory the catalog directory
+     * @return what the catalog holds
+     * @throws IOException the inventory could not be read, or the catalog could not be written
+     */
+    public static CatalogInfo build(final File inventory, final File directory) throws IOException {
+        final File building = new File(directory.getPath() + ".tmp");
+        deleteDirectory(building);
+        if (!building.mkdirs()) {
+            throw new IOException("Could not create " + building);
+        }
+
+        long[] offsets = new long[1024];
+        int count = 0;
+        long totalSize = 0;
+        final CatalogInfo info;
+        try (final InventoryReader reader = InventoryReader.open(inventory);
+             final RecordWriter writer = new RecordWriter(new File(building, RECORDS_FILE))) {
+            InventoryArchive archive;
+            while ((archive = reader.next()) != null) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = writer.write(archive);
+                totalSize += archive.getSize();
+            }
+            info = new CatalogInfo(reader.getVaultArn(), reader.getInventoryDate(), inventory.getName(), count, totalSize);
+        }
+
+        try (final Records records = Records.open(new File(building, RECORDS_FILE))) {
+            for (final Index index : Index.values()) {
+                final long[] sorted = Arrays.copyOf(offsets, count);
+                sort(sorted, index.comparator(records));
+                writeIndex(new File(building, index.fileName), sorted);
+            }
+        }
+        writeJson(new File(building, INFO_FILE), info);
+
+        deleteDirectory(directory);
+        Files.move(building.toPath(), directory.toPath());
+        return info;
+    }
+
+    /**
+     * Open a catalog for queries
+     *
+     * @param directory the catalog directory
+     * @return the catalog
+     * @throws IOException there is no catalog in the directory
+     */
+    public static ArchiveCatalog open(final File directory) throws IOException {
+        final File infoFile = new File(directory, INFO_FILE);
+        if (!infoFile.isFile()) {
+            throw new FileNotFoundException("No catalog in " + directory + ". Run the inventory first");
+        }
+        final CatalogInfo info = readJson(infoFile, CatalogInfo.class);
+        final File overlayFile = new File(directory, OVERLAY_FILE);
+        final Overlay overlay = overlayFile.isFile() ? readJson(overlayFile, Overlay.class) : new Overlay(new ArrayList<>(), new ArrayList<>());
+        final ArchiveCatalog catalog = new ArchiveCatalog(directory, info, Records.open(new File(directory, RECORDS_FILE)), overlay);
+        for (final Index index : Index.values()) {
+            if (!new File(directory, index.fileName).isFile()) {
+                catalog.close();
+                throw new FileNotFoundException("Catalog in " + directory + " has no " + index + " index. Run the inventory again to rebuild it");
+            }
+            try (final FileChannel channel = FileChannel.open(new File(directory, index.fileName).toPath(), StandardOpenOption.READ)) {
+                catalog.indexes.put(index, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asLongBuffer());
+            }
+        }
+        return catalog;
+    }
+
+    public CatalogInfo getInfo() {
+        return info;
+    }
+
+    /**
+     * Look up an archive
+     *
+     * @param archiveId the archive ID
+     * @return the archive, or null if it is not in the catalog
+     */
+    public InventoryArchive get(final String archiveId) {
+        final InventoryArchive changed = added.get(archiveId);
+        if (changed != null || removed.contains(archiveId)) {
+            return changed;
+        }
+        final byte[] key = archiveId.getBytes(StandardCharsets.UTF_8);
+        final LongBuffer index = indexes.get(Index.ID);
+        final int found = lowerBound(index, offset -> records.compare(offset, ID_FIELD, key));
+        if (found < index.limit() && records.compare(index.get(found), ID_FIELD, key) == 0) {
+            return records.read(index.get(found));
+        }
+        return null;
+    }
+
+    /**
+     * Visit the archives whose indexed text starts with a prefix, in index order
+     *
+     * @param index    a text index
+     * @param prefix   the prefix. The empty prefix visits every archive
+     * @param consumer receives the archives
+     * @return number of archives visited
+     */
+    public long prefix(final Index index, final String prefix, final Consumer<InventoryArchive> consumer) {
+        if (!index.isText()) {
+            throw new IllegalArgumentException(index + " is not a text index");
+        }
+        final byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        return visit(index, lowerBound(indexes.get(index), offset -> records.compare(offset, index.field, key)),
+                offset -> records.startsWith(offset, index.field, key),
+                archive -> compareBytes(index.key(archive), key, key.length) == 0,
+                consumer);
+    }
+
+    /**
+     * Visit the archives whose size or creation time is within a range, in index order
+     *
+     * @param index    {@link Index#SIZE} or {@link Index#DATE}
+     * @param from     lowest value, inclusive
+     * @param to       highest value, exclusive
+     * @param consumer receives the archives
+     * @return number of archives visited
+     */
+    public long range(final Index index, final long from, final long to, final Consumer<InventoryArchive> consumer) {
+        if (index.isText()) {
+            throw new IllegalArgumentException(index + " is not a numeric index");
+        }
+        return visit(index, lowerBound(indexes.get(index), offset -> Long.compare(value(index, offset), from)),
+                offset -> value(index, offset) < to,
+                archive -> index.value(archive) >= from && index.value(archive) < to,
+                consumer);
+    }
+
+    /**
+     * Visit indexed archives from a position for as long as they match, merged in index order with the matching
+     * archives of the overlay
+     */
+    private long visit(final Index index, final int first, final LongPredicate indexedMatch, final Predicate<InventoryArchive> overlayMatch,
+                       final Consumer<InventoryArchive> consumer) {
+        final List<InventoryArchive> changes = new ArrayList<>();
+        for (final InventoryArchive archive : added.values()) {
+            if (overlayMatch.test(archive)) {
+                changes.add(archive);
+            }
+        }
+        changes.sort(index::compare);
+
+        final LongBuffer offsets = indexes.get(index);
+        int next = 0;
+        long visited = 0;
+        for (int i = first; i < offsets.limit() && indexedMatch.test(offsets.get(i)); i++) {
+            final InventoryArchive archive = records.read(offsets.get(i));
+            if (removed.contains(archive.getArchiveId())) {
+                continue;
+            }
+            while (next < changes.size() && index.compare(changes.get(next), archive) < 0) {
+                consumer.accept(changes.get(next++));
+                visited++;
+            }
+            consumer.accept(archive);
+            visited++;
+        }
+        while (next < changes.size()) {
+            consumer.accept(changes.get(next++));
+            visited++;
+        }
+        return visited;
+    }
+
+    /**
+     * @return number of archives in the indexes, including those the overlay removes
+     */
+    int indexedCount() {
+        return indexes.get(Index.ID).limit();
+    }
+
+    /**
+     * @return position of an archive in the ID index, or -1 if it is not indexed
+     */
+    int indexedPosition(final String archiveId) {
+        final byte[] key = archiveId.getBytes(StandardCharsets.UTF_8);
+        final LongBuffer index = indexes.get(Index.ID);
+        final int found = lowerBound(index, offset -> records.compare(offset, ID_FIELD, key));
+        return found < index.limit() && records.compare(index.get(found), ID_FIELD, key) == 0 ? found : -1;
+    }
+
+    /**
+     * @return the archive at a position of the ID index
+     */
+    InventoryArchive indexedAt(final int position) {
+        return records.read(indexes.get(Index.ID).get(position));
+    }
+
+    Overlay getOverlay() {
+        return overlay;
+    }
+
+    /**
+     * Replace the overlay of this catalog's directory. The catalog itself keeps answering from the old one.
+     */
+    void writeOverlay(final Overlay overlay, final CatalogInfo info) throws IOException {
+        writeJson(new File(directory, OVERLAY_FILE), overlay);
+        writeJson(new File(directory, INFO_FILE), info);
+    }
+
+    private long value(final Index index, final long offset) {
+        return index == Index.SIZE ? records.size(offset) : records.creationTime(offset);
+    }
+
+    /**
+     * @return position of the first offset that does not compare below the key
+     */
+    private static int lowerBound(final LongBuffer offsets, final LongToIntFunction compareToKey) {
+        int low = 0;
+        int high = offsets.limit();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compareToKey.applyAsInt(offsets.get(mid)) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void close() {
+        records.close();
+        indexes.clear();
+    }
+
+    private static <T> T readJson(final File file, final Class<T> type) throws IOException {
+        try (final Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            return GSON.fromJson(in, type);
+        }
+    }
+
+    private static void writeJson(final File file, final Object value) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        try (final Writer out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            GSON.toJson(value, out);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Compare the first bytes of two keys in unsigned order, which for UTF-8 is code point order
+     */
+    private static int compareBytes(final byte[] a, final byte[] b, final int length) {
+        for (int i = 0; i < a.length && i < b.length && i < length; i++) {
+            final int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return Math.min(a.length, length) - Math.min(b.length, length);
+    }
+
+    private static void writeIndex(final File file, final long[] offsets) throws IOException {
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            for (final long offset : offsets) {
+                out.writeLong(offset);
+            }
+        }
+    }
+
+    private static void deleteDirectory(final File directory) throws IOException {
+        if (!directory.exists()) {
+            return;
+        }
+        try (final Stream<Path> walk = Files.walk(directory.toPath())) {
+            for (final Path path : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Stable bottom-up merge sort of record offsets, which avoids boxing millions of them
+     */
+    private static void sort(final long[] offsets, final OffsetComparator comparator) {
+        final int n = offsets.length;
+        long[] from = offsets;
+        long[] to = new long[n];
+        for (long width = 1; width < n; width *= 2) {
+            for (long low = 0; low < n; low += 2 * width) {
+                final int mid = (int) Math.min(low + width, n);
+                final int high = (int) Math.min(low + 2 * width, n);
+                int left = (int) low;
+                int right = mid;
+                for (int i = (int) low; i < high; i++) {
+                    if (left < mid && (right >= high || comparator.compare(from[left], from[right]) <= 0)) {
+                        to[i] = from[left++];
+                    } else {
+                        to[i] = from[right++];
+                    }
+                }
+            }
+            final long[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != offsets) {
+            System.arraycopy(from, 0, offsets, 0, n);
+        }
+    }
+
+    private interface OffsetComparator {
+        int compare(long a, long b);
+    }
+
+    /**
+     * Writes records so that none of them crosses a segment boundary.
+     * A record is the size and creation time followed by the length-prefixed UTF-8 archive ID, description,
+     * file name and tree hash.
+     */
+    private static class RecordWriter implements Closeable {
+        private final DataOutputStream out;
+        private long position;
+
+        private RecordWriter(final File file) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        }
+
+        private long write(final InventoryArchive archive) throws IOException {
+            final byte[][] fields = new byte[4][];
+            fields[ID_FIELD] = archive.getArchiveId().getBytes(StandardCharsets.UTF_8);
+            fields[DESCRIPTION_FIELD] = archive.getDescription().getBytes(StandardCharsets.UTF_8);
+            fields[NAME_FIELD] = Utilities.fileNameFromDescription(archive.getDescription()).getBytes(StandardCharsets.UTF_8);
+            fields[TREE_HASH_FIELD] = archive.getTreeHash() == null ? new byte[0] : archive.getTreeHash().getBytes(StandardCharsets.UTF_8);
+            int length = 16;
+            for (final byte[] field : fields) {
+                if (field.length > 0xFFFF) {
+                    throw new IOException("Field of archive " + archive.getArchiveId() + " is too long for the catalog");
+                }
+                length += 2 + field.length;
+            }
+            final long remaining = SEGMENT_SIZE - (position & (SEGMENT_SIZE - 1));
+            if (length > remaining) {
+                for (long i = 0; i < remaining; i++) {
+                    out.write(0);
+                }
+                position += remaining;
+            }
+            final long offset = position;
+            out.writeLong(archive.getSize());
+            out.writeLong(archive.getCreationTime());
+            for (final byte[] field : fields) {
+                out.writeShort(field.length);
+                out.write(field);
+            }
+            position += length;
+            return offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Read access to mapped records. Segment buffers are only read through absolute gets, so they are safe to share
+     * between threads.
+     */
+    private static class Records implements Closeable {
+        private final ByteBuffer[] segments;
+
+        private Records(final ByteBuffer[] segments) {
+            this.segments = segments;
+        }
+
+        private static Records open(final File file) throws IOException {
+            try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                final long size = channel.size();
+                final ByteBuffer[] segments = new ByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+                for (int i = 0; i < segments.length; i++) {
+                    final long start = i * SEGMENT_SIZE;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+                }
+                return new Records(segments);
+            }
+        }
+
+        private ByteBuffer segment(final long offset) {
+            return segments[(int) (offset >>> SEGMENT_BITS)];
+        }
+
+        private static int position(final long offset) {
+            return (int) (offset & (SEGMENT_SIZE - 1));
+        }
+
+        private long size(final long offset) {
+            return segment(offset).getLong(position(offset));
+        }
+
+        private long creationTime(final long offset) {
+            return segment(offset).getLong(position(offset) + 8);
+        }
+
+        /**
+         * @return position of a field's length prefix within its segment
+         */
+        private static int fieldPosition(final ByteBuffer segment, final int recordPosition, final int field) {
+            int position = recordPosition + 16;
+            for (int i = 0; i < field; i++) {
+                position += 2 + (segment.getShort(position) & 0xFFFF);
+            }
+            return position;
+        }
+
+        private int compare(final long a, final long b, final int field) {
+            final ByteBuffer segmentA = segment(a);
+            final ByteBuffer segmentB = segment(b);
+            final int positionA = fieldPosition(segmentA, position(a), field);
+            final int positionB = fieldPosition(segmentB, position(b), field);
+            final int lengthA = segmentA.getShort(positionA) & 0xFFFF;
+            final int lengthB = segmentB.getShort(positionB) & 0xFFFF;
+            for (int i = 0; i < lengthA && i < lengthB; i++) {
+                final int diff = (segmentA.get(positionA + 2 + i) & 0xFF) - (segmentB.get(positionB + 2 + i) & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return lengthA - lengthB;
+        }
+
+        /**
+         * Compare a field with a key in unsigned byte order, which for UTF-8 is code point order
+         */
+        private int compare(final long offset, final int field, final byte[] key) {
+            final ByteBuffer segment = segment(offset);
+            final int position = fieldPosition(segment, position(offset), field);
+            final int length = segment.getShort(position) & 0xFFFF;
+            for (int i = 0; i < length && i < key.length; i++) {
+                final int diff = (segment.get(position + 2 + i) & 0xFF) - (key[i] & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return length - key.length;
+        }
+
+        private boolean startsWith(final long offset, final int field, final byte[] prefix) {
+            final ByteBuffer segment = segment(offset);
+            final int position = fieldPosition(segment, position(offset), field);
+            if ((segment.getShort(position) & 0xFFFF) < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (segment.get(position + 2 + i) != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String string(final ByteBuffer segment, final int fieldPosition) {
+            final byte[] bytes = new byte[segment.getShort(fieldPosition) & 0xFFFF];
+            final ByteBuffer view = segment.duplicate();
+            view.position(fieldPosition + 2);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private InventoryArchive read(final long offset) {
+            final ByteBuffer segment = segment(offset);
+            final int position = position(offset);
+            final String treeHash = string(segment, fieldPosition(segment, position, TREE_HASH_FIELD));
+            return new InventoryArchive(
+                    string(segment, fieldPosition(segment, position, ID_FIELD)),
+                    string(segment, fieldPosition(segment, position, DESCRIPTION_FIELD)),
+                    segment.getLong(position + 8),
+                    segment.getLong(position),
+                    treeHash.isEmpty() ? null : treeHash);
+        }
+
+        @Override
+        public void close() {
+            Arrays.fill(segments, null);
+        }
+    }
+
+    /**
+     * Changes to the indexed archives
+     */
+    public static class Overlay {
+        private List<InventoryArchive> added;
+        private List<String> removed;
+
+        public Overlay() {
+            // required for deserialization
+        }
+
+        public Overlay(final List<InventoryArchive> added, final List<String> removed) {
+            this.added = added;
+            this.removed = removed;
+        }
+
+        /**
+         * @return archives that are not indexed, or replace an indexed archive with the same ID
+         */
+        public List<InventoryArchive> getAdded() {
+            return added;
+        }
+
+        /**
+         * @return IDs of indexed archives that no longer exist or have been replaced
+         */
+        public List<String> getRemoved() {
+            return removed;
+        }
+
+        public int size() {
+            return added.size() + removed.size();
+        }
+    }
+
+    /**
+     * What a catalog holds
+     */
+    public static class CatalogInfo {
+        private String vaultArn;
+        private String inventoryDate;
+        private String inventoryFile;
+        private long archiveCount;
+        private long totalSize;
+
+        public CatalogInfo() {
+            // required for deserialization
+        }
+
+        public CatalogInfo(final String vaultArn, final String inventoryDate, final String inventoryFile, final long archiveCount, final long totalSize) {
+            this.vaultArn = vaultArn;
+            this.inventoryDate = inventoryDate;
+            this.inventoryFile = inventoryFile;
+            this.archiveCount = archiveCount;
+            this.totalSize = totalSize;
+        }
+
+        public String getVaultArn() {
+            return vaultArn;
+        }
+
+        public String getInventoryDate() {
+            return inventoryDate;
+        }
+
+        /**
+         * @return name of the inventory file the catalog was built from
+         */
+        public String getInventoryFile() {
+            return inventoryFile;
+        }
+
+        public long getArchiveCount() {
+            return archiveCount;
+        }
+
+        public long getTotalSize() {
+            return totalSize;
+        }
+    }
+}
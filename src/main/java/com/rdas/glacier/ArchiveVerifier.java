@@ -0,0 +1,216 @@
+package com.rdas.glacier;
+
+import com.amazonaws.util.BinaryUtils;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.rdas.common.Metrics;
+import com.rdas.common.ParallelTreeHash;
+import com.rdas.common.TransferOptions;
+import com.rdas.common.TreeHash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that a local file holds exactly an archive, by comparing its SHA-256 tree hash, computed on all cores with
+ * {@link ParallelTreeHash}, with the archive's.
+ * <p>
+ * A full check also records the tree hashes of the file's 64 MB blocks in a <code>&lt;file&gt;.treehash</code>
+ * sidecar. With {@link TransferOptions#getVerifySamplePercent()} set, later checks of the file only hash a random
+ * sample of blocks, always including the first and the last, and compare them with the sidecar, whose blocks in turn
+ * must combine to the archive's tree hash. That is a quick spot check for bit rot in huge files, not a proof.
+ */
+public class ArchiveVerifier {
+
+    private static final int BLOCK_LEAVES = 64;
+    private static final Gson GSON = new Gson();
+
+    private final TransferOptions options;
+
+    public ArchiveVerifier(final TransferOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * An archive as the vault's catalog or, for recent uploads, its pending changes know it, for its tree hash and
+     * description
+     *
+     * @param vaultName the vault
+     * @param archiveId the archive
+     * @return the archive, or null if neither knows it
+     * @throws IOException the catalog or the pending changes could not be read
+     */
+    public static InventoryArchive find(final String vaultName, final String archiveId) throws IOException {
+        final File catalogDirectory = ArchiveCatalog.directoryFor(vaultName);
+        if (catalogDirectory.isDirectory()) {
+            try (final ArchiveCatalog catalog = ArchiveCatalog.open(catalogDirectory)) {
+                final InventoryArchive archive = catalog.get(archiveId);
+                if (archive != null && archive.getTreeHash() != null) {
+                    return archive;
+                }
+            }
+        }
+        for (final PendingChanges.Change change : PendingChanges.forVault(vaultName).changes()) {
+            if (PendingChanges.UPLOAD.equals(change.getOperation()) && archiveId.equals(change.getArchiveId()) && change.getTreeHash() != null) {
+                return new InventoryArchive(archiveId, change.getDescription(), Instant.parse(change.getTime()).toEpochMilli(), change.getSize(),
+                        change.getTreeHash());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check a file against a tree hash, sampling blocks if configured and a sidecar of an earlier full check allows it
+     *
+     * @param file             the file
+     * @param expectedTreeHash hex tree hash of the archive
+     * @throws IOException the file does not match, or could not be read
+     */
+    public void verify(final File file, final String expectedTreeHash) throws IOException {
+        verify(file, expectedTreeHash, options.getVerifySamplePercent(), true);
+    }
+
+    /**
+     * Check all of a file against a tree hash, e.g. right after it was downloaded
+     *
+     * @param file             the file
+     * @param expectedTreeHash hex tree hash of the archive
+     * @param recordBlocks     whether to record block hashes for later sampled checks, which is pointless if the file
+     *                         is about to change, e.g. to be decoded
+     * @throws IOException the file does not match, or could not be read
+     */
+    public void verifyAll(final File file, final String expectedTreeHash, final boolean recordBlocks) throws IOException {
+        verify(file, expectedTreeHash, 0, recordBlocks);
+    }
+
+    private void verify(final File file, final String expectedTreeHash, final int samplePercent, final boolean recordBlocks) throws IOException {
+        final long start = System.currentTimeMillis();
+        final long size = file.length();
+        final Metrics.Span span = Metrics.shared(options).timer("verify").start();
+        boolean matched = false;
+        long hashed = size;
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final Sidecar sidecar = samplePercent > 0 ? readSidecar(file, size, expectedTreeHash) : null;
+            if (sidecar != null) {
+                hashed = verifySample(file, channel, size, sidecar, samplePercent);
+            } else {
+                if (samplePercent > 0) {
+                    System.out.println("No block hashes of an earlier full check of " + file + ", checking all of it");
+                }
+                final List<byte[]> blocks = ParallelTreeHash.blocks(channel, size, BLOCK_LEAVES);
+                final String treeHash = BinaryUtils.toHex(TreeHash.combine(blocks));
+                if (!treeHash.equals(expectedTreeHash)) {
+                    throw new IOException("Tree hash of " + file + " is " + treeHash + ", expected " + expectedTreeHash);
+                }
+                if (recordBlocks) {
+                    writeSidecar(file, new Sidecar(expectedTreeHash, size, blocks));
+                }
+            }
+            matched = true;
+        } finally {
+            span.end(0, hashed, matched);
+        }
+        final long millis = Math.max(System.currentTimeMillis() - start, 1);
+        System.out.println(String.format("%s matches %s (%s %d MB in %.1f s, %.0f MB/s)", file, expectedTreeHash, hashed < size ? "sampled" : "hashed",
+                hashed / TransferOptions.MB, millis / 1000.0, hashed * 1000.0 / millis / TransferOptions.MB));
+    }
+
+    /**
+     * @return the number of bytes hashed
+     */
+    private static long verifySample(final File file, final FileChannel channel, final long size, final Sidecar sidecar, final int samplePercent)
+            throws IOException {
+        final int blockCount = sidecar.blocks.size();
+        final List<Long> sample = new ArrayList<>();
+        for (long index = 1; index < blockCount - 1; index++) {
+            sample.add(index);
+        }
+        Collections.shuffle(sample);
+        final int sampleSize = (int) Math.ceil((blockCount - 2) * samplePercent / 100.0);
+        final List<Long> indexes = new ArrayList<>(sample.subList(0, Math.max(0, Math.min(sampleSize, sample.size()))));
+        // the first and last blocks catch a file that was cut short or replaced
+        indexes.add(0L);
+        if (blockCount > 1) {
+            indexes.add(blockCount - 1L);
+        }
+        final List<byte[]> hashes = ParallelTreeHash.blocks(channel, size, BLOCK_LEAVES, indexes);
+        long hashed = 0;
+        for (int i = 0; i < indexes.size(); i++) {
+            final int index = indexes.get(i).intValue();
+            if (!BinaryUtils.toHex(hashes.get(i)).equals(sidecar.blocks.get(index))) {
+                throw new IOException("Block " + index + " of " + file + " (at " + (long) index * BLOCK_LEAVES * TreeHash.CHUNK_SIZE
+                        + ") does not match the full check of " + sidecar.checked);
+            }
+            hashed += Math.min(BLOCK_LEAVES * (long) TreeHash.CHUNK_SIZE, size - (long) index * BLOCK_LEAVES * TreeHash.CHUNK_SIZE);
+        }
+        return hashed;
+    }
+
+    private static File sidecarFile(final File file) {
+        return new File(file.getPath() + ".treehash");
+    }
+
+    /**
+     * @return the sidecar, if there is one for this file and archive whose blocks add up to the archive's tree hash
+     */
+    private static Sidecar readSidecar(final File file, final long size, final String expectedTreeHash) throws IOException {
+        final File sidecarFile = sidecarFile(file);
+        if (!sidecarFile.isFile()) {
+            return null;
+        }
+        final Sidecar sidecar;
+        try (final Reader reader = Files.newBufferedReader(sidecarFile.toPath(), StandardCharsets.UTF_8)) {
+            sidecar = GSON.fromJson(reader, Sidecar.class);
+        } catch (final JsonSyntaxException e) {
+            return null;
+        }
+        if (sidecar == null || sidecar.size != size || !expectedTreeHash.equals(sidecar.treeHash) || sidecar.blocks == null || sidecar.blocks.isEmpty()) {
+            return null;
+        }
+        final List<byte[]> blocks = new ArrayList<>(sidecar.blocks.size());
+        for (final String block : sidecar.blocks) {
+            blocks.add(BinaryUtils.fromHex(block));
+        }
+        return BinaryUtils.toHex(TreeHash.combine(blocks)).equals(expectedTreeHash) ? sidecar : null;
+    }
+
+    private static void writeSidecar(final File file, final Sidecar sidecar) throws IOException {
+        try (final Writer writer = Files.newBufferedWriter(sidecarFile(file).toPath(), StandardCharsets.UTF_8)) {
+            GSON.toJson(sidecar, writer);
+        }
+    }
+
+    /**
+     * Block hashes of a file that passed a full check
+     */
+    private static class Sidecar {
+        private String treeHash;
+        private long size;
+        private String checked;
+        private List<String> blocks;
+
+        private Sidecar() {
+            // required for deserialization
+        }
+
+        private Sidecar(final String treeHash, final long size, final List<byte[]> blocks) {
+            this.treeHash = treeHash;
+            this.size = size;
+            this.checked = Instant.now().toString();
+            this.blocks = new ArrayList<>(blocks.size());
+            for (final byte[] block : blocks) {
+                this.blocks.add(BinaryUtils.toHex(block));
+            }
+        }
+    }
+}
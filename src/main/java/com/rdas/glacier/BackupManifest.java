@@ -0,0 +1,102 @@
+package com.rdas.glacier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything needed to rebuild one version of a file from a chunked backup: the chunks in file order and the pack
+ * archives that hold them. The manifest does not depend on the local chunk index, so it can restore a backup on
+ * another machine.
+ */
+public class BackupManifest {
+    private String vaultName;
+    private String source;
+    private long size;
+    private String createdAt;
+    private List<ChunkIndex.Pack> packs = new ArrayList<>();
+    private List<ChunkRef> chunks = new ArrayList<>();
+
+    public BackupManifest() {
+        // required for deserialization
+    }
+
+    public BackupManifest(final String vaultName, final String source, final long size, final String createdAt) {
+        this.vaultName = vaultName;
+        this.source = source;
+        this.size = size;
+        this.createdAt = createdAt;
+    }
+
+    public String getVaultName() {
+        return vaultName;
+    }
+
+    /**
+     * @return path of the backed up file
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getCreatedAt() {
+        return createdAt;
+    }
+
+    public List<ChunkIndex.Pack> getPacks() {
+        return packs;
+    }
+
+    public List<ChunkRef> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * A chunk of the file
+     */
+    public static class ChunkRef {
+        private String hash;
+        private int pack;
+        private long offset;
+        private int length;
+
+        public ChunkRef() {
+            // required for deserialization
+        }
+
+        public ChunkRef(final String hash, final int pack, final long offset, final int length) {
+            this.hash = hash;
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return SHA-256 of the chunk, in hex
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return position of the chunk's pack in {@link #getPacks()}
+         */
+        public int getPack() {
+            return pack;
+        }
+
+        /**
+         * @return position of the chunk in its pack archive
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+}
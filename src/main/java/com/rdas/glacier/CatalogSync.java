@@ -0,0 +1,261 @@
+package com.rdas.glacier;
+
+import com.google.gson.Gson;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Merges a new inventory into the local catalog of a vault.
+ * <p>
+ * Every archive of the inventory is looked up in the catalog, which only reads the mapped indexes. The differences
+ * are written to a delta file of added, removed and resized archives, and stored as the catalog's overlay. Only when
+ * the overlay has grown too big to keep in memory is the catalog rebuilt from the inventory.
+ * <p>
+ * Uploads and deletes from {@link PendingChanges} that the inventory confirms are dropped from it.
+ */
+public class CatalogSync {
+
+    public static final String ADDED = "added";
+    public static final String REMOVED = "removed";
+    public static final String RESIZED = "resized";
+
+    /**
+     * Overlays above this many changes are folded into a rebuilt catalog
+     */
+    private static final int OVERLAY_LIMIT = 100_000;
+
+    private static final Gson GSON = new Gson();
+
+    private final String vaultName;
+    private final File directory;
+
+    public CatalogSync(final String vaultName) {
+        this.vaultName = vaultName;
+        this.directory = ArchiveCatalog.directoryFor(vaultName);
+    }
+
+    /**
+     * The delta file written when syncing an inventory
+     *
+     * @param vaultName     the vault
+     * @param inventoryDate date of the inventory
+     * @return the delta file
+     */
+    public static File deltaFileFor(final String vaultName, final String inventoryDate) {
+        return new File(vaultName + "_delta_" + String.valueOf(inventoryDate).replace(':', '.') + ".jsonl");
+    }
+
+    /**
+     * Merge an inventory into the catalog, building the catalog if there is none yet
+     *
+     * @param inventory the inventory file
+     * @return the catalog's new state
+     * @throws IOException the inventory could not be read, or the catalog could not be written
+     */
+    public ArchiveCatalog.CatalogInfo sync(final File inventory) throws IOException {
+        if (!new File(directory, "catalog.json").isFile()) {
+            final ArchiveCatalog.CatalogInfo info = ArchiveCatalog.build(inventory, directory);
+            System.out.println("Built a new catalog");
+            reconcilePending();
+            return info;
+        }
+
+        final ArchiveCatalog.CatalogInfo info;
+        final Counts counts = new Counts();
+        final int overlaySize;
+        try (final ArchiveCatalog catalog = ArchiveCatalog.open(directory);
+             final InventoryReader reader = InventoryReader.open(inventory)) {
+            final ArchiveCatalog.Overlay overlay = catalog.getOverlay();
+            final Map<String, InventoryArchive> added = new LinkedHashMap<>();
+            for (final InventoryArchive archive : overlay.getAdded()) {
+                added.put(archive.getArchiveId(), archive);
+            }
+            final Set<String> removed = new LinkedHashSet<>(overlay.getRemoved());
+            final Set<String> wasRemoved = new HashSet<>(removed);
+            final Set<String> seenAdded = new HashSet<>();
+            final BitSet seenIndexed = new BitSet(catalog.indexedCount());
+
+            long archiveCount = 0;
+            long totalSize = 0;
+            final File deltaFile = new File(directory.getPath() + "_delta.tmp");
+            try (final Writer delta = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(deltaFile), StandardCharsets.UTF_8))) {
+                InventoryArchive archive;
+                while ((archive = reader.next()) != null) {
+                    archiveCount++;
+                    totalSize += archive.getSize();
+                    final String archiveId = archive.getArchiveId();
+                    final InventoryArchive previous = added.get(archiveId);
+                    if (previous != null) {
+                        seenAdded.add(archiveId);
+                        if (previous.getSize() != archive.getSize()) {
+                            write(delta, new Delta(RESIZED, archive, previous.getSize()), counts);
+                            added.put(archiveId, archive);
+                        }
+                        continue;
+                    }
+                    final int position = wasRemoved.contains(archiveId) ? -1 : catalog.indexedPosition(archiveId);
+                    if (position < 0) {
+                        write(delta, new Delta(ADDED, archive, 0), counts);
+                        added.put(archiveId, archive);
+                        seenAdded.add(archiveId);
+                        continue;
+                    }
+                    seenIndexed.set(position);
+                    final InventoryArchive indexed = catalog.indexedAt(position);
+                    if (indexed.getSize() != archive.getSize()) {
+                        write(delta, new Delta(RESIZED, archive, indexed.getSize()), counts);
+                        removed.add(archiveId);
+                        added.put(archiveId, archive);
+                        seenAdded.add(archiveId);
+                    }
+                }
+
+                // whatever the inventory no longer lists is gone
+                for (int position = seenIndexed.nextClearBit(0); position < catalog.indexedCount(); position = seenIndexed.nextClearBit(position + 1)) {
+                    final InventoryArchive indexed = catalog.indexedAt(position);
+                    if (removed.add(indexed.getArchiveId())) {
+                        write(delta, new Delta(REMOVED, indexed, 0), counts);
+                    }
+                }
+                for (final Iterator<InventoryArchive> it = added.values().iterator(); it.hasNext(); ) {
+                    final InventoryArchive stale = it.next();
+                    if (!seenAdded.contains(stale.getArchiveId())) {
+                        write(delta, new Delta(REMOVED, stale, 0), counts);
+                        it.remove();
+                    }
+                }
+            }
+
+            info = new ArchiveCatalog.CatalogInfo(reader.getVaultArn(), reader.getInventoryDate(), inventory.getName(), archiveCount, totalSize);
+            final File target = deltaFileFor(vaultName, info.getInventoryDate());
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Could not replace " + target);
+            }
+            if (!deltaFile.renameTo(target)) {
+                throw new IOException("Could not move the delta to " + target);
+            }
+            System.out.println(counts.added + " archives added, " + counts.removed + " removed and " + counts.resized + " resized since the last inventory. "
+                    + "Changes written to " + target);
+
+            final ArchiveCatalog.Overlay next = new ArchiveCatalog.Overlay(new ArrayList<>(added.values()), new ArrayList<>(removed));
+            overlaySize = next.size();
+            if (overlaySize <= OVERLAY_LIMIT) {
+                catalog.writeOverlay(next, info);
+            }
+        }
+        if (overlaySize > OVERLAY_LIMIT) {
+            System.out.println("Rebuilding the catalog to fold in " + overlaySize + " changes");
+            ArchiveCatalog.build(inventory, directory);
+        }
+        reconcilePending();
+        return info;
+    }
+
+    private static void write(final Writer delta, final Delta change, final Counts counts) throws IOException {
+        delta.write(GSON.toJson(change));
+        delta.write('\n');
+        switch (change.getChange()) {
+            case ADDED:
+                counts.added++;
+                break;
+            case REMOVED:
+                counts.removed++;
+                break;
+            default:
+                counts.resized++;
+        }
+    }
+
+    /**
+     * Drop the local changes the catalog now shows, and report the rest
+     */
+    private void reconcilePending() throws IOException {
+        final PendingChanges pendingChanges = PendingChanges.forVault(vaultName);
+        final List<PendingChanges.Change> changes = pendingChanges.changes();
+        if (changes.isEmpty()) {
+            return;
+        }
+        final List<PendingChanges.Change> pending = new ArrayList<>();
+        int uploads = 0;
+        int deletes = 0;
+        try (final ArchiveCatalog catalog = ArchiveCatalog.open(directory)) {
+            for (final PendingChanges.Change change : changes) {
+                final boolean present = catalog.get(change.getArchiveId()) != null;
+                if (PendingChanges.UPLOAD.equals(change.getOperation()) && !present) {
+                    pending.add(change);
+                    uploads++;
+                } else if (PendingChanges.DELETE.equals(change.getOperation()) && present) {
+                    pending.add(change);
+                    deletes++;
+                }
+            }
+        }
+        pendingChanges.replace(pending);
+        if (!pending.isEmpty()) {
+            System.out.println(uploads + " uploads and " + deletes + " deletes made from here are not in this inventory yet");
+        }
+    }
+
+    private static class Counts {
+        private long added;
+        private long removed;
+        private long resized;
+    }
+
+    /**
+     * One line of a delta file
+     */
+    public static class Delta {
+        private String change;
+        private String archiveId;
+        private String description;
+        private long size;
+        private Long previousSize;
+        private String creationDate;
+
+        public Delta() {
+            // required for deserialization
+        }
+
+        public Delta(final String change, final InventoryArchive archive, final long previousSize) {
+            this.change = change;
+            this.archiveId = archive.getArchiveId();
+            this.description = archive.getDescription();
+            this.size = archive.getSize();
+            this.previousSize = RESIZED.equals(change) ? previousSize : null;
+            this.creationDate = archive.getCreationDate();
+        }
+
+        /**
+         * @return {@link #ADDED}, {@link #REMOVED} or {@link #RESIZED}
+         */
+        public String getChange() {
+            return change;
+        }
+
+        public String getArchiveId() {
+            return archiveId;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return size before a resize, otherwise null
+         */
+        public Long getPreviousSize() {
+            return previousSize;
+        }
+
+        public String getCreationDate() {
+            return creationDate;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.rdas.glacier;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.rdas.common.ContentChunker;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Local index of the chunks stored in a vault by chunked backups: for every chunk hash, the pack archive holding the
+ * chunk and where in it.
+ * <p>
+ * Chunks are appended to a binary file of fixed-size records once their pack archive exists, and the packs to a
+ * JSON-lines file. The index is held in memory as primitive arrays behind an open-addressing table, so a lookup
+ * allocates nothing.
+ */
+public class ChunkIndex {
+
+    private static final int RECORD_SIZE = ContentChunker.HASH_SIZE + 4 + 8 + 4;
+    private static final Gson GSON = new Gson();
+
+    private final File chunksFile;
+    private final File packsFile;
+    private final List<Pack> packs = new ArrayList<>();
+    // where the intact part of each file ends; anything after it is cut off before the next append
+    private long packsLength;
+    private long chunksLength;
+
+    private byte[] hashes = new byte[1024 * ContentChunker.HASH_SIZE];
+    private int[] chunkPacks = new int[1024];
+    private long[] offsets = new long[1024];
+    private int[] lengths = new int[1024];
+    private int count;
+    private int[] table = new int[2048];
+
+    private ChunkIndex(final File chunksFile, final File packsFile) {
+        this.chunksFile = chunksFile;
+        this.packsFile = packsFile;
+    }
+
+    /**
+     * Load the chunk index of a vault
+     *
+     * @param vaultName the vault
+     * @return the index
+     * @throws IOException the index could not be read
+     */
+    public static ChunkIndex forVault(final String vaultName) throws IOException {
+        final ChunkIndex index = new ChunkIndex(new File(vaultName + "_chunks.idx"), new File(vaultName + "_chunk_packs.jsonl"));
+        index.load();
+        return index;
+    }
+
+    private void load() throws IOException {
+        if (packsFile.isFile()) {
+            final byte[] content = Files.readAllBytes(packsFile.toPath());
+            int start = 0;
+            for (int end = indexOf(content, '\n', start); end >= 0; end = indexOf(content, '\n', start)) {
+                final String line = new String(content, start, end - start, StandardCharsets.UTF_8);
+                if (!line.isEmpty()) {
+                    final Pack pack;
+                    try {
+                        pack = GSON.fromJson(line, Pack.class);
+                    } catch (final JsonSyntaxException e) {
+                        // a torn write; it and anything after it are cut off before the next pack is added
+                        break;
+                    }
+                    packs.add(pack);
+                }
+                start = end + 1;
+            }
+            // a last line without its newline is torn too
+            packsLength = start;
+        }
+        if (!chunksFile.isFile()) {
+            return;
+        }
+        final byte[] record = new byte[RECORD_SIZE];
+        final ByteBuffer view = ByteBuffer.wrap(record);
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(chunksFile), 1 << 16))) {
+            // a torn record at the tail is ignored, and so are records of packs cut off above, which are the last ones
+            // since packs are recorded in order
+            for (long remaining = chunksFile.length(); remaining >= RECORD_SIZE; remaining -= RECORD_SIZE) {
+                in.readFully(record);
+                final int pack = view.getInt(ContentChunker.HASH_SIZE);
+                if (pack >= packs.size()) {
+                    break;
+                }
+                add(record, 0, pack, view.getLong(ContentChunker.HASH_SIZE + 4), view.getInt(ContentChunker.HASH_SIZE + 12));
+                chunksLength += RECORD_SIZE;
+            }
+        }
+    }
+
+    private static int indexOf(final byte[] content, final char c, final int from) {
+        for (int i = from; i < content.length; i++) {
+            if (content[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find a chunk
+     *
+     * @param hash   array holding the chunk hash
+     * @param offset position of the hash in the array
+     * @return the chunk's number in the index, or -1 if it is not stored
+     */
+    public int find(final byte[] hash, final int offset) {
+        final int mask = table.length - 1;
+        for (int slot = slotOf(hash, offset) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            final int chunk = table[slot] - 1;
+            if (equalHashes(hashes, chunk * ContentChunker.HASH_SIZE, hash, offset)) {
+                return chunk;
+            }
+        }
+        return -1;
+    }
+
+    public Pack pack(final int chunk) {
+        return packs.get(chunkPacks[chunk]);
+    }
+
+    /**
+     * @return position of the chunk in its pack archive
+     */
+    public long offset(final int chunk) {
+        return offsets[chunk];
+    }
+
+    public int length(final int chunk) {
+        return lengths[chunk];
+    }
+
+    /**
+     * Durably record a pack archive and the chunks in it
+     *
+     * @param pack       the pack archive
+     * @param hashes     array holding the chunk hashes
+     * @param hashOffset position of each chunk's hash in the array
+     * @param offsets    position of each chunk in the pack
+     * @param lengths    length of each chunk
+     * @throws IOException the index could not be written
+     */
+    public synchronized void addPack(final Pack pack, final byte[] hashes, final int[] hashOffset, final long[] offsets, final int[] lengths) throws IOException {
+        final int packNumber = packs.size();
+        final ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * lengths.length);
+        for (int i = 0; i < lengths.length; i++) {
+            records.put(hashes, hashOffset[i], ContentChunker.HASH_SIZE).putInt(packNumber).putLong(offsets[i]).putInt(lengths[i]);
+        }
+        // the pack first, so that chunk records never point at a pack that is not recorded
+        final byte[] line = (GSON.toJson(pack) + "\n").getBytes(StandardCharsets.UTF_8);
+        try (final RandomAccessFile out = new RandomAccessFile(packsFile, "rw")) {
+            // drop a torn line left by an earlier crash, so that the new pack is read back under its number
+            out.setLength(packsLength);
+            out.seek(packsLength);
+            out.write(line);
+            out.getFD().sync();
+        }
+        packsLength += line.length;
+        try (final RandomAccessFile out = new RandomAccessFile(chunksFile, "rw")) {
+            // drop a torn record, and records of packs that were dropped, left by an earlier crash
+            out.setLength(chunksLength);
+            out.seek(chunksLength);
+            out.write(records.array());
+            out.getFD().sync();
+        }
+        chunksLength += records.capacity();
+        packs.add(pack);
+        for (int i = 0; i < lengths.length; i++) {
+            if (find(hashes, hashOffset[i]) < 0) {
+                add(hashes, hashOffset[i], packNumber, offsets[i], lengths[i]);
+            }
+        }
+    }
+
+    private void add(final byte[] hash, final int hashOffset, final int pack, final long offset, final int length) {
+        if (count == lengths.length) {
+            final int capacity = count * 2;
+            hashes = Arrays.copyOf(hashes, capacity * ContentChunker.HASH_SIZE);
+            chunkPacks = Arrays.copyOf(chunkPacks, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        System.arraycopy(hash, hashOffset, hashes, count * ContentChunker.HASH_SIZE, ContentChunker.HASH_SIZE);
+        chunkPacks[count] = pack;
+        offsets[count] = offset;
+        lengths[count] = length;
+        count++;
+        if (count * 2 > table.length) {
+            rehash();
+        } else {
+            insert(count - 1);
+        }
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        for (int chunk = 0; chunk < count; chunk++) {
+            insert(chunk);
+        }
+    }
+
+    private void insert(final int chunk) {
+        final int mask = table.length - 1;
+        int slot = slotOf(hashes, chunk * ContentChunker.HASH_SIZE) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = chunk + 1;
+    }
+
+    /**
+     * SHA-256 output is uniformly distributed, so its first bytes serve as the slot
+     */
+    private static int slotOf(final byte[] hash, final int offset) {
+        return (hash[offset] & 0xFF) << 24 | (hash[offset + 1] & 0xFF) << 16 | (hash[offset + 2] & 0xFF) << 8 | (hash[offset + 3] & 0xFF);
+    }
+
+    private static boolean equalHashes(final byte[] a, final int aOffset, final byte[] b, final int bOffset) {
+        for (int i = 0; i < ContentChunker.HASH_SIZE; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * An archive of chunks
+     */
+    public static class Pack {
+        private String archiveId;
+        private String description;
+        private long size;
+
+        public Pack() {
+            // required for deserialization
+        }
+
+        public Pack(final String archiveId, final String description, final long size) {
+            this.archiveId = archiveId;
+            this.description = description;
+            this.size = size;
+        }
+
+        public String getArchiveId() {
+            return archiveId;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * @return size of the archive as stored, which for an encoded pack is its encoded size
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.rdas.glacier;
+
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.util.BinaryUtils;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.rdas.common.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Versioned backups that only store what changed. A file is split into content-defined chunks, chunks the vault
+ * does not hold yet are packed into large archives, and a manifest records how to put the file back together.
+ * The manifest is written locally and uploaded as an archive of its own.
+ * <p>
+ * With compression or encryption enabled, packs and the manifest are encoded as a whole. Chunk offsets are then
+ * offsets within the decoded pack, and an encoded pack is always retrieved whole, since frames cannot be decoded out
+ * of context.
+ */
+public class ChunkedBackup {
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private final String vaultName;
+    private final AmazonGlacier glacierClient;
+    private final Credentials creds;
+    private final TransferOptions options;
+    private final ContentChunker chunker = ContentChunker.defaults();
+
+    public ChunkedBackup(final String vaultName, final Credentials creds, final TransferOptions options) {
+        this.vaultName = vaultName;
+        this.glacierClient = GlacierClients.shared().glacier(creds);
+        this.creds = creds;
+        this.options = options;
+    }
+
+    /**
+     * Back up a new version of a file
+     *
+     * @param file the file
+     * @return the manifest of the backup
+     * @throws IOException          the file could not be read, or the index or manifest could not be written
+     * @throws InterruptedException interrupted while chunking or uploading
+     */
+    public File backup(final File file) throws IOException, InterruptedException {
+        final ChunkIndex index = ChunkIndex.forVault(vaultName);
+        final ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long start = System.currentTimeMillis();
+            final ContentChunker.Chunks chunks = chunker.chunk(channel, workers);
+            final double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+            System.out.printf("Chunked %d MB into %d chunks in %.1f s (%.1f MB/s)%n",
+                    channel.size() / TransferOptions.MB, chunks.count(), seconds, channel.size() / TransferOptions.MB / seconds);
+
+            final List<List<Integer>> packs = planPacks(index, chunks);
+            long newBytes = 0;
+            for (final List<Integer> pack : packs) {
+                for (final int chunk : pack) {
+                    newBytes += chunks.length(chunk);
+                }
+            }
+            System.out.println((channel.size() - newBytes) / TransferOptions.MB + " MB already stored. Uploading " + newBytes / TransferOptions.MB
+                    + " MB of new chunks in " + packs.size() + " packs");
+            for (int i = 0; i < packs.size(); i++) {
+                uploadPack(index, file, channel, chunks, packs.get(i), "pack " + (i + 1) + "/" + packs.size());
+            }
+
+            final File manifestFile = writeManifest(index, file, channel.size(), chunks);
+            System.out.println("Uploading manifest " + manifestFile);
+            final String manifestId;
+            final ArchiveEncoding encoding = ArchiveEncoding.fromOptions(options);
+            if (encoding.isEnabled()) {
+                try (final FileChannel in = FileChannel.open(manifestFile.toPath(), StandardOpenOption.READ);
+                     final EncodingChannel encoded = encoding.encode(in)) {
+                    manifestId = new MultipartUploader(glacierClient, options).upload(vaultName,
+                            Utilities.generateArchiveDescription(manifestFile, encoding.getName()), encoded, new Utilities.ProgressLogger(-1));
+                }
+            } else {
+                manifestId = new MultipartUploader(glacierClient, options).upload(vaultName, Utilities.generateArchiveDescription(manifestFile),
+                        manifestFile, new Utilities.ProgressLogger(manifestFile.length()));
+            }
+            System.out.println("Manifest archive ID is " + manifestId);
+            return manifestFile;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Group the chunks the vault does not have into packs of about the configured pack size. A chunk that occurs
+     * more than once is only packed once.
+     */
+    private List<List<Integer>> planPacks(final ChunkIndex index, final ContentChunker.Chunks chunks) {
+        final List<List<Integer>> packs = new ArrayList<>();
+        final Set<String> packed = new HashSet<>();
+        List<Integer> current = new ArrayList<>();
+        long currentSize = 0;
+        for (int i = 0; i < chunks.count(); i++) {
+            if (index.find(chunks.hashes(), chunks.hashOffset(i)) >= 0 || !packed.add(hex(chunks, i))) {
+                continue;
+            }
+            if (currentSize + chunks.length(i) > options.getPackSizeBytes() && !current.isEmpty()) {
+                packs.add(current);
+                current = new ArrayList<>();
+                currentSize = 0;
+            }
+            current.add(i);
+            currentSize += chunks.length(i);
+        }
+        if (!current.isEmpty()) {
+            packs.add(current);
+        }
+        return packs;
+    }
+
+    private void uploadPack(final ChunkIndex index, final File file, final FileChannel channel, final ContentChunker.Chunks chunks,
+                            final List<Integer> pack, final String label) throws IOException, InterruptedException {
+        final long[] fileOffsets = new long[pack.size()];
+        final int[] lengths = new int[pack.size()];
+        final int[] hashOffsets = new int[pack.size()];
+        for (int i = 0; i < pack.size(); i++) {
+            fileOffsets[i] = chunks.start(pack.get(i));
+            lengths[i] = chunks.length(pack.get(i));
+            hashOffsets[i] = chunks.hashOffset(pack.get(i));
+        }
+        final FileRangesArchiveSource source = new FileRangesArchiveSource(channel, fileOffsets, lengths);
+        final long[] packOffsets = new long[pack.size()];
+        for (int i = 0; i < pack.size(); i++) {
+            packOffsets[i] = source.offsetOf(i);
+        }
+        final String firstChunk = hex(chunks, pack.get(0));
+        final ArchiveEncoding encoding = ArchiveEncoding.fromOptions(options);
+        final String archiveId;
+        final long archiveSize;
+        final String description;
+        if (encoding.isEnabled()) {
+            description = Utilities.withEncoding(Utilities.generateChunkPackDescription(file, firstChunk), encoding.getName());
+            try (final EncodingChannel encoded = encoding.encode(source.channel())) {
+                archiveId = new MultipartUploader(glacierClient, options).upload(vaultName, description, encoded,
+                        new Utilities.ProgressLogger(label, -1));
+                archiveSize = encoded.getEncodedBytes();
+            }
+        } else {
+            description = Utilities.generateChunkPackDescription(file, firstChunk);
+            archiveId = new MultipartUploader(glacierClient, options).upload(vaultName, description, source,
+                    new File("upload_chunks_" + firstChunk.substring(0, 16) + ".jsonl"), new Utilities.ProgressLogger(label, source.size()));
+            archiveSize = source.size();
+        }
+        index.addPack(new ChunkIndex.Pack(archiveId, description, archiveSize), chunks.hashes(), hashOffsets, packOffsets, lengths);
+    }
+
+    private File writeManifest(final ChunkIndex index, final File file, final long size, final ContentChunker.Chunks chunks) throws IOException {
+        final String createdAt = Instant.now().toString();
+        final BackupManifest manifest = new BackupManifest(vaultName, file.getPath(), size, createdAt);
+        final Map<String, Integer> packNumbers = new HashMap<>();
+        for (int i = 0; i < chunks.count(); i++) {
+            final int chunk = index.find(chunks.hashes(), chunks.hashOffset(i));
+            final ChunkIndex.Pack pack = index.pack(chunk);
+            Integer packNumber = packNumbers.get(pack.getArchiveId());
+            if (packNumber == null) {
+                packNumber = manifest.getPacks().size();
+                packNumbers.put(pack.getArchiveId(), packNumber);
+                manifest.getPacks().add(pack);
+            }
+            manifest.getChunks().add(new BackupManifest.ChunkRef(hex(chunks, i), packNumber, index.offset(chunk), index.length(chunk)));
+        }
+        final File manifestFile = new File(vaultName + "_backup_" + file.getName() + "_" + createdAt.replace(':', '.') + ".json");
+        try (final Writer out = Files.newBufferedWriter(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            GSON.toJson(manifest, out);
+        }
+        return manifestFile;
+    }
+
+    /**
+     * Rebuild a backed up file. Every pack the manifest needs is retrieved once, limited to the range that holds
+     * its chunks, and every chunk is verified against its hash.
+     *
+     * @param manifestFile the manifest of the backup
+     * @param target       where to write the file
+     * @throws IOException          the file could not be written, or a chunk is corrupt
+     * @throws InterruptedException interrupted while waiting for retrievals
+     */
+    public void restore(final File manifestFile, final File target) throws IOException, InterruptedException {
+        final BackupManifest manifest;
+        try (final Reader in = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            manifest = GSON.fromJson(in, BackupManifest.class);
+        }
+        final int packCount = manifest.getPacks().size();
+        final long[] spanStart = new long[packCount];
+        final long[] spanEnd = new long[packCount];
+        Arrays.fill(spanStart, Long.MAX_VALUE);
+        for (final BackupManifest.ChunkRef chunk : manifest.getChunks()) {
+            spanStart[chunk.getPack()] = Math.min(spanStart[chunk.getPack()], chunk.getOffset());
+            spanEnd[chunk.getPack()] = Math.max(spanEnd[chunk.getPack()], chunk.getOffset() + chunk.getLength());
+        }
+        for (int p = 0; p < packCount; p++) {
+            if (Utilities.encodingFromDescription(manifest.getPacks().get(p).getDescription()) != null) {
+                // the whole pack is retrieved and decoded, so chunks are read at their offsets in the decoded pack
+                spanStart[p] = 0;
+                spanEnd[p] = manifest.getPacks().get(p).getSize();
+            }
+        }
+        final List<ArchiveInfo> retrievals = new ArrayList<>();
+        final File[] packFiles = new File[packCount];
+        for (int p = 0; p < packCount; p++) {
+            final ChunkIndex.Pack pack = manifest.getPacks().get(p);
+            packFiles[p] = new File(target.getPath() + ".pack" + p);
+            // the pack's own description decides whether it is decoded, never its content
+            final ArchiveInfo archive = ArchiveInfo.ofRemote(vaultName, pack.getArchiveId(), packFiles[p], String.valueOf(pack.getSize()))
+                    .withDescription(pack.getDescription());
+            retrievals.add(spanStart[p] == 0 && spanEnd[p] == pack.getSize() ? archive : archive.withByteRange(new ByteRange(spanStart[p], spanEnd[p] - spanStart[p])));
+        }
+        System.out.println("Retrieving " + packCount + " packs to rebuild " + manifest.getSource() + " (" + manifest.getSize() / TransferOptions.MB + " MB)");
+        new GlacierBatchDownload(vaultName, retrievals, creds, options).downloadAll();
+
+        final MessageDigest sha256 = sha256();
+        try (final RandomAccessFile out = new RandomAccessFile(target, "rw")) {
+            out.setLength(manifest.getSize());
+            final FileChannel targetChannel = out.getChannel();
+            final FileChannel[] packChannels = new FileChannel[packCount];
+            try {
+                for (int p = 0; p < packCount; p++) {
+                    packChannels[p] = FileChannel.open(packFiles[p].toPath(), StandardOpenOption.READ);
+                }
+                ByteBuffer buffer = ByteBuffer.allocateDirect(chunker.getAvgSize() * 4);
+                long position = 0;
+                for (final BackupManifest.ChunkRef chunk : manifest.getChunks()) {
+                    if (buffer.capacity() < chunk.getLength()) {
+                        buffer = ByteBuffer.allocateDirect(chunk.getLength());
+                    }
+                    buffer.clear().limit(chunk.getLength());
+                    readFully(packChannels[chunk.getPack()], buffer, chunk.getOffset() - spanStart[chunk.getPack()]);
+                    buffer.flip();
+                    sha256.update(buffer.duplicate());
+                    if (!BinaryUtils.toHex(sha256.digest()).equals(chunk.getHash())) {
+                        throw new IOException("Chunk " + chunk.getHash() + " of pack " + manifest.getPacks().get(chunk.getPack()).getArchiveId() + " is corrupt");
+                    }
+                    while (buffer.hasRemaining()) {
+                        position += targetChannel.write(buffer, position);
+                    }
+                }
+                targetChannel.force(true);
+            } finally {
+                for (final FileChannel packChannel : packChannels) {
+                    if (packChannel != null) {
+                        packChannel.close();
+                    }
+                }
+            }
+        }
+        for (final File packFile : packFiles) {
+            Files.deleteIfExists(packFile.toPath());
+        }
+        System.out.println("Restored " + manifest.getSource() + " to " + target);
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long filePosition = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, filePosition);
+            if (read < 0) {
+                throw new EOFException("Retrieved pack is shorter than its manifest says");
+            }
+            filePosition += read;
+        }
+    }
+
+    private static String hex(final ContentChunker.Chunks chunks, final int chunk) {
+        return BinaryUtils.toHex(Arrays.copyOfRange(chunks.hashes(), chunks.hashOffset(chunk), chunks.hashOffset(chunk) + ContentChunker.HASH_SIZE));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
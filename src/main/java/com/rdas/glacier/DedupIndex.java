@@ -0,0 +1,102 @@
+package com.rdas.glacier;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds archives of a vault by content, so that a file identical to an existing archive need not be uploaded again.
+ * <p>
+ * Content is identified by SHA-256 tree hash and size. Archives the inventory knows are found through the tree hash
+ * index of the {@link ArchiveCatalog}, a binary search over mapped memory that stays fast for tens of millions of
+ * archives. Uploads since the last inventory are found in {@link PendingChanges}, which is read again whenever it
+ * changes so that a batch sees its own uploads.
+ */
+public class DedupIndex implements Closeable {
+
+    private final String vaultName;
+    private final ArchiveCatalog catalog;
+    private final Map<String, PendingChanges.Change> uploads = new HashMap<>();
+    private final Set<String> deleted = new HashSet<>();
+    private long pendingModified = -1;
+    private long pendingLength = -1;
+
+    private DedupIndex(final String vaultName, final ArchiveCatalog catalog) {
+        this.vaultName = vaultName;
+        this.catalog = catalog;
+    }
+
+    /**
+     * Open the index of a vault. Without a catalog, only uploads made from here are found.
+     *
+     * @param vaultName the vault
+     * @return the index
+     * @throws IOException the catalog could not be opened
+     */
+    public static DedupIndex forVault(final String vaultName) throws IOException {
+        final File directory = ArchiveCatalog.directoryFor(vaultName);
+        if (!directory.isDirectory()) {
+            System.out.println("No catalog of vault " + vaultName + ". Only uploads made from here are checked for duplicates");
+            return new DedupIndex(vaultName, null);
+        }
+        return new DedupIndex(vaultName, ArchiveCatalog.open(directory));
+    }
+
+    /**
+     * Find an archive with the given content
+     *
+     * @param treeHash SHA-256 tree hash of the content, in hex
+     * @param size     size of the content in bytes
+     * @return ID of a matching archive, or null if there is none
+     * @throws IOException the pending changes could not be read
+     */
+    public synchronized String find(final String treeHash, final long size) throws IOException {
+        refreshPending();
+        final PendingChanges.Change upload = uploads.get(treeHash);
+        if (upload != null && upload.getSize() == size) {
+            return upload.getArchiveId();
+        }
+        if (catalog == null) {
+            return null;
+        }
+        final String[] found = new String[1];
+        catalog.prefix(ArchiveCatalog.Index.TREE_HASH, treeHash, archive -> {
+            if (found[0] == null && archive.getSize() == size && !deleted.contains(archive.getArchiveId())) {
+                found[0] = archive.getArchiveId();
+            }
+        });
+        return found[0];
+    }
+
+    private void refreshPending() throws IOException {
+        final PendingChanges pendingChanges = PendingChanges.forVault(vaultName);
+        final long modified = pendingChanges.getFile().lastModified();
+        final long length = pendingChanges.getFile().length();
+        if (modified == pendingModified && length == pendingLength) {
+            return;
+        }
+        uploads.clear();
+        deleted.clear();
+        for (final PendingChanges.Change change : pendingChanges.changes()) {
+            if (PendingChanges.DELETE.equals(change.getOperation())) {
+                deleted.add(change.getArchiveId());
+                uploads.values().removeIf(upload -> upload.getArchiveId().equals(change.getArchiveId()));
+            } else if (change.getTreeHash() != null) {
+                uploads.put(change.getTreeHash(), change);
+            }
+        }
+        pendingModified = modified;
+        pendingLength = length;
+    }
+
+    @Override
+    public void close() {
+        if (catalog != null) {
+            catalog.close();
+        }
+    }
+}
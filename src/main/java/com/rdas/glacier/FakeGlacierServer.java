@@ -0,0 +1,869 @@
+package com.rdas.glacier;
+
+import com.amazonaws.util.BinaryUtils;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import com.rdas.common.TransferOptions;
+import com.rdas.common.TreeHash;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local stand-in for Glacier, speaking the parts of its REST API that glacierman uses: multipart and single
+ * uploads, archive deletion, archive and inventory retrieval jobs, ranged job output, ListJobs and ListParts. Point
+ * glacierman at it with <code>-Dglacierman.endpoint=http://localhost:&lt;port&gt;</code> to run transfers offline,
+ * reproducibly and for free.
+ * <p>
+ * Archives are kept as files in a directory; vaults, uploads and jobs only live in memory. Tree hashes are checked
+ * like Glacier checks them. Every request can be delayed by a fixed latency, bodies share a bandwidth cap, and a
+ * fraction of requests can be throttled, fail, or have their output cut short, to exercise retries and the
+ * {@link TransferGovernor}. Jobs complete after their tier's usual latency, scaled down. Request signatures are not
+ * checked, and there are no vault notifications.
+ */
+public class FakeGlacierServer implements Closeable {
+
+    private static final Gson GSON = new Gson();
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_LIST_LIMIT = 50;
+
+    private final File directory;
+    private final Settings settings;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final TransferGovernor.TokenBucket bandwidth;
+    private final Map<String, Vault> vaults = new ConcurrentHashMap<>();
+
+    /**
+     * @param port      port to listen on, 0 for any free port
+     * @param directory where archives are stored
+     * @param settings  latencies and failures to simulate
+     * @throws IOException the port could not be bound
+     */
+    public FakeGlacierServer(final int port, final File directory, final Settings settings) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        this.directory = directory;
+        this.settings = settings;
+        this.bandwidth = settings.getMbPerSecond() > 0 ? new TransferGovernor.TokenBucket(settings.getMbPerSecond() * (double) TransferOptions.MB) : null;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.handlers = Executors.newCachedThreadPool();
+        server.createContext("/", this::handle);
+        server.setExecutor(handlers);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            if (settings.getLatencyMillis() > 0) {
+                TimeUnit.MILLISECONDS.sleep(settings.getLatencyMillis());
+            }
+            final double dice = ThreadLocalRandom.current().nextDouble();
+            if (dice < settings.getThrottleRate()) {
+                throw new GlacierError(400, "ThrottlingException", "Rate exceeded (injected)");
+            }
+            if (dice < settings.getThrottleRate() + settings.getFailureRate()) {
+                throw new GlacierError(500, "ServiceUnavailableException", "Service unavailable (injected)");
+            }
+            route(exchange);
+        } catch (final GlacierError e) {
+            sendError(exchange, e.status, e.code, e.getMessage());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendError(exchange, 500, "ServiceUnavailableException", "Shutting down");
+        } catch (final RuntimeException e) {
+            sendError(exchange, 500, "InternalFailure", String.valueOf(e));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Dispatch on paths of the form <code>/&lt;account&gt;/vaults/&lt;vault&gt;/&lt;resource&gt;[/&lt;id&gt;[/output]]</code>
+     */
+    private void route(final HttpExchange exchange) throws IOException, InterruptedException {
+        final String[] path = exchange.getRequestURI().getPath().split("/");
+        if (path.length < 5 || !"vaults".equals(path[2])) {
+            throw new GlacierError(400, "InvalidParameterValueException", "Not supported by the fake: " + exchange.getRequestURI());
+        }
+        final Vault vault = vaults.computeIfAbsent(path[3], Vault::new);
+        final String method = exchange.getRequestMethod();
+        final String resource = path[4];
+        final String id = path.length > 5 ? path[5] : null;
+        switch (resource + " " + method + (id == null ? "" : " id") + (path.length > 6 ? " " + path[6] : "")) {
+            case "multipart-uploads POST":
+                initiateUpload(exchange, vault);
+                break;
+            case "multipart-uploads PUT id":
+                uploadPart(exchange, vault.upload(id));
+                break;
+            case "multipart-uploads POST id":
+                completeUpload(exchange, vault, vault.upload(id));
+                break;
+            case "multipart-uploads DELETE id":
+                vault.uploads.remove(vault.upload(id).id).delete();
+                send(exchange, 204, null);
+                break;
+            case "multipart-uploads GET id":
+                listParts(exchange, vault, vault.upload(id));
+                break;
+            case "archives POST":
+                uploadArchive(exchange, vault);
+                break;
+            case "archives DELETE id":
+                deleteArchive(exchange, vault, id);
+                break;
+            case "jobs POST":
+                initiateJob(exchange, vault);
+                break;
+            case "jobs GET":
+                listJobs(exchange, vault);
+                break;
+            case "jobs GET id":
+                sendJson(exchange, 200, vault.job(id).describe());
+                break;
+            case "jobs GET id output":
+                jobOutput(exchange, vault.job(id));
+                break;
+            default:
+                throw new GlacierError(404, "ResourceNotFoundException", "Not supported by the fake: " + method + " " + exchange.getRequestURI());
+        }
+    }
+
+    private void initiateUpload(final HttpExchange exchange, final Vault vault) throws IOException {
+        final long partSize = Long.parseLong(header(exchange, "x-amz-part-size"));
+        if (partSize % TransferOptions.MB != 0 || Long.bitCount(partSize / TransferOptions.MB) != 1 || partSize > 4096 * TransferOptions.MB) {
+            throw new GlacierError(400, "InvalidParameterValueException", "Invalid part size: " + partSize);
+        }
+        final Upload upload = new Upload(newId(), exchange.getRequestHeaders().getFirst("x-amz-archive-description"), partSize, new File(vault.directory, "upload-" + System.nanoTime()));
+        vault.uploads.put(upload.id, upload);
+        exchange.getResponseHeaders().set("Location", vault.path() + "/multipart-uploads/" + upload.id);
+        exchange.getResponseHeaders().set("x-amz-multipart-upload-id", upload.id);
+        send(exchange, 201, null);
+    }
+
+    private void uploadPart(final HttpExchange exchange, final Upload upload) throws IOException, InterruptedException {
+        // Content-Range: bytes <first>-<last>/*
+        final String[] range = header(exchange, "Content-Range").replaceFirst("^bytes ", "").replaceFirst("/.*$", "").split("-");
+        final long start = Long.parseLong(range[0]);
+        final long length = Long.parseLong(range[1]) - start + 1;
+        if (start % upload.partSize != 0 || length > upload.partSize || length <= 0) {
+            throw new GlacierError(400, "InvalidParameterValueException", "Invalid range for part size " + upload.partSize + ": " + start + "+" + length);
+        }
+        final String treeHash = receive(exchange, upload.file, start, length);
+        if (!treeHash.equals(header(exchange, "x-amz-sha256-tree-hash"))) {
+            throw new GlacierError(400, "InvalidParameterValueException", "Checksum mismatch: computed " + treeHash);
+        }
+        upload.parts.put(start, new Part(start + length - 1, treeHash));
+        exchange.getResponseHeaders().set("x-amz-sha256-tree-hash", treeHash);
+        send(exchange, 204, null);
+    }
+
+    private void completeUpload(final HttpExchange exchange, final Vault vault, final Upload upload) throws IOException {
+        final long size = Long.parseLong(header(exchange, "x-amz-archive-size"));
+        final List<byte[]> hashes = new ArrayList<>();
+        long next = 0;
+        for (final Map.Entry<Long, Part> part : upload.parts.entrySet()) {
+            if (part.getKey() != next) {
+                throw new GlacierError(400, "InvalidParameterValueException", "Missing part at " + next);
+            }
+            hashes.add(BinaryUtils.fromHex(part.getValue().treeHash));
+            next = part.getValue().end + 1;
+        }
+        if (next != size) {
+            throw new GlacierError(400, "InvalidParameterValueException", "Parts cover " + next + " bytes, not " + size);
+        }
+        final String treeHash = BinaryUtils.toHex(TreeHash.combine(hashes));
+        if (!treeHash.equals(header(exchange, "x-amz-sha256-tree-hash"))) {
+            throw new GlacierError(400, "InvalidParameterValueException", "Checksum mismatch: computed " + treeHash);
+        }
+        vault.uploads.remove(upload.id);
+        sendArchive(exchange, vault, vault.store(upload.description, size, treeHash, upload.file));
+    }
+
+    private void uploadArchive(final HttpExchange exchange, final Vault vault) throws IOException, InterruptedException {
+        final long size = Long.parseLong(header(exchange, "Content-Length"));
+        final File file = new File(vault.directory, "upload-" + System.nanoTime());
+        final String treeHash = receive(exchange, file, 0, size);
+        if (!treeHash.equals(header(exchange, "x-amz-sha256-tree-hash"))) {
+            Files.deleteIfExists(file.toPath());
+            throw new GlacierError(400, "InvalidParameterValueException", "Checksum mismatch: computed " + treeHash);
+        }
+        sendArchive(exchange, vault, vault.store(exchange.getRequestHeaders().getFirst("x-amz-archive-description"), size, treeHash, file));
+    }
+
+    private void sendArchive(final HttpExchange exchange, final Vault vault, final Archive archive) throws IOException {
+        exchange.getResponseHeaders().set("Location", vault.path() + "/archives/" + archive.id);
+        exchange.getResponseHeaders().set("x-amz-archive-id", archive.id);
+        exchange.getResponseHeaders().set("x-amz-sha256-tree-hash", archive.treeHash);
+        send(exchange, 201, null);
+    }
+
+    private void deleteArchive(final HttpExchange exchange, final Vault vault, final String archiveId) throws IOException {
+        final Archive archive = vault.archives.remove(archiveId);
+        if (archive == null) {
+            throw new GlacierError(404, "ResourceNotFoundException", "Archive not found: " + archiveId);
+        }
+        Files.deleteIfExists(archive.file.toPath());
+        send(exchange, 204, null);
+    }
+
+    private void listParts(final HttpExchange exchange, final Vault vault, final Upload upload) throws IOException {
+        final Map<String, String> query = query(exchange);
+        final List<Map.Entry<Long, Part>> parts = new ArrayList<>(upload.parts.entrySet());
+        final int from = query.containsKey("marker") ? Integer.parseInt(query.get("marker")) : 0;
+        final int to = Math.min(parts.size(), from + (query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_LIST_LIMIT));
+        final List<Map<String, Object>> list = new ArrayList<>();
+        for (final Map.Entry<Long, Part> part : parts.subList(Math.min(from, to), to)) {
+            final Map<String, Object> element = new LinkedHashMap<>();
+            element.put("RangeInBytes", part.getKey() + "-" + part.getValue().end);
+            element.put("SHA256TreeHash", part.getValue().treeHash);
+            list.add(element);
+        }
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("ArchiveDescription", upload.description);
+        result.put("CreationDate", upload.creationDate.toString());
+        result.put("Marker", to < parts.size() ? String.valueOf(to) : null);
+        result.put("MultipartUploadId", upload.id);
+        result.put("PartSizeInBytes", upload.partSize);
+        result.put("Parts", list);
+        result.put("VaultARN", vault.arn);
+        sendJson(exchange, 200, result);
+    }
+
+    private void initiateJob(final HttpExchange exchange, final Vault vault) throws IOException {
+        final JsonObject parameters;
+        try (final Reader in = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            parameters = GSON.fromJson(in, JsonObject.class);
+        }
+        final String type = string(parameters, "Type");
+        final String tier = string(parameters, "Tier") == null ? RetrievalTier.STANDARD.getTierName() : string(parameters, "Tier");
+        final Job job;
+        if ("archive-retrieval".equals(type)) {
+            final Archive archive = vault.archives.get(string(parameters, "ArchiveId"));
+            if (archive == null) {
+                throw new GlacierError(404, "ResourceNotFoundException", "Archive not found: " + string(parameters, "ArchiveId"));
+            }
+            final String byteRange = string(parameters, "RetrievalByteRange");
+            long start = 0;
+            long end = archive.size - 1;
+            if (byteRange != null) {
+                start = Long.parseLong(byteRange.split("-")[0]);
+                end = Long.parseLong(byteRange.split("-")[1]);
+                if (start % TransferOptions.MB != 0 || ((end + 1) % TransferOptions.MB != 0 && end != archive.size - 1) || end >= archive.size || start > end) {
+                    throw new GlacierError(400, "InvalidParameterValueException", "Invalid retrieval range " + byteRange);
+                }
+            }
+            job = new Job(newId(), archive, start, end, tier, parameters, completionTime(tier));
+        } else if ("inventory-retrieval".equals(type)) {
+            job = new Job(newId(), null, 0, -1, tier, parameters, completionTime(tier));
+        } else {
+            throw new GlacierError(400, "InvalidParameterValueException", "Unsupported job type " + type);
+        }
+        job.vault = vault;
+        vault.jobs.put(job.id, job);
+        exchange.getResponseHeaders().set("Location", vault.path() + "/jobs/" + job.id);
+        exchange.getResponseHeaders().set("x-amz-job-id", job.id);
+        send(exchange, 202, null);
+    }
+
+    /**
+     * Jobs take their tier's usual time, scaled, unless the settings fix their delay
+     */
+    private Instant completionTime(final String tierName) {
+        if (settings.getJobDelaySeconds() >= 0) {
+            return Instant.now().plusSeconds(settings.getJobDelaySeconds());
+        }
+        final RetrievalTier tier = RetrievalTier.of(tierName);
+        final long latency = (tier.getMinLatencyMillis() + tier.getMaxLatencyMillis()) / 2;
+        return Instant.now().plusMillis((long) (latency * settings.getTimeScale()));
+    }
+
+    private void listJobs(final HttpExchange exchange, final Vault vault) throws IOException {
+        final Map<String, String> query = query(exchange);
+        final List<Job> jobs;
+        // jobs are added concurrently, and iterating a synchronized map needs its lock
+        synchronized (vault.jobs) {
+            jobs = new ArrayList<>(vault.jobs.values());
+        }
+        final List<Map<String, Object>> matching = new ArrayList<>();
+        for (final Job job : jobs) {
+            final Map<String, Object> description = job.describe();
+            if ((!query.containsKey("completed") || query.get("completed").equals(String.valueOf(description.get("Completed"))))
+                    && (!query.containsKey("statuscode") || query.get("statuscode").equals(description.get("StatusCode")))) {
+                matching.add(description);
+            }
+        }
+        final int from = query.containsKey("marker") ? Integer.parseInt(query.get("marker")) : 0;
+        final int to = Math.min(matching.size(), from + (query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_LIST_LIMIT));
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("JobList", matching.subList(Math.min(from, to), to));
+        result.put("Marker", to < matching.size() ? String.valueOf(to) : null);
+        sendJson(exchange, 200, result);
+    }
+
+    private void jobOutput(final HttpExchange exchange, final Job job) throws IOException, InterruptedException {
+        if (!job.isCompleted()) {
+            throw new GlacierError(400, "InvalidParameterValueException", "The job is not currently available for download: " + job.id);
+        }
+        final File file = job.output();
+        // the output of a ranged retrieval is only the retrieved range
+        final long outputSize = job.archive == null ? file.length() : job.end - job.start + 1;
+        long start = 0;
+        long end = outputSize - 1;
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            final String[] bounds = range.replaceFirst("^bytes=", "").split("-");
+            start = Long.parseLong(bounds[0]);
+            end = bounds.length > 1 && !bounds[1].isEmpty() ? Math.min(Long.parseLong(bounds[1]), outputSize - 1) : outputSize - 1;
+            if (start >= outputSize || start > end) {
+                throw new GlacierError(416, "InvalidParameterValueException", "Range " + range + " is outside the job output of " + outputSize + " bytes");
+            }
+        }
+        final long offset = job.archive == null ? 0 : job.start;
+        final long length = end - start + 1;
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // like Glacier, only ranges on tree hash boundaries come with a checksum
+            if (start % TransferOptions.MB == 0 && ((end + 1) % TransferOptions.MB == 0 || end == outputSize - 1)) {
+                exchange.getResponseHeaders().set("x-amz-sha256-tree-hash", BinaryUtils.toHex(TreeHash.of(channel, offset + start, length)));
+            }
+            exchange.getResponseHeaders().set("Content-Type", job.archive == null ? "application/json" : "application/octet-stream");
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            if (range != null) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + outputSize);
+            }
+            exchange.sendResponseHeaders(range != null ? 206 : 200, length == 0 ? -1 : length);
+            // a cut short output leaves the client with fewer bytes than announced, like a dropped connection
+            final long sent = ThreadLocalRandom.current().nextDouble() < settings.getTruncateRate() ? length / 2 : length;
+            final OutputStream out = exchange.getResponseBody();
+            final ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            long position = 0;
+            while (position < sent) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), sent - position));
+                final int read = channel.read(buffer, offset + start + position);
+                if (read < 0) {
+                    break;
+                }
+                pace(read);
+                out.write(buffer.array(), 0, read);
+                position += read;
+            }
+        }
+    }
+
+    /**
+     * Read a request body into a file at an offset, tree hashing it on the way
+     *
+     * @return the tree hash
+     */
+    private String receive(final HttpExchange exchange, final File file, final long offset, final long length) throws IOException, InterruptedException {
+        final TreeHash treeHash = new TreeHash();
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (final InputStream in = exchange.getRequestBody();
+             final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = 0;
+            int read;
+            while (position < length && (read = in.read(buffer, 0, (int) Math.min(buffer.length, length - position))) > 0) {
+                pace(read);
+                treeHash.update(buffer, 0, read);
+                final ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                while (data.hasRemaining()) {
+                    channel.write(data, offset + position + data.position());
+                }
+                position += read;
+            }
+            if (position != length) {
+                throw new GlacierError(400, "InvalidParameterValueException", "Expected " + length + " bytes but got " + position);
+            }
+        }
+        return treeHash.digestHex();
+    }
+
+    private void pace(final int bytes) throws InterruptedException {
+        if (bandwidth != null) {
+            bandwidth.acquire(bytes);
+        }
+    }
+
+    private static String header(final HttpExchange exchange, final String name) {
+        final String value = exchange.getRequestHeaders().getFirst(name);
+        if (value == null) {
+            throw new GlacierError(400, "MissingParameterValueException", "Missing header " + name);
+        }
+        return value;
+    }
+
+    private static Map<String, String> query(final HttpExchange exchange) throws UnsupportedEncodingException {
+        final Map<String, String> query = new HashMap<>();
+        final String raw = exchange.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (final String pair : raw.split("&")) {
+                final int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    query.put(pair.substring(0, equals), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        return query;
+    }
+
+    private static String string(final JsonObject object, final String name) {
+        return object.has(name) && !object.get(name).isJsonNull() ? object.get(name).getAsString() : null;
+    }
+
+    private static String newId() {
+        final byte[] bytes = new byte[48];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static void send(final HttpExchange exchange, final int status, final byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body == null ? -1 : body.length);
+        if (body != null) {
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private static void sendJson(final HttpExchange exchange, final int status, final Object value) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        send(exchange, status, GSON.toJson(value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendError(final HttpExchange exchange, final int status, final String code, final String message) throws IOException {
+        // the body is read first, so that the client sees the error rather than a connection closed under its upload
+        try (final InputStream in = exchange.getRequestBody()) {
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        } catch (final IOException e) {
+            // the connection is already gone, and the error with it
+            return;
+        }
+        final Map<String, String> error = new LinkedHashMap<>();
+        error.put("code", code);
+        error.put("message", message);
+        error.put("type", status >= 500 ? "Server" : "Client");
+        exchange.getResponseHeaders().set("x-amzn-ErrorType", code);
+        exchange.getResponseHeaders().set("x-amzn-RequestId", newId());
+        sendJson(exchange, status, error);
+    }
+
+    /**
+     * Serve until the process is stopped
+     *
+     * @param port      port to listen on
+     * @param directory where archives are stored
+     * @throws IOException          the server could not be started
+     * @throws InterruptedException interrupted while serving
+     */
+    public static void serve(final int port, final File directory) throws IOException, InterruptedException {
+        final Settings settings = Settings.fromSystemProperties();
+        final FakeGlacierServer server = new FakeGlacierServer(port, directory, settings);
+        server.start();
+        System.out.println("Fake Glacier listening on http://localhost:" + server.getPort() + ", storing archives in " + directory.getAbsolutePath());
+        System.out.println("Latency " + settings.getLatencyMillis() + " ms, " + (settings.getMbPerSecond() > 0 ? settings.getMbPerSecond() + " MB/s" : "no bandwidth cap")
+                + ", throttling " + settings.getThrottleRate() + ", failures " + settings.getFailureRate() + ", truncated outputs " + settings.getTruncateRate());
+        Thread.currentThread().join();
+    }
+
+    private class Vault {
+        private final String name;
+        private final String arn;
+        private final File directory;
+        private final Map<String, Archive> archives = new ConcurrentHashMap<>();
+        private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+        private final Map<String, Job> jobs = Collections.synchronizedMap(new LinkedHashMap<>());
+
+        private Vault(final String name) {
+            this.name = name;
+            this.arn = "arn:aws:glacier:fake:000000000000:vaults/" + name;
+            this.directory = new File(FakeGlacierServer.this.directory, name);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new UncheckedIOException(new IOException("Could not create " + directory));
+            }
+        }
+
+        private String path() {
+            return "/-/vaults/" + name;
+        }
+
+        private Upload upload(final String id) {
+            final Upload upload = uploads.get(id);
+            if (upload == null) {
+                throw new GlacierError(404, "ResourceNotFoundException", "Multipart upload not found: " + id);
+            }
+            return upload;
+        }
+
+        private Job job(final String id) {
+            final Job job = jobs.get(id);
+            if (job == null) {
+                throw new GlacierError(404, "ResourceNotFoundException", "Job not found: " + id);
+            }
+            return job;
+        }
+
+        private Archive store(final String description, final long size, final String treeHash, final File content) throws IOException {
+            final String id = newId();
+            final File file = new File(directory, "archive-" + System.nanoTime());
+            Files.move(content.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            final Archive archive = new Archive(id, description == null ? "" : description, size, treeHash, file);
+            archives.put(id, archive);
+            return archive;
+        }
+
+        /**
+         * Write the vault's inventory, with as many made up archives added as the settings ask for
+         */
+        private void writeInventory(final File file) throws IOException {
+            try (final JsonWriter out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16))) {
+                out.beginObject();
+                out.name("VaultARN").value(arn);
+                out.name("InventoryDate").value(Instant.now().toString());
+                out.name("ArchiveList").beginArray();
+                for (final Archive archive : archives.values()) {
+                    writeArchive(out, archive.id, archive.description, archive.creationDate, archive.size, archive.treeHash);
+                }
+                final Random random = new Random(name.hashCode());
+                final byte[] hash = new byte[32];
+                for (int i = 0; i < settings.getInventoryArchives(); i++) {
+                    random.nextBytes(hash);
+                    writeArchive(out, "synthetic-" + i + "-" + BinaryUtils.toHex(hash), "Glacier backup of /synthetic/" + (i / 1000) + "/file-" + i,
+                            Instant.ofEpochSecond(1_500_000_000L + i * 60L), 1 + random.nextInt(Integer.MAX_VALUE), BinaryUtils.toHex(hash));
+                }
+                out.endArray();
+                out.endObject();
+            }
+        }
+
+        private void writeArchive(final JsonWriter out, final String id, final String description, final Instant creationDate, final long size,
+                                  final String treeHash) throws IOException {
+            out.beginObject();
+            out.name("ArchiveId").value(id);
+            out.name("ArchiveDescription").value(description);
+            out.name("CreationDate").value(creationDate.toString());
+            out.name("Size").value(size);
+            out.name("SHA256TreeHash").value(treeHash);
+            out.endObject();
+        }
+    }
+
+    private static class Archive {
+        private final String id;
+        private final String description;
+        private final Instant creationDate = Instant.now();
+        private final long size;
+        private final String treeHash;
+        private final File file;
+
+        private Archive(final String id, final String description, final long size, final String treeHash, final File file) {
+            this.id = id;
+            this.description = description;
+            this.size = size;
+            this.treeHash = treeHash;
+            this.file = file;
+        }
+    }
+
+    private static class Upload {
+        private final String id;
+        private final String description;
+        private final long partSize;
+        private final File file;
+        private final Instant creationDate = Instant.now();
+        private final Map<Long, Part> parts = new ConcurrentSkipListMap<>();
+
+        private Upload(final String id, final String description, final long partSize, final File file) {
+            this.id = id;
+            this.description = description;
+            this.partSize = partSize;
+            this.file = file;
+        }
+
+        private Upload delete() throws IOException {
+            Files.deleteIfExists(file.toPath());
+            return this;
+        }
+    }
+
+    private static class Part {
+        private final long end;
+        private final String treeHash;
+
+        private Part(final long end, final String treeHash) {
+            this.end = end;
+            this.treeHash = treeHash;
+        }
+    }
+
+    private static class Job {
+        private final String id;
+        private final Archive archive;
+        private final long start;
+        private final long end;
+        private final String tier;
+        private final JsonObject parameters;
+        private final Instant creationDate = Instant.now();
+        private final Instant completionDate;
+        private Vault vault;
+        private File inventory;
+        private String outputTreeHash;
+
+        private Job(final String id, final Archive archive, final long start, final long end, final String tier, final JsonObject parameters,
+                    final Instant completionDate) {
+            this.id = id;
+            this.archive = archive;
+            this.start = start;
+            this.end = end;
+            this.tier = tier;
+            this.parameters = parameters;
+            this.completionDate = completionDate;
+        }
+
+        private boolean isCompleted() {
+            return !Instant.now().isBefore(completionDate);
+        }
+
+        /**
+         * @return the file the job's output is read from; for an archive, the output starts at {@link #start}
+         */
+        private synchronized File output() throws IOException {
+            if (archive != null) {
+                if (!archive.file.exists()) {
+                    throw new GlacierError(404, "ResourceNotFoundException", "Archive was deleted: " + archive.id);
+                }
+                return archive.file;
+            }
+            if (inventory == null) {
+                inventory = new File(vault.directory, "inventory-" + System.nanoTime() + ".json");
+                vault.writeInventory(inventory);
+            }
+            return inventory;
+        }
+
+        private synchronized String outputTreeHash() throws IOException {
+            if (outputTreeHash == null) {
+                if (archive != null && start == 0 && end == archive.size - 1) {
+                    outputTreeHash = archive.treeHash;
+                } else {
+                    try (final FileChannel channel = FileChannel.open(output().toPath(), StandardOpenOption.READ)) {
+                        final long length = archive == null ? channel.size() : end - start + 1;
+                        outputTreeHash = BinaryUtils.toHex(TreeHash.of(channel, archive == null ? 0 : start, length));
+                    }
+                }
+            }
+            return outputTreeHash;
+        }
+
+        private Map<String, Object> describe() throws IOException {
+            final boolean completed = isCompleted();
+            final Map<String, Object> description = new LinkedHashMap<>();
+            description.put("Action", archive == null ? "InventoryRetrieval" : "ArchiveRetrieval");
+            description.put("ArchiveId", archive == null ? null : archive.id);
+            description.put("ArchiveSHA256TreeHash", archive == null ? null : archive.treeHash);
+            description.put("ArchiveSizeInBytes", archive == null ? null : archive.size);
+            description.put("Completed", completed);
+            description.put("CompletionDate", completed ? completionDate.toString() : null);
+            description.put("CreationDate", creationDate.toString());
+            description.put("InventorySizeInBytes", archive == null && completed ? output().length() : null);
+            description.put("JobDescription", string(parameters, "Description"));
+            description.put("JobId", id);
+            description.put("RetrievalByteRange", archive == null ? null : start + "-" + end);
+            description.put("SHA256TreeHash", completed ? outputTreeHash() : null);
+            description.put("SNSTopic", string(parameters, "SNSTopic"));
+            description.put("StatusCode", completed ? "Succeeded" : "InProgress");
+            description.put("StatusMessage", completed ? "Succeeded" : null);
+            description.put("Tier", tier);
+            description.put("VaultARN", vault.arn);
+            return description;
+        }
+    }
+
+    /**
+     * An error response, as Glacier sends them
+     */
+    private static class GlacierError extends RuntimeException {
+        private final int status;
+        private final String code;
+
+        private GlacierError(final int status, final String code, final String message) {
+            super(message);
+            this.status = status;
+            this.code = code;
+        }
+    }
+
+    /**
+     * What the fake simulates. Values are read from <code>glacierman.fake.*</code> system properties.
+     */
+    public static class Settings {
+        private int latencyMillis = 0;
+        private int mbPerSecond = 0;
+        private double throttleRate = 0;
+        private double failureRate = 0;
+        private double truncateRate = 0;
+        private double timeScale = 0.001;
+        private int jobDelaySeconds = -1;
+        private int inventoryArchives = 0;
+
+        public static Settings fromSystemProperties() {
+            final Settings defaults = new Settings();
+            return new Settings()
+                    .withLatencyMillis(Integer.getInteger("glacierman.fake.latencyMillis", defaults.latencyMillis))
+                    .withMbPerSecond(Integer.getInteger("glacierman.fake.mbPerSecond", defaults.mbPerSecond))
+                    .withThrottleRate(Double.parseDouble(System.getProperty("glacierman.fake.throttleRate", String.valueOf(defaults.throttleRate))))
+                    .withFailureRate(Double.parseDouble(System.getProperty("glacierman.fake.failureRate", String.valueOf(defaults.failureRate))))
+                    .withTruncateRate(Double.parseDouble(System.getProperty("glacierman.fake.truncateRate", String.valueOf(defaults.truncateRate))))
+                    .withTimeScale(Double.parseDouble(System.getProperty("glacierman.fake.timeScale", String.valueOf(defaults.timeScale))))
+                    .withJobDelaySeconds(Integer.getInteger("glacierman.fake.jobDelaySeconds", defaults.jobDelaySeconds))
+                    .withInventoryArchives(Integer.getInteger("glacierman.fake.inventoryArchives", defaults.inventoryArchives));
+        }
+
+        public int getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /**
+         * @param latencyMillis time every request waits before it is handled
+         * @return this
+         */
+        public Settings withLatencyMillis(final int latencyMillis) {
+            this.latencyMillis = Math.max(0, latencyMillis);
+            return this;
+        }
+
+        public int getMbPerSecond() {
+            return mbPerSecond;
+        }
+
+        /**
+         * @param mbPerSecond bandwidth shared by all request and response bodies, 0 for no cap
+         * @return this
+         */
+        public Settings withMbPerSecond(final int mbPerSecond) {
+            this.mbPerSecond = Math.max(0, mbPerSecond);
+            return this;
+        }
+
+        public double getThrottleRate() {
+            return throttleRate;
+        }
+
+        /**
+         * @param throttleRate fraction of requests refused with a ThrottlingException
+         * @return this
+         */
+        public Settings withThrottleRate(final double throttleRate) {
+            this.throttleRate = rate(throttleRate);
+            return this;
+        }
+
+        public double getFailureRate() {
+            return failureRate;
+        }
+
+        /**
+         * @param failureRate fraction of requests failed with a 500 error
+         * @return this
+         */
+        public Settings withFailureRate(final double failureRate) {
+            this.failureRate = rate(failureRate);
+            return this;
+        }
+
+        public double getTruncateRate() {
+            return truncateRate;
+        }
+
+        /**
+         * @param truncateRate fraction of job outputs cut off halfway
+         * @return this
+         */
+        public Settings withTruncateRate(final double truncateRate) {
+            this.truncateRate = rate(truncateRate);
+            return this;
+        }
+
+        public double getTimeScale() {
+            return timeScale;
+        }
+
+        /**
+         * @param timeScale fraction of Glacier's job latencies that jobs take, e.g. 0.001 for Standard jobs in about 15 s
+         * @return this
+         */
+        public Settings withTimeScale(final double timeScale) {
+            this.timeScale = Math.max(0, timeScale);
+            return this;
+        }
+
+        public int getJobDelaySeconds() {
+            return jobDelaySeconds;
+        }
+
+        /**
+         * @param jobDelaySeconds fixed time every job takes regardless of its tier, or -1 to scale the tier's latency
+         * @return this
+         */
+        public Settings withJobDelaySeconds(final int jobDelaySeconds) {
+            this.jobDelaySeconds = jobDelaySeconds;
+            return this;
+        }
+
+        public int getInventoryArchives() {
+            return inventoryArchives;
+        }
+
+        /**
+         * @param inventoryArchives made up archives to add to every inventory, to test inventories of millions
+         * @return this
+         */
+        public Settings withInventoryArchives(final int inventoryArchives) {
+            this.inventoryArchives = Math.max(0, inventoryArchives);
+            return this;
+        }
+
+        private static double rate(final double rate) {
+            if (rate < 0 || rate > 1) {
+                throw new IllegalArgumentException("Rates must be between 0 and 1, was " + rate);
+            }
+            return rate;
+        }
+    }
+}
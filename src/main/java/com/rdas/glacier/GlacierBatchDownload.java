@@ -0,0 +1,143 @@
+package com.rdas.glacier;
+
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.glacier.model.AmazonGlacierException;
+import com.rdas.common.ArchiveInfo;
+import com.rdas.common.Credentials;
+import com.rdas.common.TransferOptions;
+import com.rdas.common.Utilities;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Downloads many archives of one vault. All retrieval jobs are started up front, with tiers planned by
+ * {@link RetrievalPlanner}, and each archive starts downloading as soon as its job completes, with a bounded number of
+ * downloads running at once.
+ */
+public class GlacierBatchDownload {
+
+    private static final int MAX_INITIATE_ATTEMPTS = 5;
+
+    private final String vaultName;
+    private final List<ArchiveInfo> archives;
+    private final AmazonGlacier glacierClient;
+    private final Credentials creds;
+    private final TransferOptions options;
+
+    public GlacierBatchDownload(final String vaultName, final List<ArchiveInfo> archives, final Credentials creds, final TransferOptions options) {
+        this.vaultName = vaultName;
+        this.archives = archives;
+        this.glacierClient = GlacierClients.shared().glacier(creds);
+        this.creds = creds;
+        this.options = options;
+    }
+
+    /**
+     * Retrieve and download all archives
+     *
+     * @throws IOException          one or more archives could not be downloaded
+     * @throws InterruptedException interrupted while waiting
+     */
+    public void downloadAll() throws IOException, InterruptedException {
+        final List<GlacierDownload> planned = new ArrayList<>(archives.size());
+        for (final ArchiveInfo archive : archives) {
+            planned.add(new GlacierDownload(archive, glacierClient, creds, options));
+        }
+        new RetrievalPlanner(options).apply(planned);
+
+        final int threads = options.getFileConcurrency();
+        // when several jobs are done at once, as Bulk jobs tend to be, the archives needed first are downloaded first
+        final ThreadPoolExecutor downloads = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>());
+        final Map<ArchiveInfo, CompletableFuture<Void>> results = new LinkedHashMap<>();
+        try (final JobScheduler scheduler = JobScheduler.forVault(glacierClient, vaultName, creds, options)) {
+            final long initiateInterval = 1000L / options.getJobsPerSecond();
+            for (int i = 0; i < archives.size(); i++) {
+                final ArchiveInfo archive = archives.get(i);
+                final GlacierDownload download = planned.get(i);
+                final int priority = i;
+                final String jobId;
+                try {
+                    jobId = startJob(download);
+                } catch (final AmazonGlacierException | IOException e) {
+                    final CompletableFuture<Void> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    results.put(archive, failed);
+                    continue;
+                }
+                results.put(archive, scheduler.track(jobId, download.getTier()).thenAcceptAsync(ignored -> {
+                    System.out.println("Job for " + archive.getLocalArchiveFile() + " completed, downloading");
+                    try {
+                        download.download(jobId, new Utilities.ProgressLogger(archive.getLocalArchiveFile().getName(), download.jobOutputSize()));
+                    } catch (final IOException | InterruptedException e) {
+                        throw new CompletionException(e);
+                    }
+                }, runnable -> downloads.execute(new Prioritized(priority, runnable))));
+                TimeUnit.MILLISECONDS.sleep(initiateInterval);
+            }
+            System.out.println("Started " + scheduler.pendingJobs() + " retrieval jobs (at " + new Date() + "). Archives download as their jobs complete");
+
+            final List<String> failures = new ArrayList<>();
+            for (final Map.Entry<ArchiveInfo, CompletableFuture<Void>> result : results.entrySet()) {
+                try {
+                    result.getValue().get();
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+                    failures.add(result.getKey().getLocalArchiveFile() + ": " + cause);
+                }
+            }
+            System.out.println("Downloaded " + (archives.size() - failures.size()) + " of " + archives.size() + " archives");
+            if (!failures.isEmpty()) {
+                throw new IOException(failures.size() + " downloads failed:\n" + String.join("\n", failures));
+            }
+        } finally {
+            downloads.shutdownNow();
+        }
+    }
+
+    /**
+     * Start (or reuse) the retrieval job, backing off while Glacier throttles us
+     */
+    private String startJob(final GlacierDownload download) throws IOException, InterruptedException {
+        long backoffMillis = 1000;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return download.startOrReuseJob();
+            } catch (final AmazonGlacierException exc) {
+                if (!GlacierTransfer.isTransient(exc) || attempt == MAX_INITIATE_ATTEMPTS) {
+                    throw exc;
+                }
+                TimeUnit.MILLISECONDS.sleep(backoffMillis);
+                backoffMillis *= 2;
+            }
+        }
+    }
+
+    /**
+     * A download waiting for a thread, ordered by when its archive is needed
+     */
+    private static class Prioritized implements Runnable, Comparable<Prioritized> {
+        private final int priority;
+        private final Runnable task;
+
+        private Prioritized(final int priority, final Runnable task) {
+            this.priority = priority;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(final Prioritized other) {
+            return Integer.compare(priority, other.priority);
+        }
+    }
+}
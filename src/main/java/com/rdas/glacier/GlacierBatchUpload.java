@@ -0,0 +1,139 @@
+package com.rdas.glacier;
+
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.rdas.common.ArchiveInfo;
+import com.rdas.common.Credentials;
+import com.rdas.common.TransferOptions;
+import com.rdas.common.Utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Uploads many files to one vault through a single shared client. Up to {@link TransferOptions#getFileConcurrency()}
+ * files are in flight at once, their parts sharing the slots of the {@link TransferGovernor}.
+ * <p>
+ * If packing is enabled, files below the packing threshold are bundled into larger archives by a
+ * {@link SmallFilePacker} instead of being uploaded one by one.
+ * <p>
+ * The outcome is written to a JSON results file mapping every local path to its archiveId (null when it failed).
+ */
+public class GlacierBatchUpload {
+
+    private final String vaultName;
+    private final String source;
+    private final List<File> files;
+    private final AmazonGlacier glacierClient;
+    private final Credentials creds;
+    private final TransferOptions options;
+
+    /**
+     * @param vaultName destination vault
+     * @param source    the directory or manifest the files came from
+     * @param files     the files to upload
+     * @param creds     the credentials
+     * @param options   transfer options
+     */
+    public GlacierBatchUpload(final String vaultName, final String source, final List<File> files, final Credentials creds, final TransferOptions options) {
+        this.vaultName = vaultName;
+        this.source = source;
+        this.files = files;
+        this.glacierClient = GlacierClients.shared().glacier(creds);
+        this.creds = creds;
+        this.options = options;
+    }
+
+    /**
+     * Upload all files
+     *
+     * @param resultsFile where to write the path to archiveId mapping
+     * @throws IOException          one or more files could not be uploaded
+     * @throws InterruptedException interrupted while waiting
+     */
+    public void uploadAll(final File resultsFile) throws IOException, InterruptedException {
+        final ExecutorService uploads = Executors.newFixedThreadPool(options.getFileConcurrency());
+        final Map<String, String> archiveIds = new TreeMap<>();
+        final List<String> failures = new ArrayList<>();
+        final DedupIndex dedupIndex = options.isDedup() ? DedupIndex.forVault(vaultName) : null;
+        try {
+            final Map<File, Future<String>> results = new LinkedHashMap<>();
+            final List<File> smallFiles = new ArrayList<>();
+            for (final File file : files) {
+                if (options.isPackingEnabled() && file.length() < options.getPackSmallFilesMb() * TransferOptions.MB) {
+                    smallFiles.add(file);
+                } else {
+                    results.put(file, uploads.submit(() -> upload(file, dedupIndex)));
+                }
+            }
+            if (!smallFiles.isEmpty()) {
+                final SmallFilePacker packer = new SmallFilePacker(glacierClient, vaultName, source, options);
+                final List<List<File>> packs = SmallFilePacker.plan(smallFiles, options.getPackSizeBytes());
+                System.out.println("Packing " + smallFiles.size() + " small files into " + packs.size() + " archives, indexed in " + packer.getIndex().getFile());
+                for (int i = 0; i < packs.size(); i++) {
+                    final int packNumber = i + 1;
+                    final List<File> pack = packs.get(i);
+                    final Future<String> packUpload = uploads.submit(() -> packer.upload(packNumber, pack));
+                    for (final File file : pack) {
+                        results.put(file, packUpload);
+                    }
+                }
+            }
+            for (final Map.Entry<File, Future<String>> result : results.entrySet()) {
+                final String path = result.getKey().getPath();
+                try {
+                    archiveIds.put(path, result.getValue().get());
+                } catch (final ExecutionException e) {
+                    archiveIds.put(path, null);
+                    failures.add(path + ": " + e.getCause());
+                }
+            }
+        } finally {
+            // uploads still running use the dedup index, so it is only closed once they have stopped
+            uploads.shutdownNow();
+            try {
+                uploads.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } finally {
+                if (dedupIndex != null) {
+                    dedupIndex.close();
+                }
+                writeResults(resultsFile, archiveIds);
+            }
+        }
+        System.out.println("Uploaded " + (files.size() - failures.size()) + " of " + files.size() + " files. Archive IDs written to " + resultsFile);
+        if (!failures.isEmpty()) {
+            throw new IOException(failures.size() + " uploads failed:\n" + String.join("\n", failures));
+        }
+    }
+
+    private String upload(final File file, final DedupIndex dedupIndex) throws IOException, InterruptedException {
+        final ArchiveInfo archiveInfo = ArchiveInfo.ofLocal(vaultName, file);
+        final Utilities.ProgressLogger progressLogger = new Utilities.ProgressLogger(file.getName(), options.isEncoding() ? -1 : file.length());
+        final String archiveId = new GlacierUpload(archiveInfo, glacierClient, creds, options).withDedupIndex(dedupIndex).upload(progressLogger);
+        System.out.println(file + ": archive ID is " + archiveId);
+        return archiveId;
+    }
+
+    private static void writeResults(final File resultsFile, final Map<String, String> archiveIds) throws IOException {
+        final Gson gson = new GsonBuilder().setPrettyPrinting().serializeNulls().create();
+        try (final Writer writer = Files.newBufferedWriter(resultsFile.toPath())) {
+            gson.toJson(archiveIds, writer);
+        }
+    }
+
+    /**
+     * Default location of the results file for a batch upload to the vault
+     *
+     * @param vaultName the vault
+     * @return the results file
+     */
+    public static File resultsFileFor(final String vaultName) {
+        return Paths.get(vaultName + "_uploads_" + new Date().toString().replace(' ', '_').replace(':', '.') + ".json").toFile();
+    }
+}
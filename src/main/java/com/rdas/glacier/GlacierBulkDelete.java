@@ -0,0 +1,184 @@
+package com.rdas.glacier;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.glacier.model.AmazonGlacierException;
+import com.amazonaws.services.glacier.model.DeleteArchiveRequest;
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+import com.rdas.common.ArchiveInfo;
+import com.rdas.common.Credentials;
+import com.rdas.common.TransferOptions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes many archives of one vault, e.g. everything past its retention, with several deletes in flight at a
+ * steady rate.
+ * <p>
+ * Every delete is recorded in the vault's {@link PendingChanges}, which doubles as the progress log: archives it
+ * already lists as deleted are skipped, so a killed run picks up where it stopped when it is started again.
+ * Records are synced in batches rather than one by one; an archive deleted just before a crash but not yet recorded
+ * is found gone on the next run, and counted as deleted then.
+ */
+public class GlacierBulkDelete {
+
+    private static final int MAX_ATTEMPTS = 8;
+    private static final int RECORD_BATCH = 100;
+    private static final long RECORD_INTERVAL_MILLIS = 1000;
+    private static final int PROGRESS_INTERVAL = 1000;
+    private static final int MAX_REPORTED_FAILURES = 20;
+
+    private final String vaultName;
+    private final List<ArchiveInfo> archives;
+    private final AmazonGlacier glacierClient;
+    private final TransferOptions options;
+    private final PendingChanges pendingChanges;
+    private final TransferGovernor.TokenBucket rate;
+
+    private final List<PendingChanges.Change> unrecorded = new ArrayList<>();
+    private long lastRecordMillis = System.currentTimeMillis();
+    private final AtomicInteger deleted = new AtomicInteger();
+    private final AtomicLong deletedBytes = new AtomicLong();
+    private final List<String> failures = new ArrayList<>();
+
+    public GlacierBulkDelete(final String vaultName, final List<ArchiveInfo> archives, final Credentials creds, final TransferOptions options) {
+        this.vaultName = vaultName;
+        this.archives = archives;
+        this.glacierClient = GlacierClients.shared().glacier(creds);
+        this.options = options;
+        this.pendingChanges = PendingChanges.forVault(vaultName);
+        this.rate = new TransferGovernor.TokenBucket(options.getDeletesPerSecond());
+    }
+
+    /**
+     * Delete all archives not deleted yet, or with {@link TransferOptions#isDryRun()} only report what would be deleted
+     *
+     * @throws IOException          one or more archives could not be deleted, or the progress could not be recorded
+     * @throws InterruptedException interrupted while deleting
+     */
+    public void deleteAll() throws IOException, InterruptedException {
+        final Set<String> done = new HashSet<>();
+        for (final PendingChanges.Change change : pendingChanges.changes()) {
+            if (PendingChanges.DELETE.equals(change.getOperation())) {
+                done.add(change.getArchiveId());
+            }
+        }
+        final List<ArchiveInfo> remaining = new ArrayList<>();
+        long remainingBytes = 0;
+        for (final ArchiveInfo archive : archives) {
+            // skips archives deleted before as well as duplicates
+            if (done.add(archive.getRemoteArchiveId())) {
+                remaining.add(archive);
+                remainingBytes += archive.getFileSizeBytes();
+            }
+        }
+        System.out.println(remaining.size() + " archives (" + remainingBytes / TransferOptions.MB + " MB) to delete from " + vaultName
+                + (remaining.size() < archives.size() ? ", " + (archives.size() - remaining.size()) + " skipped as already deleted" : ""));
+        if (options.isDryRun() || remaining.isEmpty()) {
+            if (options.isDryRun()) {
+                System.out.println("Dry run, nothing was deleted");
+            }
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        final int workers = Math.min(options.getMaxConcurrency(), remaining.size());
+        final ExecutorService pool = Executors.newFixedThreadPool(workers);
+        final AtomicInteger next = new AtomicInteger();
+        final List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < workers; i++) {
+                results.add(pool.submit(() -> {
+                    int index;
+                    while ((index = next.getAndIncrement()) < remaining.size()) {
+                        delete(remaining.get(index), remaining.size());
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (final ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            // whatever was deleted must be recorded, even when the run is cut short
+            record(null, true);
+        }
+        final double seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+        System.out.println("Deleted " + deleted.get() + " of " + remaining.size() + " archives (" + deletedBytes.get() / TransferOptions.MB + " MB) in "
+                + seconds + " seconds, " + String.format("%.1f", deleted.get() / seconds) + " per second");
+        if (!failures.isEmpty()) {
+            throw new IOException(failures.size() + " deletes failed" + (failures.size() > MAX_REPORTED_FAILURES ? ", the first " + MAX_REPORTED_FAILURES : "")
+                    + ":\n" + String.join("\n", failures.subList(0, Math.min(failures.size(), MAX_REPORTED_FAILURES))));
+        }
+    }
+
+    /**
+     * Delete one archive, backing off while Glacier throttles us
+     */
+    private void delete(final ArchiveInfo archive, final int total) throws IOException, InterruptedException {
+        long backoffMillis = 1000;
+        for (int attempt = 1; ; attempt++) {
+            rate.acquire(1);
+            try {
+                glacierClient.deleteArchive(new DeleteArchiveRequest("-", vaultName, archive.getRemoteArchiveId()));
+                break;
+            } catch (final ResourceNotFoundException exc) {
+                // deleted by an earlier run that could not record it, or by someone else
+                break;
+            } catch (final AmazonGlacierException exc) {
+                if (!GlacierTransfer.isTransient(exc) || attempt == MAX_ATTEMPTS) {
+                    fail(archive, exc.getErrorCode() + " " + exc.getErrorMessage());
+                    return;
+                }
+                TimeUnit.MILLISECONDS.sleep(backoffMillis);
+                backoffMillis *= 2;
+            } catch (final SdkClientException exc) {
+                // the client already retried, so the connection is not coming back for this archive
+                fail(archive, exc.getMessage());
+                return;
+            }
+        }
+        record(new PendingChanges.Change(PendingChanges.DELETE, archive.getRemoteArchiveId(), null, archive.getFileSizeBytes(), null), false);
+        deletedBytes.addAndGet(archive.getFileSizeBytes());
+        final int count = deleted.incrementAndGet();
+        if (count % PROGRESS_INTERVAL == 0) {
+            System.out.println("Deleted " + count + " of " + total + " archives (" + deletedBytes.get() / TransferOptions.MB + " MB)");
+        }
+    }
+
+    private void fail(final ArchiveInfo archive, final String reason) {
+        synchronized (failures) {
+            failures.add(archive.getRemoteArchiveId() + ": " + reason);
+        }
+    }
+
+    /**
+     * Add a delete to the progress log, syncing the log once enough deletes or time have gone by
+     */
+    private synchronized void record(final PendingChanges.Change change, final boolean flush) throws IOException {
+        if (change != null) {
+            unrecorded.add(change);
+        }
+        if (!unrecorded.isEmpty() && (flush || unrecorded.size() >= RECORD_BATCH || System.currentTimeMillis() - lastRecordMillis >= RECORD_INTERVAL_MILLIS)) {
+            pendingChanges.appendAll(unrecorded);
+            unrecorded.clear();
+            lastRecordMillis = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.rdas.glacier;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.glacier.AmazonGlacierClientBuilder;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSClientBuilder;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import com.rdas.common.Credentials;
+import com.rdas.common.TransferOptions;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AWS clients of the process. Each client is built the first time it is needed and then shared, so that all
+ * transfers reuse one connection pool and its warm TLS connections. SQS and SNS clients are only built when
+ * notifications are actually used.
+ */
+public class GlacierClients {
+
+    private static GlacierClients shared;
+
+    private final TransferOptions options;
+    private final Map<String, AmazonGlacier> glacierClients = new ConcurrentHashMap<>();
+    private final Map<String, AmazonSQS> sqsClients = new ConcurrentHashMap<>();
+    private final Map<String, AmazonSNS> snsClients = new ConcurrentHashMap<>();
+
+    public GlacierClients(final TransferOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * The clients of the process. The first call decides their configuration.
+     *
+     * @param options transfer options
+     * @return the clients
+     */
+    public static synchronized GlacierClients shared(final TransferOptions options) {
+        if (shared == null) {
+            shared = new GlacierClients(options);
+        }
+        return shared;
+    }
+
+    /**
+     * The clients of the process, configured from the system properties unless they already exist
+     *
+     * @return the clients
+     */
+    public static synchronized GlacierClients shared() {
+        return shared(TransferOptions.fromSystemProperties());
+    }
+
+    /**
+     * The Glacier client for the account and region in the credentials, or for the endpoint in the options if there
+     * is one. Its requests are paced by the shared {@link TransferGovernor}.
+     *
+     * @param creds the credentials
+     * @return the client
+     */
+    public AmazonGlacier glacier(final Credentials creds) {
+        return glacierClients.computeIfAbsent(keyOf(creds), key -> {
+            final AmazonGlacierClientBuilder builder = AmazonGlacierClientBuilder.standard()
+                    .withCredentials(credentialsProvider(creds))
+                    .withClientConfiguration(clientConfiguration())
+                    .withRequestHandlers(TransferGovernor.shared().getRequestHandler());
+            if (options.getEndpoint() != null) {
+                builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(options.getEndpoint(), creds.getRegion()));
+            } else {
+                builder.withRegion(creds.getRegion());
+            }
+            return builder.build();
+        });
+    }
+
+    /**
+     * The SQS client for the account and region in the credentials, or for the SQS endpoint in the options if there
+     * is one
+     *
+     * @param creds the credentials
+     * @return the client
+     */
+    public AmazonSQS sqs(final Credentials creds) {
+        return sqsClients.computeIfAbsent(keyOf(creds), key -> {
+            final AmazonSQSClientBuilder builder = AmazonSQSClientBuilder.standard()
+                    .withCredentials(credentialsProvider(creds))
+                    .withClientConfiguration(clientConfiguration());
+            if (options.getSqsEndpoint() != null) {
+                builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(options.getSqsEndpoint(), creds.getRegion()));
+            } else {
+                builder.withRegion(creds.getRegion());
+            }
+            return builder.build();
+        });
+    }
+
+    /**
+     * The SNS client for the account and region in the credentials, or for the SNS endpoint in the options if there
+     * is one
+     *
+     * @param creds the credentials
+     * @return the client
+     */
+    public AmazonSNS sns(final Credentials creds) {
+        return snsClients.computeIfAbsent(keyOf(creds), key -> {
+            final AmazonSNSClientBuilder builder = AmazonSNSClientBuilder.standard()
+                    .withCredentials(credentialsProvider(creds))
+                    .withClientConfiguration(clientConfiguration());
+            if (options.getSnsEndpoint() != null) {
+                builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(options.getSnsEndpoint(), creds.getRegion()));
+            } else {
+                builder.withRegion(creds.getRegion());
+            }
+            return builder.build();
+        });
+    }
+
+    /**
+     * Connection settings for long transfers of large parts: enough connections for every part in flight, kept alive
+     * between parts, and recycled now and then so that long batches follow DNS changes
+     */
+    private ClientConfiguration clientConfiguration() {
+        final ClientConfiguration configuration = new ClientConfiguration()
+                .withMaxConnections(options.getMaxConnections())
+                .withTcpKeepAlive(options.isTcpKeepAlive())
+                .withConnectionTTL(options.getConnectionTtlSeconds() > 0 ? TimeUnit.SECONDS.toMillis(options.getConnectionTtlSeconds()) : -1);
+        if (options.getSocketBufferKb() > 0) {
+            final int bytes = options.getSocketBufferKb() * 1024;
+            configuration.setSocketBufferSizeHints(bytes, bytes);
+        }
+        return configuration;
+    }
+
+    private static AWSStaticCredentialsProvider credentialsProvider(final Credentials creds) {
+        return new AWSStaticCredentialsProvider(new BasicAWSCredentials(creds.getAccessKeyId(), creds.getSecretAccessKey()));
+    }
+
+    private static String keyOf(final Credentials creds) {
+        return creds.getAccessKeyId() + "@" + creds.getRegion();
+    }
+}
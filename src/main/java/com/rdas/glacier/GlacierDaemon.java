@@ -0,0 +1,436 @@
+package com.rdas.glacier;
+
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.glacier.model.AmazonGlacierException;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.rdas.common.ArchiveInfo;
+import com.rdas.common.Credentials;
+import com.rdas.common.Metrics;
+import com.rdas.common.TransferOptions;
+import com.rdas.common.Utilities;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-running glacierman that works through a {@link WorkQueue} of uploads, downloads and inventories, taking new
+ * work over a small HTTP API on localhost. Clients, credentials and the governor are set up once for all of it.
+ * <p>
+ * A retrieval job that is waiting costs no thread: it is an entry in the {@link JobScheduler} of its vault, which
+ * polls (or listens for) all jobs of the vault together. Only transfers hold threads, at most
+ * {@link TransferOptions#getFileConcurrency()} of them; jobs are started at {@link TransferOptions#getJobsPerSecond()}
+ * from a single thread. Work survives restarts: uploads resume from their part journal, and jobs that were
+ * started are waited for again unless their output has expired.
+ * <p>
+ * API, all JSON:
+ * <ul>
+ * <li><code>POST /work</code> adds an item, e.g. <code>{"type": "download", "vault": "photos", "archiveId": "...",
+ * "fileSize": "1048576", "file": "photos.zip"}</code></li>
+ * <li><code>GET /work[?state=waiting]</code> lists items, <code>GET /work/&lt;id&gt;</code> shows one</li>
+ * <li><code>DELETE /work/&lt;id&gt;</code> cancels an item that has not started transferring</li>
+ * <li><code>GET /metrics</code> shows the {@link Metrics} of the daemon</li>
+ * </ul>
+ */
+public class GlacierDaemon implements Closeable {
+
+    private static final Gson GSON = new Gson();
+    private static final int API_THREADS = 2;
+    private static final int MAX_INITIATE_ATTEMPTS = 5;
+    // job output is kept for 24 hours after the job completes; a job started longer ago than that is started again
+    private static final long JOB_OUTPUT_LIFETIME = TimeUnit.HOURS.toMillis(23);
+
+    private final WorkQueue queue;
+    private final Credentials creds;
+    private final TransferOptions options;
+    private final AmazonGlacier glacierClient;
+    private final HttpServer server;
+    private final ExecutorService api = Executors.newFixedThreadPool(API_THREADS, threads("api"));
+    private final ExecutorService initiator = Executors.newSingleThreadExecutor(threads("job-initiator"));
+    private final ExecutorService transfers;
+    private final TransferGovernor.TokenBucket jobRate;
+    private final Map<String, JobScheduler> schedulers = new ConcurrentHashMap<>();
+
+    /**
+     * @param port    port to listen on, on the loopback interface only; 0 for any free port
+     * @param queue   the work queue
+     * @param creds   credentials
+     * @param options transfer options
+     * @throws IOException the port could not be bound
+     */
+    public GlacierDaemon(final int port, final WorkQueue queue, final Credentials creds, final TransferOptions options) throws IOException {
+        this.queue = queue;
+        this.creds = creds;
+        this.options = options;
+        this.glacierClient = GlacierClients.shared().glacier(creds);
+        this.transfers = Executors.newFixedThreadPool(options.getFileConcurrency(), threads("transfer"));
+        this.jobRate = new TransferGovernor.TokenBucket(options.getJobsPerSecond());
+        // the API is not authenticated, so it is only reachable from this machine
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(api);
+    }
+
+    /**
+     * Pick up the work left unfinished by an earlier run, and start taking new work
+     */
+    public void start() throws IOException {
+        int resumed = 0;
+        for (final WorkQueue.Item item : queue.items()) {
+            if (item.isFinished()) {
+                continue;
+            }
+            // queues written before jobs' start times were recorded only have the item's last change
+            final String jobStarted = item.getJobStarted() != null ? item.getJobStarted() : item.getUpdated();
+            if (item.getJobId() != null && Instant.parse(jobStarted).plusMillis(JOB_OUTPUT_LIFETIME).isBefore(Instant.now())) {
+                queue.update(item, expired -> {
+                    expired.setJobId(null);
+                    expired.setState(WorkQueue.QUEUED);
+                });
+            }
+            dispatch(item);
+            resumed++;
+        }
+        if (resumed > 0) {
+            System.out.println("Resuming " + resumed + " unfinished items from " + queue.getFile());
+        }
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        initiator.shutdownNow();
+        transfers.shutdownNow();
+        api.shutdownNow();
+        for (final JobScheduler scheduler : schedulers.values()) {
+            scheduler.close();
+        }
+    }
+
+    /**
+     * Add an item to the queue and start working on it
+     *
+     * @param request what to do
+     * @return the queued item
+     * @throws IOException the item could not be recorded
+     */
+    public WorkQueue.Item submit(final WorkQueue.Item request) throws IOException {
+        validate(request);
+        // only the fields describing the work are taken from the request
+        final WorkQueue.Item item = queue.add(new WorkQueue.Item(request.getType(), request.getVault(), request.getFile(), request.getArchiveId(), request.getFileSize()));
+        dispatch(item);
+        return item;
+    }
+
+    private static void validate(final WorkQueue.Item request) {
+        if (request.getVault() == null || request.getVault().isEmpty()) {
+            throw new IllegalArgumentException("vault must be provided");
+        }
+        if (WorkQueue.UPLOAD.equals(request.getType())) {
+            if (request.getFile() == null || !new File(request.getFile()).isFile()) {
+                throw new IllegalArgumentException("file must exist & be a file");
+            }
+        } else if (WorkQueue.DOWNLOAD.equals(request.getType())) {
+            if (request.getArchiveId() == null || request.getFile() == null || request.getFileSize() == null) {
+                throw new IllegalArgumentException("archiveId, fileSize and file must be provided");
+            }
+            Long.parseLong(request.getFileSize());
+        } else if (!WorkQueue.INVENTORY.equals(request.getType())) {
+            throw new IllegalArgumentException("type must be 'upload' or 'download' or 'inventory'");
+        }
+    }
+
+    /**
+     * Cancel an item that has not started transferring
+     *
+     * @param item the item
+     * @return true if it was cancelled
+     * @throws IOException the change could not be recorded
+     */
+    public boolean cancel(final WorkQueue.Item item) throws IOException {
+        synchronized (item) {
+            if (!WorkQueue.QUEUED.equals(item.getState()) && !WorkQueue.WAITING.equals(item.getState())) {
+                return false;
+            }
+            queue.update(item, cancelled -> cancelled.setState(WorkQueue.CANCELLED));
+            return true;
+        }
+    }
+
+    private void dispatch(final WorkQueue.Item item) {
+        if (WorkQueue.UPLOAD.equals(item.getType())) {
+            transfers.execute(() -> run(item, this::upload));
+        } else if (item.getJobId() != null) {
+            awaitJob(item);
+        } else {
+            initiator.execute(() -> run(item, this::startJob));
+        }
+    }
+
+    /**
+     * Run a step of an item unless it was cancelled meanwhile, and record its failure
+     */
+    private void run(final WorkQueue.Item item, final Step step) {
+        synchronized (item) {
+            if (item.isFinished()) {
+                return;
+            }
+        }
+        try {
+            step.run(item);
+        } catch (final Exception e) {
+            if (e instanceof InterruptedException) {
+                // shutting down; the item is picked up again on the next start
+                return;
+            }
+            fail(item, e);
+        }
+    }
+
+    private void fail(final WorkQueue.Item item, final Throwable e) {
+        System.out.println("Failed " + item.getType() + " " + item.getId() + ": " + e);
+        try {
+            queue.update(item, failed -> {
+                failed.setState(WorkQueue.FAILED);
+                failed.setError(String.valueOf(e));
+            });
+        } catch (final IOException ioe) {
+            System.out.println("WARNING: could not record the failure of " + item.getId() + " in " + queue.getFile() + ": " + ioe.getMessage());
+        }
+    }
+
+    private void upload(final WorkQueue.Item item) throws IOException, InterruptedException {
+        if (!setRunning(item)) {
+            return;
+        }
+        final File file = new File(item.getFile());
+        System.out.println("Uploading " + file + " to " + item.getVault());
+        final String archiveId = new GlacierUpload(ArchiveInfo.ofLocal(item.getVault(), file), glacierClient, creds, options)
+                .upload(new Utilities.ProgressLogger(file.getName(), options.isEncoding() ? -1 : file.length()));
+        finish(item, archiveId);
+    }
+
+    /**
+     * Start the retrieval job of a download or inventory, backing off while Glacier throttles us
+     */
+    private void startJob(final WorkQueue.Item item) throws IOException, InterruptedException {
+        long backoffMillis = 1000;
+        String jobId = null;
+        for (int attempt = 1; jobId == null; attempt++) {
+            jobRate.acquire(1);
+            try {
+                jobId = WorkQueue.DOWNLOAD.equals(item.getType())
+                        ? download(item).startOrReuseJob()
+                        : new GlacierInventory(creds, options).start(item.getVault()).getJobId();
+            } catch (final AmazonGlacierException exc) {
+                if (!GlacierTransfer.isTransient(exc) || attempt == MAX_INITIATE_ATTEMPTS) {
+                    throw exc;
+                }
+                TimeUnit.MILLISECONDS.sleep(backoffMillis);
+                backoffMillis *= 2;
+            }
+        }
+        final String started = jobId;
+        queue.update(item, waiting -> {
+            waiting.setJobId(started);
+            waiting.setState(WorkQueue.WAITING);
+        });
+        System.out.println("Started " + item.getType() + " job " + jobId + " for item " + item.getId());
+        awaitJob(item);
+    }
+
+    /**
+     * Continue on a transfer thread once the job completes
+     */
+    private void awaitJob(final WorkQueue.Item item) {
+        final RetrievalTier tier = WorkQueue.DOWNLOAD.equals(item.getType()) ? download(item).getTier() : RetrievalTier.STANDARD;
+        scheduler(item.getVault()).track(item.getJobId(), tier).whenCompleteAsync((ignored, error) -> {
+            if (error != null) {
+                fail(item, error instanceof CompletionException ? error.getCause() : error);
+            } else {
+                run(item, this::fetch);
+            }
+        }, transfers);
+    }
+
+    private void fetch(final WorkQueue.Item item) throws IOException, InterruptedException {
+        if (!setRunning(item)) {
+            return;
+        }
+        if (WorkQueue.DOWNLOAD.equals(item.getType())) {
+            final GlacierDownload download = download(item);
+            download.download(item.getJobId(), new Utilities.ProgressLogger(new File(item.getFile()).getName(), download.jobOutputSize()));
+            finish(item, item.getFile());
+        } else {
+            finish(item, new GlacierInventory(creds, options).fetch(new GlacierInventory.InventoryJob(item.getVault(), item.getJobId())).getPath());
+        }
+    }
+
+    /**
+     * @return false if the item was cancelled meanwhile
+     */
+    private boolean setRunning(final WorkQueue.Item item) throws IOException {
+        synchronized (item) {
+            if (item.isFinished()) {
+                return false;
+            }
+            queue.update(item, running -> running.setState(WorkQueue.RUNNING));
+            return true;
+        }
+    }
+
+    private void finish(final WorkQueue.Item item, final String result) throws IOException {
+        queue.update(item, done -> {
+            done.setState(WorkQueue.DONE);
+            done.setResult(result);
+        });
+        System.out.println("Finished " + item.getType() + " " + item.getId() + ": " + result);
+    }
+
+    private GlacierDownload download(final WorkQueue.Item item) {
+        return new GlacierDownload(ArchiveInfo.ofRemote(item.getVault(), item.getArchiveId(), new File(item.getFile()), item.getFileSize()),
+                glacierClient, creds, options);
+    }
+
+    private JobScheduler scheduler(final String vaultName) {
+        return schedulers.computeIfAbsent(vaultName, vault -> JobScheduler.forVault(glacierClient, vault, creds, options));
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            route(exchange);
+        } catch (final ApiError e) {
+            sendJson(exchange, e.status, Collections.singletonMap("error", e.getMessage()));
+        } catch (final IllegalArgumentException | JsonSyntaxException e) {
+            sendJson(exchange, 400, Collections.singletonMap("error", e.getMessage()));
+        } catch (final RuntimeException e) {
+            sendJson(exchange, 500, Collections.singletonMap("error", String.valueOf(e)));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void route(final HttpExchange exchange) throws IOException {
+        final String[] path = exchange.getRequestURI().getPath().split("/");
+        final String method = exchange.getRequestMethod();
+        if (path.length == 2 && "metrics".equals(path[1]) && "GET".equals(method)) {
+            send(exchange, 200, Metrics.shared().toJson());
+            return;
+        }
+        if (path.length < 2 || !"work".equals(path[1])) {
+            throw new ApiError(404, "Not found: " + exchange.getRequestURI().getPath());
+        }
+        if (path.length == 2) {
+            switch (method) {
+                case "GET":
+                    final String query = exchange.getRequestURI().getQuery();
+                    send(exchange, 200, queue.toJson(query != null && query.startsWith("state=") ? query.substring("state=".length()) : null));
+                    return;
+                case "POST":
+                    final WorkQueue.Item request;
+                    try (final Reader body = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                        request = GSON.fromJson(body, WorkQueue.Item.class);
+                    }
+                    if (request == null) {
+                        throw new IllegalArgumentException("Request body must be an item");
+                    }
+                    sendJson(exchange, 201, submit(request));
+                    return;
+                default:
+                    throw new ApiError(405, "Method not allowed: " + method);
+            }
+        }
+        final WorkQueue.Item item = queue.get(path[2]);
+        if (item == null) {
+            throw new ApiError(404, "No such item: " + path[2]);
+        }
+        switch (method) {
+            case "GET":
+                sendJson(exchange, 200, item);
+                return;
+            case "DELETE":
+                if (!cancel(item)) {
+                    throw new ApiError(409, "Item " + item.getId() + " is " + item.getState() + " and can no longer be cancelled");
+                }
+                sendJson(exchange, 200, item);
+                return;
+            default:
+                throw new ApiError(405, "Method not allowed: " + method);
+        }
+    }
+
+    private static void sendJson(final HttpExchange exchange, final int status, final Object value) throws IOException {
+        send(exchange, status, GSON.toJson(value));
+    }
+
+    private static void send(final HttpExchange exchange, final int status, final String json) throws IOException {
+        final byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static ThreadFactory threads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Run the daemon until the process is stopped
+     *
+     * @param port      port of the API
+     * @param queueFile the work queue
+     * @param creds     credentials
+     * @param options   transfer options
+     * @throws IOException          the queue could not be opened, or the port could not be bound
+     * @throws InterruptedException interrupted while serving
+     */
+    public static void serve(final int port, final File queueFile, final Credentials creds, final TransferOptions options) throws IOException, InterruptedException {
+        final GlacierDaemon daemon = new GlacierDaemon(port, WorkQueue.open(queueFile), creds, options);
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::close, "daemon-shutdown"));
+        daemon.start();
+        System.out.println("Serving on http://localhost:" + daemon.getPort() + "/work with queue " + queueFile.getAbsolutePath() + ", "
+                + options.getFileConcurrency() + " transfers at a time");
+        Thread.currentThread().join();
+    }
+
+    private interface Step {
+        void run(WorkQueue.Item item) throws Exception;
+    }
+
+    private static class ApiError extends RuntimeException {
+        private final int status;
+
+        private ApiError(final int status, final String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+}
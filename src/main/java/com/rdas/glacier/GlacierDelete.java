@@ -21,5 +21,7 @@ public class GlacierDelete extends GlacierTransfer {
                         archiveInfo.getRemoteArchiveId()
                 )
         );
+        PendingChanges.forVault(archiveInfo.getVaultName()).recordQuietly(new PendingChanges.Change(
+                PendingChanges.DELETE, archiveInfo.getRemoteArchiveId(), null, archiveInfo.getFileSizeBytes(), null));
     }
 }
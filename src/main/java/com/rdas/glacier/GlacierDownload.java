@@ -1,28 +1,56 @@
 package com.rdas.glacier;
 
+import com.amazonaws.services.glacier.AmazonGlacier;
 import com.amazonaws.services.glacier.model.*;
 import com.google.gson.Gson;
 import com.google.gson.stream.JsonReader;
+import com.rdas.common.ArchiveEncoding;
 import com.rdas.common.ArchiveInfo;
+import com.rdas.common.ByteRange;
 import com.rdas.common.Credentials;
+import com.rdas.common.DecodingChannel;
+import com.rdas.common.TransferOptions;
 import com.rdas.common.Utilities;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Date;
-import java.util.concurrent.TimeUnit;
+import java.util.Objects;
 
 /**
  * Downloader of AWS Glacier archives
  */
 public class GlacierDownload extends GlacierTransfer {
 
+    private final TransferOptions options;
+
+    private RetrievalTier tier;
+
+    private String description;
+
+    private boolean descriptionLookedUp;
+
     public GlacierDownload(final ArchiveInfo archiveInfo, final Credentials creds) {
+        this(archiveInfo, creds, TransferOptions.defaults());
+    }
+
+    public GlacierDownload(final ArchiveInfo archiveInfo, final Credentials creds, final TransferOptions options) {
         super(archiveInfo, creds);
+        this.options = options;
+    }
+
+    public GlacierDownload(final ArchiveInfo archiveInfo, final AmazonGlacier glacierClient, final Credentials creds, final TransferOptions options) {
+        super(archiveInfo, glacierClient, creds);
+        this.options = options;
     }
 
     private String startJob() {
@@ -32,35 +60,62 @@ public class GlacierDownload extends GlacierTransfer {
                         new JobParameters()
                                 .withType("archive-retrieval")
                                 .withArchiveId(archiveInfo.getRemoteArchiveId())
-                                .withTier("Standard")
+                                .withTier(getTier().getTierName())
+                                .withSNSTopic(options.getSnsTopic())
                                 .withDescription("Downloading " + archiveInfo.getLocalArchiveFile().getName())
+                                .withRetrievalByteRange(retrievalRangeString())
                 );
 
         final InitiateJobResult initJobResult = glacierClient.initiateJob(initJobRequest);
         return initJobResult.getJobId();
     }
 
+    /**
+     * The part of the archive the job retrieves: the requested byte range widened to megabyte boundaries, as
+     * Glacier requires. Null when the whole archive is retrieved.
+     */
+    private ByteRange retrievalRange() {
+        final ByteRange byteRange = archiveInfo.getByteRange();
+        return byteRange == null ? null : byteRange.alignTo(TransferOptions.MB, archiveInfo.getFileSizeBytes());
+    }
+
+    private String retrievalRangeString() {
+        final ByteRange retrievalRange = retrievalRange();
+        return retrievalRange == null ? null : retrievalRange.toString();
+    }
+
+    /**
+     * @return number of bytes the retrieval job outputs
+     */
+    public long jobOutputSize() {
+        final ByteRange retrievalRange = retrievalRange();
+        return retrievalRange == null ? archiveInfo.getFileSizeBytes() : retrievalRange.getLength();
+    }
+
+    /**
+     * @return the tier the archive is retrieved with, {@link TransferOptions#getTier()} unless set otherwise
+     */
+    public RetrievalTier getTier() {
+        return tier != null ? tier : RetrievalTier.of(options.getTier());
+    }
+
+    /**
+     * Retrieve the archive with a specific tier, e.g. as planned by {@link RetrievalPlanner}
+     *
+     * @param tier the tier
+     * @return this
+     */
+    public GlacierDownload withTier(final RetrievalTier tier) {
+        this.tier = tier;
+        return this;
+    }
+
     private void waitForJobCompletion(final String job) throws InterruptedException {
         System.out.println("Will wait for archive retrieval job " + job + " to complete");
         final long start = System.currentTimeMillis();
-        boolean done = false;
-        do {
-            TimeUnit.MINUTES.sleep(5);
-            System.out.print(".");
-            DescribeJobResult result = null;
-            try {
-                result = glacierClient.describeJob(new DescribeJobRequest().withJobId(job).withVaultName(archiveInfo.getVaultName()));
-            } catch (final AmazonGlacierException exc) {
-                if ("ServiceUnavailableException".equals(exc.getErrorCode()) || "ThrottlingException".equals(exc.getErrorCode())) {
-                    continue;
-                }
-                throw exc;
-            }
-            done = result.getCompleted();
-            if ("Failed".equalsIgnoreCase(result.getStatusCode())) {
-                throw new RuntimeException("Job failed! Status message: " + result.getStatusMessage());
-            }
-        } while (!done);
+        try (final JobScheduler scheduler = JobScheduler.forVault(glacierClient, archiveInfo.getVaultName(), creds, options)) {
+            scheduler.await(job, getTier());
+        }
         System.out.println();
         final long duration = System.currentTimeMillis() - start;
         System.out.println("Job completed in " + ((double) duration) / (1000 * 60) + " minutes");
@@ -71,7 +126,8 @@ public class GlacierDownload extends GlacierTransfer {
     }
 
     private void writeJobFile(final String jobId) throws IOException {
-        final JobInfo jobInfo = new JobInfo(archiveInfo.getRemoteArchiveId(), jobId);
+        final JobInfo jobInfo = new JobInfo(archiveInfo.getRemoteArchiveId(), jobId, retrievalRangeString());
+        jobInfo.setTier(getTier().getTierName());
         final Gson gson = new Gson();
         final Writer writer = Files.newBufferedWriter(Paths.get(jobFileName()));
         gson.toJson(jobInfo, writer);
@@ -87,6 +143,15 @@ public class GlacierDownload extends GlacierTransfer {
             System.out.println("ArchiveId mismatch for same archive name!");
             return null;
         }
+        if (!Objects.equals(jobInfo.getRetrievalByteRange(), retrievalRangeString())) {
+            System.out.println("Existing job retrieves a different byte range");
+            return null;
+        }
+        if (jobInfo.getTier() != null && RetrievalTier.of(jobInfo.getTier()) != getTier()) {
+            // the job is already paid for, and polls should follow the tier it actually runs with
+            System.out.println("Reusing the " + jobInfo.getTier() + " job started earlier for " + archiveInfo.getLocalArchiveFile());
+            this.tier = RetrievalTier.of(jobInfo.getTier());
+        }
         return jobInfo.getJobId();
     }
 
@@ -114,20 +179,27 @@ public class GlacierDownload extends GlacierTransfer {
     }
 
     /**
-     * Prepare the file for download
+     * Start an archive retrieval job, or pick up the one a previous run started if it is recent enough
      *
-     * @throws InterruptedException wait interrupted
+     * @return the job id
      */
-    public String prepareArchive() throws InterruptedException, IOException {
-        String jobId = null;
+    public String startOrReuseJob() throws IOException {
         if (jobFileExists()) {
-            jobId = readIdFromJobFile();
-            if (jobId == null) {
-                jobId = startNewJob();
+            final String jobId = readIdFromJobFile();
+            if (jobId != null) {
+                return jobId;
             }
-        } else {
-            jobId = startNewJob();
         }
+        return startNewJob();
+    }
+
+    /**
+     * Prepare the file for download
+     *
+     * @throws InterruptedException wait interrupted
+     */
+    public String prepareArchive() throws InterruptedException, IOException {
+        final String jobId = startOrReuseJob();
         System.out.println("Started archive retrieval job. ID is " + jobId);
         waitForJobCompletion(jobId);
         System.out.println("Ready to download output");
@@ -136,35 +208,186 @@ public class GlacierDownload extends GlacierTransfer {
 
 
     /**
-     * Download the specified archive from the vault
+     * Download the specified archive from the vault. Ranges of the job output are fetched in parallel, and an
+     * interrupted download resumes where it stopped.
+     *
+     * @throws IOException          the file could not be written, or the download is corrupt
+     * @throws InterruptedException interrupted while ranges were in flight
+     */
+    public void download(final String jobId) throws IOException, InterruptedException {
+        download(jobId, new Utilities.ProgressLogger(jobOutputSize()));
+    }
+
+    /**
+     * Download the specified archive from the vault, reporting progress to the given logger
+     *
+     * @throws IOException          the file could not be written, or the download is corrupt
+     * @throws InterruptedException interrupted while ranges were in flight
      */
-    public void download(final String jobId) {
-        final Utilities.ProgressLogger progressLogger = new Utilities.ProgressLogger(archiveInfo.getFileSizeBytes());
-        System.out.println("Starting download at " + new Date() + ". Archive size is: " + (archiveInfo.getFileSizeBytes() / (1024.0 * 1024)) + " MB");
+    public void download(final String jobId, final Utilities.ProgressLogger progressLogger) throws IOException, InterruptedException {
+        System.out.println("Starting download at " + new Date() + ". Download size is: " + (archiveInfo.getDownloadSizeBytes() / (1024.0 * 1024)) + " MB");
         final long start = System.currentTimeMillis();
-        archiveTransferManager.downloadJobOutput(
-                "-",
+        new RangedDownloader(glacierClient, options).download(
                 archiveInfo.getVaultName(),
                 jobId,
+                archiveInfo.getRemoteArchiveId(),
+                jobOutputSize(),
+                outputWindow(),
                 archiveInfo.getLocalArchiveFile(),
-                progressLogger::logProgress
+                progressLogger
         );
         final long duration = System.currentTimeMillis() - start;
         System.out.println("Download completed in " + ((double) duration) / (1000 * 60) + " minutes");
+        // a part of an archive is never decoded, since frames cannot be decoded out of context
+        final boolean encoded = retrievalRange() == null && isEncoded(archiveInfo.getLocalArchiveFile());
+        verifyFile(jobId, encoded);
+        deleteJobFile();
+        if (encoded) {
+            decode(archiveInfo.getLocalArchiveFile());
+        }
+    }
+
+    /**
+     * Re-read a whole downloaded archive from disk and check its tree hash, which also catches corruption between the
+     * verified ranges and the disk. Done before decoding, since the tree hash is that of the archive as stored.
+     */
+    private void verifyFile(final String jobId, final boolean encoded) throws IOException {
+        if (!options.isVerifyDownloads() || retrievalRange() != null) {
+            return;
+        }
+        final String treeHash = glacierClient.describeJob(new DescribeJobRequest()
+                .withVaultName(archiveInfo.getVaultName())
+                .withJobId(jobId)).getSHA256TreeHash();
+        if (treeHash == null) {
+            return;
+        }
+        final File file = archiveInfo.getLocalArchiveFile();
+        new ArchiveVerifier(options).verifyAll(file, treeHash, !encoded);
+    }
+
+    /**
+     * The description of the archive, from the archive info or else from the vault's catalog or pending changes
+     *
+     * @return the description, or null if it is not known
+     * @throws IOException the catalog or the pending changes could not be read
+     */
+    private String description() throws IOException {
+        if (!descriptionLookedUp) {
+            description = archiveInfo.getDescription();
+            if (description == null) {
+                final InventoryArchive archive = ArchiveVerifier.find(archiveInfo.getVaultName(), archiveInfo.getRemoteArchiveId());
+                description = archive == null ? null : archive.getDescription();
+            }
+            descriptionLookedUp = true;
+        }
+        return description;
+    }
+
+    /**
+     * Whether the archive was uploaded encoded, as its description tells. Content that merely starts like encoded
+     * content, such as an encoded file that was downloaded without decoding and uploaded again, is not decoded.
+     */
+    private boolean isEncoded(final File file) throws IOException {
+        final String description = description();
+        if (description != null) {
+            return Utilities.encodingFromDescription(description) != null;
+        }
+        // an archive neither the catalog nor the pending changes know: its content is all there is to go by
+        final boolean encoded = ArchiveEncoding.isEncoded(file);
+        if (encoded) {
+            System.out.println("The description of archive " + archiveInfo.getRemoteArchiveId() + " is not known, decoding it since its content is encoded");
+        }
+        return encoded;
+    }
+
+    /**
+     * Decompress and decrypt a whole archive that was uploaded encoded. Ranges are written out of order, so this is a
+     * second pass over the downloaded file, whose decoded content then replaces it.
+     */
+    private void decode(final File file) throws IOException {
+        System.out.print("Decoding " + file + "...");
+        final File decoded = new File(file.getPath() + ".decoding");
+        try (final FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             final DecodingChannel out = ArchiveEncoding.fromOptions(options).decode(
+                     FileChannel.open(decoded.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), false,
+                     description() == null ? null : Utilities.encodingFromDescription(description()))) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect((int) TransferOptions.MB);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                out.write(buffer);
+                buffer.clear();
+            }
+        } catch (final IOException e) {
+            Files.deleteIfExists(decoded.toPath());
+            System.out.println("Failed! The encoded archive is kept in " + file);
+            throw e;
+        }
+        Files.move(decoded.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Done!");
+    }
+
+    /**
+     * Stream the specified archive, in order, to a channel instead of the local file, e.g. to pipe a restore into
+     * tar or psql without a copy on disk. Ranges are fetched ahead in parallel and each one is verified before it
+     * is written. A whole archive that was uploaded encoded is decoded on the way.
+     *
+     * @param jobId the completed retrieval job
+     * @param out   where to write the archive; closed once the archive is written
+     * @throws IOException          the channel could not be written, or the download is corrupt
+     * @throws InterruptedException interrupted while ranges were in flight
+     */
+    public void download(final String jobId, final WritableByteChannel out) throws IOException, InterruptedException {
+        System.out.println("Starting download at " + new Date() + ". Download size is: " + (archiveInfo.getDownloadSizeBytes() / (1024.0 * 1024)) + " MB");
+        final long start = System.currentTimeMillis();
+        // a part of an archive is never decoded, since frames cannot be decoded out of context. Without a known
+        // description, the decoder passes content through unless it starts like encoded content
+        final String description = retrievalRange() == null ? description() : null;
+        final boolean known = retrievalRange() != null || description != null;
+        final String describedEncoding = description == null ? null : Utilities.encodingFromDescription(description);
+        try (final WritableByteChannel plain = known && describedEncoding == null ? out : ArchiveEncoding.fromOptions(options).decode(out, !known, describedEncoding)) {
+            new RangedDownloader(glacierClient, options).download(
+                    archiveInfo.getVaultName(),
+                    jobId,
+                    jobOutputSize(),
+                    outputWindow(),
+                    plain,
+                    new Utilities.ProgressLogger(jobOutputSize())
+            );
+        }
+        final long duration = System.currentTimeMillis() - start;
+        System.out.println("Download completed in " + ((double) duration) / (1000 * 60) + " minutes");
         deleteJobFile();
     }
 
+    /**
+     * The job output starts at the aligned retrieval range; only the requested bytes within it are kept
+     *
+     * @return the kept bytes of the job output, or null to keep all of it
+     */
+    private ByteRange outputWindow() {
+        final ByteRange retrievalRange = retrievalRange();
+        return retrievalRange == null ? null
+                : new ByteRange(archiveInfo.getByteRange().getStart() - retrievalRange.getStart(), archiveInfo.getByteRange().getLength());
+    }
+
     public static class JobInfo {
         private String archiveId;
         private String jobId;
+        private String retrievalByteRange;
+        private String tier;
 
         public JobInfo() {
             // required for deserialization
         }
 
         public JobInfo(final String archiveId, final String jobId) {
+            this(archiveId, jobId, null);
+        }
+
+        public JobInfo(final String archiveId, final String jobId, final String retrievalByteRange) {
             this.archiveId = archiveId;
             this.jobId = jobId;
+            this.retrievalByteRange = retrievalByteRange;
         }
 
         public String getArchiveId() {
@@ -182,6 +405,28 @@ public class GlacierDownload extends GlacierTransfer {
         public void setJobId(final String jobId) {
             this.jobId = jobId;
         }
+
+        /**
+         * @return the retrieved range, or null if the whole archive is retrieved
+         */
+        public String getRetrievalByteRange() {
+            return retrievalByteRange;
+        }
+
+        public void setRetrievalByteRange(final String retrievalByteRange) {
+            this.retrievalByteRange = retrievalByteRange;
+        }
+
+        /**
+         * @return the tier the job runs with, or null if the job file predates tiers being recorded
+         */
+        public String getTier() {
+            return tier;
+        }
+
+        public void setTier(final String tier) {
+            this.tier = tier;
+        }
     }
 
 }
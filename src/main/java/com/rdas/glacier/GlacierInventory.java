@@ -1,35 +1,44 @@
 package com.rdas.glacier;
 
 import com.amazonaws.AmazonClientException;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.glacier.AmazonGlacier;
-import com.amazonaws.services.glacier.AmazonGlacierClientBuilder;
 import com.amazonaws.services.glacier.model.*;
 import com.rdas.common.Credentials;
+import com.rdas.common.Metrics;
+import com.rdas.common.TransferOptions;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.util.Date;
-import java.util.concurrent.TimeUnit;
 
 public class GlacierInventory {
     private final AmazonGlacier client;
+    private final Credentials credentials;
+    private final TransferOptions options;
 
     public GlacierInventory(final Credentials credentials) {
-        client = AmazonGlacierClientBuilder
-                .standard()
-                .withCredentials(new AWSStaticCredentialsProvider(
-                        new BasicAWSCredentials(credentials.getAccessKeyId(), credentials.getSecretAccessKey())))
-                .withRegion(credentials.getRegion())
-                .build();
+        this(credentials, TransferOptions.defaults());
     }
 
-    private InventoryJob start(final String vault) {
+    public GlacierInventory(final Credentials credentials, final TransferOptions options) {
+        this.client = GlacierClients.shared().glacier(credentials);
+        this.credentials = credentials;
+        this.options = options;
+    }
+
+    /**
+     * Start an inventory retrieval job
+     *
+     * @param vault the vault
+     * @return the job
+     */
+    public InventoryJob start(final String vault) {
         final InitiateJobRequest initJobRequest = new InitiateJobRequest()
                 .withVaultName(vault)
                 .withJobParameters(
                         new JobParameters()
                                 .withType("inventory-retrieval")
+                                .withSNSTopic(options.getSnsTopic())
                 );
 
         final InitiateJobResult initJobResult = client.initiateJob(initJobRequest);
@@ -37,35 +46,65 @@ public class GlacierInventory {
     }
 
     private void pollStatus(final InventoryJob job) throws InterruptedException {
-        boolean done;
-        do {
-            TimeUnit.MINUTES.sleep(2);
-            System.out.print(".");
-            final DescribeJobResult result = client.describeJob(new DescribeJobRequest().withJobId(job.getJobId()).withVaultName(job.getVault()));
-            done = result.getCompleted();
-            if ("Failed".equalsIgnoreCase(result.getStatusCode())) {
-                throw new RuntimeException("Job failed! Status message: " + result.getStatusMessage());
-            }
-        } while (!done);
+        // inventory jobs take about as long as standard retrievals
+        try (final JobScheduler scheduler = JobScheduler.forVault(client, job.getVault(), credentials, options)) {
+            scheduler.await(job.getJobId(), RetrievalTier.STANDARD);
+        }
         System.out.println();
     }
 
-    private void getOutput(final InventoryJob job) throws IOException {
-        final String fileName = job.getVault() + "_inventory_" + new Date().toString().replace(' ', '_').replace(':', '.') + ".json";
+    private File getOutput(final InventoryJob job) throws IOException {
+        final File file = new File(job.getVault() + "_inventory_" + new Date().toString().replace(' ', '_').replace(':', '.') + ".json");
         final GetJobOutputRequest jobOutputRequest = new GetJobOutputRequest()
                 .withVaultName(job.getVault())
                 .withJobId(job.getJobId());
-        final GetJobOutputResult jobOutputResult = client.getJobOutput(jobOutputRequest);
-        final FileWriter fileWriter = new FileWriter(fileName);
-        String inputLine;
-        try (final BufferedWriter out = new BufferedWriter(fileWriter); final BufferedReader in = new BufferedReader(new InputStreamReader(jobOutputResult.getBody()))) {
-            while ((inputLine = in.readLine()) != null) {
-                out.write(inputLine);
+        final Metrics.Span span = Metrics.shared(options).timer("inventory_download").start();
+        long size = 0;
+        try {
+            final GetJobOutputResult jobOutputResult = client.getJobOutput(jobOutputRequest);
+            try (final InputStream in = TransferGovernor.shared(options).pace(jobOutputResult.getBody())) {
+                size = Files.copy(in, file.toPath());
+            } catch (final IOException e) {
+                throw new AmazonClientException("Unable to save inventory", e);
             }
-        } catch (final IOException e) {
-            throw new AmazonClientException("Unable to save archive", e);
+        } finally {
+            span.end(0, size, size > 0);
+        }
+        System.out.println("Retrieved inventory to " + file);
+        return file;
+    }
+
+    /**
+     * Merge an inventory file into the local catalog of a vault
+     *
+     * @param vaultName the vault
+     * @param inventory the inventory file
+     * @throws IOException the inventory could not be read, or the catalog could not be written
+     */
+    public static void catalog(final String vaultName, final File inventory) throws IOException {
+        final long start = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        final ArchiveCatalog.CatalogInfo info = new CatalogSync(vaultName).sync(inventory);
+        Metrics.shared().timer("inventory_catalog").recordSince(startNanos);
+        Metrics.shared().counter("inventory_archives").add(info.getArchiveCount());
+        if (info.getVaultArn() != null && !info.getVaultArn().endsWith("/" + vaultName)) {
+            System.out.println("WARNING: inventory " + inventory + " is of vault " + info.getVaultArn());
         }
-        System.out.println("Retrieved inventory to " + fileName);
+        System.out.println("Cataloged " + info.getArchiveCount() + " archives (" + info.getTotalSize() / (1024 * 1024) + " MB) from the inventory of "
+                + info.getInventoryDate() + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Download the output of a completed inventory job and merge it into the vault's catalog
+     *
+     * @param job the completed job
+     * @return the inventory file
+     * @throws IOException the catalog could not be written
+     */
+    public File fetch(final InventoryJob job) throws IOException {
+        final File inventory = getOutput(job);
+        catalog(job.getVault(), inventory);
+        return inventory;
     }
 
     public void inventory(final String vaultName) throws InterruptedException, IOException {
@@ -75,7 +114,7 @@ public class GlacierInventory {
         pollStatus(job);
         final long duration = System.currentTimeMillis() - start;
         System.out.printf("Job completed (at " + new Date() + " ) in %f minutes", ((double) duration) / (1000 * 60));
-        getOutput(job);
+        fetch(job);
     }
 
     public static class InventoryJob {
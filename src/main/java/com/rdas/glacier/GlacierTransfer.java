@@ -1,15 +1,7 @@
 package com.rdas.glacier;
 
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.glacier.AmazonGlacier;
-import com.amazonaws.services.glacier.AmazonGlacierClientBuilder;
-import com.amazonaws.services.glacier.transfer.ArchiveTransferManager;
-import com.amazonaws.services.glacier.transfer.ArchiveTransferManagerBuilder;
-import com.amazonaws.services.sns.AmazonSNS;
-import com.amazonaws.services.sns.AmazonSNSClientBuilder;
-import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import com.amazonaws.services.glacier.model.AmazonGlacierException;
 import com.rdas.common.ArchiveInfo;
 import com.rdas.common.Credentials;
 
@@ -18,25 +10,28 @@ import static java.util.Objects.requireNonNull;
 public abstract class GlacierTransfer {
     protected final ArchiveInfo archiveInfo;
     protected final AmazonGlacier glacierClient;
-    protected final ArchiveTransferManager archiveTransferManager;
+    protected final Credentials creds;
 
     public GlacierTransfer(final ArchiveInfo archiveInfo, final Credentials creds) {
+        this(archiveInfo, GlacierClients.shared().glacier(creds), creds);
+    }
+
+    /**
+     * Transfer using a specific client
+     */
+    protected GlacierTransfer(final ArchiveInfo archiveInfo, final AmazonGlacier glacierClient, final Credentials creds) {
         this.archiveInfo = requireNonNull(archiveInfo, "archive info is null");
+        this.glacierClient = requireNonNull(glacierClient, "glacier client is null");
+        this.creds = requireNonNull(creds, "credentials are null");
+    }
 
-        this.glacierClient = AmazonGlacierClientBuilder
-                .standard()
-                .withCredentials(new AWSStaticCredentialsProvider(
-                        new BasicAWSCredentials(creds.getAccessKeyId(), creds.getSecretAccessKey())))
-                .withRegion(creds.getRegion())
-                .build();
-        final AmazonSQS sqsClient = AmazonSQSClientBuilder.standard().withCredentials(new AWSStaticCredentialsProvider(
-                new BasicAWSCredentials(creds.getAccessKeyId(), creds.getSecretAccessKey()))).withRegion(creds.getRegion()).build();
-        final AmazonSNS snsClient = AmazonSNSClientBuilder.standard().withCredentials(new AWSStaticCredentialsProvider(
-                new BasicAWSCredentials(creds.getAccessKeyId(), creds.getSecretAccessKey()))).withRegion(creds.getRegion()).build();
-        this.archiveTransferManager = new ArchiveTransferManagerBuilder()
-                .withGlacierClient(this.glacierClient)
-                .withSqsClient(sqsClient)
-                .withSnsClient(snsClient)
-                .build();
+    /**
+     * Whether the request failed for a transient reason and may simply be tried again later
+     *
+     * @param exc the failure
+     * @return true for throttling and unavailability
+     */
+    public static boolean isTransient(final AmazonGlacierException exc) {
+        return "ServiceUnavailableException".equals(exc.getErrorCode()) || "ThrottlingException".equals(exc.getErrorCode());
     }
 }
@@ -1,9 +1,18 @@
 package com.rdas.glacier;
 
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.rdas.common.ArchiveEncoding;
 import com.rdas.common.ArchiveInfo;
 import com.rdas.common.Credentials;
+import com.rdas.common.EncodingChannel;
+import com.rdas.common.TransferOptions;
 import com.rdas.common.Utilities;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+
 import static com.rdas.common.Utilities.generateArchiveDescription;
 
 /**
@@ -11,24 +20,145 @@ import static com.rdas.common.Utilities.generateArchiveDescription;
  */
 public class GlacierUpload extends GlacierTransfer {
 
+    private final TransferOptions options;
+
+    private DedupIndex dedupIndex;
+
+    private ArchiveEncoding encoding;
+
     public GlacierUpload(final ArchiveInfo archiveInfo, final Credentials creds) {
+        this(archiveInfo, creds, TransferOptions.defaults());
+    }
+
+    public GlacierUpload(final ArchiveInfo archiveInfo, final Credentials creds, final TransferOptions options) {
         super(archiveInfo, creds);
+        this.options = options;
+    }
+
+    public GlacierUpload(final ArchiveInfo archiveInfo, final AmazonGlacier glacierClient, final Credentials creds, final TransferOptions options) {
+        super(archiveInfo, glacierClient, creds);
+        this.options = options;
+    }
+
+    /**
+     * Check for duplicates in an index shared with other uploads, instead of opening one for this upload
+     *
+     * @param dedupIndex the index of the vault
+     * @return this
+     */
+    public GlacierUpload withDedupIndex(final DedupIndex dedupIndex) {
+        this.dedupIndex = dedupIndex;
+        return this;
+    }
+
+    /**
+     * Upload the specified archive to the vault. Parts are sent in parallel as configured in the transfer options.
+     *
+     * @return The archiveId
+     * @throws IOException          the archive could not be read
+     * @throws InterruptedException interrupted while parts were in flight
+     */
+    public String upload() throws IOException, InterruptedException {
+        // the size of encoded content is only known once it has been sent
+        final long size = options.isEncoding() ? -1 : archiveInfo.getLocalArchiveFile().length();
+        return upload(new Utilities.ProgressLogger(size));
     }
 
     /**
-     * Upload the specified archive to the vault
+     * Upload the specified archive to the vault, reporting progress to the given logger. With dedup enabled, an
+     * archive with the same content is returned instead if the vault has one. With compression or encryption
+     * enabled, the file is encoded while it is uploaded.
      *
      * @return The archiveId
+     * @throws IOException          the archive could not be read
+     * @throws InterruptedException interrupted while parts were in flight
      */
-    public String upload() {
-        final Utilities.ProgressLogger progressLogger = new Utilities.ProgressLogger(archiveInfo.getLocalArchiveFile().length());
-        return archiveTransferManager.upload(
-                "-",
+    public String upload(final Utilities.ProgressLogger progressLogger) throws IOException, InterruptedException {
+        if (options.isDedup() && options.isEncoding()) {
+            throw new IllegalArgumentException("Encoded uploads cannot be deduplicated. Turn off glacierman.dedup, or compression and encryption");
+        }
+        if (encoding().isEnabled()) {
+            try (final FileChannel in = FileChannel.open(archiveInfo.getLocalArchiveFile().toPath(), StandardOpenOption.READ)) {
+                return uploadEncoded(in, progressLogger);
+            }
+        }
+        final MultipartUploader uploader = new MultipartUploader(glacierClient, options);
+        MultipartUploader.PartHashes hashes = null;
+        if (options.isDedup()) {
+            hashes = uploader.hashParts(archiveInfo.getLocalArchiveFile());
+            final String existing = findDuplicate(hashes);
+            if (existing != null) {
+                System.out.println(archiveInfo.getLocalArchiveFile() + " is already archived with the same content, skipping upload");
+                return existing;
+            }
+        }
+        return uploader.upload(
                 archiveInfo.getVaultName(),
                 generateArchiveDescription(archiveInfo.getLocalArchiveFile()),
                 archiveInfo.getLocalArchiveFile(),
-                progressLogger::logProgress
-        ).getArchiveId();
+                hashes,
+                progressLogger
+        );
+    }
+
+    /**
+     * Upload a stream, such as the output of tar or pg_dump, without writing it to disk first. The archive is
+     * described as if it was uploaded from the local file, which does not need to exist. Duplicates are not checked,
+     * since the content is only known once it has been sent.
+     *
+     * @param in the stream
+     * @return The archiveId
+     * @throws IOException          the stream could not be read
+     * @throws InterruptedException interrupted while parts were in flight
+     */
+    public String upload(final ReadableByteChannel in) throws IOException, InterruptedException {
+        if (encoding().isEnabled()) {
+            return uploadEncoded(in, new Utilities.ProgressLogger(-1));
+        }
+        return new MultipartUploader(glacierClient, options).upload(
+                archiveInfo.getVaultName(),
+                generateArchiveDescription(archiveInfo.getLocalArchiveFile()),
+                in,
+                new Utilities.ProgressLogger(-1)
+        );
     }
 
+    /**
+     * Compress and/or encrypt the content on all cores while its parts are uploaded. Encoded content is different
+     * every time, so it is uploaded like a stream: it is neither deduplicated nor resumed.
+     */
+    private String uploadEncoded(final ReadableByteChannel in, final Utilities.ProgressLogger progressLogger) throws IOException, InterruptedException {
+        final ArchiveEncoding encoding = encoding();
+        try (final EncodingChannel encoded = encoding.encode(in)) {
+            final String archiveId = new MultipartUploader(glacierClient, options).upload(
+                    archiveInfo.getVaultName(),
+                    generateArchiveDescription(archiveInfo.getLocalArchiveFile(), encoding.getName()),
+                    encoded,
+                    progressLogger
+            );
+            System.out.println(String.format("Encoded %.1f MB into %.1f MB (%s)", encoded.getPlainBytes() / (double) TransferOptions.MB,
+                    encoded.getEncodedBytes() / (double) TransferOptions.MB, encoding.getName()));
+            return archiveId;
+        }
+    }
+
+    private ArchiveEncoding encoding() throws IOException {
+        if (encoding == null) {
+            encoding = ArchiveEncoding.fromOptions(options);
+        }
+        return encoding;
+    }
+
+    /**
+     * Look for an archive with the same content. The part hashes are reused for the upload if there is none, so the
+     * file is only hashed once.
+     */
+    private String findDuplicate(final MultipartUploader.PartHashes hashes) throws IOException {
+        if (dedupIndex != null) {
+            return dedupIndex.find(hashes.getTreeHash(), hashes.getSize());
+        }
+        try (final DedupIndex index = DedupIndex.forVault(archiveInfo.getVaultName())) {
+            return index.find(hashes.getTreeHash(), hashes.getSize());
+        }
+    }
 }
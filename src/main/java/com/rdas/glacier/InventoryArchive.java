@@ -0,0 +1,56 @@
+package com.rdas.glacier;
+
+import java.time.Instant;
+
+/**
+ * One archive of a vault inventory
+ */
+public class InventoryArchive {
+    private String archiveId;
+    private String description;
+    private long creationTime;
+    private long size;
+    private String treeHash;
+
+    public InventoryArchive() {
+        // required for deserialization
+    }
+
+    public InventoryArchive(final String archiveId, final String description, final long creationTime, final long size, final String treeHash) {
+        this.archiveId = archiveId;
+        this.description = description;
+        this.creationTime = creationTime;
+        this.size = size;
+        this.treeHash = treeHash;
+    }
+
+    public String getArchiveId() {
+        return archiveId;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return when the archive was created, in milliseconds since the epoch
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * @return when the archive was created, in the ISO 8601 format of the inventory
+     */
+    public String getCreationDate() {
+        return Instant.ofEpochMilli(creationTime).toString();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getTreeHash() {
+        return treeHash;
+    }
+}
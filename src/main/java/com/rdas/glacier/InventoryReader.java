@@ -0,0 +1,140 @@
+package com.rdas.glacier;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Reads a vault inventory one archive at a time, so that inventories of millions of archives never have to fit in
+ * memory
+ */
+public class InventoryReader implements Closeable {
+
+    private final JsonReader reader;
+    private String vaultArn;
+    private String inventoryDate;
+    private boolean inArchiveList;
+
+    public InventoryReader(final Reader in) throws IOException {
+        this.reader = new JsonReader(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if ("ArchiveList".equals(name)) {
+                reader.beginArray();
+                inArchiveList = true;
+                return;
+            }
+            readHeader(name);
+        }
+    }
+
+    /**
+     * Read an inventory file, as written by the inventory command
+     *
+     * @param file the inventory
+     * @return the reader
+     * @throws IOException the file could not be opened, or is not an inventory
+     */
+    public static InventoryReader open(final File file) throws IOException {
+        final Reader in = new InputStreamReader(new BufferedInputStream(new FileInputStream(file), 1 << 16), StandardCharsets.UTF_8);
+        try {
+            return new InventoryReader(in);
+        } catch (final IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the ARN of the vault, once read
+     */
+    public String getVaultArn() {
+        return vaultArn;
+    }
+
+    /**
+     * @return when the inventory was taken, once read
+     */
+    public String getInventoryDate() {
+        return inventoryDate;
+    }
+
+    /**
+     * Read the next archive
+     *
+     * @return the archive, or null at the end of the inventory
+     * @throws IOException the inventory could not be read
+     */
+    public InventoryArchive next() throws IOException {
+        if (!inArchiveList) {
+            return null;
+        }
+        if (!reader.hasNext()) {
+            reader.endArray();
+            inArchiveList = false;
+            while (reader.hasNext()) {
+                readHeader(reader.nextName());
+            }
+            return null;
+        }
+        String archiveId = null;
+        String description = null;
+        long creationTime = 0;
+        long size = 0;
+        String treeHash = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "ArchiveId":
+                    archiveId = nextString();
+                    break;
+                case "ArchiveDescription":
+                    description = nextString();
+                    break;
+                case "CreationDate":
+                    creationTime = Instant.parse(nextString()).toEpochMilli();
+                    break;
+                case "Size":
+                    size = reader.nextLong();
+                    break;
+                case "SHA256TreeHash":
+                    treeHash = nextString();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (archiveId == null) {
+            throw new IOException("Archive without an ID at " + reader);
+        }
+        return new InventoryArchive(archiveId, description == null ? "" : description, creationTime, size, treeHash);
+    }
+
+    private void readHeader(final String name) throws IOException {
+        if ("VaultARN".equals(name)) {
+            vaultArn = nextString();
+        } else if ("InventoryDate".equals(name)) {
+            inventoryDate = nextString();
+        } else {
+            reader.skipValue();
+        }
+    }
+
+    private String nextString() throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,183 @@
+package com.rdas.glacier;
+
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.glacier.model.GetVaultNotificationsRequest;
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+import com.amazonaws.services.glacier.model.VaultNotificationConfig;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Receives Glacier job completion notifications. A private SQS queue is subscribed to the SNS topic Glacier notifies,
+ * and long-polled, so a job is noticed within seconds of finishing. The queue and subscription are removed on close.
+ */
+public class JobNotifications implements Closeable {
+
+    private static final int WAIT_TIME_SECONDS = 20;
+
+    private final AmazonSQS sqsClient;
+    private final AmazonSNS snsClient;
+    private final String queueUrl;
+    private final String subscriptionArn;
+
+    /**
+     * Create the queue and subscribe it to the topic
+     *
+     * @param sqsClient the SQS client
+     * @param snsClient the SNS client
+     * @param topicArn  the topic Glacier publishes job completions to
+     */
+    public JobNotifications(final AmazonSQS sqsClient, final AmazonSNS snsClient, final String topicArn) {
+        this.sqsClient = sqsClient;
+        this.snsClient = snsClient;
+        this.queueUrl = sqsClient.createQueue("glacierman-jobs-" + UUID.randomUUID()).getQueueUrl();
+        final String queueArn = sqsClient.getQueueAttributes(new GetQueueAttributesRequest(queueUrl).withAttributeNames("QueueArn"))
+                .getAttributes().get("QueueArn");
+        sqsClient.setQueueAttributes(queueUrl, Collections.singletonMap("Policy", allowTopicPolicy(queueArn, topicArn)));
+        this.subscriptionArn = snsClient.subscribe(topicArn, "sqs", queueArn).getSubscriptionArn();
+    }
+
+    /**
+     * Find the topic the vault sends job completion notifications to
+     *
+     * @param glacierClient the client
+     * @param vaultName     the vault
+     * @return the topic ARN, or null if the vault has no notifications configured
+     */
+    public static String vaultTopic(final AmazonGlacier glacierClient, final String vaultName) {
+        try {
+            final VaultNotificationConfig config = glacierClient.getVaultNotifications(new GetVaultNotificationsRequest().withVaultName(vaultName))
+                    .getVaultNotificationConfig();
+            return config == null ? null : config.getSNSTopic();
+        } catch (final ResourceNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Wait up to 20 seconds for notifications
+     *
+     * @return the job events received, possibly none
+     */
+    public List<JobEvent> receive() {
+        final List<JobEvent> events = new ArrayList<>();
+        final List<Message> messages = sqsClient.receiveMessage(new ReceiveMessageRequest(queueUrl)
+                .withWaitTimeSeconds(WAIT_TIME_SECONDS)
+                .withMaxNumberOfMessages(10)).getMessages();
+        for (final Message message : messages) {
+            final JobEvent event = parse(message.getBody());
+            if (event != null) {
+                events.add(event);
+            }
+            sqsClient.deleteMessage(queueUrl, message.getReceiptHandle());
+        }
+        return events;
+    }
+
+    /**
+     * Parse a notification, either wrapped in an SNS envelope or delivered raw
+     *
+     * @param body the message body
+     * @return the event, or null if the message is not a Glacier job notification
+     */
+    static JobEvent parse(final String body) {
+        try {
+            JsonObject json = JsonParser.parseString(body).getAsJsonObject();
+            final JsonElement wrapped = json.get("Message");
+            if (wrapped != null && wrapped.isJsonPrimitive()) {
+                json = JsonParser.parseString(wrapped.getAsString()).getAsJsonObject();
+            }
+            if (!json.has("JobId")) {
+                return null;
+            }
+            return new JobEvent(
+                    json.get("JobId").getAsString(),
+                    json.has("Completed") && json.get("Completed").getAsBoolean(),
+                    stringOrNull(json, "StatusCode"),
+                    stringOrNull(json, "StatusMessage"));
+        } catch (final JsonSyntaxException | IllegalStateException e) {
+            return null;
+        }
+    }
+
+    private static String stringOrNull(final JsonObject json, final String member) {
+        final JsonElement element = json.get(member);
+        return element == null || element.isJsonNull() ? null : element.getAsString();
+    }
+
+    private static String allowTopicPolicy(final String queueArn, final String topicArn) {
+        final JsonObject sourceArn = new JsonObject();
+        sourceArn.addProperty("aws:SourceArn", topicArn);
+        final JsonObject condition = new JsonObject();
+        condition.add("ArnEquals", sourceArn);
+        final JsonObject principal = new JsonObject();
+        principal.addProperty("Service", "sns.amazonaws.com");
+
+        final JsonObject statement = new JsonObject();
+        statement.addProperty("Effect", "Allow");
+        statement.add("Principal", principal);
+        statement.addProperty("Action", "sqs:SendMessage");
+        statement.addProperty("Resource", queueArn);
+        statement.add("Condition", condition);
+        final JsonArray statements = new JsonArray();
+        statements.add(statement);
+
+        final JsonObject policy = new JsonObject();
+        policy.addProperty("Version", "2012-10-17");
+        policy.add("Statement", statements);
+        return policy.toString();
+    }
+
+    @Override
+    public void close() {
+        try {
+            snsClient.unsubscribe(subscriptionArn);
+        } finally {
+            sqsClient.deleteQueue(queueUrl);
+        }
+    }
+
+    public static class JobEvent {
+        private final String jobId;
+        private final boolean completed;
+        private final String statusCode;
+        private final String statusMessage;
+
+        public JobEvent(final String jobId, final boolean completed, final String statusCode, final String statusMessage) {
+            this.jobId = jobId;
+            this.completed = completed;
+            this.statusCode = statusCode;
+            this.statusMessage = statusMessage;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        public String getStatusCode() {
+            return statusCode;
+        }
+
+        public String getStatusMessage() {
+            return statusMessage;
+        }
+    }
+}
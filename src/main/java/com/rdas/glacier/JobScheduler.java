@@ -0,0 +1,340 @@
+package com.rdas.glacier;
+
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.glacier.model.*;
+import com.rdas.common.Credentials;
+import com.rdas.common.Metrics;
+import com.rdas.common.TransferOptions;
+
+import java.io.Closeable;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Waits for the jobs of one vault.
+ * <p>
+ * When notifications are available, completions arrive through {@link JobNotifications} and jobs wake within seconds
+ * of finishing; polling then only runs as a rare safety net. Otherwise jobs are polled adaptively, sparsely while
+ * their tier's expected latency has not passed and more often afterwards. A poll of a few jobs uses DescribeJob;
+ * a poll of many is a single ListJobs sweep over the vault's jobs, after which the jobs it did not list, e.g. because
+ * they expired, are described one by one. An error about one job, such as an unknown job id, only fails that job.
+ * <p>
+ * Every job is also described once as soon as it is tracked, so a job started earlier, e.g. by a previous run, is
+ * found if it is done already and is otherwise polled by how long ago Glacier created it.
+ */
+public class JobScheduler implements Closeable {
+
+    private static final int DESCRIBE_JOB_LIMIT = 3;
+    private static final long NOTIFIED_POLL_INTERVAL = TimeUnit.MINUTES.toMillis(30);
+    private static final long MIN_BACKOFF = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(15);
+
+    private final AmazonGlacier glacierClient;
+    private final String vaultName;
+    private final JobNotifications notifications;
+    private final double timeScale;
+    private final Metrics.Timer jobWaits = Metrics.shared().timer("job_wait");
+    private final LongAdder polls = Metrics.shared().counter("job_polls");
+    private final LongAdder failedJobs = Metrics.shared().counter("job_failures");
+    private final Map<String, TrackedJob> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "job-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> nextPoll;
+    private long nextPollAt = Long.MAX_VALUE;
+    private long backoff;
+    private volatile boolean closed;
+
+    /**
+     * @param glacierClient the client
+     * @param vaultName     the vault whose jobs are tracked
+     * @param notifications source of completion notifications, or null to rely on polling
+     */
+    public JobScheduler(final AmazonGlacier glacierClient, final String vaultName, final JobNotifications notifications) {
+        this(glacierClient, vaultName, notifications, 1);
+    }
+
+    /**
+     * @param glacierClient the client
+     * @param vaultName     the vault whose jobs are tracked
+     * @param notifications source of completion notifications, or null to rely on polling
+     * @param timeScale     fraction of the tiers' latencies that jobs are expected to take
+     */
+    public JobScheduler(final AmazonGlacier glacierClient, final String vaultName, final JobNotifications notifications, final double timeScale) {
+        this.glacierClient = glacierClient;
+        this.vaultName = vaultName;
+        this.notifications = notifications;
+        this.timeScale = timeScale;
+        if (notifications != null) {
+            final Thread listener = new Thread(this::listen, "job-notifications");
+            listener.setDaemon(true);
+            listener.start();
+        }
+    }
+
+    /**
+     * Build a scheduler for the vault, using notifications if they are enabled in the options and a topic is known
+     *
+     * @param glacierClient the client
+     * @param vaultName     the vault
+     * @param creds         credentials for the SQS and SNS clients
+     * @param options       transfer options
+     * @return the scheduler
+     */
+    public static JobScheduler forVault(final AmazonGlacier glacierClient, final String vaultName, final Credentials creds, final TransferOptions options) {
+        if (options.isNotifications()) {
+            final String topic = options.getSnsTopic() != null ? options.getSnsTopic() : JobNotifications.vaultTopic(glacierClient, vaultName);
+            if (topic != null) {
+                System.out.println("Listening for job notifications from " + topic);
+                return new JobScheduler(glacierClient, vaultName,
+                        new JobNotifications(GlacierClients.shared().sqs(creds), GlacierClients.shared().sns(creds), topic), options.getTimeScale());
+            }
+            System.out.println("Vault " + vaultName + " has no notification topic. Polling for job completion instead");
+        }
+        return new JobScheduler(glacierClient, vaultName, null, options.getTimeScale());
+    }
+
+    /**
+     * Track a job
+     *
+     * @param jobId the job
+     * @param tier  the job's retrieval tier, which decides how often it is polled
+     * @return completes when the job succeeds, or exceptionally when it fails
+     */
+    public CompletableFuture<Void> track(final String jobId, final RetrievalTier tier) {
+        final TrackedJob created = new TrackedJob(tier);
+        final TrackedJob job = pending.computeIfAbsent(jobId, id -> created);
+        if (job == created && !closed) {
+            poller.execute(() -> first(jobId));
+        }
+        return job.done;
+    }
+
+    /**
+     * Wait for a single job
+     *
+     * @param jobId the job
+     * @param tier  the job's retrieval tier
+     * @throws InterruptedException interrupted while waiting
+     */
+    public void await(final String jobId, final RetrievalTier tier) throws InterruptedException {
+        try {
+            track(jobId, tier).get();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return number of jobs still running
+     */
+    public int pendingJobs() {
+        return pending.size();
+    }
+
+    /**
+     * Schedule the next poll for when the most urgent job is due
+     */
+    private synchronized void reschedule() {
+        if (closed || pending.isEmpty()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        long delay = Long.MAX_VALUE;
+        for (final TrackedJob job : pending.values()) {
+            delay = Math.min(delay, (long) (job.tier.nextPollDelayMillis((long) ((now - job.startedAt) / timeScale)) * timeScale));
+        }
+        if (notifications != null) {
+            delay = Math.max(delay, NOTIFIED_POLL_INTERVAL);
+        }
+        delay = Math.max(delay, backoff);
+        if (nextPoll != null && !nextPoll.isDone() && nextPollAt <= now + delay) {
+            return;
+        }
+        if (nextPoll != null) {
+            nextPoll.cancel(false);
+        }
+        nextPollAt = now + delay;
+        nextPoll = poller.schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        polls.increment();
+        try {
+            if (pending.size() <= DESCRIBE_JOB_LIMIT) {
+                for (final String jobId : pending.keySet()) {
+                    describe(jobId);
+                }
+                System.out.print(".");
+            } else {
+                sweep();
+                System.out.println("Waiting for " + pending.size() + " jobs to complete");
+            }
+            synchronized (this) {
+                backoff = 0;
+            }
+        } catch (final AmazonGlacierException exc) {
+            if (!GlacierTransfer.isTransient(exc)) {
+                // errors about single jobs are handled by describe(), so this one is about the vault
+                failAll(exc);
+            } else {
+                // the governor has already seen the throttling; polls back off until Glacier accepts them again
+                synchronized (this) {
+                    backoff = Math.min(MAX_BACKOFF, Math.max(MIN_BACKOFF, backoff * 2));
+                    System.out.print("(" + exc.getErrorCode() + " while polling, next poll in " + TimeUnit.MILLISECONDS.toSeconds(backoff) + " s)");
+                }
+            }
+        } finally {
+            synchronized (this) {
+                nextPoll = null;
+            }
+            reschedule();
+        }
+    }
+
+    /**
+     * List all jobs of the vault, running and completed, and describe the pending ones the list lacks. Those are
+     * typically gone, and their DescribeJob fails with ResourceNotFound.
+     */
+    private void sweep() {
+        final Set<String> listed = new HashSet<>();
+        String marker = null;
+        do {
+            final ListJobsResult result = glacierClient.listJobs(new ListJobsRequest()
+                    .withVaultName(vaultName)
+                    .withMarker(marker));
+            for (final GlacierJobDescription job : result.getJobList()) {
+                listed.add(job.getJobId());
+                update(job.getJobId(), job.getCompleted(), job.getStatusCode(), job.getStatusMessage());
+            }
+            marker = result.getMarker();
+        } while (marker != null && !pending.isEmpty());
+        for (final String jobId : pending.keySet()) {
+            if (!listed.contains(jobId)) {
+                describe(jobId);
+            }
+        }
+    }
+
+    /**
+     * Describe a newly tracked job right away. It may have been started long before, e.g. by an earlier run, so it may
+     * be done already, and its polls are timed from when Glacier created it rather than from now.
+     */
+    private void first(final String jobId) {
+        try {
+            final DescribeJobResult result = describe(jobId);
+            final TrackedJob job = pending.get(jobId);
+            if (result != null && job != null && result.getCreationDate() != null) {
+                job.startedAt = Math.min(job.startedAt, Instant.parse(result.getCreationDate()).toEpochMilli());
+            }
+        } catch (final AmazonGlacierException | DateTimeParseException exc) {
+            // throttled, or an odd date: the job is polled as if it started now
+        } finally {
+            reschedule();
+        }
+    }
+
+    /**
+     * Poll one job. A transient error is thrown so that polls back off; any other error fails only this job.
+     *
+     * @return the job's description, or null if the job failed
+     */
+    private DescribeJobResult describe(final String jobId) {
+        final DescribeJobResult job;
+        try {
+            job = glacierClient.describeJob(new DescribeJobRequest().withVaultName(vaultName).withJobId(jobId));
+        } catch (final AmazonGlacierException exc) {
+            if (GlacierTransfer.isTransient(exc)) {
+                throw exc;
+            }
+            fail(jobId, exc);
+            return null;
+        }
+        update(jobId, job.getCompleted(), job.getStatusCode(), job.getStatusMessage());
+        return job;
+    }
+
+    private void listen() {
+        while (!closed) {
+            try {
+                for (final JobNotifications.JobEvent event : notifications.receive()) {
+                    update(event.getJobId(), event.isCompleted(), event.getStatusCode(), event.getStatusMessage());
+                }
+            } catch (final RuntimeException e) {
+                if (closed) {
+                    return;
+                }
+                System.out.println("Could not receive job notifications: " + e.getMessage());
+                try {
+                    TimeUnit.SECONDS.sleep(5);
+                } catch (final InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void update(final String jobId, final Boolean completed, final String statusCode, final String statusMessage) {
+        if (!Boolean.TRUE.equals(completed)) {
+            return;
+        }
+        final TrackedJob job = pending.remove(jobId);
+        if (job == null) {
+            return;
+        }
+        jobWaits.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - job.startedAt));
+        if ("Failed".equalsIgnoreCase(statusCode)) {
+            failedJobs.increment();
+            job.done.completeExceptionally(new RuntimeException("Job failed! Status message: " + statusMessage));
+        } else {
+            job.done.complete(null);
+        }
+    }
+
+    private void fail(final String jobId, final Exception exc) {
+        final TrackedJob job = pending.remove(jobId);
+        if (job != null) {
+            failedJobs.increment();
+            job.done.completeExceptionally(exc);
+        }
+    }
+
+    private void failAll(final Exception exc) {
+        for (final String jobId : pending.keySet()) {
+            fail(jobId, exc);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        poller.shutdownNow();
+        for (final TrackedJob job : pending.values()) {
+            job.done.cancel(false);
+        }
+        pending.clear();
+        if (notifications != null) {
+            notifications.close();
+        }
+    }
+
+    private static class TrackedJob {
+        private final RetrievalTier tier;
+        private volatile long startedAt = System.currentTimeMillis();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private TrackedJob(final RetrievalTier tier) {
+            this.tier = tier;
+        }
+    }
+}
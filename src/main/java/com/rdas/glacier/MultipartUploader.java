@@ -0,0 +1,586 @@
+package com.rdas.glacier;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.glacier.model.*;
+import com.amazonaws.util.BinaryUtils;
+import com.rdas.common.ArchiveSource;
+import com.rdas.common.BufferPool;
+import com.rdas.common.ByteBufferInputStream;
+import com.rdas.common.FileArchiveSource;
+import com.rdas.common.Metrics;
+import com.rdas.common.ParallelTreeHash;
+import com.rdas.common.TransferOptions;
+import com.rdas.common.TreeHash;
+import com.rdas.common.Utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads a file to Glacier as a multipart upload, sending several parts at once. How many are in flight is decided
+ * by the shared {@link TransferGovernor}.
+ * <p>
+ * Progress is checkpointed in a {@link PartJournal}. If an upload is interrupted, running it again picks up the same
+ * multipart upload and only sends the parts that Glacier does not have yet.
+ */
+public class MultipartUploader {
+
+    private static final int MAX_PARTS = 10_000;
+    private static final long MAX_PART_SIZE = 4096 * TransferOptions.MB;
+
+    private final AmazonGlacier glacierClient;
+    private final TransferOptions options;
+    private final TransferGovernor governor;
+    private final Metrics.Timer partUploads;
+    private final Metrics.Timer partReads;
+    private final Metrics.Timer streamReads;
+    private final Metrics.Timer streamHashes;
+
+    public MultipartUploader(final AmazonGlacier glacierClient, final TransferOptions options) {
+        this.glacierClient = glacierClient;
+        this.options = options;
+        this.governor = TransferGovernor.shared(options);
+        final Metrics metrics = Metrics.shared(options);
+        this.partUploads = metrics.timer("upload_part");
+        // parts of files are mapped, so reading them from disk happens while they are hashed
+        this.partReads = metrics.timer("upload_read_hash");
+        this.streamReads = metrics.timer("upload_stream_read");
+        this.streamHashes = metrics.timer("upload_hash");
+    }
+
+    /**
+     * Upload the file as a new archive, or finish a previously interrupted upload of it
+     *
+     * @param vaultName      destination vault
+     * @param description    archive description
+     * @param file           the local file
+     * @param progressLogger receives transfer progress of all parts
+     * @return the archiveId
+     * @throws IOException          the file could not be read
+     * @throws InterruptedException interrupted while waiting for parts
+     */
+    public String upload(final String vaultName, final String description, final File file, final Utilities.ProgressLogger progressLogger) throws IOException, InterruptedException {
+        return upload(vaultName, description, file, null, progressLogger);
+    }
+
+    /**
+     * Upload the file as a new archive, or finish a previously interrupted upload of it, with the tree hashes of its
+     * parts already computed by {@link #hashParts(File)}, so the parts are read but not hashed again
+     *
+     * @param vaultName      destination vault
+     * @param description    archive description
+     * @param file           the local file
+     * @param hashes         the file's part hashes, or null to hash the parts while uploading them
+     * @param progressLogger receives transfer progress of all parts
+     * @return the archiveId
+     * @throws IOException          the file could not be read
+     * @throws InterruptedException interrupted while waiting for parts
+     */
+    public String upload(final String vaultName, final String description, final File file, final PartHashes hashes,
+                         final Utilities.ProgressLogger progressLogger) throws IOException, InterruptedException {
+        try (final ArchiveSource source = new FileArchiveSource(file)) {
+            return upload(vaultName, description, source, journalFileFor(file), hashes, progressLogger);
+        }
+    }
+
+    /**
+     * Tree hash a file in one pass on all cores, part by part as it would be uploaded, e.g. to look for an archive
+     * with the same content before uploading it
+     *
+     * @param file the local file
+     * @return the hashes of the file's parts
+     * @throws IOException the file could not be read
+     */
+    public PartHashes hashParts(final File file) throws IOException {
+        final Metrics.Span span = streamHashes.start();
+        long size = 0;
+        boolean hashed = false;
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            size = channel.size();
+            final long partSize = partSizeFor(size);
+            // parts are a power of two of leaves, so the subtree of each part's leaves is the part's tree hash
+            final List<byte[]> hashes = ParallelTreeHash.blocks(channel, size, (int) (partSize / TreeHash.CHUNK_SIZE));
+            hashed = true;
+            return new PartHashes(size, partSize, hashes);
+        } finally {
+            span.end(0, size, hashed);
+        }
+    }
+
+    /**
+     * Upload the source as a new archive, or finish a previously interrupted upload of it
+     *
+     * @param vaultName      destination vault
+     * @param description    archive description
+     * @param source         the archive's bytes
+     * @param journalFile    where to checkpoint the upload
+     * @param progressLogger receives transfer progress of all parts
+     * @return the archiveId
+     * @throws IOException          the source could not be read
+     * @throws InterruptedException interrupted while waiting for parts
+     */
+    public String upload(final String vaultName, final String description, final ArchiveSource source, final File journalFile,
+                         final Utilities.ProgressLogger progressLogger) throws IOException, InterruptedException {
+        return upload(vaultName, description, source, journalFile, null, progressLogger);
+    }
+
+    private String upload(final String vaultName, final String description, final ArchiveSource source, final File journalFile,
+                          final PartHashes hashes, final Utilities.ProgressLogger progressLogger) throws IOException, InterruptedException {
+        final long archiveSize = source.size();
+        if (archiveSize == 0) {
+            throw new IllegalArgumentException("Cannot upload an empty archive: " + description);
+        }
+        final PartJournal<UploadHeader> journal = openJournal(vaultName, description, archiveSize, source.lastModified(), journalFile);
+        final String uploadId = journal.getHeader().getUploadId();
+        final long partSize = journal.getHeader().getPartSize();
+        final Map<Long, PartJournal.Part> completed = journal.getParts();
+        final boolean hashed = hashes != null && hashes.size == archiveSize && hashes.partSize == partSize;
+
+        progressLogger.logProgress(new ProgressEvent(ProgressEventType.TRANSFER_STARTED_EVENT));
+        final ExecutorService workers = Executors.newFixedThreadPool(governor.getMaxConcurrency());
+        boolean uploaded = false;
+        try {
+            final List<Future<byte[]>> parts = new ArrayList<>();
+            long resumedBytes = 0;
+            for (long offset = 0; offset < archiveSize; offset += partSize) {
+                final long start = offset;
+                final long length = Math.min(partSize, archiveSize - offset);
+                final PartJournal.Part done = completed.get(start);
+                if (done != null && done.getEnd() == start + length - 1) {
+                    parts.add(CompletableFuture.completedFuture(BinaryUtils.fromHex(done.getTreeHash())));
+                    resumedBytes += length;
+                } else {
+                    final byte[] known = hashed ? hashes.hashes.get((int) (start / partSize)) : null;
+                    parts.add(workers.submit(() -> uploadPart(vaultName, uploadId, source, start, length, known, journal, progressLogger)));
+                }
+            }
+            if (resumedBytes > 0) {
+                System.out.print("Resuming with " + resumedBytes / TransferOptions.MB + " MB already uploaded...");
+                progressLogger.resumeFrom(resumedBytes);
+            }
+
+            final List<byte[]> checksums = new ArrayList<>(parts.size());
+            for (final Future<byte[]> part : parts) {
+                checksums.add(part.get());
+            }
+            final String treeHash = BinaryUtils.toHex(TreeHash.combine(checksums));
+            final String archiveId = glacierClient.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest()
+                            .withVaultName(vaultName)
+                            .withUploadId(uploadId)
+                            .withArchiveSize(String.valueOf(archiveSize))
+                            .withChecksum(treeHash)
+            ).getArchiveId();
+            progressLogger.logProgress(new ProgressEvent(ProgressEventType.TRANSFER_COMPLETED_EVENT));
+            uploaded = true;
+            PendingChanges.forVault(vaultName).recordQuietly(new PendingChanges.Change(PendingChanges.UPLOAD, archiveId, description, archiveSize, treeHash));
+            return archiveId;
+        } catch (final ExecutionException e) {
+            System.out.println("Upload interrupted. Run the upload again to resume upload " + uploadId);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Part upload failed", e.getCause());
+        } finally {
+            // parts still in flight record into the journal, so it is only closed once they have stopped
+            workers.shutdownNow();
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } finally {
+                if (uploaded) {
+                    journal.delete();
+                } else {
+                    journal.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The part size to upload an archive with: the configured one, doubled until the archive fits in Glacier's
+     * {@value #MAX_PARTS} parts
+     */
+    private long partSizeFor(final long archiveSize) {
+        long partSize = options.getPartSizeBytes();
+        while ((archiveSize + partSize - 1) / partSize > MAX_PARTS) {
+            partSize *= 2;
+        }
+        if (partSize > MAX_PART_SIZE) {
+            throw new IllegalArgumentException("Archive of " + archiveSize + " bytes does not fit in " + MAX_PARTS + " parts of at most 4 GB");
+        }
+        return partSize;
+    }
+
+    /**
+     * Reuse the journal of an earlier attempt if Glacier still knows the upload, otherwise start a new multipart upload.
+     * A journal of a file that was modified since is discarded and its upload aborted, since the parts already sent
+     * may hold the old content.
+     */
+    private PartJournal<UploadHeader> openJournal(final String vaultName, final String description, final long archiveSize, final long lastModified,
+                                                  final File journalFile) throws IOException {
+        final PartJournal<UploadHeader> existing = PartJournal.load(journalFile, UploadHeader.class);
+        if (existing != null) {
+            if (existing.getHeader().getUploadId() != null && existing.getHeader().matches(vaultName, description, archiveSize, lastModified)
+                    && (archiveSize + existing.getHeader().getPartSize() - 1) / existing.getHeader().getPartSize() <= MAX_PARTS) {
+                final Map<Long, String> remoteParts = listParts(vaultName, existing.getHeader().getUploadId());
+                if (remoteParts != null) {
+                    for (final PartJournal.Part part : existing.getParts().values()) {
+                        if (!part.getTreeHash().equals(remoteParts.get(part.getStart()))) {
+                            existing.forget(part.getStart());
+                        }
+                    }
+                    System.out.println("Found upload journal for multipart upload " + existing.getHeader().getUploadId());
+                    return existing;
+                }
+                System.out.println("Multipart upload " + existing.getHeader().getUploadId() + " no longer exists. Starting over");
+            } else {
+                System.out.println("Upload journal " + journalFile + " is for a different or modified archive. Starting over");
+                abandon(existing.getHeader());
+            }
+            existing.close();
+        }
+
+        final long partSize = partSizeFor(archiveSize);
+        if (partSize != options.getPartSizeBytes()) {
+            System.out.println("Using " + partSize / TransferOptions.MB + " MB parts to stay within " + MAX_PARTS + " parts");
+        }
+        final String uploadId = glacierClient.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest()
+                        .withVaultName(vaultName)
+                        .withArchiveDescription(description)
+                        .withPartSize(String.valueOf(partSize))
+        ).getUploadId();
+        return PartJournal.create(journalFile, new UploadHeader(vaultName, description, archiveSize, lastModified, partSize, uploadId));
+    }
+
+    /**
+     * Abort the multipart upload of a discarded journal, so its parts are not kept
+     */
+    private void abandon(final UploadHeader header) {
+        if (header.getUploadId() == null || header.getVaultName() == null) {
+            return;
+        }
+        try {
+            glacierClient.abortMultipartUpload(new AbortMultipartUploadRequest().withVaultName(header.getVaultName()).withUploadId(header.getUploadId()));
+            System.out.println("Aborted multipart upload " + header.getUploadId());
+        } catch (final ResourceNotFoundException e) {
+            // already gone
+        } catch (final RuntimeException e) {
+            System.out.println("Multipart upload " + header.getUploadId() + " could not be aborted: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The journal file used for uploading the given local file
+     *
+     * @param archiveFile the file being uploaded
+     * @return the journal location
+     */
+    public static File journalFileFor(final File archiveFile) {
+        // the path hash keeps files of the same name from different directories apart
+        return new File("upload_" + archiveFile.getName() + "_" + Integer.toHexString(archiveFile.getAbsolutePath().hashCode()) + ".jsonl");
+    }
+
+    /**
+     * @return tree hashes of the parts Glacier has received, keyed by first byte, or null if the upload does not exist
+     */
+    private Map<Long, String> listParts(final String vaultName, final String uploadId) {
+        final Map<Long, String> parts = new HashMap<>();
+        String marker = null;
+        try {
+            do {
+                final ListPartsResult result = glacierClient.listParts(new ListPartsRequest()
+                        .withVaultName(vaultName)
+                        .withUploadId(uploadId)
+                        .withMarker(marker));
+                for (final PartListElement part : result.getParts()) {
+                    final String range = part.getRangeInBytes();
+                    parts.put(Long.parseLong(range.substring(0, range.indexOf('-'))), part.getSHA256TreeHash());
+                }
+                marker = result.getMarker();
+            } while (marker != null);
+        } catch (final ResourceNotFoundException e) {
+            return null;
+        }
+        return parts;
+    }
+
+    private byte[] uploadPart(final String vaultName, final String uploadId, final ArchiveSource source, final long start, final long length,
+                              final byte[] knownTreeHash, final PartJournal<UploadHeader> journal, final Utilities.ProgressLogger progressLogger) throws IOException, InterruptedException {
+        // the part is only read once it has a slot, so waiting parts hold no buffers
+        final TransferGovernor.Slot slot = governor.start();
+        long sent = 0;
+        try {
+            // Glacier wants the part's tree hash in the request headers, so the part is hashed before it is sent. The
+            // source hands out the part in a buffer that is hashed and then streamed, so it is only read once.
+            final long readStart = System.nanoTime();
+            final ArchiveSource.Part part = knownTreeHash != null
+                    ? new ArchiveSource.Part(knownTreeHash, source.body(start, length))
+                    : source.part(start, length);
+            final String checksumHex = BinaryUtils.toHex(part.getTreeHash());
+            partReads.recordSince(readStart);
+            send(vaultName, uploadId, start, length, checksumHex, part.getBody(), progressLogger);
+            sent = length;
+            journal.record(new PartJournal.Part(start, start + length - 1, checksumHex));
+            return part.getTreeHash();
+        } finally {
+            governor.finish(slot, sent);
+        }
+    }
+
+    private void send(final String vaultName, final String uploadId, final long start, final long length, final String checksumHex, final InputStream body,
+                      final Utilities.ProgressLogger progressLogger) {
+        final UploadMultipartPartRequest request = new UploadMultipartPartRequest()
+                .withVaultName(vaultName)
+                .withUploadId(uploadId)
+                .withChecksum(checksumHex)
+                .withRange("bytes " + start + "-" + (start + length - 1) + "/*")
+                .withBody(governor.pace(body));
+        request.setGeneralProgressListener(progressLogger::logProgress);
+        final Metrics.Span span = partUploads.start();
+        boolean sent = false;
+        try {
+            glacierClient.uploadMultipartPart(request);
+            sent = true;
+        } finally {
+            span.end(start, sent ? length : 0, sent);
+        }
+    }
+
+    /**
+     * Upload a stream of unknown length, such as a pipe, as a new archive. Each part is read into one of a few
+     * reusable direct buffers, tree hashed and uploaded while the following parts are read, so memory use is bounded
+     * by the part size times {@link TransferOptions#getConcurrency()}.
+     * <p>
+     * A stream cannot be read a second time, so an interrupted stream upload is aborted rather than resumed.
+     *
+     * @param vaultName      destination vault
+     * @param description    archive description
+     * @param in             the stream
+     * @param progressLogger receives transfer progress of all parts
+     * @return the archiveId
+     * @throws IOException          the stream could not be read
+     * @throws InterruptedException interrupted while waiting for parts
+     */
+    public String upload(final String vaultName, final String description, final ReadableByteChannel in, final Utilities.ProgressLogger progressLogger)
+            throws IOException, InterruptedException {
+        final long partSize = options.getPartSizeBytes();
+        if (partSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Parts of a streamed upload must be smaller than 2 GB, was " + options.getPartSizeMb() + " MB");
+        }
+        final BufferPool buffers = new BufferPool((int) partSize, Math.max(2, options.getConcurrency()));
+        final String uploadId = glacierClient.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest()
+                        .withVaultName(vaultName)
+                        .withArchiveDescription(description)
+                        .withPartSize(String.valueOf(partSize))
+        ).getUploadId();
+
+        progressLogger.logProgress(new ProgressEvent(ProgressEventType.TRANSFER_STARTED_EVENT));
+        final ExecutorService workers = Executors.newFixedThreadPool(buffers.getCapacity());
+        boolean completed = false;
+        try {
+            final List<Future<byte[]>> parts = new ArrayList<>();
+            int confirmed = 0;
+            long archiveSize = 0;
+            boolean endOfStream = false;
+            while (!endOfStream) {
+                final ByteBuffer buffer = buffers.take();
+                // surface failed parts now rather than after the whole stream has been read
+                while (confirmed < parts.size() && parts.get(confirmed).isDone()) {
+                    parts.get(confirmed++).get();
+                }
+                final long readStart = System.nanoTime();
+                endOfStream = fill(in, buffer);
+                streamReads.recordSince(readStart);
+                buffer.flip();
+                if (!buffer.hasRemaining()) {
+                    buffers.give(buffer);
+                    break;
+                }
+                if (parts.size() == MAX_PARTS) {
+                    throw new IllegalArgumentException("The stream is longer than " + MAX_PARTS + " parts. Use a larger glacierman.partSizeMb");
+                }
+                final long start = archiveSize;
+                archiveSize += buffer.remaining();
+                parts.add(workers.submit(() -> uploadBuffer(vaultName, uploadId, start, buffer, buffers, progressLogger)));
+            }
+            if (archiveSize == 0) {
+                throw new IllegalArgumentException("Cannot upload an empty archive: " + description);
+            }
+
+            final List<byte[]> checksums = new ArrayList<>(parts.size());
+            for (final Future<byte[]> part : parts) {
+                checksums.add(part.get());
+            }
+            final String treeHash = BinaryUtils.toHex(TreeHash.combine(checksums));
+            final String archiveId = glacierClient.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest()
+                            .withVaultName(vaultName)
+                            .withUploadId(uploadId)
+                            .withArchiveSize(String.valueOf(archiveSize))
+                            .withChecksum(treeHash)
+            ).getArchiveId();
+            completed = true;
+            progressLogger.logProgress(new ProgressEvent(ProgressEventType.TRANSFER_COMPLETED_EVENT));
+            PendingChanges.forVault(vaultName).recordQuietly(new PendingChanges.Change(PendingChanges.UPLOAD, archiveId, description, archiveSize, treeHash));
+            return archiveId;
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Part upload failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
+            if (!completed) {
+                abort(vaultName, uploadId);
+            }
+        }
+    }
+
+    /**
+     * Read from the stream until the buffer is full
+     *
+     * @return true if the stream ended
+     */
+    private static boolean fill(final ReadableByteChannel in, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[] uploadBuffer(final String vaultName, final String uploadId, final long start, final ByteBuffer data, final BufferPool buffers,
+                                final Utilities.ProgressLogger progressLogger) throws InterruptedException {
+        try {
+            final long hashStart = System.nanoTime();
+            final TreeHash treeHash = new TreeHash();
+            treeHash.update(data.duplicate());
+            final byte[] checksum = treeHash.digest();
+            streamHashes.recordSince(hashStart);
+            final TransferGovernor.Slot slot = governor.start();
+            long sent = 0;
+            try {
+                send(vaultName, uploadId, start, data.remaining(), BinaryUtils.toHex(checksum), new ByteBufferInputStream(data), progressLogger);
+                sent = data.remaining();
+            } finally {
+                governor.finish(slot, sent);
+            }
+            return checksum;
+        } finally {
+            buffers.give(data);
+        }
+    }
+
+    private void abort(final String vaultName, final String uploadId) {
+        try {
+            glacierClient.abortMultipartUpload(new AbortMultipartUploadRequest().withVaultName(vaultName).withUploadId(uploadId));
+            System.out.println("Upload failed. Aborted multipart upload " + uploadId);
+        } catch (final RuntimeException e) {
+            System.out.println("Upload failed, and multipart upload " + uploadId + " could not be aborted: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tree hashes of the parts a file is uploaded in
+     */
+    public static class PartHashes {
+        private final long size;
+        private final long partSize;
+        private final List<byte[]> hashes;
+
+        private PartHashes(final long size, final long partSize, final List<byte[]> hashes) {
+            this.size = size;
+            this.partSize = partSize;
+            this.hashes = hashes;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return hex tree hash of the whole file
+         */
+        public String getTreeHash() {
+            return BinaryUtils.toHex(TreeHash.combine(hashes));
+        }
+    }
+
+    /**
+     * Journal header of a multipart upload
+     */
+    public static class UploadHeader {
+        private String vaultName;
+        private String archiveDescription;
+        private long archiveSize;
+        private long lastModified;
+        private long partSize;
+        private String uploadId;
+
+        public UploadHeader() {
+            // required for deserialization
+        }
+
+        public UploadHeader(final String vaultName, final String archiveDescription, final long archiveSize, final long lastModified, final long partSize,
+                            final String uploadId) {
+            this.vaultName = vaultName;
+            this.archiveDescription = archiveDescription;
+            this.archiveSize = archiveSize;
+            this.lastModified = lastModified;
+            this.partSize = partSize;
+            this.uploadId = uploadId;
+        }
+
+        /**
+         * Whether this journal belongs to an upload of the given archive, unmodified since the upload started
+         */
+        public boolean matches(final String vaultName, final String archiveDescription, final long archiveSize, final long lastModified) {
+            return vaultName.equals(this.vaultName) && archiveDescription.equals(this.archiveDescription) && archiveSize == this.archiveSize
+                    && lastModified == this.lastModified;
+        }
+
+        public String getVaultName() {
+            return vaultName;
+        }
+
+        public String getArchiveDescription() {
+            return archiveDescription;
+        }
+
+        public long getArchiveSize() {
+            return archiveSize;
+        }
+
+        /**
+         * @return modification time of the archive's content when the upload started, or 0 if unknown
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getPartSize() {
+            return partSize;
+        }
+
+        public String getUploadId() {
+            return uploadId;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.rdas.glacier;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Local index of files that were packed into larger archives, recording where in which archive each file lives so
+ * that it can be restored with a ranged retrieval.
+ * <p>
+ * The index is a JSON-lines file that only grows: the entries of a pack are appended once the pack's archive exists.
+ */
+public class PackIndex {
+
+    private static final Gson GSON = new Gson();
+
+    private final File file;
+
+    public PackIndex(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * The pack index of a vault
+     *
+     * @param vaultName the vault
+     * @return the index
+     */
+    public static PackIndex forVault(final String vaultName) {
+        return new PackIndex(new File(vaultName + "_pack_index.jsonl"));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Durably append the entries of one pack
+     *
+     * @param entries the packed files
+     * @throws IOException index could not be written
+     */
+    public synchronized void append(final List<Entry> entries) throws IOException {
+        final StringBuilder lines = new StringBuilder();
+        for (final Entry entry : entries) {
+            lines.append(GSON.toJson(entry)).append('\n');
+        }
+        try (final FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Read all entries
+     *
+     * @return the entries, in the order they were added
+     * @throws IOException index could not be read
+     */
+    public synchronized List<Entry> entries() throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        if (!file.isFile()) {
+            return entries;
+        }
+        try (final BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    entries.add(GSON.fromJson(line, Entry.class));
+                } catch (final JsonSyntaxException e) {
+                    // a torn write at the tail of the index
+                    break;
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Find where a file was packed. If it was packed more than once, the latest entry wins.
+     *
+     * @param path the local path the file was packed from
+     * @return the entry, or null if the file is not in the index
+     * @throws IOException index could not be read
+     */
+    public Entry find(final String path) throws IOException {
+        return latest().get(path);
+    }
+
+    /**
+     * Read the index into a map of where each file was last packed
+     *
+     * @return the latest entry of every path
+     * @throws IOException index could not be read
+     */
+    public Map<String, Entry> latest() throws IOException {
+        final Map<String, Entry> latest = new HashMap<>();
+        for (final Entry entry : entries()) {
+            latest.put(entry.getPath(), entry);
+        }
+        return latest;
+    }
+
+    public static class Entry {
+        private String path;
+        private String archiveId;
+        private String packDescription;
+        private long offset;
+        private long length;
+        private long lastModified;
+
+        public Entry() {
+            // required for deserialization
+        }
+
+        public Entry(final String path, final String archiveId, final String packDescription, final long offset, final long length,
+                     final long lastModified) {
+            this.path = path;
+            this.archiveId = archiveId;
+            this.packDescription = packDescription;
+            this.offset = offset;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getArchiveId() {
+            return archiveId;
+        }
+
+        public String getPackDescription() {
+            return packDescription;
+        }
+
+        /**
+         * @return offset of the file's first byte within the pack archive, or within the decoded pack if the pack's
+         * description shows it is encoded
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return modification time of the file when it was packed, or 0 if an older index did not record it
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Whether the file still has the size and modification time it had when it was packed
+         */
+        public boolean matches(final File file) {
+            return length == file.length() && lastModified == file.lastModified();
+        }
+    }
+}
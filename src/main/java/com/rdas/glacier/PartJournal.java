@@ -0,0 +1,173 @@
+package com.rdas.glacier;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Local checkpoint of a transfer that is done in parts, so that an interrupted transfer can be resumed without
+ * repeating the parts that already completed.
+ * <p>
+ * The journal is a JSON-lines file. The first line is a header describing the transfer, every following line is a
+ * completed part. Lines are only ever appended and synced to disk, so a crash can at worst lose the part that was
+ * being recorded.
+ *
+ * @param <H> the header type
+ */
+public class PartJournal<H> implements Closeable {
+
+    private static final Gson GSON = new Gson();
+
+    private final File file;
+    private final H header;
+    private final Map<Long, Part> parts = new TreeMap<>();
+    private FileOutputStream out;
+
+    private PartJournal(final File file, final H header) {
+        this.file = file;
+        this.header = header;
+    }
+
+    /**
+     * Start a new journal, replacing any existing one
+     *
+     * @param file   journal location
+     * @param header the transfer being journaled
+     * @return the journal
+     * @throws IOException journal could not be written
+     */
+    public static <H> PartJournal<H> create(final File file, final H header) throws IOException {
+        final PartJournal<H> journal = new PartJournal<>(file, header);
+        journal.out = new FileOutputStream(file, false);
+        journal.append(header);
+        return journal;
+    }
+
+    /**
+     * Load an existing journal
+     *
+     * @param file       journal location
+     * @param headerType type of the header line
+     * @return the journal, or null if there is none or it is unreadable
+     * @throws IOException journal could not be read
+     */
+    public static <H> PartJournal<H> load(final File file, final Class<H> headerType) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        PartJournal<H> journal = null;
+        try (final BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    if (journal == null) {
+                        journal = new PartJournal<>(file, GSON.fromJson(line, headerType));
+                    } else {
+                        final Part part = GSON.fromJson(line, Part.class);
+                        journal.parts.put(part.getStart(), part);
+                    }
+                } catch (final JsonSyntaxException e) {
+                    // a torn write at the tail of the journal; everything before it is intact
+                    break;
+                }
+            }
+        }
+        if (journal == null || journal.header == null) {
+            return null;
+        }
+        journal.out = new FileOutputStream(file, true);
+        return journal;
+    }
+
+    public H getHeader() {
+        return header;
+    }
+
+    /**
+     * @return completed parts keyed by their first byte
+     */
+    public synchronized Map<Long, Part> getParts() {
+        return Collections.unmodifiableMap(new TreeMap<>(parts));
+    }
+
+    /**
+     * Forget a part, e.g. because the remote side does not know about it
+     *
+     * @param start first byte of the part
+     */
+    public synchronized void forget(final long start) {
+        parts.remove(start);
+    }
+
+    /**
+     * Durably record a completed part
+     *
+     * @param part the part
+     * @throws IOException journal could not be written
+     */
+    public synchronized void record(final Part part) throws IOException {
+        append(part);
+        parts.put(part.getStart(), part);
+    }
+
+    private void append(final Object entry) throws IOException {
+        out.write((GSON.toJson(entry) + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        out.getFD().sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Close and remove the journal once the transfer is complete
+     */
+    public void delete() throws IOException {
+        close();
+        if (file.delete()) {
+            System.out.println("Journal " + file + " deleted");
+        }
+    }
+
+    public static class Part {
+        private long start;
+        private long end;
+        private String treeHash;
+
+        public Part() {
+            // required for deserialization
+        }
+
+        public Part(final long start, final long end, final String treeHash) {
+            this.start = start;
+            this.end = end;
+            this.treeHash = treeHash;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return last byte of the part, inclusive
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        public String getTreeHash() {
+            return treeHash;
+        }
+    }
+}
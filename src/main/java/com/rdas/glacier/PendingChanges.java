@@ -0,0 +1,189 @@
+package com.rdas.glacier;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Uploads and deletes made from this machine that the vault inventory may not show yet. Glacier only refreshes
+ * inventories about once a day, so changes are recorded here until an inventory confirms them.
+ * <p>
+ * Changes are appended to a JSON-lines file. Syncing an inventory rewrites it with the changes still unconfirmed.
+ */
+public class PendingChanges {
+
+    public static final String UPLOAD = "upload";
+    public static final String DELETE = "delete";
+
+    private static final Gson GSON = new Gson();
+
+    private final File file;
+
+    public PendingChanges(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * The pending changes of a vault
+     *
+     * @param vaultName the vault
+     * @return the changes
+     */
+    public static PendingChanges forVault(final String vaultName) {
+        return new PendingChanges(new File(vaultName + "_pending.jsonl"));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Record a change, without failing the operation that made it if the record cannot be written
+     *
+     * @param change the change
+     */
+    public void recordQuietly(final Change change) {
+        try {
+            append(change);
+        } catch (final IOException e) {
+            System.out.println("WARNING: could not record " + change.getOperation() + " of " + change.getArchiveId() + " in " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Durably append a change
+     *
+     * @param change the change
+     * @throws IOException the file could not be written
+     */
+    public synchronized void append(final Change change) throws IOException {
+        appendAll(Collections.singletonList(change));
+    }
+
+    /**
+     * Durably append several changes with a single sync
+     *
+     * @param changes the changes
+     * @throws IOException the file could not be written
+     */
+    public synchronized void appendAll(final List<Change> changes) throws IOException {
+        final StringBuilder lines = new StringBuilder();
+        for (final Change change : changes) {
+            lines.append(GSON.toJson(change)).append('\n');
+        }
+        try (final FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Read all changes
+     *
+     * @return the changes, oldest first
+     * @throws IOException the file could not be read
+     */
+    public synchronized List<Change> changes() throws IOException {
+        final List<Change> changes = new ArrayList<>();
+        if (!file.isFile()) {
+            return changes;
+        }
+        try (final BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    changes.add(GSON.fromJson(line, Change.class));
+                } catch (final JsonSyntaxException e) {
+                    // a torn write at the tail of the file
+                    break;
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Replace the changes with those still pending
+     *
+     * @param pending the changes to keep
+     * @throws IOException the file could not be written
+     */
+    public synchronized void replace(final List<Change> pending) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        try (final FileOutputStream out = new FileOutputStream(temp)) {
+            final StringBuilder lines = new StringBuilder();
+            for (final Change change : pending) {
+                lines.append(GSON.toJson(change)).append('\n');
+            }
+            out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static class Change {
+        private String operation;
+        private String archiveId;
+        private String description;
+        private long size;
+        private String treeHash;
+        private String time;
+
+        public Change() {
+            // required for deserialization
+        }
+
+        public Change(final String operation, final String archiveId, final String description, final long size, final String treeHash) {
+            this.operation = operation;
+            this.archiveId = archiveId;
+            this.description = description;
+            this.size = size;
+            this.treeHash = treeHash;
+            this.time = Instant.now().toString();
+        }
+
+        /**
+         * @return {@link #UPLOAD} or {@link #DELETE}
+         */
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getArchiveId() {
+            return archiveId;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return SHA-256 tree hash of an uploaded archive, or null
+         */
+        public String getTreeHash() {
+            return treeHash;
+        }
+
+        /**
+         * @return when the change was made, in ISO 8601
+         */
+        public String getTime() {
+            return time;
+        }
+    }
+}
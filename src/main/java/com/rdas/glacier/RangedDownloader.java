@@ -0,0 +1,479 @@
+package com.rdas.glacier;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.amazonaws.services.glacier.model.AmazonGlacierException;
+import com.amazonaws.services.glacier.model.DescribeJobRequest;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.GetJobOutputRequest;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+import com.amazonaws.util.BinaryUtils;
+import com.rdas.common.BufferPool;
+import com.rdas.common.ByteRange;
+import com.rdas.common.Metrics;
+import com.rdas.common.TransferOptions;
+import com.rdas.common.TreeHash;
+import com.rdas.common.Utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Downloads the output of a completed retrieval job as many byte ranges at once, as many as the shared
+ * {@link TransferGovernor} allows.
+ * <p>
+ * Every range is written straight to its offset in a preallocated file and checked against the tree hash Glacier
+ * sends with it. For partial retrievals, only a window of the job output is kept. Finished ranges are recorded in a {@link PartJournal}, so an interrupted download continues where
+ * it stopped. A range that comes back short or corrupt, or whose connection drops, is retried with backoff.
+ */
+public class RangedDownloader {
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF_MILLIS = 1000;
+
+    private final AmazonGlacier glacierClient;
+    private final TransferOptions options;
+    private final TransferGovernor governor;
+    private final Metrics.Timer rangeDownloads;
+    private final Metrics.Timer rangeHashes;
+    private final Metrics.Timer rangeWrites;
+    private final LongAdder rangeRetries;
+
+    public RangedDownloader(final AmazonGlacier glacierClient, final TransferOptions options) {
+        this.glacierClient = glacierClient;
+        this.options = options;
+        this.governor = TransferGovernor.shared(options);
+        final Metrics metrics = Metrics.shared(options);
+        // a range's time includes its hashing and writing, which are also timed on their own
+        this.rangeDownloads = metrics.timer("download_range");
+        this.rangeHashes = metrics.timer("download_hash");
+        this.rangeWrites = metrics.timer("download_write");
+        this.rangeRetries = metrics.counter("download_range_retries");
+    }
+
+    /**
+     * Download the job output to a local file
+     *
+     * @param vaultName      source vault
+     * @param jobId          the completed archive retrieval job
+     * @param archiveId      the archive being retrieved
+     * @param outputSize     size of the job output in bytes
+     * @param window         the bytes of the job output to keep, or null to keep all of it
+     * @param target         the local file
+     * @param progressLogger receives transfer progress of all ranges
+     * @throws IOException          the file could not be written, or the download is corrupt
+     * @throws InterruptedException interrupted while ranges were in flight
+     */
+    public void download(final String vaultName, final String jobId, final String archiveId, final long outputSize, final ByteRange window, final File target,
+                         final Utilities.ProgressLogger progressLogger) throws IOException, InterruptedException {
+        final DescribeJobResult job = glacierClient.describeJob(new DescribeJobRequest().withVaultName(vaultName).withJobId(jobId));
+        final ByteRange kept = window == null ? new ByteRange(0, outputSize) : window;
+        final PartJournal<DownloadHeader> journal = openJournal(archiveId, outputSize, kept, target);
+        final long rangeSize = journal.getHeader().getRangeSize();
+        final Map<Long, PartJournal.Part> completed = journal.getParts();
+
+        progressLogger.logProgress(new ProgressEvent(ProgressEventType.TRANSFER_STARTED_EVENT));
+        final ExecutorService workers = Executors.newFixedThreadPool(governor.getMaxConcurrency());
+        final FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE);
+        boolean finished = false;
+        try {
+            final List<Future<byte[]>> ranges = new ArrayList<>();
+            long resumedBytes = 0;
+            for (long offset = 0; offset < outputSize; offset += rangeSize) {
+                final long start = offset;
+                final long end = Math.min(offset + rangeSize, outputSize) - 1;
+                final PartJournal.Part done = completed.get(start);
+                if (done != null && done.getEnd() == end) {
+                    ranges.add(CompletableFuture.completedFuture(BinaryUtils.fromHex(done.getTreeHash())));
+                    resumedBytes += end - start + 1;
+                } else {
+                    ranges.add(workers.submit(() -> downloadRange(vaultName, jobId, channel, start, end, kept, journal, progressLogger)));
+                }
+            }
+            if (resumedBytes > 0) {
+                System.out.print("Resuming with " + resumedBytes / TransferOptions.MB + " MB already downloaded...");
+                progressLogger.resumeFrom(resumedBytes);
+            }
+
+            final List<byte[]> checksums = new ArrayList<>(ranges.size());
+            for (final Future<byte[]> range : ranges) {
+                checksums.add(range.get());
+            }
+            final String checksum = BinaryUtils.toHex(TreeHash.combine(checksums));
+            if (job.getSHA256TreeHash() != null && !job.getSHA256TreeHash().equals(checksum)) {
+                // the ranges all matched, so resuming would only assemble the same wrong file again
+                finished = true;
+                throw new IOException("Checksum mismatch for " + target + ": expected " + job.getSHA256TreeHash() + " but was " + checksum);
+            }
+            channel.force(true);
+            progressLogger.logProgress(new ProgressEvent(ProgressEventType.TRANSFER_COMPLETED_EVENT));
+            finished = true;
+        } catch (final ExecutionException e) {
+            System.out.println("Download interrupted. Run the download again to resume it");
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Range download failed", e.getCause());
+        } finally {
+            // ranges still in flight write to the channel and record into the journal, so both are only closed once
+            // they have stopped
+            workers.shutdownNow();
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } finally {
+                try {
+                    if (finished) {
+                        journal.delete();
+                    } else {
+                        journal.close();
+                    }
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream the job output in order to a channel, such as stdout piped into tar. Ranges are fetched ahead in
+     * parallel into a bounded set of reusable buffers, {@link TransferOptions#getConcurrency()} + 1 ranges at most,
+     * and put back in order. Each range is released to the channel only once it matches its tree hash. Nothing is
+     * written to disk, so an interrupted stream starts over when run again.
+     *
+     * @param vaultName      source vault
+     * @param jobId          the completed archive retrieval job
+     * @param outputSize     size of the job output in bytes
+     * @param window         the bytes of the job output to keep, or null to keep all of it
+     * @param out            where to write the kept bytes
+     * @param progressLogger receives transfer progress of all ranges
+     * @throws IOException          the channel could not be written, or the download is corrupt
+     * @throws InterruptedException interrupted while ranges were in flight
+     */
+    public void download(final String vaultName, final String jobId, final long outputSize, final ByteRange window, final WritableByteChannel out,
+                         final Utilities.ProgressLogger progressLogger) throws IOException, InterruptedException {
+        final DescribeJobResult job = glacierClient.describeJob(new DescribeJobRequest().withVaultName(vaultName).withJobId(jobId));
+        final ByteRange kept = window == null ? new ByteRange(0, outputSize) : window;
+        final long rangeSize = Math.min(options.getPartSizeBytes(), outputSize);
+        if (rangeSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Ranges of a streamed download must be smaller than 2 GB, was " + options.getPartSizeMb() + " MB");
+        }
+        final BufferPool buffers = new BufferPool((int) rangeSize, options.getConcurrency() + 1);
+
+        progressLogger.logProgress(new ProgressEvent(ProgressEventType.TRANSFER_STARTED_EVENT));
+        final ExecutorService workers = Executors.newFixedThreadPool(buffers.getCapacity());
+        try {
+            final Deque<FetchedRange> pending = new ArrayDeque<>();
+            final List<byte[]> checksums = new ArrayList<>();
+            long next = 0;
+            while (next < outputSize || !pending.isEmpty()) {
+                // every buffer not in the queue has been written and given back, so taking one never blocks here
+                while (next < outputSize && pending.size() < buffers.getCapacity()) {
+                    final long start = next;
+                    final long end = Math.min(start + rangeSize, outputSize) - 1;
+                    final ByteBuffer buffer = buffers.take();
+                    pending.add(new FetchedRange(start, buffer, workers.submit(() -> fetchRange(vaultName, jobId, start, end, buffer, progressLogger))));
+                    next = end + 1;
+                }
+                final FetchedRange head = pending.remove();
+                checksums.add(head.checksum.get());
+                final long end = head.start + head.buffer.remaining() - 1;
+                final long keepFrom = Math.max(head.start, kept.getStart());
+                final long keepTo = Math.min(end, kept.getEnd());
+                if (keepFrom <= keepTo) {
+                    final long writeStart = System.nanoTime();
+                    head.buffer.limit((int) (keepTo - head.start + 1));
+                    head.buffer.position((int) (keepFrom - head.start));
+                    while (head.buffer.hasRemaining()) {
+                        out.write(head.buffer);
+                    }
+                    rangeWrites.recordSince(writeStart);
+                }
+                buffers.give(head.buffer);
+            }
+            final String checksum = BinaryUtils.toHex(TreeHash.combine(checksums));
+            if (job.getSHA256TreeHash() != null && !job.getSHA256TreeHash().equals(checksum)) {
+                throw new IOException("Checksum mismatch for the streamed archive: expected " + job.getSHA256TreeHash() + " but was " + checksum);
+            }
+            progressLogger.logProgress(new ProgressEvent(ProgressEventType.TRANSFER_COMPLETED_EVENT));
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Range download failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Download one range of the job output into a buffer, which is left flipped for reading
+     */
+    private byte[] fetchRange(final String vaultName, final String jobId, final long start, final long end, final ByteBuffer buffer,
+                              final Utilities.ProgressLogger progressLogger) throws IOException, InterruptedException {
+        final int length = (int) (end - start + 1);
+        for (int attempt = 1; ; attempt++) {
+            final GetJobOutputRequest request = new GetJobOutputRequest()
+                    .withVaultName(vaultName)
+                    .withJobId(jobId)
+                    .withRange("bytes=" + start + "-" + end);
+            request.setGeneralProgressListener(progressLogger::logProgress);
+
+            buffer.clear().limit(length);
+            String expectedChecksum = null;
+            Exception failure = null;
+            final TransferGovernor.Slot slot = governor.start();
+            final Metrics.Span span = rangeDownloads.start();
+            try {
+                final GetJobOutputResult result = glacierClient.getJobOutput(request);
+                expectedChecksum = result.getChecksum();
+                try (final InputStream body = result.getBody(); final ReadableByteChannel in = Channels.newChannel(body)) {
+                    int read;
+                    while (buffer.hasRemaining() && (read = in.read(buffer)) != -1) {
+                        governor.acquireBytes(read);
+                    }
+                }
+            } catch (final SdkClientException | IOException exc) {
+                failure = retryable(exc);
+            } finally {
+                governor.finish(slot, failure != null || buffer.hasRemaining() ? 0 : length);
+                span.end(start, buffer.position(), failure == null && !buffer.hasRemaining());
+            }
+            buffer.flip();
+            final String problem;
+            if (failure != null) {
+                problem = failure.toString();
+            } else if (buffer.remaining() != length) {
+                problem = "received " + buffer.remaining() + " of " + length + " bytes";
+            } else {
+                final long hashStart = System.nanoTime();
+                final TreeHash treeHash = new TreeHash();
+                treeHash.update(buffer.duplicate());
+                final byte[] checksum = treeHash.digest();
+                rangeHashes.recordSince(hashStart);
+                if (expectedChecksum == null || expectedChecksum.equals(BinaryUtils.toHex(checksum))) {
+                    return checksum;
+                }
+                problem = "checksum mismatch";
+            }
+            retryOrFail(start, end, attempt, problem, failure);
+        }
+    }
+
+    /**
+     * @return the exception if the range is worth another attempt: a dropped or reset connection, or a transient
+     * error from Glacier
+     * @throws SdkClientException   the error will not go away by retrying, e.g. the job expired
+     * @throws InterruptedIOException the download was interrupted
+     */
+    private static Exception retryable(final Exception exc) throws IOException {
+        if (exc instanceof AbortedException || exc instanceof InterruptedIOException || exc instanceof ClosedByInterruptException
+                || Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted while downloading a range");
+        }
+        if (exc instanceof AmazonGlacierException && !GlacierTransfer.isTransient((AmazonGlacierException) exc)) {
+            throw (AmazonGlacierException) exc;
+        }
+        return exc;
+    }
+
+    /**
+     * Count a retry and back off before the next attempt of a range, or give up after the last one
+     */
+    private void retryOrFail(final long start, final long end, final int attempt, final String problem, final Exception failure)
+            throws IOException, InterruptedException {
+        if (attempt == MAX_ATTEMPTS) {
+            throw new IOException("Range " + start + "-" + end + " failed after " + attempt + " attempts: " + problem, failure);
+        }
+        rangeRetries.increment();
+        System.out.print("(retrying range " + start + "-" + end + ": " + problem + ")...");
+        TimeUnit.MILLISECONDS.sleep(RETRY_BACKOFF_MILLIS << (attempt - 1));
+    }
+
+    /**
+     * Reuse the journal of an earlier attempt if it is for the same archive, otherwise start over with a preallocated file
+     */
+    private PartJournal<DownloadHeader> openJournal(final String archiveId, final long outputSize, final ByteRange kept, final File target) throws IOException {
+        final File journalFile = journalFileFor(target);
+        final PartJournal<DownloadHeader> existing = PartJournal.load(journalFile, DownloadHeader.class);
+        if (existing != null) {
+            if (existing.getHeader().matches(archiveId, outputSize, kept) && target.length() == kept.getLength()) {
+                System.out.println("Found download journal with " + existing.getParts().size() + " finished ranges");
+                return existing;
+            }
+            System.out.println("Download journal " + journalFile + " is for a different archive. Starting over");
+            existing.close();
+        }
+        try (final RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            file.setLength(kept.getLength());
+        }
+        return PartJournal.create(journalFile, new DownloadHeader(archiveId, outputSize, kept.toString(), options.getPartSizeBytes()));
+    }
+
+    /**
+     * The journal file used for downloading to the given local file
+     *
+     * @param target the download destination
+     * @return the journal location
+     */
+    public static File journalFileFor(final File target) {
+        return new File("download_" + target.getName() + ".jsonl");
+    }
+
+    /**
+     * Download one range of the job output, writing the part of it that falls within the kept window to the file
+     */
+    private byte[] downloadRange(final String vaultName, final String jobId, final FileChannel channel, final long start, final long end,
+                                 final ByteRange kept, final PartJournal<DownloadHeader> journal, final Utilities.ProgressLogger progressLogger) throws IOException, InterruptedException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(TreeHash.CHUNK_SIZE);
+        for (int attempt = 1; ; attempt++) {
+            final GetJobOutputRequest request = new GetJobOutputRequest()
+                    .withVaultName(vaultName)
+                    .withJobId(jobId)
+                    .withRange("bytes=" + start + "-" + end);
+            request.setGeneralProgressListener(progressLogger::logProgress);
+
+            final TreeHash treeHash = new TreeHash();
+            long position = start;
+            long hashNanos = 0;
+            long writeNanos = 0;
+            String expectedChecksum = null;
+            Exception failure = null;
+            final TransferGovernor.Slot slot = governor.start();
+            final Metrics.Span span = rangeDownloads.start();
+            try {
+                final GetJobOutputResult result = glacierClient.getJobOutput(request);
+                expectedChecksum = result.getChecksum();
+                try (final InputStream body = result.getBody(); final ReadableByteChannel in = Channels.newChannel(body)) {
+                    while (in.read(buffer) != -1) {
+                        governor.acquireBytes(buffer.position());
+                        buffer.flip();
+                        final long hashStart = System.nanoTime();
+                        treeHash.update(buffer.duplicate());
+                        final long writeStart = System.nanoTime();
+                        hashNanos += writeStart - hashStart;
+                        final long chunkEnd = position + buffer.remaining() - 1;
+                        final long keepFrom = Math.max(position, kept.getStart());
+                        final long keepTo = Math.min(chunkEnd, kept.getEnd());
+                        if (keepFrom <= keepTo) {
+                            buffer.limit((int) (keepTo - position + 1));
+                            buffer.position((int) (keepFrom - position));
+                            long filePosition = keepFrom - kept.getStart();
+                            while (buffer.hasRemaining()) {
+                                filePosition += channel.write(buffer, filePosition);
+                            }
+                        }
+                        writeNanos += System.nanoTime() - writeStart;
+                        position = chunkEnd + 1;
+                        buffer.clear();
+                    }
+                }
+            } catch (final SdkClientException | IOException exc) {
+                failure = retryable(exc);
+                buffer.clear();
+            } finally {
+                final boolean complete = failure == null && position == end + 1;
+                governor.finish(slot, complete ? position - start : 0);
+                span.end(start, position - start, complete);
+                rangeHashes.record(hashNanos);
+                rangeWrites.record(writeNanos);
+            }
+            final String problem;
+            if (failure != null) {
+                problem = failure.toString();
+            } else if (position != end + 1) {
+                problem = "received " + (position - start) + " of " + (end - start + 1) + " bytes";
+            } else {
+                final byte[] checksum = treeHash.digest();
+                final String checksumHex = BinaryUtils.toHex(checksum);
+                if (expectedChecksum == null || expectedChecksum.equals(checksumHex)) {
+                    journal.record(new PartJournal.Part(start, end, checksumHex));
+                    return checksum;
+                }
+                problem = "checksum mismatch";
+            }
+            retryOrFail(start, end, attempt, problem, failure);
+        }
+    }
+
+    /**
+     * A range being fetched for a streamed download
+     */
+    private static class FetchedRange {
+        private final long start;
+        private final ByteBuffer buffer;
+        private final Future<byte[]> checksum;
+
+        private FetchedRange(final long start, final ByteBuffer buffer, final Future<byte[]> checksum) {
+            this.start = start;
+            this.buffer = buffer;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Journal header of a ranged download
+     */
+    public static class DownloadHeader {
+        private String archiveId;
+        private long outputSize;
+        private String window;
+        private long rangeSize;
+
+        public DownloadHeader() {
+            // required for deserialization
+        }
+
+        public DownloadHeader(final String archiveId, final long outputSize, final String window, final long rangeSize) {
+            this.archiveId = archiveId;
+            this.outputSize = outputSize;
+            this.window = window;
+            this.rangeSize = rangeSize;
+        }
+
+        /**
+         * Whether this journal belongs to a download of the given archive and range
+         */
+        public boolean matches(final String archiveId, final long outputSize, final ByteRange window) {
+            return archiveId.equals(this.archiveId) && outputSize == this.outputSize && window.toString().equals(this.window);
+        }
+
+        public String getArchiveId() {
+            return archiveId;
+        }
+
+        public long getOutputSize() {
+            return outputSize;
+        }
+
+        /**
+         * @return the kept bytes of the job output
+         */
+        public String getWindow() {
+            return window;
+        }
+
+        public long getRangeSize() {
+            return rangeSize;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.rdas.glacier;
+
+import com.rdas.common.TransferOptions;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks a retrieval tier per archive, so that a restore is done by a deadline, or as early as a budget allows, for as
+ * little as possible.
+ * <p>
+ * Archives are planned in the order they are needed. Their jobs are started in that order,
+ * {@link TransferOptions#getJobsPerSecond()} apart, and they are downloaded one after another at
+ * {@link TransferOptions#getLinkMbPerSecond()}. Working back from the deadline gives the latest time each download
+ * can start, and each archive gets the cheapest tier whose slowest job is done by then: typically the first archives
+ * need Expedited or Standard and the rest can wait for Bulk. For a budget, the earliest deadline whose plan fits it
+ * is searched for. Times are the worst cases of the tiers' usual latencies.
+ */
+public class RetrievalPlanner {
+
+    // Expedited is only quick for archives below 250 MB
+    private static final long EXPEDITED_MAX_BYTES = 250 * TransferOptions.MB;
+    private static final RetrievalTier[] CHEAPEST_FIRST = {RetrievalTier.BULK, RetrievalTier.STANDARD, RetrievalTier.EXPEDITED};
+    private static final long SEARCH_PRECISION = TimeUnit.MINUTES.toMillis(1);
+    private static final int MAX_LISTED_ARCHIVES = 20;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("MMM d HH:mm").withZone(ZoneId.systemDefault());
+
+    private final TransferOptions options;
+
+    public RetrievalPlanner(final TransferOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * Plan the tiers of downloads, set them and print the plan
+     *
+     * @param downloads the downloads, in the order they are needed
+     * @return the plan
+     */
+    public Plan apply(final List<GlacierDownload> downloads) {
+        final long[] sizes = new long[downloads.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = downloads.get(i).jobOutputSize();
+        }
+        final Plan plan = plan(sizes);
+        for (int i = 0; i < sizes.length; i++) {
+            downloads.get(i).withTier(plan.getTier(i));
+        }
+        print(plan, downloads);
+        return plan;
+    }
+
+    /**
+     * @param sizes job output sizes of the archives, in the order they are needed
+     * @return the plan for the deadline or budget of the options, or with their fixed tier if neither is set
+     */
+    public Plan plan(final long[] sizes) {
+        if (options.getDeadlineHours() > 0) {
+            return planForDeadline(sizes, (long) (options.getDeadlineHours() * TimeUnit.HOURS.toMillis(1)));
+        }
+        if (options.getBudget() > 0) {
+            return planForBudget(sizes, options.getBudget());
+        }
+        final RetrievalTier[] tiers = new RetrievalTier[sizes.length];
+        Arrays.fill(tiers, RetrievalTier.of(options.getTier()));
+        return new Plan(sizes, tiers, -1);
+    }
+
+    private Plan planForDeadline(final long[] sizes, final long deadlineMillis) {
+        final RetrievalTier[] tiers = new RetrievalTier[sizes.length];
+        long laterDownloadsMillis = 0;
+        for (int i = sizes.length - 1; i >= 0; i--) {
+            laterDownloadsMillis += downloadMillis(sizes[i]);
+            tiers[i] = cheapestTier(sizes[i], initiatedAt(i), deadlineMillis - laterDownloadsMillis);
+        }
+        return new Plan(sizes, tiers, deadlineMillis);
+    }
+
+    /**
+     * A later deadline never costs more, so the earliest one that can be met within budget is found by bisection
+     */
+    private Plan planForBudget(final long[] sizes, final double budget) {
+        final RetrievalTier[] bulk = new RetrievalTier[sizes.length];
+        Arrays.fill(bulk, RetrievalTier.BULK);
+        Plan best = new Plan(sizes, bulk, -1);
+        if (best.getCost() > budget) {
+            return best;
+        }
+        long early = 0;
+        long late = best.getDoneMillis();
+        while (late - early > SEARCH_PRECISION) {
+            final long deadline = early + (late - early) / 2;
+            final Plan plan = planForDeadline(sizes, deadline);
+            if (plan.getDoneMillis() <= deadline && plan.getCost() <= budget) {
+                best = plan;
+                late = deadline;
+            } else {
+                early = deadline;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the cheapest tier whose job is done by the given time, or the fastest one if none is
+     */
+    private RetrievalTier cheapestTier(final long size, final long initiatedAt, final long neededAt) {
+        for (final RetrievalTier tier : CHEAPEST_FIRST) {
+            if (isSuitable(tier, size) && initiatedAt + latencyMillis(tier) <= neededAt) {
+                return tier;
+            }
+        }
+        return isSuitable(RetrievalTier.EXPEDITED, size) ? RetrievalTier.EXPEDITED : RetrievalTier.STANDARD;
+    }
+
+    private static boolean isSuitable(final RetrievalTier tier, final long size) {
+        return tier != RetrievalTier.EXPEDITED || size <= EXPEDITED_MAX_BYTES;
+    }
+
+    private long initiatedAt(final int index) {
+        return index * 1000L / options.getJobsPerSecond();
+    }
+
+    private long latencyMillis(final RetrievalTier tier) {
+        return (long) (tier.getMaxLatencyMillis() * options.getTimeScale());
+    }
+
+    private long downloadMillis(final long size) {
+        return size * 1000 / (linkMbPerSecond() * TransferOptions.MB);
+    }
+
+    /**
+     * @return the expected throughput, or the bandwidth cap if that is lower
+     */
+    private int linkMbPerSecond() {
+        return options.getMaxMbPerSecond() > 0 ? Math.min(options.getMaxMbPerSecond(), options.getLinkMbPerSecond()) : options.getLinkMbPerSecond();
+    }
+
+    private void print(final Plan plan, final List<GlacierDownload> downloads) {
+        if (downloads.isEmpty()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        long totalBytes = 0;
+        for (final GlacierDownload download : downloads) {
+            totalBytes += download.jobOutputSize();
+        }
+        System.out.println(String.format("Retrieval plan for %d archives (%.1f GB), starting %d jobs per second and downloading at %d MB/s:",
+                downloads.size(), totalBytes / (1024.0 * TransferOptions.MB), options.getJobsPerSecond(), linkMbPerSecond()));
+        for (final RetrievalTier tier : RetrievalTier.values()) {
+            int count = 0;
+            long bytes = 0;
+            double cost = 0;
+            for (int i = 0; i < downloads.size(); i++) {
+                if (plan.getTier(i) == tier) {
+                    count++;
+                    bytes += downloads.get(i).jobOutputSize();
+                    cost += tier.costOf(downloads.get(i).jobOutputSize());
+                }
+            }
+            if (count > 0) {
+                System.out.println(String.format("  %-10s %6d archives %10.1f GB  $%.2f", tier.getTierName(), count, bytes / (1024.0 * TransferOptions.MB), cost));
+            }
+        }
+        if (downloads.size() <= MAX_LISTED_ARCHIVES) {
+            for (int i = 0; i < downloads.size(); i++) {
+                System.out.println(String.format("  %-40s %-10s ready by %s, downloaded by %s", downloads.get(i).archiveInfo.getLocalArchiveFile().getName(),
+                        plan.getTier(i).getTierName(), format(now + plan.getReadyMillis(i)), format(now + plan.getDownloadedMillis(i))));
+            }
+        }
+        System.out.println(String.format("Estimated cost $%.2f, first archive ready by %s, all downloaded by %s",
+                plan.getCost(), format(now + plan.getReadyMillis(0)), format(now + plan.getDoneMillis())));
+        if (options.getDeadlineHours() > 0 && plan.getDoneMillis() > plan.getDeadlineMillis()) {
+            System.out.println("WARNING: the deadline of " + format(now + plan.getDeadlineMillis()) + " cannot be met, even with the fastest tiers");
+        }
+        if (options.getBudget() > 0 && plan.getCost() > options.getBudget()) {
+            System.out.println(String.format("WARNING: the plan exceeds the budget of $%.2f", options.getBudget()));
+        }
+    }
+
+    private static String format(final long millis) {
+        return TIME_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * Tiers of the archives and the resulting timeline, in milliseconds from the start of planning
+     */
+    public class Plan {
+        private final RetrievalTier[] tiers;
+        private final long[] readyMillis;
+        private final long[] downloadedMillis;
+        private final long deadlineMillis;
+        private double cost;
+
+        private Plan(final long[] sizes, final RetrievalTier[] tiers, final long deadlineMillis) {
+            this.tiers = tiers;
+            this.readyMillis = new long[sizes.length];
+            this.downloadedMillis = new long[sizes.length];
+            this.deadlineMillis = deadlineMillis;
+            long linkFreeAt = 0;
+            for (int i = 0; i < sizes.length; i++) {
+                readyMillis[i] = initiatedAt(i) + latencyMillis(tiers[i]);
+                downloadedMillis[i] = Math.max(readyMillis[i], linkFreeAt) + downloadMillis(sizes[i]);
+                linkFreeAt = downloadedMillis[i];
+                cost += tiers[i].costOf(sizes[i]);
+            }
+        }
+
+        public RetrievalTier getTier(final int index) {
+            return tiers[index];
+        }
+
+        /**
+         * @return when the job of an archive is done at the latest
+         */
+        public long getReadyMillis(final int index) {
+            return readyMillis[index];
+        }
+
+        public long getDownloadedMillis(final int index) {
+            return downloadedMillis[index];
+        }
+
+        /**
+         * @return when all archives are downloaded
+         */
+        public long getDoneMillis() {
+            return downloadedMillis.length == 0 ? 0 : downloadedMillis[downloadedMillis.length - 1];
+        }
+
+        /**
+         * @return the deadline planned for, or -1
+         */
+        public long getDeadlineMillis() {
+            return deadlineMillis;
+        }
+
+        /**
+         * @return the estimated cost in dollars
+         */
+        public double getCost() {
+            return cost;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.rdas.glacier;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Glacier retrieval tiers, how long their jobs are expected to take and what they cost. Prices are the us-east-1
+ * list prices; other regions differ a little, so costs are estimates.
+ */
+public enum RetrievalTier {
+    EXPEDITED("Expedited", TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(5), 0.03, 10.0),
+    STANDARD("Standard", TimeUnit.HOURS.toMillis(3), TimeUnit.HOURS.toMillis(5), 0.01, 0.05),
+    BULK("Bulk", TimeUnit.HOURS.toMillis(5), TimeUnit.HOURS.toMillis(12), 0.0025, 0.025);
+
+    private static final long MIN_POLL_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    private static final double GB = 1024.0 * 1024 * 1024;
+
+    private final String tierName;
+    private final long minLatencyMillis;
+    private final long maxLatencyMillis;
+    private final double dollarsPerGb;
+    private final double dollarsPerThousandRequests;
+
+    RetrievalTier(final String tierName, final long minLatencyMillis, final long maxLatencyMillis, final double dollarsPerGb, final double dollarsPerThousandRequests) {
+        this.tierName = tierName;
+        this.minLatencyMillis = minLatencyMillis;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.dollarsPerGb = dollarsPerGb;
+        this.dollarsPerThousandRequests = dollarsPerThousandRequests;
+    }
+
+    /**
+     * @return the tier name as Glacier expects it in job parameters
+     */
+    public String getTierName() {
+        return tierName;
+    }
+
+    public long getMinLatencyMillis() {
+        return minLatencyMillis;
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    /**
+     * @param bytes size of the job output
+     * @return the cost of one retrieval job in dollars
+     */
+    public double costOf(final long bytes) {
+        return dollarsPerThousandRequests / 1000 + dollarsPerGb * bytes / GB;
+    }
+
+    /**
+     * How long to wait before checking on a job again. Polls are sparse while the job cannot be expected to be done
+     * yet and get more frequent as it approaches its expected completion window.
+     *
+     * @param elapsedMillis time since the job was started
+     * @return delay until the next poll
+     */
+    public long nextPollDelayMillis(final long elapsedMillis) {
+        final long floor = Math.max(MIN_POLL_INTERVAL, minLatencyMillis / 36);
+        if (elapsedMillis < minLatencyMillis) {
+            return Math.max(floor, (minLatencyMillis - elapsedMillis) / 2);
+        }
+        return floor;
+    }
+
+    /**
+     * @param tierName a tier name as used by Glacier, case insensitive
+     * @return the tier
+     */
+    public static RetrievalTier of(final String tierName) {
+        for (final RetrievalTier tier : values()) {
+            if (tier.tierName.equalsIgnoreCase(tierName)) {
+                return tier;
+            }
+        }
+        throw new IllegalArgumentException("Unknown retrieval tier: " + tierName);
+    }
+}
@@ -0,0 +1,155 @@
+package com.rdas.glacier;
+
+import com.amazonaws.services.glacier.AmazonGlacier;
+import com.rdas.common.ArchiveEncoding;
+import com.rdas.common.ConcatenatedArchiveSource;
+import com.rdas.common.EncodingChannel;
+import com.rdas.common.TransferOptions;
+import com.rdas.common.Utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs many small files into large archives, to save the per-request and per-archive costs Glacier charges.
+ * <p>
+ * A pack is the files' bytes back to back. It is streamed straight from the files into the multipart upload, so no
+ * combined copy is written to disk. Where each file ended up is recorded in the vault's {@link PackIndex}.
+ * <p>
+ * With compression or encryption enabled, a pack is encoded as a whole, like any other archive. Its files can then
+ * only be restored by retrieving the whole pack, which is decoded on download, and taking their bytes at their
+ * offsets in the decoded pack.
+ */
+public class SmallFilePacker {
+
+    private final AmazonGlacier glacierClient;
+    private final String vaultName;
+    private final String source;
+    private final TransferOptions options;
+    private final PackIndex index;
+    private Map<String, PackIndex.Entry> packed;
+
+    /**
+     * @param glacierClient the client
+     * @param vaultName     destination vault
+     * @param source        the directory or manifest the files came from, used in pack descriptions
+     * @param options       transfer options
+     */
+    public SmallFilePacker(final AmazonGlacier glacierClient, final String vaultName, final String source, final TransferOptions options) {
+        this.glacierClient = glacierClient;
+        this.vaultName = vaultName;
+        this.source = source;
+        this.options = options;
+        this.index = PackIndex.forVault(vaultName);
+    }
+
+    public PackIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Group files into packs of up to the target pack size, keeping their order
+     *
+     * @param files    the files to pack
+     * @param packSize target size of a pack in bytes
+     * @return the packs
+     */
+    public static List<List<File>> plan(final List<File> files, final long packSize) {
+        final List<List<File>> packs = new ArrayList<>();
+        List<File> pack = new ArrayList<>();
+        long packBytes = 0;
+        for (final File file : files) {
+            if (!pack.isEmpty() && packBytes + file.length() > packSize) {
+                packs.add(pack);
+                pack = new ArrayList<>();
+                packBytes = 0;
+            }
+            pack.add(file);
+            packBytes += file.length();
+        }
+        if (!pack.isEmpty()) {
+            packs.add(pack);
+        }
+        return packs;
+    }
+
+    /**
+     * Upload one pack, unless an earlier run already did, and record its files in the index
+     *
+     * @param packNumber the pack's number within the source
+     * @param files      the files in the pack
+     * @return the archiveId of the pack
+     * @throws IOException          a file could not be read or the index could not be written
+     * @throws InterruptedException interrupted while parts were in flight
+     */
+    public String upload(final int packNumber, final List<File> files) throws IOException, InterruptedException {
+        final ArchiveEncoding encoding = ArchiveEncoding.fromOptions(options);
+        final String plainDescription = Utilities.generatePackDescription(source, packNumber);
+        final String description = encoding.isEnabled() ? Utilities.withEncoding(plainDescription, encoding.getName()) : plainDescription;
+        final String existing = alreadyPacked(description, files);
+        if (existing != null) {
+            System.out.println(description + " was already uploaded as " + existing);
+            return existing;
+        }
+        // taken before reading, so a file that changes while it is uploaded is packed again next time
+        final long[] lastModified = new long[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            lastModified[i] = files.get(i).lastModified();
+        }
+        try (final ConcatenatedArchiveSource pack = new ConcatenatedArchiveSource(files)) {
+            final Utilities.ProgressLogger progressLogger = new Utilities.ProgressLogger(description, pack.size());
+            final String archiveId;
+            if (encoding.isEnabled()) {
+                // encoded content differs every time, so an encoded pack is uploaded like a stream and not resumed
+                try (final EncodingChannel encoded = encoding.encode(pack.channel())) {
+                    archiveId = new MultipartUploader(glacierClient, options).upload(vaultName, description, encoded, progressLogger);
+                }
+            } else {
+                final File journalFile = new File("upload_pack" + packNumber + "_" + Integer.toHexString(description.hashCode()) + ".jsonl");
+                archiveId = new MultipartUploader(glacierClient, options).upload(vaultName, description, pack, journalFile, progressLogger);
+            }
+
+            final List<PackIndex.Entry> entries = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                entries.add(new PackIndex.Entry(files.get(i).getPath(), archiveId, description, pack.offsetOf(i), pack.offsetOf(i + 1) - pack.offsetOf(i),
+                        lastModified[i]));
+            }
+            record(entries);
+            System.out.println(description + " (" + files.size() + " files): archive ID is " + archiveId);
+            return archiveId;
+        }
+    }
+
+    /**
+     * @return the archiveId if every file of the pack is already indexed under this pack's description and has not
+     * changed since
+     */
+    private synchronized String alreadyPacked(final String description, final List<File> files) throws IOException {
+        if (packed == null) {
+            // read once per run, as packs are checked one after another against the same index
+            packed = index.latest();
+        }
+        String archiveId = null;
+        for (final File file : files) {
+            final PackIndex.Entry entry = packed.get(file.getPath());
+            if (entry == null || !description.equals(entry.getPackDescription()) || !entry.matches(file)
+                    || archiveId != null && !archiveId.equals(entry.getArchiveId())) {
+                return null;
+            }
+            archiveId = entry.getArchiveId();
+        }
+        return archiveId;
+    }
+
+    private synchronized void record(final List<PackIndex.Entry> entries) throws IOException {
+        index.append(entries);
+        if (packed != null) {
+            for (final PackIndex.Entry entry : entries) {
+                packed.put(entry.getPath(), entry);
+            }
+        }
+    }
+}
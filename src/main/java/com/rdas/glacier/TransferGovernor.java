@@ -0,0 +1,322 @@
+package com.rdas.glacier;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.rdas.common.Metrics;
+import com.rdas.common.TransferOptions;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Paces all Glacier traffic of the process, so that parallel transfers share one budget instead of each one pushing
+ * as hard as it can.
+ * <p>
+ * Every request goes through a requests-per-second token bucket, and every byte of part data through a bandwidth
+ * token bucket. Both are hard caps, optionally applied only during some hours of the day. Part transfers also need
+ * one of a limited number of slots. The number of slots adapts AIMD-style: it grows by one per round of transfers
+ * while the slots are in use, is halved when Glacier throttles, and is cut by a quarter when the time per MB climbs
+ * well above the best seen so far, which means the link is saturated.
+ */
+public class TransferGovernor {
+
+    private static final double LATENCY_TOLERANCE = 1.5;
+    private static final long DECREASE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final double BEST_DRIFT_PER_SECOND = 0.001;
+
+    private static TransferGovernor shared;
+
+    private final TransferOptions options;
+    private final TokenBucket bytes;
+    private final TokenBucket requests;
+    private final RequestHandler2 requestHandler = new GovernorHandler();
+    private final Metrics.Timer slotWaits;
+    private final LongAdder throttleCount;
+    private final LongAdder requestErrors;
+    private final ClassValue<Metrics.Timer> requestTimers;
+
+    private int limit;
+    private int inFlight;
+    private int completionsThisRound;
+    private double recentNanosPerMb;
+    private double bestNanosPerMb = Double.MAX_VALUE;
+    private long lastDecreaseNanos;
+    private long roundStartNanos = System.nanoTime();
+    private long throttles;
+
+    public TransferGovernor(final TransferOptions options) {
+        this.options = options;
+        this.bytes = options.getMaxMbPerSecond() > 0 ? new TokenBucket(options.getMaxMbPerSecond() * (double) TransferOptions.MB) : null;
+        this.requests = options.getMaxRequestsPerSecond() > 0 ? new TokenBucket(options.getMaxRequestsPerSecond()) : null;
+        this.limit = Math.min(options.getConcurrency(), options.getMaxConcurrency());
+        final Metrics metrics = Metrics.shared(options);
+        this.slotWaits = metrics.timer("governor_wait");
+        this.throttleCount = metrics.counter("throttles");
+        this.requestErrors = metrics.counter("request_errors");
+        this.requestTimers = new ClassValue<Metrics.Timer>() {
+            @Override
+            protected Metrics.Timer computeValue(final Class<?> type) {
+                // e.g. UploadMultipartPartRequest is timed as request_upload_multipart_part
+                return metrics.timer("request" + type.getSimpleName().replaceFirst("Request$", "").replaceAll("([A-Z])", "_$1").toLowerCase());
+            }
+        };
+    }
+
+    /**
+     * The governor of the process. The first call decides its limits.
+     *
+     * @param options transfer options
+     * @return the governor
+     */
+    public static synchronized TransferGovernor shared(final TransferOptions options) {
+        if (shared == null) {
+            shared = new TransferGovernor(options);
+        }
+        return shared;
+    }
+
+    /**
+     * The governor of the process, with limits from the system properties unless it already exists
+     *
+     * @return the governor
+     */
+    public static synchronized TransferGovernor shared() {
+        return shared(TransferOptions.fromSystemProperties());
+    }
+
+    /**
+     * @return handler to install on Glacier clients, so that all their requests are paced and their throttling is seen
+     */
+    public RequestHandler2 getRequestHandler() {
+        return requestHandler;
+    }
+
+    /**
+     * @return the most part transfers that can ever be in flight, and so the number of workers a transfer needs
+     */
+    public int getMaxConcurrency() {
+        return options.getMaxConcurrency();
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized long getThrottles() {
+        return throttles;
+    }
+
+    /**
+     * Wait for a slot to transfer a part in. Every slot must be given back with {@link #finish}.
+     *
+     * @return the slot
+     * @throws InterruptedException interrupted while waiting
+     */
+    public synchronized Slot start() throws InterruptedException {
+        final long waitStart = System.nanoTime();
+        while (inFlight >= limit) {
+            wait();
+        }
+        inFlight++;
+        final long now = System.nanoTime();
+        slotWaits.record(now - waitStart);
+        return new Slot(now);
+    }
+
+    /**
+     * Give back a slot
+     *
+     * @param slot             the slot
+     * @param bytesTransferred bytes moved while holding it, 0 if the transfer failed
+     */
+    public synchronized void finish(final Slot slot, final long bytesTransferred) {
+        inFlight--;
+        notifyAll();
+        if (bytesTransferred < TransferOptions.MB) {
+            return;
+        }
+        final double nanosPerMb = (System.nanoTime() - slot.startNanos) / ((double) bytesTransferred / TransferOptions.MB);
+        recentNanosPerMb = recentNanosPerMb == 0 ? nanosPerMb : 0.8 * recentNanosPerMb + 0.2 * nanosPerMb;
+        bestNanosPerMb = Math.min(bestNanosPerMb, recentNanosPerMb);
+        if (++completionsThisRound < limit) {
+            return;
+        }
+        completionsThisRound = 0;
+        // the best time drifts up slowly, so that a link that got slower for good is not mistaken for a saturated one
+        final long now = System.nanoTime();
+        bestNanosPerMb *= 1 + BEST_DRIFT_PER_SECOND * (now - roundStartNanos) / 1e9;
+        roundStartNanos = now;
+        if (recentNanosPerMb > bestNanosPerMb * LATENCY_TOLERANCE && limit > 1) {
+            decrease(limit - Math.max(1, limit / 4), String.format("parts slowed down to %.1f MB/s each", 1e9 / recentNanosPerMb));
+        } else if (inFlight + 1 >= limit && limit < options.getMaxConcurrency()) {
+            limit++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Glacier throttled a request: halve the slots
+     */
+    public synchronized void throttled() {
+        throttles++;
+        throttleCount.increment();
+        decrease(Math.max(1, limit / 2), "throttled by Glacier");
+    }
+
+    private void decrease(final int newLimit, final String reason) {
+        final long now = System.nanoTime();
+        if (newLimit >= limit || now - lastDecreaseNanos < DECREASE_COOLDOWN_NANOS) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        completionsThisRound = 0;
+        System.out.print("(" + reason + ", down to " + newLimit + " parts at a time)...");
+        limit = newLimit;
+    }
+
+    /**
+     * Wait until some bytes may be sent or received
+     *
+     * @param count number of bytes
+     * @throws InterruptedException interrupted while waiting
+     */
+    public void acquireBytes(final long count) throws InterruptedException {
+        if (bytes != null && isLimitedNow()) {
+            bytes.acquire(count);
+        }
+    }
+
+    /**
+     * Wrap a stream so that reading it draws from the bandwidth budget
+     *
+     * @param in the stream
+     * @return the paced stream; supports mark/reset if the stream does
+     */
+    public InputStream pace(final InputStream in) {
+        return bytes == null ? in : new PacedInputStream(in);
+    }
+
+    private boolean isLimitedNow() {
+        return options.getLimitHours() == null || options.isLimitedAt(LocalTime.now().getHour());
+    }
+
+    private static boolean isThrottling(final Exception exc) {
+        if (!(exc instanceof AmazonServiceException)) {
+            return false;
+        }
+        final AmazonServiceException serviceException = (AmazonServiceException) exc;
+        return serviceException.getStatusCode() == 429 || "ThrottlingException".equals(serviceException.getErrorCode())
+                || "SlowDown".equals(serviceException.getErrorCode());
+    }
+
+    /**
+     * A part transfer in flight
+     */
+    public static class Slot {
+        private final long startNanos;
+
+        private Slot(final long startNanos) {
+            this.startNanos = startNanos;
+        }
+    }
+
+    /**
+     * Token bucket holding at most a second's worth of tokens. Callers may overdraw it; the debt is paid by waiting,
+     * so large and small requests are paced alike.
+     */
+    static class TokenBucket {
+        private final double perSecond;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        TokenBucket(final double perSecond) {
+            this.perSecond = perSecond;
+            this.tokens = perSecond;
+        }
+
+        void acquire(final double count) throws InterruptedException {
+            final long waitNanos;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                tokens = Math.min(perSecond, tokens + (now - refilledAt) / 1e9 * perSecond);
+                refilledAt = now;
+                tokens -= count;
+                waitNanos = tokens < 0 ? (long) (-tokens / perSecond * 1e9) : 0;
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
+
+    private class GovernorHandler extends RequestHandler2 {
+        // attempts run on the thread that makes the request, so it can hold their start time
+        private final ThreadLocal<long[]> attemptStart = ThreadLocal.withInitial(() -> new long[1]);
+
+        @Override
+        public void beforeAttempt(final HandlerBeforeAttemptContext context) {
+            if (requests != null && isLimitedNow()) {
+                try {
+                    requests.acquire(1);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AbortedException(e);
+                }
+            }
+            attemptStart.get()[0] = System.nanoTime();
+        }
+
+        @Override
+        public void afterAttempt(final HandlerAfterAttemptContext context) {
+            // until the response headers, so streamed bodies are not part of it
+            requestTimers.get(context.getRequest().getOriginalRequest().getClass()).recordSince(attemptStart.get()[0]);
+            if (context.getException() != null) {
+                requestErrors.increment();
+            }
+            if (isThrottling(context.getException())) {
+                throttled();
+            }
+        }
+    }
+
+    private class PacedInputStream extends FilterInputStream {
+        private PacedInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                paid(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                paid(read);
+            }
+            return read;
+        }
+
+        private void paid(final int count) throws InterruptedIOException {
+            try {
+                acquireBytes(count);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while pacing the transfer");
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.rdas.glacier;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The durable work queue of a {@link GlacierDaemon}: uploads, downloads and inventories, and how far each one got.
+ * <p>
+ * Every change of an item appends its whole state to a JSON-lines file, and the last line of an item wins. Opening
+ * the queue compacts the file to one line per item, so a restarted daemon finds all work where it was left.
+ */
+public class WorkQueue {
+
+    public static final String UPLOAD = "upload";
+    public static final String DOWNLOAD = "download";
+    public static final String INVENTORY = "inventory";
+
+    public static final String QUEUED = "queued";
+    public static final String WAITING = "waiting";
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+    public static final String CANCELLED = "cancelled";
+
+    private static final Gson GSON = new Gson();
+
+    private final File file;
+    private final Map<String, Item> items = new LinkedHashMap<>();
+    private long lastId;
+
+    private WorkQueue(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open a queue, creating it if the file does not exist yet
+     *
+     * @param file the queue file
+     * @return the queue
+     * @throws IOException the file could not be read or compacted
+     */
+    public static WorkQueue open(final File file) throws IOException {
+        final WorkQueue queue = new WorkQueue(file);
+        queue.load();
+        return queue;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private synchronized void load() throws IOException {
+        if (file.isFile()) {
+            try (final BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    final Item item;
+                    try {
+                        item = GSON.fromJson(line, Item.class);
+                    } catch (final JsonSyntaxException e) {
+                        // a torn write at the tail of the file
+                        break;
+                    }
+                    items.put(item.getId(), item);
+                    lastId = Math.max(lastId, Long.parseLong(item.getId()));
+                }
+            }
+        }
+        final File temp = new File(file.getPath() + ".tmp");
+        try (final FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(lines(items.values()));
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Durably add an item, in state {@link #QUEUED}
+     *
+     * @param item the item, without id
+     * @return the item, with its id
+     * @throws IOException the item could not be recorded
+     */
+    public synchronized Item add(final Item item) throws IOException {
+        item.id = String.valueOf(++lastId);
+        item.state = QUEUED;
+        item.created = Instant.now().toString();
+        item.updated = item.created;
+        append(item);
+        items.put(item.id, item);
+        return item;
+    }
+
+    /**
+     * Durably change an item
+     *
+     * @param item   the item
+     * @param change sets the changed fields
+     * @throws IOException the change could not be recorded
+     */
+    public synchronized void update(final Item item, final Consumer<Item> change) throws IOException {
+        change.accept(item);
+        item.updated = Instant.now().toString();
+        append(item);
+    }
+
+    /**
+     * @param id the item's id
+     * @return the item, or null
+     */
+    public synchronized Item get(final String id) {
+        return items.get(id);
+    }
+
+    /**
+     * @return all items, oldest first
+     */
+    public synchronized List<Item> items() {
+        return new ArrayList<>(items.values());
+    }
+
+    /**
+     * @param state the state
+     * @return the items in that state, oldest first
+     */
+    public synchronized List<Item> items(final String state) {
+        final List<Item> matching = new ArrayList<>();
+        for (final Item item : items.values()) {
+            if (item.getState().equals(state)) {
+                matching.add(item);
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * @return a consistent JSON array of the items in the state, or of all items if the state is null
+     */
+    public synchronized String toJson(final String state) {
+        return GSON.toJson(state == null ? items() : items(state));
+    }
+
+    private void append(final Item item) throws IOException {
+        final List<Item> single = new ArrayList<>(1);
+        single.add(item);
+        try (final FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(lines(single));
+            out.getFD().sync();
+        }
+    }
+
+    private static byte[] lines(final Iterable<Item> items) {
+        final StringBuilder lines = new StringBuilder();
+        for (final Item item : items) {
+            lines.append(GSON.toJson(item)).append('\n');
+        }
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One piece of work. Uploads name a local file; downloads an archive and the file to download it to; inventories
+     * only a vault.
+     */
+    public static class Item {
+        private String id;
+        private String type;
+        private String vault;
+        private String file;
+        private String archiveId;
+        private String fileSize;
+        private String state;
+        private String jobId;
+        private String jobStarted;
+        private String result;
+        private String error;
+        private String created;
+        private String updated;
+
+        public Item() {
+            // required for deserialization
+        }
+
+        public Item(final String type, final String vault, final String file, final String archiveId, final String fileSize) {
+            this.type = type;
+            this.vault = vault;
+            this.file = file;
+            this.archiveId = archiveId;
+            this.fileSize = fileSize;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return {@link #UPLOAD}, {@link #DOWNLOAD} or {@link #INVENTORY}
+         */
+        public String getType() {
+            return type;
+        }
+
+        public String getVault() {
+            return vault;
+        }
+
+        /**
+         * @return the file to upload, or to download to
+         */
+        public String getFile() {
+            return file;
+        }
+
+        /**
+         * @return the archive to download
+         */
+        public String getArchiveId() {
+            return archiveId;
+        }
+
+        /**
+         * @return the size of the archive to download
+         */
+        public String getFileSize() {
+            return fileSize;
+        }
+
+        /**
+         * @return {@link #QUEUED}, {@link #WAITING} for a retrieval job, {@link #RUNNING}, {@link #DONE},
+         * {@link #FAILED} or {@link #CANCELLED}
+         */
+        public String getState() {
+            return state;
+        }
+
+        /**
+         * @return the retrieval job of a download or inventory, once started
+         */
+        public String getJobId() {
+            return jobId;
+        }
+
+        void setJobId(final String jobId) {
+            this.jobId = jobId;
+            this.jobStarted = jobId == null ? null : Instant.now().toString();
+        }
+
+        /**
+         * @return when the retrieval job was started, in ISO 8601, or null if there is none or an older queue did not
+         * record it
+         */
+        public String getJobStarted() {
+            return jobStarted;
+        }
+
+        void setState(final String state) {
+            this.state = state;
+        }
+
+        /**
+         * @return the archive id of a finished upload, or the inventory file of a finished inventory
+         */
+        public String getResult() {
+            return result;
+        }
+
+        void setResult(final String result) {
+            this.result = result;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        void setError(final String error) {
+            this.error = error;
+        }
+
+        /**
+         * @return when the item was added, in ISO 8601
+         */
+        public String getCreated() {
+            return created;
+        }
+
+        /**
+         * @return when the item last changed, in ISO 8601
+         */
+        public String getUpdated() {
+            return updated;
+        }
+
+        /**
+         * @return true if nothing more will happen to the item
+         */
+        public boolean isFinished() {
+            return DONE.equals(state) || FAILED.equals(state) || CANCELLED.equals(state);
+        }
+    }
+}